@@ -1,22 +1,97 @@
 
 import java.util.*;
+import java.io.*;
+import java.net.*;
 import java.time.LocalDate;
-import java.util.concurrent.ThreadLocalRandom;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.function.Function;
+import java.util.random.RandomGenerator;
 import java.text.DecimalFormat;
 
+// Immutable, consistent view of all market inputs at one instant
+class MarketSnapshot {
+    private final Map<String, Double> interestRates;
+    private final Map<String, Double> currencyRates;
+    private final Map<String, Double> liquidityIndex;
+    private final LocalDate date;
+    private final long version;
+    private volatile FxMatrix fx;
+    
+    public MarketSnapshot(Map<String, Double> interestRates, Map<String, Double> currencyRates, 
+                          Map<String, Double> liquidityIndex, LocalDate date, long version) {
+        this.interestRates = Collections.unmodifiableMap(new HashMap<>(interestRates));
+        this.currencyRates = Collections.unmodifiableMap(new HashMap<>(currencyRates));
+        this.liquidityIndex = Collections.unmodifiableMap(new HashMap<>(liquidityIndex));
+        this.date = date;
+        this.version = version;
+    }
+    
+    public double getInterestRate(String tenor) {
+        return interestRates.getOrDefault(tenor, 0.0);
+    }
+    
+    // Quoted rate for a pair such as "USD/IDR"; use fx() for conversions between arbitrary currencies
+    public double getCurrencyRate(String pair) {
+        Double rate = currencyRates.get(pair);
+        if (rate == null) {
+            throw new IllegalArgumentException("No FX quote for " + pair);
+        }
+        return rate;
+    }
+    
+    // Cross rates derived from this snapshot's quotes, built on first use
+    public FxMatrix fx() {
+        FxMatrix matrix = fx;
+        if (matrix == null) {
+            matrix = new FxMatrix(currencyRates);
+            fx = matrix;
+        }
+        return matrix;
+    }
+    
+    public double getLiquidityIndex() {
+        return liquidityIndex.get("MARKET_LIQUIDITY");
+    }
+    
+    public Map<String, Double> getInterestRates() {
+        return interestRates;
+    }
+    
+    public Map<String, Double> getCurrencyRates() {
+        return currencyRates;
+    }
+    
+    public Map<String, Double> getLiquidityIndices() {
+        return liquidityIndex;
+    }
+    
+    public LocalDate getDate() {
+        return date;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+}
+
 // Representing financial market data
 class MarketData {
-    private Map<String, Double> interestRates;
-    private Map<String, Double> currencyRates;
-    private Map<String, Double> liquidityIndex;
-    private LocalDate date;
+    // Writers publish whole snapshots; readers never block and never see a half-updated curve
+    private AtomicReference<MarketSnapshot> current;
+    private RandomGenerator randomSource;
+    private MarketFactorModel factorModel = MarketFactorModel.standard();
     
     public MarketData() {
-        this.interestRates = new HashMap<>();
-        this.currencyRates = new HashMap<>();
-        this.liquidityIndex = new HashMap<>();
-        this.date = LocalDate.now();
+        Map<String, Double> interestRates = new HashMap<>();
+        Map<String, Double> currencyRates = new HashMap<>();
+        Map<String, Double> liquidityIndex = new HashMap<>();
         
         // Initialize with sample market data
         interestRates.put("OVERNIGHT", 4.25);
@@ -30,63 +105,99 @@ class MarketData {
         currencyRates.put("JPY/IDR", 105.0);
         
         liquidityIndex.put("MARKET_LIQUIDITY", 0.85);  // Market liquidity index (0-1)
+        
+        this.current = new AtomicReference<>(new MarketSnapshot(interestRates, currencyRates, liquidityIndex, LocalDate.now(), 0));
     }
     
-    // Simulate market data changes
-    public void updateMarketData() {
-        // Simulate interest rate fluctuations
-        for (String tenor : interestRates.keySet()) {
-            double currentRate = interestRates.get(tenor);
-            double change = ThreadLocalRandom.current().nextDouble(-0.15, 0.15);
-            interestRates.put(tenor, Math.max(0, currentRate + change));
-        }
-        
-        // Simulate currency rate fluctuations
-        for (String pair : currencyRates.keySet()) {
-            double currentRate = currencyRates.get(pair);
-            double percentChange = ThreadLocalRandom.current().nextDouble(-0.01, 0.01);
-            currencyRates.put(pair, currentRate * (1 + percentChange));
-        }
-        
-        // Update liquidity index
-        double currentLiquidity = liquidityIndex.get("MARKET_LIQUIDITY");
-        double change = ThreadLocalRandom.current().nextDouble(-0.05, 0.05);
-        liquidityIndex.put("MARKET_LIQUIDITY", Math.min(1.0, Math.max(0.5, currentLiquidity + change)));
-        
-        // Update date
-        this.date = this.date.plusDays(1);
+    private MarketData(MarketSnapshot snapshot, MarketFactorModel factorModel) {
+        this.current = new AtomicReference<>(snapshot);
+        this.factorModel = factorModel;
+    }
+    
+    // Independent copy so that one session's market moves never leak into another; O(1), as snapshots are immutable
+    public MarketData copy() {
+        return new MarketData(snapshot(), factorModel);
+    }
+    
+    // Draw market moves from rand instead of ThreadLocalRandom, for reproducible runs (null restores the default)
+    public void setRandomSource(RandomGenerator rand) {
+        this.randomSource = rand;
+    }
+    
+    public MarketFactorModel getFactorModel() {
+        return factorModel;
+    }
+    
+    public void setFactorModel(MarketFactorModel factorModel) {
+        this.factorModel = factorModel;
+    }
+    
+    // Replace the current state wholesale, e.g. when resuming from a checkpoint
+    public void restore(MarketSnapshot snapshot) {
+        current.set(snapshot);
+    }
+    
+    // Simulate market data changes: one correlated day of curve, FX and liquidity moves from the factor model,
+    // with the common FX factor on pairs against homeCurrency (the base currency of the book being simulated)
+    public void updateMarketData(String homeCurrency) {
+        RandomGenerator random = randomSource != null ? randomSource : ThreadLocalRandom.current();
+        MarketSnapshot previous;
+        MarketSnapshot next;
+        do {
+            previous = snapshot();
+            next = factorModel.evolve(previous, random, homeCurrency);
+        } while (!publish(previous, next));
+    }
+    
+    // Current consistent view; analytics that read several inputs should take one snapshot and use it throughout
+    public MarketSnapshot snapshot() {
+        return current.get();
+    }
+    
+    // Atomically replace expected with next; false if another writer published first
+    public boolean publish(MarketSnapshot expected, MarketSnapshot next) {
+        return current.compareAndSet(expected, next);
     }
     
     public double getInterestRate(String tenor) {
-        return interestRates.getOrDefault(tenor, 0.0);
+        return snapshot().getInterestRate(tenor);
     }
     
     public double getCurrencyRate(String pair) {
-        return currencyRates.getOrDefault(pair, 0.0);
+        return snapshot().getCurrencyRate(pair);
+    }
+    
+    public FxMatrix fx() {
+        return snapshot().fx();
     }
     
     public double getLiquidityIndex() {
-        return liquidityIndex.get("MARKET_LIQUIDITY");
+        return snapshot().getLiquidityIndex();
+    }
+    
+    public Set<String> getCurrencyPairs() {
+        return snapshot().getCurrencyRates().keySet();
     }
     
     public LocalDate getDate() {
-        return date;
+        return snapshot().getDate();
     }
     
     public void displayMarketData() {
+        MarketSnapshot market = snapshot();
         DecimalFormat df = new DecimalFormat("#,##0.00");
-        System.out.println("\n===== MARKET DATA: " + date + " =====");
+        System.out.println("\n===== MARKET DATA: " + market.getDate() + " =====");
         System.out.println("INTEREST RATES:");
-        for (Map.Entry<String, Double> entry : interestRates.entrySet()) {
+        for (Map.Entry<String, Double> entry : market.getInterestRates().entrySet()) {
             System.out.println("  " + entry.getKey() + ": " + df.format(entry.getValue()) + "%");
         }
         
         System.out.println("\nCURRENCY RATES:");
-        for (Map.Entry<String, Double> entry : currencyRates.entrySet()) {
+        for (Map.Entry<String, Double> entry : market.getCurrencyRates().entrySet()) {
             System.out.println("  " + entry.getKey() + ": " + df.format(entry.getValue()));
         }
         
-        System.out.println("\nMARKET LIQUIDITY INDEX: " + df.format(liquidityIndex.get("MARKET_LIQUIDITY") * 100) + "%");
+        System.out.println("\nMARKET LIQUIDITY INDEX: " + df.format(market.getLiquidityIndex() * 100) + "%");
     }
 }
 
@@ -95,13 +206,14 @@ class CashFlow {
     private double yearlyRevenue;
     private double yearlyOperatingExpenses;
     private double yearlyCapEx;
-    private List<CashFlowEvent> scheduledCashFlows;
+    private PersistentVector<CashFlowEvent> scheduledCashFlows;
+    private StateJournal journal;
 
     public CashFlow(double yearlyRevenue, double yearlyOperatingExpenses, double yearlyCapEx) {
         this.yearlyRevenue = yearlyRevenue;
         this.yearlyOperatingExpenses = yearlyOperatingExpenses;
         this.yearlyCapEx = yearlyCapEx;
-        this.scheduledCashFlows = new ArrayList<>();
+        this.scheduledCashFlows = new PersistentVector<>();
     }
 
     public double getYearlyRevenue() {
@@ -118,30 +230,116 @@ class CashFlow {
     
     public void addCashFlowEvent(CashFlowEvent event) {
         scheduledCashFlows.add(event);
+        if (journal != null) journal.eventAdded(event);
+    }
+    
+    // Drop the events at the given (ascending) indices and schedule their recurrences
+    public void settleEvents(List<Integer> processedIndices, List<CashFlowEvent> recurrences) {
+        // One compaction pass, so settling many events stays linear in the schedule size
+        if (!processedIndices.isEmpty()) {
+            int size = scheduledCashFlows.size();
+            int next = 0;
+            int write = 0;
+            for (int read = 0; read < size; read++) {
+                if (next < processedIndices.size() && processedIndices.get(next) == read) {
+                    next++;
+                    continue;
+                }
+                scheduledCashFlows.set(write++, scheduledCashFlows.get(read));
+            }
+            scheduledCashFlows.subList(write, size).clear();
+        }
+        if (journal != null) journal.eventsSettled(processedIndices);
+        for (CashFlowEvent event : recurrences) {
+            addCashFlowEvent(event);
+        }
+    }
+    
+    void setJournal(StateJournal journal) {
+        this.journal = journal;
     }
     
     public List<CashFlowEvent> getScheduledCashFlows() {
         return scheduledCashFlows;
     }
+    
+    // Events are never mutated in place, so the copy can share them
+    public CashFlow copy() {
+        CashFlow copy = new CashFlow(yearlyRevenue, yearlyOperatingExpenses, yearlyCapEx);
+        copy.scheduledCashFlows.addAll(scheduledCashFlows);
+        return copy;
+    }
+    
+    // O(1) copy for what-if runs: the schedule is shared until either side adds or settles events; not journaled
+    public CashFlow fork() {
+        CashFlow fork = new CashFlow(yearlyRevenue, yearlyOperatingExpenses, yearlyCapEx);
+        fork.scheduledCashFlows = scheduledCashFlows.fork();
+        return fork;
+    }
+    
+    // Project scheduled events (including recurrences) into net amounts per day, day 0 = startDate
+    public double[] projectDailyNetFlows(LocalDate startDate, int days) {
+        return projectDailyFlows(startDate, days, 1.0, -1.0);
+    }
+    
+    // Same projection with each inflow weighted by inflowWeight and each outflow by outflowWeight,
+    // e.g. (0, 1) for gross outflows as positive amounts
+    public double[] projectDailyFlows(LocalDate startDate, int days, double inflowWeight, double outflowWeight) {
+        double[] netFlows = new double[days];
+        
+        for (CashFlowEvent event : scheduledCashFlows) {
+            double signedAmount = event.getAmount() * (event.isInflow() ? inflowWeight : outflowWeight);
+            if (signedAmount == 0) continue;
+            long offset = ChronoUnit.DAYS.between(startDate, event.getDate());
+            int interval = event.isRecurring() ? event.getRecurringInterval() : 0;
+            
+            // Skip recurrences that fall before the projection window
+            if (offset < 0 && interval > 0) {
+                offset += ((-offset + interval - 1) / interval) * interval;
+            }
+            
+            while (offset >= 0 && offset < days) {
+                netFlows[(int) offset] += signedAmount;
+                if (interval <= 0) break;
+                offset += interval;
+            }
+        }
+        
+        return netFlows;
+    }
 }
 
 // Representing scheduled cash flow events
 class CashFlowEvent {
+    // Payment queue priorities for intraday settlement, most urgent first
+    static final int PRIORITY_URGENT = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_LOW = 2;
+    
     private String description;
     private LocalDate date;
     private double amount;
     private boolean isInflow;
     private boolean isRecurring;
     private int recurringInterval; // in days
+    private LocalTime time; // intraday arrival, null for a whole-day flow
+    private int priority;
     
     public CashFlowEvent(String description, LocalDate date, double amount, boolean isInflow, 
                         boolean isRecurring, int recurringInterval) {
+        this(description, date, amount, isInflow, isRecurring, recurringInterval, null, PRIORITY_NORMAL);
+    }
+    
+    public CashFlowEvent(String description, LocalDate date, double amount, boolean isInflow, 
+                        boolean isRecurring, int recurringInterval, LocalTime time, int priority) {
         this.description = description;
         this.date = date;
         this.amount = amount;
         this.isInflow = isInflow;
         this.isRecurring = isRecurring;
         this.recurringInterval = recurringInterval;
+        this.time = time;
+        this.priority = priority;
     }
     
     public String getDescription() {
@@ -168,6 +366,14 @@ class CashFlowEvent {
         return recurringInterval;
     }
     
+    public LocalTime getTime() {
+        return time;
+    }
+    
+    public int getPriority() {
+        return priority;
+    }
+    
     public CashFlowEvent getNextRecurrence() {
         if (!isRecurring) return null;
         
@@ -177,7 +383,9 @@ class CashFlowEvent {
             amount,
             isInflow,
             true,
-            recurringInterval
+            recurringInterval,
+            time,
+            priority
         );
     }
 }
@@ -238,40 +446,168 @@ class Asset {
     public double getLiquidityRating() {
         return liquidityRating;
     }
+    
+    public Asset copy() {
+        return new Asset(name, type, amount, currency, interestRate, maturityDate, liquidityRating);
+    }
 }
 
 // Portfolio to manage assets
 class TreasuryPortfolio {
-    private List<Asset> assets;
+    private PersistentVector<Asset> assets;
+    private List<Asset> assetView;
+    // Assets this portfolio may write in place; null until the first fork, before which it owns them all
+    private Set<Asset> ownedAssets;
+    // Set by fork(); the next write here starts an empty ownedAssets, as every existing asset is then shared
+    private volatile boolean forked;
     private double totalValue;
     private double cashReserve;
     private String baseCurrency;
+    // Values foreign-currency assets in the base currency; forks and copies share it
+    private MarketData marketData;
+    private StateJournal journal;
     
+    // A portfolio without market data can only hold base-currency assets
     public TreasuryPortfolio(String baseCurrency, double initialCash) {
-        this.assets = new ArrayList<>();
-        this.baseCurrency = baseCurrency;
-        this.cashReserve = initialCash;
-        this.totalValue = initialCash;
+        this(baseCurrency, initialCash, null);
+    }
+    
+    public TreasuryPortfolio(String baseCurrency, double initialCash, MarketData marketData) {
+        this(baseCurrency, new PersistentVector<>(), initialCash, initialCash);
+        this.marketData = marketData;
         
         // Add initial cash as an asset
         assets.add(new Asset("Cash Reserve", "CASH", initialCash, baseCurrency, 0.0, null, 1.0));
     }
     
+    private TreasuryPortfolio(String baseCurrency, PersistentVector<Asset> assets, double totalValue, double cashReserve) {
+        this.assets = assets;
+        this.assetView = Collections.unmodifiableList(assets);
+        this.baseCurrency = baseCurrency;
+        this.totalValue = totalValue;
+        this.cashReserve = cashReserve;
+    }
+    
+    // Rebuild a portfolio from a saved asset list
+    static TreasuryPortfolio restore(String baseCurrency, List<Asset> savedAssets, MarketData marketData) {
+        TreasuryPortfolio portfolio = new TreasuryPortfolio(baseCurrency, 0.0, marketData);
+        portfolio.assets.clear();
+        portfolio.assets.addAll(savedAssets);
+        portfolio.cashReserve = portfolio.getCashReserve();
+        portfolio.updateTotalValue();
+        return portfolio;
+    }
+    
     public void addAsset(Asset asset) {
+        beginWrite();
         assets.add(asset);
+        if (ownedAssets != null) ownedAssets.add(asset);
+        if (journal != null) journal.assetAdded(asset);
         updateTotalValue();
     }
     
+    // Journaled amount change; like Asset.setAmount it leaves totalValue to the next updateTotalValue()
+    public void setAssetAmount(int index, double amount) {
+        mutableAsset(index).setAmount(amount);
+        if (journal != null) journal.amountSet(index, amount);
+    }
+    
+    // Book a scheduled cash flow against the asset at index
+    public void applyCashFlow(int index, CashFlowEvent event) {
+        Asset asset = mutableAsset(index);
+        asset.setAmount(asset.getAmount() + (event.isInflow() ? event.getAmount() : -event.getAmount()));
+        if (journal != null) journal.cashFlowApplied(index, asset.getAmount(), event);
+    }
+    
+    // The asset at index, copied into this portfolio first if it is still shared with a fork
+    public Asset mutableAsset(int index) {
+        beginWrite();
+        Asset asset = assets.get(index);
+        if (ownedAssets == null || ownedAssets.contains(asset)) {
+            return asset;
+        }
+        Asset copy = asset.copy();
+        assets.set(index, copy);
+        ownedAssets.add(copy);
+        return copy;
+    }
+    
+    private void beginWrite() {
+        if (forked) {
+            forked = false;
+            ownedAssets = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+    }
+    
+    void setJournal(StateJournal journal) {
+        this.journal = journal;
+    }
+    
+    StateJournal getJournal() {
+        return journal;
+    }
+    
+    // Read-only; write through setAssetAmount, applyCashFlow or mutableAsset so forks stay isolated
     public List<Asset> getAssets() {
-        return assets;
+        return assetView;
     }
     
     public double getTotalValue() {
         return totalValue;
     }
     
+    public String getBaseCurrency() {
+        return baseCurrency;
+    }
+    
+    // Deep copy of the asset list so the copy can be simulated independently
+    public TreasuryPortfolio copy() {
+        PersistentVector<Asset> copies = new PersistentVector<>();
+        for (Asset asset : assets) {
+            copies.add(asset.copy());
+        }
+        TreasuryPortfolio copy = new TreasuryPortfolio(baseCurrency, copies, totalValue, cashReserve);
+        copy.marketData = marketData;
+        return copy;
+    }
+    
+    // O(1) copy for what-if runs: assets are shared until either side writes one, which then copies just that asset.
+    // The fork is not journaled. Forking only flags this portfolio, so many threads may fork a base that nothing writes
+    public TreasuryPortfolio fork() {
+        forked = true;
+        TreasuryPortfolio fork = new TreasuryPortfolio(baseCurrency, assets.fork(), totalValue, cashReserve);
+        fork.ownedAssets = Collections.newSetFromMap(new IdentityHashMap<>());
+        fork.marketData = marketData;
+        return fork;
+    }
+    
+    public MarketData getMarketData() {
+        return marketData;
+    }
+    
+    // Rebind valuation, e.g. when a fork or copy is simulated against its own market data
+    public void setMarketData(MarketData marketData) {
+        this.marketData = marketData;
+    }
+    
+    // Amount of the asset in the base currency at the current FX matrix
+    public double baseValue(Asset asset) {
+        if (asset.getCurrency().equals(baseCurrency)) {
+            return asset.getAmount();
+        }
+        if (marketData == null) {
+            throw new IllegalStateException("No market data to value " + asset.getCurrency() + " in " + baseCurrency);
+        }
+        return marketData.fx().convert(asset.getAmount(), FxMatrix.currencyId(asset.getCurrency()), 
+                                       FxMatrix.currencyId(baseCurrency));
+    }
+    
     public void updateTotalValue() {
-        totalValue = assets.stream().mapToDouble(Asset::getAmount).sum();
+        double total = 0;
+        for (Asset asset : assets) {
+            total += baseValue(asset);
+        }
+        totalValue = total;
     }
     
     public double getCashReserve() {
@@ -301,17 +637,32 @@ class TreasuryPortfolio {
     
     // Calculate liquidity ratio (proportion of assets that can be quickly converted to cash)
     public double calculateLiquidityRatio() {
-        double liquidAssets = assets.stream()
-            .filter(a -> a.getLiquidityRating() >= 0.8)
-            .mapToDouble(Asset::getAmount)
-            .sum();
-            
+        double liquidAssets = 0;
+        for (Asset asset : assets) {
+            if (asset.getLiquidityRating() >= 0.8) {
+                liquidAssets += baseValue(asset);
+            }
+        }
+        
         return liquidAssets / totalValue;
     }
 }
 
 // Risk analysis with Monte Carlo simulation
 class RiskAnalysis {
+    // Daily cash-flow model parameters, as fractions of total portfolio value
+    static final double EXPENSE_RATE = 0.001;
+    static final double EXPENSE_VOLATILITY = 0.3;
+    static final double REVENUE_RATE = 0.0012;
+    static final double REVENUE_VOLATILITY = 0.25;
+    static final double MARKET_EFFECT_RATE = 0.0002;
+    static final double LIQUIDITY_VOLATILITY = 0.05;
+    
+    // Variable ids for the counter-based streams: shock (seed, path, day, variable)
+    static final int EXPENSE_SHOCK = 0;
+    static final int REVENUE_SHOCK = 1;
+    static final int LIQUIDITY_SHOCK = 2;
+    
     private TreasuryPortfolio portfolio;
     private MarketData marketData;
     private int simulationRuns;
@@ -322,36 +673,18 @@ class RiskAnalysis {
         this.simulationRuns = simulationRuns;
     }
     
+    public int getSimulationRuns() {
+        return simulationRuns;
+    }
+    
     // Monte Carlo simulation for liquidity risk
     public Map<String, Double> runLiquidityRiskSimulation(int days) {
-        double[] outcomes = new double[simulationRuns];
-        Random rand = new Random();
-        
-        for (int i = 0; i < simulationRuns; i++) {
-            // Clone current portfolio state
-            double currentCash = portfolio.getCashReserve();
-            double marketLiquidity = marketData.getLiquidityIndex();
-            
-            // Simulate daily changes
-            for (int day = 0; day < days; day++) {
-                // Random cash outflow based on operating expenses
-                double dailyExpense = portfolio.getTotalValue() * 0.001 * (1 + rand.nextGaussian() * 0.3);
-                
-                // Random cash inflow based on revenue
-                double dailyRevenue = portfolio.getTotalValue() * 0.0012 * (1 + rand.nextGaussian() * 0.25);
-                
-                // Adjust based on market liquidity
-                double marketEffect = (marketLiquidity - 0.5) * 2.0 * portfolio.getTotalValue() * 0.0002;
-                
-                // Update cash position
-                currentCash = currentCash + dailyRevenue - dailyExpense + marketEffect;
-                
-                // Randomly change market liquidity
-                marketLiquidity = Math.min(1.0, Math.max(0.5, marketLiquidity + rand.nextGaussian() * 0.05));
-            }
-            
-            outcomes[i] = currentCash;
-        }
+        return runLiquidityRiskSimulation(days, ThreadLocalRandom.current().nextLong());
+    }
+    
+    // Reproducible run: path i of this result can be regenerated alone with explainPath(days, seed, i)
+    public Map<String, Double> runLiquidityRiskSimulation(int days, long seed) {
+        double[] outcomes = simulateOutcomes(days, seed);
         
         // Analyze results
         Arrays.sort(outcomes);
@@ -365,118 +698,522 @@ class RiskAnalysis {
         return results;
     }
     
-    // Interest rate risk assessment
-    public Map<String, Double> assessInterestRateRisk(double rateChangePercent) {
-        Map<String, Double> impact = new HashMap<>();
-        double totalImpact = 0;
+    // Unsorted end-of-horizon cash position of every simulation run
+    public double[] simulateOutcomes(int days) {
+        return simulateOutcomes(days, ThreadLocalRandom.current().nextLong());
+    }
+    
+    public double[] simulateOutcomes(int days, long seed) {
+        double[] outcomes = new double[simulationRuns];
         
-        for (Asset asset : portfolio.getAssets()) {
-            if (asset.getMaturityDate() != null) {
-                // Calculate duration (simplified)
-                LocalDate now = LocalDate.now();
-                long daysToMaturity = now.until(asset.getMaturityDate()).getDays();
-                double duration = daysToMaturity / 365.0;
-                
-                // Calculate impact
-                double assetImpact = -asset.getAmount() * duration * (rateChangePercent/100);
-                impact.put(asset.getName(), assetImpact);
-                totalImpact += assetImpact;
+        // Clone current portfolio state
+        double startCash = portfolio.getCashReserve();
+        double totalValue = portfolio.getTotalValue();
+        double startLiquidity = marketData.getLiquidityIndex();
+        
+        for (int i = 0; i < simulationRuns; i++) {
+            // Let background callers abandon a run that has gone stale
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Liquidity simulation cancelled");
             }
+            
+            outcomes[i] = simulatePath(startCash, totalValue, startLiquidity, days, seed, i);
         }
         
-        impact.put("TOTAL_IMPACT", totalImpact);
-        return impact;
+        return outcomes;
     }
     
-    public void displayRiskAnalysis(int forecastDays) {
-        DecimalFormat df = new DecimalFormat("#,##0.00");
-        System.out.println("\n===== RISK ANALYSIS =====");
+    // One path of the daily cash model; every shock is a pure function of (seed, path, day, variable)
+    static double simulatePath(double startCash, double totalValue, double startLiquidity, int days, long seed, long path) {
+        return simulatePath(startCash, totalValue, startLiquidity, days, seed, path, null);
+    }
+    
+    // As above, also recording each day's cash into the fan chart when one is given
+    static double simulatePath(double startCash, double totalValue, double startLiquidity, int days, long seed, long path, 
+                               CashFanChart fanChart) {
+        return simulatePath(startCash, totalValue, startLiquidity, days, seed, path, 
+                            EXPENSE_RATE, REVENUE_RATE, LIQUIDITY_VOLATILITY, fanChart);
+    }
+    
+    // The model with its rates passed in, so a bumped copy can be revalued on the same random numbers
+    static double simulatePath(double startCash, double totalValue, double startLiquidity, int days, long seed, long path, 
+                               double expenseRate, double revenueRate, double liquidityVolatility, CashFanChart fanChart) {
+        double currentCash = startCash;
+        double marketLiquidity = startLiquidity;
         
-        Map<String, Double> liquidityRisk = runLiquidityRiskSimulation(forecastDays);
-        System.out.println("CASH POSITION AFTER " + forecastDays + " DAYS (Monte Carlo with " + simulationRuns + " simulations):");
-        System.out.println("  Worst Case: " + df.format(liquidityRisk.get("WORST_CASE")));
-        System.out.println("  5th Percentile: " + df.format(liquidityRisk.get("PERCENTILE_5")));
-        System.out.println("  Average: " + df.format(liquidityRisk.get("MEAN")));
-        System.out.println("  95th Percentile: " + df.format(liquidityRisk.get("PERCENTILE_95")));
-        System.out.println("  Best Case: " + df.format(liquidityRisk.get("BEST_CASE")));
+        // Simulate daily changes
+        for (int day = 0; day < days; day++) {
+            // Random cash outflow based on operating expenses
+            double dailyExpense = totalValue * expenseRate * (1 + CounterRandom.gaussian(seed, path, day, EXPENSE_SHOCK) * EXPENSE_VOLATILITY);
+            
+            // Random cash inflow based on revenue
+            double dailyRevenue = totalValue * revenueRate * (1 + CounterRandom.gaussian(seed, path, day, REVENUE_SHOCK) * REVENUE_VOLATILITY);
+            
+            // Adjust based on market liquidity
+            double marketEffect = (marketLiquidity - 0.5) * 2.0 * totalValue * MARKET_EFFECT_RATE;
+            
+            // Update cash position
+            currentCash = currentCash + dailyRevenue - dailyExpense + marketEffect;
+            if (fanChart != null) {
+                fanChart.add(day, currentCash);
+            }
+            
+            // Randomly change market liquidity
+            marketLiquidity = Math.min(1.0, Math.max(0.5, marketLiquidity + CounterRandom.gaussian(seed, path, day, LIQUIDITY_SHOCK) * liquidityVolatility));
+        }
         
-        double cashReserveRequired = portfolio.getTotalValue() * 0.2;
-        System.out.println("\nCASH RESERVE REQUIREMENT (" + df.format(cashReserveRequired) + "):");
-        double probability = calculateProbabilityBelowTarget(liquidityRisk.get("WORST_CASE"), 
-                                                            liquidityRisk.get("BEST_CASE"), 
-                                                            cashReserveRequired);
-        System.out.println("  Probability of insufficient liquidity: " + df.format(probability * 100) + "%");
+        return currentCash;
+    }
+    
+    // Cash trajectory bands for every day of the horizon; memory grows with days, not with paths
+    public CashFanChart runLiquidityFanChart(int days, long seed) {
+        CashFanChart fanChart = new CashFanChart(days);
+        double startCash = portfolio.getCashReserve();
+        double totalValue = portfolio.getTotalValue();
+        double startLiquidity = marketData.getLiquidityIndex();
         
-        // Interest rate risk
-        System.out.println("\nINTEREST RATE RISK:");
-        System.out.println("  Impact of 1% rate increase: " + df.format(assessInterestRateRisk(1).get("TOTAL_IMPACT")));
-        System.out.println("  Impact of 1% rate decrease: " + df.format(assessInterestRateRisk(-1).get("TOTAL_IMPACT")));
+        for (int i = 0; i < simulationRuns; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Fan chart simulation cancelled");
+            }
+            simulatePath(startCash, totalValue, startLiquidity, days, seed, i, fanChart);
+        }
+        return fanChart;
     }
     
-    private double calculateProbabilityBelowTarget(double min, double max, double target) {
-        if (target <= min) return 0.0;
-        if (target >= max) return 1.0;
+    // Regenerate a single path of a seeded run day by day, without generating any of the others
+    public PathExplanation explainPath(int days, long seed, long path) {
+        double totalValue = portfolio.getTotalValue();
+        double[] cash = new double[days];
+        double[] revenue = new double[days];
+        double[] expense = new double[days];
+        double[] marketEffect = new double[days];
+        double[] liquidity = new double[days];
+        double currentCash = portfolio.getCashReserve();
+        double marketLiquidity = marketData.getLiquidityIndex();
         
-        // Simple linear approximation
-        return (target - min) / (max - min);
+        // Same arithmetic, in the same order, as simulatePath so the end cash matches bit for bit
+        for (int day = 0; day < days; day++) {
+            expense[day] = totalValue * EXPENSE_RATE * (1 + CounterRandom.gaussian(seed, path, day, EXPENSE_SHOCK) * EXPENSE_VOLATILITY);
+            revenue[day] = totalValue * REVENUE_RATE * (1 + CounterRandom.gaussian(seed, path, day, REVENUE_SHOCK) * REVENUE_VOLATILITY);
+            marketEffect[day] = (marketLiquidity - 0.5) * 2.0 * totalValue * MARKET_EFFECT_RATE;
+            currentCash = currentCash + revenue[day] - expense[day] + marketEffect[day];
+            cash[day] = currentCash;
+            liquidity[day] = marketLiquidity;
+            marketLiquidity = Math.min(1.0, Math.max(0.5, marketLiquidity + CounterRandom.gaussian(seed, path, day, LIQUIDITY_SHOCK) * LIQUIDITY_VOLATILITY));
+        }
+        return new PathExplanation(seed, path, portfolio.getCashReserve(), totalValue * 0.2, cash, revenue, expense, 
+                                   marketEffect, liquidity);
     }
-}
-
-// Cash optimization strategy
-class CashOptimizationStrategy {
-    private TreasuryPortfolio portfolio;
-    private MarketData marketData;
     
-    public CashOptimizationStrategy(TreasuryPortfolio portfolio, MarketData marketData) {
-        this.portfolio = portfolio;
-        this.marketData = marketData;
+    // Portable description of this simulation for workers in other processes
+    public SimulationJob createJob(int days, long seed) {
+        return new SimulationJob(portfolio.getCashReserve(), portfolio.getTotalValue(), marketData.getLiquidityIndex(), 
+                                 days, seed, portfolio.getTotalValue() * 0.2);
     }
     
-    public void optimizeCashHoldings() {
-        double cash = portfolio.getCashReserve();
+    // Pathwise derivatives of end cash w.r.t. expense rate, revenue rate and liquidity volatility,
+    // accumulated alongside the cash state so every sensitivity shares the same random numbers
+    public Map<String, Double> runLiquiditySensitivities(int days, long seed) {
+        double[] outcomes = new double[simulationRuns];
+        double[] dExpense = new double[simulationRuns];
+        double[] dRevenue = new double[simulationRuns];
+        double[] dVolatility = new double[simulationRuns];
         double totalValue = portfolio.getTotalValue();
-        double liquidityRatio = portfolio.calculateLiquidityRatio();
-        double marketLiquidity = marketData.getLiquidityIndex();
+        double startLiquidity = marketData.getLiquidityIndex();
         
-        // Recommended cash levels based on market conditions
-        double recommendedMinCash = totalValue * 0.15 * (2 - marketLiquidity);
-        double recommendedMaxCash = totalValue * 0.3 * (2 - marketLiquidity);
+        for (int i = 0; i < simulationRuns; i++) {
+            double currentCash = portfolio.getCashReserve();
+            double marketLiquidity = startLiquidity;
+            double dLiquidity = 0;  // d(marketLiquidity) / d(LIQUIDITY_VOLATILITY)
+            
+            for (int day = 0; day < days; day++) {
+                double expenseShock = 1 + CounterRandom.gaussian(seed, i, day, EXPENSE_SHOCK) * EXPENSE_VOLATILITY;
+                double revenueShock = 1 + CounterRandom.gaussian(seed, i, day, REVENUE_SHOCK) * REVENUE_VOLATILITY;
+                
+                currentCash += totalValue * REVENUE_RATE * revenueShock 
+                             - totalValue * EXPENSE_RATE * expenseShock 
+                             + (marketLiquidity - 0.5) * 2.0 * totalValue * MARKET_EFFECT_RATE;
+                
+                dExpense[i] -= totalValue * expenseShock;
+                dRevenue[i] += totalValue * revenueShock;
+                dVolatility[i] += 2.0 * totalValue * MARKET_EFFECT_RATE * dLiquidity;
+                
+                // The clamp at 0.5 / 1.0 has zero derivative, which resets the pathwise chain
+                double liquidityShock = CounterRandom.gaussian(seed, i, day, LIQUIDITY_SHOCK);
+                double unclamped = marketLiquidity + liquidityShock * LIQUIDITY_VOLATILITY;
+                if (unclamped > 0.5 && unclamped < 1.0) {
+                    marketLiquidity = unclamped;
+                    dLiquidity += liquidityShock;
+                } else {
+                    marketLiquidity = Math.min(1.0, Math.max(0.5, unclamped));
+                    dLiquidity = 0;
+                }
+            }
+            
+            outcomes[i] = currentCash;
+        }
         
-        // Decision making
-        String action = "MAINTAIN";
-        double amount = 0;
+        // Quantile sensitivity dq/dθ = E[dX/dθ | X = q], estimated over the paths ranked around q
+        Integer[] order = new Integer[simulationRuns];
+        for (int i = 0; i < simulationRuns; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> outcomes[i]));
+        int rank = (int)(simulationRuns * 0.05);
+        int halfWidth = Math.max(1, (int) Math.sqrt(simulationRuns) / 2);
+        int from = Math.max(0, rank - halfWidth);
+        int to = Math.min(simulationRuns, rank + halfWidth + 1);
         
-        if (cash < recommendedMinCash) {
-            action = "INCREASE_CASH";
-            amount = recommendedMinCash - cash;
-        } else if (cash > recommendedMaxCash) {
-            action = "DECREASE_CASH";
-            amount = cash - recommendedMaxCash;
-        }
+        Map<String, Double> results = new HashMap<>();
+        results.put("MEAN", Arrays.stream(outcomes).average().orElse(0));
+        results.put("PERCENTILE_5", outcomes[order[rank]]);
+        results.put("DMEAN_DEXPENSE_RATE", Arrays.stream(dExpense).average().orElse(0));
+        results.put("DMEAN_DREVENUE_RATE", Arrays.stream(dRevenue).average().orElse(0));
+        results.put("DMEAN_DLIQUIDITY_VOLATILITY", Arrays.stream(dVolatility).average().orElse(0));
+        results.put("DP5_DEXPENSE_RATE", averageOver(dExpense, order, from, to));
+        results.put("DP5_DREVENUE_RATE", averageOver(dRevenue, order, from, to));
+        results.put("DP5_DLIQUIDITY_VOLATILITY", averageOver(dVolatility, order, from, to));
         
-        // Implement strategy
+        return results;
+    }
+    
+    private static double averageOver(double[] values, Integer[] order, int from, int to) {
+        double sum = 0;
+        for (int k = from; k < to; k++) {
+            sum += values[order[k]];
+        }
+        return sum / (to - from);
+    }
+    
+    // Central differences of the mean end cash, each side revalued on the same seeded paths as the pathwise estimate
+    public Map<String, Double> bumpAndRevalueSensitivities(int days, long seed) {
+        Map<String, Double> results = new HashMap<>();
+        results.put("DMEAN_DEXPENSE_RATE", 
+            (bumpedMean(days, seed, EXPENSE_RATE + 1e-5, REVENUE_RATE, LIQUIDITY_VOLATILITY) - 
+             bumpedMean(days, seed, EXPENSE_RATE - 1e-5, REVENUE_RATE, LIQUIDITY_VOLATILITY)) / 2e-5);
+        results.put("DMEAN_DREVENUE_RATE", 
+            (bumpedMean(days, seed, EXPENSE_RATE, REVENUE_RATE + 1e-5, LIQUIDITY_VOLATILITY) - 
+             bumpedMean(days, seed, EXPENSE_RATE, REVENUE_RATE - 1e-5, LIQUIDITY_VOLATILITY)) / 2e-5);
+        results.put("DMEAN_DLIQUIDITY_VOLATILITY", 
+            (bumpedMean(days, seed, EXPENSE_RATE, REVENUE_RATE, LIQUIDITY_VOLATILITY + 1e-4) - 
+             bumpedMean(days, seed, EXPENSE_RATE, REVENUE_RATE, LIQUIDITY_VOLATILITY - 1e-4)) / 2e-4);
+        return results;
+    }
+    
+    private double bumpedMean(int days, long seed, double expenseRate, double revenueRate, double liquidityVolatility) {
+        double startCash = portfolio.getCashReserve();
+        double totalValue = portfolio.getTotalValue();
+        double startLiquidity = marketData.getLiquidityIndex();
+        double sum = 0;
+        for (int i = 0; i < simulationRuns; i++) {
+            sum += simulatePath(startCash, totalValue, startLiquidity, days, seed, i, 
+                                expenseRate, revenueRate, liquidityVolatility, null);
+        }
+        return sum / simulationRuns;
+    }
+    
+    public void displaySensitivities(int forecastDays, long seed) {
+        Map<String, Double> sensitivities = runLiquiditySensitivities(forecastDays, seed);
+        Map<String, Double> check = bumpAndRevalueSensitivities(forecastDays, seed);
         DecimalFormat df = new DecimalFormat("#,##0.00");
-        System.out.println("\n===== CASH OPTIMIZATION STRATEGY =====");
-        System.out.println("CURRENT CASH: " + df.format(cash));
-        System.out.println("RECOMMENDED CASH RANGE: " + df.format(recommendedMinCash) + " - " + df.format(recommendedMaxCash));
-        System.out.println("RECOMMENDATION: " + action);
-        
-        if (!action.equals("MAINTAIN")) {
-            System.out.println("AMOUNT: " + df.format(amount));
-            
-            if (action.equals("INCREASE_CASH")) {
-                System.out.println("SUGGESTED ACTIONS:");
-                System.out.println("1. Liquidate short-term investments (around " + df.format(amount) + ")");
-                System.out.println("2. Consider short-term borrowing from money markets");
-                System.out.println("3. Accelerate accounts receivable collection");
-            } else {
-                System.out.println("SUGGESTED ACTIONS:");
-                System.out.println("1. Invest excess cash in short-term instruments (around " + df.format(amount) + ")");
-                System.out.println("2. Consider early payment of liabilities to reduce interest expense");
-                System.out.println("3. Explore higher-yield investment opportunities");
+        
+        System.out.println("\n===== LIQUIDITY SENSITIVITIES (" + forecastDays + " DAYS, " + simulationRuns + " PATHS) =====");
+        System.out.println("                                   Mean            5th Percentile      Mean (bump and revalue)");
+        System.out.println("  +0.01% daily expense rate:     " + df.format(sensitivities.get("DMEAN_DEXPENSE_RATE") * 0.0001) + 
+                         "   " + df.format(sensitivities.get("DP5_DEXPENSE_RATE") * 0.0001) + 
+                         "   " + df.format(check.get("DMEAN_DEXPENSE_RATE") * 0.0001));
+        System.out.println("  +0.01% daily revenue rate:     " + df.format(sensitivities.get("DMEAN_DREVENUE_RATE") * 0.0001) + 
+                         "   " + df.format(sensitivities.get("DP5_DREVENUE_RATE") * 0.0001) + 
+                         "   " + df.format(check.get("DMEAN_DREVENUE_RATE") * 0.0001));
+        System.out.println("  +0.01 liquidity volatility:    " + df.format(sensitivities.get("DMEAN_DLIQUIDITY_VOLATILITY") * 0.01) + 
+                         "   " + df.format(sensitivities.get("DP5_DLIQUIDITY_VOLATILITY") * 0.01) + 
+                         "   " + df.format(check.get("DMEAN_DLIQUIDITY_VOLATILITY") * 0.01));
+        System.out.println("Seed: " + seed);
+    }
+    
+    // --sensitivities [days] [paths] [seed]
+    static void sensitivitiesFromCommandLine(String[] args) {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int paths = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        if (days <= 0 || paths <= 0) {
+            System.out.println("Days and paths must be positive");
+            return;
+        }
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        new RiskAnalysis(portfolio, marketData, paths).displaySensitivities(days, seed);
+    }
+    
+    // Horizon P&L of the portfolio under correlated factor-model scenarios: rate moves at each asset's
+    // nearest tenor (duration approximation, as in assessInterestRateRisk) plus FX moves on foreign assets,
+    // taken through each simulated pair's delta in the base currency (see fxDeltas)
+    public Map<String, Double> runMarketScenarioSimulation(int horizonDays, int scenarios, long seed) {
+        return runMarketScenarioSimulation(horizonDays, scenarios, seed, new AtomicLong());
+    }
+    
+    // progress counts generated scenarios; an interrupted caller gets a CancellationException
+    public Map<String, Double> runMarketScenarioSimulation(int horizonDays, int scenarios, long seed, AtomicLong progress) {
+        MarketSnapshot market = marketData.snapshot();
+        MarketScenarioSet scenarioSet = marketData.getFactorModel().generate(market, scenarios, horizonDays, seed, 
+                                                                             portfolio.getBaseCurrency(), progress);
+        
+        // Flatten each asset to a rate sensitivity per tenor column and an FX sensitivity per pair column
+        String[] tenors = scenarioSet.getTenors();
+        String[] pairs = scenarioSet.getPairs();
+        double[] rateExposure = new double[tenors.length];
+        for (Asset asset : portfolio.getAssets()) {
+            if (asset.getMaturityDate() != null) {
+                double duration = durationYears(asset);
+                rateExposure[MarketFactorModel.nearestTenor(tenors, duration)] -= portfolio.baseValue(asset) * duration / 100;
             }
-        } else {
-            System.out.println("Current cash levels are within optimal range.");
+        }
+        double[] fxExposure = fxDeltas(market, pairs);
+        
+        double[] baseRates = new double[tenors.length];
+        for (int t = 0; t < tenors.length; t++) {
+            baseRates[t] = market.getInterestRate(tenors[t]);
+        }
+        double[] baseFx = new double[pairs.length];
+        for (int p = 0; p < pairs.length; p++) {
+            baseFx[p] = market.getCurrencyRate(pairs[p]);
+        }
+        
+        double[] rates = scenarioSet.getRates();
+        double[] fxRates = scenarioSet.getFxRates();
+        double[] pnl = new double[scenarios];
+        for (int s = 0; s < scenarios; s++) {
+            double value = 0;
+            int rateRow = s * tenors.length;
+            for (int t = 0; t < tenors.length; t++) {
+                value += rateExposure[t] * (rates[rateRow + t] - baseRates[t]);
+            }
+            int fxRow = s * pairs.length;
+            for (int p = 0; p < pairs.length; p++) {
+                value += fxExposure[p] * (fxRates[fxRow + p] - baseFx[p]);
+            }
+            pnl[s] = value;
+        }
+        
+        double[] liquidity = scenarioSet.getLiquidity().clone();
+        Arrays.sort(pnl);
+        Arrays.sort(liquidity);
+        Map<String, Double> results = new HashMap<>();
+        results.put("WORST_CASE", pnl[0]);
+        results.put("PERCENTILE_1", pnl[(int)(scenarios * 0.01)]);
+        results.put("PERCENTILE_5", pnl[(int)(scenarios * 0.05)]);
+        results.put("MEAN", Arrays.stream(pnl).average().orElse(0));
+        results.put("PERCENTILE_95", pnl[(int)(scenarios * 0.95)]);
+        results.put("LIQUIDITY_PERCENTILE_5", liquidity[(int)(scenarios * 0.05)]);
+        return results;
+    }
+    
+    // Change in the base-currency value of the foreign assets per unit move in each pair's quote, by central
+    // differences through FxMatrix so that crosses and inverted quotes count wherever the conversion path uses them.
+    // A foreign currency with no conversion to the base currency is an error rather than silently riskless.
+    double[] fxDeltas(MarketSnapshot market, String[] pairs) {
+        String base = portfolio.getBaseCurrency();
+        Map<String, Double> foreign = new TreeMap<>();
+        for (Asset asset : portfolio.getAssets()) {
+            if (asset.getCurrency().equals(base)) continue;
+            if (!market.fx().canConvert(asset.getCurrency(), base)) {
+                throw new IllegalStateException("No FX quote converts " + asset.getCurrency() + " to " + base + 
+                                                " for " + asset.getName());
+            }
+            foreign.merge(asset.getCurrency(), asset.getAmount(), Double::sum);
+        }
+        
+        double[] deltas = new double[pairs.length];
+        if (foreign.isEmpty()) return deltas;
+        for (int p = 0; p < pairs.length; p++) {
+            double quote = market.getCurrencyRate(pairs[p]);
+            double bump = quote * 1e-4;
+            FxMatrix up = bumpedFx(market, pairs[p], quote + bump);
+            FxMatrix down = bumpedFx(market, pairs[p], quote - bump);
+            for (Map.Entry<String, Double> position : foreign.entrySet()) {
+                deltas[p] += position.getValue() * (up.rate(position.getKey(), base) - down.rate(position.getKey(), base)) 
+                             / (2 * bump);
+            }
+        }
+        return deltas;
+    }
+    
+    private static FxMatrix bumpedFx(MarketSnapshot market, String pair, double quote) {
+        Map<String, Double> quotes = new HashMap<>(market.getCurrencyRates());
+        quotes.put(pair, quote);
+        return new FxMatrix(quotes);
+    }
+    
+    public void displayMarketScenarioRisk(int horizonDays, int scenarios, long seed) {
+        long start = System.currentTimeMillis();
+        displayMarketScenarioRisk(runMarketScenarioSimulation(horizonDays, scenarios, seed), horizonDays, scenarios, seed, 
+                                  System.currentTimeMillis() - start);
+    }
+    
+    public void displayMarketScenarioRisk(Map<String, Double> results, int horizonDays, int scenarios, long seed, long elapsedMillis) {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        
+        System.out.println("\n===== MARKET SCENARIO RISK (" + horizonDays + " DAYS, " + scenarios + " SCENARIOS) =====");
+        System.out.println("PORTFOLIO P&L FROM RATES AND FX:");
+        System.out.println("  Worst Case: " + df.format(results.get("WORST_CASE")));
+        System.out.println("  1st Percentile: " + df.format(results.get("PERCENTILE_1")));
+        System.out.println("  5th Percentile: " + df.format(results.get("PERCENTILE_5")));
+        System.out.println("  Average: " + df.format(results.get("MEAN")));
+        System.out.println("  95th Percentile: " + df.format(results.get("PERCENTILE_95")));
+        System.out.println("MARKET LIQUIDITY INDEX, 5th PERCENTILE: " + df.format(results.get("LIQUIDITY_PERCENTILE_5") * 100) + "%");
+        System.out.println("Completed in " + elapsedMillis + " ms (seed " + seed + ")");
+    }
+    
+    // Interest rate risk assessment
+    public Map<String, Double> assessInterestRateRisk(double rateChangePercent) {
+        Map<String, Double> impact = new HashMap<>();
+        double totalImpact = 0;
+        
+        for (Asset asset : portfolio.getAssets()) {
+            if (asset.getMaturityDate() != null) {
+                double duration = durationYears(asset);
+                
+                // Calculate impact
+                double assetImpact = -portfolio.baseValue(asset) * duration * (rateChangePercent/100);
+                impact.put(asset.getName(), assetImpact);
+                totalImpact += assetImpact;
+            }
+        }
+        
+        impact.put("TOTAL_IMPACT", totalImpact);
+        return impact;
+    }
+    
+    // Calculate duration (simplified): years to maturity
+    static double durationYears(Asset asset) {
+        return ChronoUnit.DAYS.between(LocalDate.now(), asset.getMaturityDate()) / 365.0;
+    }
+    
+    public RiskReport analyzeRisk(int forecastDays) {
+        return analyzeRisk(forecastDays, ThreadLocalRandom.current().nextLong());
+    }
+    
+    public RiskReport analyzeRisk(int forecastDays, long seed) {
+        Map<String, Double> liquidityRisk = runLiquidityRiskSimulation(forecastDays, seed);
+        double cashReserveRequired = portfolio.getTotalValue() * 0.2;
+        double probability = calculateProbabilityBelowTarget(liquidityRisk.get("WORST_CASE"), 
+                                                            liquidityRisk.get("BEST_CASE"), 
+                                                            cashReserveRequired);
+        return new RiskReport(forecastDays, simulationRuns, liquidityRisk, cashReserveRequired, probability, 
+                              assessInterestRateRisk(1).get("TOTAL_IMPACT"), assessInterestRateRisk(-1).get("TOTAL_IMPACT"), seed);
+    }
+    
+    public void displayRiskAnalysis(int forecastDays) {
+        displayRiskAnalysis(forecastDays, ThreadLocalRandom.current().nextLong());
+    }
+    
+    public void displayRiskAnalysis(int forecastDays, long seed) {
+        ConsoleResultRenderer.print(analyzeRisk(forecastDays, seed));
+    }
+    
+    private double calculateProbabilityBelowTarget(double min, double max, double target) {
+        if (target <= min) return 0.0;
+        if (target >= max) return 1.0;
+        
+        // Simple linear approximation
+        return (target - min) / (max - min);
+    }
+}
+
+// Cash optimization strategy
+class CashOptimizationStrategy {
+    static final double DEFAULT_MIN_CASH_MULTIPLIER = 0.15;
+    static final double DEFAULT_MAX_CASH_MULTIPLIER = 0.3;
+    
+    private TreasuryPortfolio portfolio;
+    private MarketData marketData;
+    private double minCashMultiplier;
+    private double maxCashMultiplier;
+    
+    public CashOptimizationStrategy(TreasuryPortfolio portfolio, MarketData marketData) {
+        this(portfolio, marketData, DEFAULT_MIN_CASH_MULTIPLIER, DEFAULT_MAX_CASH_MULTIPLIER);
+    }
+    
+    // Band multipliers scale totalValue * (2 - market liquidity) into the minimum and maximum cash levels
+    public CashOptimizationStrategy(TreasuryPortfolio portfolio, MarketData marketData, 
+                                    double minCashMultiplier, double maxCashMultiplier) {
+        this.portfolio = portfolio;
+        this.marketData = marketData;
+        this.minCashMultiplier = minCashMultiplier;
+        this.maxCashMultiplier = maxCashMultiplier;
+    }
+    
+    public CashRecommendation recommendCashAction() {
+        double cash = portfolio.getCashReserve();
+        double totalValue = portfolio.getTotalValue();
+        double marketLiquidity = marketData.getLiquidityIndex();
+        
+        // Recommended cash levels based on market conditions
+        double recommendedMinCash = calculateMinimumCash();
+        double recommendedMaxCash = totalValue * maxCashMultiplier * (2 - marketLiquidity);
+        
+        // Decision making
+        String action = "MAINTAIN";
+        double amount = 0;
+        
+        if (cash < recommendedMinCash) {
+            action = "INCREASE_CASH";
+            amount = recommendedMinCash - cash;
+        } else if (cash > recommendedMaxCash) {
+            action = "DECREASE_CASH";
+            amount = cash - recommendedMaxCash;
+        }
+        
+        return new CashRecommendation(cash, recommendedMinCash, recommendedMaxCash, action, amount);
+    }
+    
+    public void optimizeCashHoldings() {
+        ConsoleResultRenderer.print(recommendCashAction());
+    }
+    
+    // Lowest cash level the strategy allows under current market liquidity
+    public double calculateMinimumCash() {
+        return portfolio.getTotalValue() * minCashMultiplier * (2 - marketData.getLiquidityIndex());
+    }
+    
+    // Place projected surplus cash across money market tenors without breaching the minimum cash level
+    public CashLadderPlan optimizeCashLadder(CashFlow cashFlow, LocalDate asOf, int horizonDays) {
+        if (horizonDays < 1) {
+            throw new IllegalArgumentException("Ladder horizon must be at least one day");
+        }
+        double[] netFlows = cashFlow.projectDailyNetFlows(asOf.plusDays(1), horizonDays);
+        CashLadderOptimizer optimizer = new CashLadderOptimizer(marketData);
+        return optimizer.optimize(portfolio.getCashReserve(), calculateMinimumCash(), netFlows);
+    }
+    
+    public void displayCashLadder(CashFlow cashFlow, LocalDate asOf, int horizonDays) {
+        CashLadderPlan plan = optimizeCashLadder(cashFlow, asOf, horizonDays);
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        
+        System.out.println("\n===== CASH LADDER OPTIMIZATION (" + horizonDays + " DAYS) =====");
+        System.out.println("MINIMUM CASH LEVEL: " + df.format(plan.getMinimumCash()));
+        System.out.println("TOTAL PLACEMENTS: " + plan.getPlacements().size());
+        System.out.println("PROJECTED INTEREST INCOME: " + df.format(plan.getTotalInterest()));
+        System.out.println("LOWEST PROJECTED CASH: " + df.format(plan.getLowestProjectedCash()));
+        
+        if (plan.getBreachDays() > 0) {
+            System.out.println("WARNING: Scheduled flows alone breach the minimum cash level on " + plan.getBreachDays() + " day(s).");
+        }
+        
+        System.out.println("\nPLACEMENTS BY TENOR:");
+        Map<String, Double> byTenor = plan.getAmountByTenor();
+        for (String tenor : CashLadderOptimizer.TENORS) {
+            if (byTenor.containsKey(tenor)) {
+                System.out.println("  " + tenor + ": " + df.format(byTenor.get(tenor)));
+            }
+        }
+        
+        System.out.println("\nFIRST PLACEMENTS:");
+        int shown = 0;
+        for (CashLadderPlan.Placement placement : plan.getPlacements()) {
+            if (shown++ == 10) break;
+            System.out.println("  Day " + placement.getStartDay() + ": " + df.format(placement.getAmount()) + 
+                             " in " + placement.getTenor() + " (interest " + df.format(placement.getInterest()) + ")");
         }
     }
     
@@ -532,6 +1269,284 @@ class CashOptimizationStrategy {
     }
 }
 
+// Cash band check produced by CashOptimizationStrategy.recommendCashAction
+class CashRecommendation implements AnalyticsResult {
+    private double currentCash;
+    private double minimumCash;
+    private double maximumCash;
+    private String action;  // MAINTAIN, INCREASE_CASH or DECREASE_CASH
+    private double amount;
+    
+    public CashRecommendation(double currentCash, double minimumCash, double maximumCash, String action, double amount) {
+        this.currentCash = currentCash;
+        this.minimumCash = minimumCash;
+        this.maximumCash = maximumCash;
+        this.action = action;
+        this.amount = amount;
+    }
+    
+    public double getCurrentCash() {
+        return currentCash;
+    }
+    
+    public double getMinimumCash() {
+        return minimumCash;
+    }
+    
+    public double getMaximumCash() {
+        return maximumCash;
+    }
+    
+    public String getAction() {
+        return action;
+    }
+    
+    public double getAmount() {
+        return amount;
+    }
+    
+    @Override
+    public String getKind() {
+        return "CASH_RECOMMENDATION";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "CASH OPTIMIZATION STRATEGY";
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.amount("CURRENT_CASH", "Current cash", currentCash);
+        out.amount("MINIMUM_CASH", "Recommended minimum", minimumCash);
+        out.amount("MAXIMUM_CASH", "Recommended maximum", maximumCash);
+        out.text("ACTION", "Recommendation", action);
+        out.amount("AMOUNT", "Amount", amount);
+    }
+    
+    @Override
+    public List<String> getRecommendations() {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        if (action.equals("INCREASE_CASH")) {
+            return Arrays.asList("Liquidate short-term investments (around " + df.format(amount) + ")", 
+                                 "Consider short-term borrowing from money markets", 
+                                 "Accelerate accounts receivable collection");
+        } else if (action.equals("DECREASE_CASH")) {
+            return Arrays.asList("Invest excess cash in short-term instruments (around " + df.format(amount) + ")", 
+                                 "Consider early payment of liabilities to reduce interest expense", 
+                                 "Explore higher-yield investment opportunities");
+        }
+        return Collections.singletonList("Current cash levels are within optimal range.");
+    }
+}
+
+// Result of a multi-period cash ladder optimization
+class CashLadderPlan {
+    // A single placement of surplus cash into one tenor
+    static class Placement {
+        private int startDay;
+        private String tenor;
+        private int termDays;
+        private double amount;
+        private double interest;
+        
+        public Placement(int startDay, String tenor, int termDays, double amount, double interest) {
+            this.startDay = startDay;
+            this.tenor = tenor;
+            this.termDays = termDays;
+            this.amount = amount;
+            this.interest = interest;
+        }
+        
+        public int getStartDay() {
+            return startDay;
+        }
+        
+        public String getTenor() {
+            return tenor;
+        }
+        
+        public int getTermDays() {
+            return termDays;
+        }
+        
+        public double getAmount() {
+            return amount;
+        }
+        
+        public double getInterest() {
+            return interest;
+        }
+    }
+    
+    private List<Placement> placements;
+    private double minimumCash;
+    private double totalInterest;
+    private double lowestProjectedCash;
+    private int breachDays;
+    
+    public CashLadderPlan(List<Placement> placements, double minimumCash, double lowestProjectedCash, int breachDays) {
+        this.placements = placements;
+        this.minimumCash = minimumCash;
+        this.lowestProjectedCash = lowestProjectedCash;
+        this.breachDays = breachDays;
+        this.totalInterest = placements.stream().mapToDouble(Placement::getInterest).sum();
+    }
+    
+    public List<Placement> getPlacements() {
+        return placements;
+    }
+    
+    public double getMinimumCash() {
+        return minimumCash;
+    }
+    
+    public double getTotalInterest() {
+        return totalInterest;
+    }
+    
+    // Lowest end-of-day cash over the horizon with all placements in force
+    public double getLowestProjectedCash() {
+        return lowestProjectedCash;
+    }
+    
+    // Days on which scheduled flows breach the minimum before any placement is made
+    public int getBreachDays() {
+        return breachDays;
+    }
+    
+    public Map<String, Double> getAmountByTenor() {
+        Map<String, Double> byTenor = new HashMap<>();
+        for (Placement placement : placements) {
+            byTenor.merge(placement.getTenor(), placement.getAmount(), Double::sum);
+        }
+        return byTenor;
+    }
+}
+
+// Greedy multi-period ladder: each day, fill the best-yielding tenors with the cash that stays free for their whole term
+class CashLadderOptimizer {
+    static final String[] TENORS = {"OVERNIGHT", "1MONTH", "3MONTH", "6MONTH", "1YEAR"};
+    static final int[] TENOR_DAYS = {1, 30, 90, 180, 365};
+    
+    // Placements smaller than this are not worth booking
+    static final double MIN_PLACEMENT = 1.0;
+    
+    private MarketData marketData;
+    
+    public CashLadderOptimizer(MarketData marketData) {
+        this.marketData = marketData;
+    }
+    
+    public CashLadderPlan optimize(double openingCash, double minimumCash, double[] dailyNetFlows) {
+        int horizon = dailyNetFlows.length;
+        
+        // Free cash per day = projected end-of-day balance above the minimum
+        double[] free = new double[horizon];
+        double balance = openingCash;
+        int breachDays = 0;
+        for (int day = 0; day < horizon; day++) {
+            balance += dailyNetFlows[day];
+            free[day] = balance - minimumCash;
+            if (free[day] < 0) breachDays++;
+        }
+        
+        // Rank tenors by rate so the best-yielding term gets first claim on each day's surplus.
+        // Greedy is not optimal once the curve is flat enough that covering more days beats a few basis
+        // points: an early outflow that pushes the long tenor's start out can leave its maturity a tail
+        // only overnight fits, where rolling a slightly cheaper short tenor to the horizon would earn more.
+        Integer[] order = new Integer[TENORS.length];
+        double[] rates = new double[TENORS.length];
+        for (int i = 0; i < TENORS.length; i++) {
+            order[i] = i;
+            rates[i] = marketData.getInterestRate(TENORS[i]);
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(rates[b], rates[a]));
+        
+        MinSegmentTree tree = new MinSegmentTree(free);
+        List<CashLadderPlan.Placement> placements = new ArrayList<>();
+        
+        for (int day = 0; day < horizon; day++) {
+            for (int i : order) {
+                int term = TENOR_DAYS[i];
+                // Only book placements that mature inside the visible horizon
+                if (day + term > horizon || rates[i] <= 0) continue;
+                
+                double amount = tree.min(day, day + term);
+                if (amount < MIN_PLACEMENT) continue;
+                
+                double interest = amount * (rates[i] / 100) * term / 365.0;
+                placements.add(new CashLadderPlan.Placement(day, TENORS[i], term, amount, interest));
+                
+                // Principal is locked for the term; interest lands on the maturity day
+                tree.add(day, day + term, -amount);
+                if (day + term < horizon) {
+                    tree.add(day + term, horizon, interest);
+                }
+            }
+        }
+        
+        double lowest = horizon > 0 ? tree.min(0, horizon) + minimumCash : openingCash;
+        return new CashLadderPlan(placements, minimumCash, lowest, breachDays);
+    }
+    
+    // Range add / range minimum over the free-cash profile, O(log n) per operation
+    static class MinSegmentTree {
+        private int size;
+        private double[] min;
+        private double[] lazy;
+        
+        MinSegmentTree(double[] values) {
+            size = Math.max(1, values.length);
+            min = new double[4 * size];
+            lazy = new double[4 * size];
+            build(1, 0, size, values);
+        }
+        
+        private void build(int node, int lo, int hi, double[] values) {
+            if (hi - lo == 1) {
+                min[node] = lo < values.length ? values[lo] : Double.POSITIVE_INFINITY;
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            build(2 * node, lo, mid, values);
+            build(2 * node + 1, mid, hi, values);
+            min[node] = Math.min(min[2 * node], min[2 * node + 1]);
+        }
+        
+        // Minimum over [from, to)
+        double min(int from, int to) {
+            return query(1, 0, size, from, to);
+        }
+        
+        // Add delta to every element of [from, to)
+        void add(int from, int to, double delta) {
+            update(1, 0, size, from, to, delta);
+        }
+        
+        private double query(int node, int lo, int hi, int from, int to) {
+            if (to <= lo || hi <= from) return Double.POSITIVE_INFINITY;
+            if (from <= lo && hi <= to) return min[node];
+            int mid = (lo + hi) >>> 1;
+            return lazy[node] + Math.min(query(2 * node, lo, mid, from, to), 
+                                         query(2 * node + 1, mid, hi, from, to));
+        }
+        
+        private void update(int node, int lo, int hi, int from, int to, double delta) {
+            if (to <= lo || hi <= from) return;
+            if (from <= lo && hi <= to) {
+                min[node] += delta;
+                lazy[node] += delta;
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            update(2 * node, lo, mid, from, to, delta);
+            update(2 * node + 1, mid, hi, from, to, delta);
+            min[node] = lazy[node] + Math.min(min[2 * node], min[2 * node + 1]);
+        }
+    }
+}
+
 // User login interface
 interface UserType {}
 
@@ -577,12 +1592,99 @@ class TreasuryAnalyst extends User {
 public class TreasuryLiquiditySimulator {
 
     public static void main(String[] args) {
-        Scanner sc = new Scanner(System.in);
-        boolean izinLogin = false;
-        
-        // Create users
-        TreasuryAnalyst analyst = new TreasuryAnalyst("analyst", "password");
-        User admin = new User("admin", "admin", "Administrator");
+        // [--journal <file> [--reset-journal]] records the interactive session to file for audit and resume; off by default
+        Path journalPath = null;
+        boolean resetJournal = false;
+        if (args.length > 1 && args[0].equals("--journal")) {
+            journalPath = Paths.get(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--reset-journal")) {
+            resetJournal = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--worker")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : MonteCarloWorker.DEFAULT_PORT;
+            new MonteCarloWorker(port).run();
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--coordinate")) {
+            MonteCarloCoordinator.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--simulate")) {
+            CheckpointedRun.simulateFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--project")) {
+            CheckpointedRun.projectFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--export")) {
+            ResultExportRun.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--reverse-stress")) {
+            ReverseStressTester.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--group")) {
+            TreasuryGroup.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--whatif")) {
+            WhatIfEvaluator.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--benchmark")) {
+            ScalingBenchmark.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--ratios")) {
+            LiquidityRatioEngine.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--fanchart")) {
+            CashFanChart.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--selftest")) {
+            SelfTest.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--sensitivities")) {
+            RiskAnalysis.sensitivitiesFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--intraday")) {
+            IntradaySettlementEngine.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--explain")) {
+            PathExplanation.explainFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--backtest")) {
+            StrategyBacktester.runFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--replay")) {
+            StateJournal.replayFromCommandLine(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : SimulationServer.DEFAULT_PORT;
+            double initialCash = args.length > 2 ? Double.parseDouble(args[2]) : SimulationServer.DEFAULT_INITIAL_CASH;
+            new SimulationServer(port, initialCash).run();
+            return;
+        }
+        
+        Scanner sc = new Scanner(System.in);
+        boolean izinLogin = false;
+        
+        // Create users
+        TreasuryAnalyst analyst = new TreasuryAnalyst("analyst", "password");
+        User admin = new User("admin", "admin", "Administrator");
         
         User currentUser = null;
         
@@ -608,15 +1710,24 @@ public class TreasuryLiquiditySimulator {
             Runnable welcomeMessage = currentUser::displayWelcomeMessage;
             welcomeMessage.run();
             
-            runTreasurySimulator(currentUser);
+            runTreasurySimulator(currentUser, journalPath, resetJournal);
         }
 
         sc.close();
     }
 
     public static void runTreasurySimulator(User user) {
+        runTreasurySimulator(user, null, false);
+    }
+    
+    // Without a journalPath nothing is recorded. A previous session found there is resumed only when the user
+    // confirms (or never, with resetJournal); declining starts a fresh journal in its place
+    public static void runTreasurySimulator(User user, Path journalPath, boolean resetJournal) {
         Scanner scanner = new Scanner(System.in);
         DecimalFormat df = new DecimalFormat("#,##0.00");
+        TreasuryDashboardService dashboard = null;
+        StateJournal journal = null;
+        MarketDataFeed feed = null;
 
         try {
             System.out.println("Initializing Treasury Liquidity Simulator...\n");
@@ -624,29 +1735,48 @@ public class TreasuryLiquiditySimulator {
             // Initialize market data
             MarketData marketData = new MarketData();
             
-            // Initialize portfolio
-            System.out.print("Enter initial cash reserve (IDR): ");
-            double initialCash = Double.parseDouble(scanner.nextLine());
-            TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", initialCash);
-            
-            // Add some sample assets
-            System.out.println("\nAdding default assets to portfolio...");
-            portfolio.addAsset(new Asset("Government Bonds", "BONDS", 500000000.0, "IDR", 5.25, 
-                                        LocalDate.now().plusDays(365), 0.7));
-            portfolio.addAsset(new Asset("Money Market Deposit", "MM_DEPOSIT", 250000000.0, "IDR", 4.30, 
-                                        LocalDate.now().plusDays(30), 0.9));
-            portfolio.addAsset(new Asset("USD Cash", "CASH", 50000.0, "USD", 0.0, null, 1.0));
-            
-            // Create cash flow
-            CashFlow cashFlow = new CashFlow(5000000000.0, 4200000000.0, 500000000.0);
-            
-            // Add some scheduled cash flows
-            cashFlow.addCashFlowEvent(new CashFlowEvent("Quarterly Tax Payment", 
-                                    LocalDate.now().plusDays(20), 120000000.0, false, false, 0));
-            cashFlow.addCashFlowEvent(new CashFlowEvent("Monthly Revenue Collection", 
-                                    LocalDate.now().plusDays(30), 420000000.0, true, true, 30));
-            cashFlow.addCashFlowEvent(new CashFlowEvent("Bond Interest Payment", 
-                                    LocalDate.now().plusDays(45), 26250000.0, true, false, 0));
+            TreasuryPortfolio portfolio;
+            CashFlow cashFlow;
+            LocalDate simulationDate = LocalDate.now();
+            JournalState resumed = null;
+            if (journalPath != null && !resetJournal && Files.exists(journalPath) && Files.size(journalPath) > 0) {
+                JournalState previous = StateJournal.replay(journalPath, LocalDate.MAX, marketData);
+                System.out.print("Resume the session in " + journalPath + " at " + previous.getLastDay() + 
+                                 "? (y/n, n discards it): ");
+                if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                    resumed = previous;
+                }
+            }
+            if (resumed != null) {
+                // Pick up where the previous session stopped, with the market dated to its last simulated day
+                portfolio = resumed.getPortfolio();
+                cashFlow = resumed.getCashFlow();
+                simulationDate = resumed.getLastDay();
+                MarketSnapshot market = marketData.snapshot();
+                marketData.restore(new MarketSnapshot(market.getInterestRates(), market.getCurrencyRates(), 
+                                                      market.getLiquidityIndices(), simulationDate, market.getVersion() + 1));
+                journal = StateJournal.resume(journalPath, resumed, 30, 200);
+                System.out.println("Resumed journal " + journalPath + " at " + simulationDate + 
+                                   " (" + resumed.getEntriesReplayed() + " entries replayed)");
+            } else {
+                // Initialize portfolio
+                System.out.print("Enter initial cash reserve (IDR): ");
+                double initialCash = Double.parseDouble(scanner.nextLine());
+                portfolio = new TreasuryPortfolio("IDR", initialCash, marketData);
+                
+                // Add some sample assets
+                System.out.println("\nAdding default assets to portfolio...");
+                addDefaultAssets(portfolio);
+                
+                // Create cash flow
+                cashFlow = createDefaultCashFlow();
+                
+                // Every later change to the portfolio and calendar is recorded for audit and replay
+                if (journalPath != null) {
+                    journal = new StateJournal(journalPath, 30, 200);
+                    journal.attach(portfolio, cashFlow, simulationDate);
+                }
+            }
             
             // Initialize risk analysis with 1000 simulation runs
             RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio, marketData, 1000);
@@ -654,10 +1784,27 @@ public class TreasuryLiquiditySimulator {
             // Initialize cash optimization
             CashOptimizationStrategy cashOptimization = new CashOptimizationStrategy(portfolio, marketData);
             
+            // Track what each step touches so the risk snapshot only updates affected contributions
+            IncrementalRiskEngine riskEngine = new IncrementalRiskEngine(portfolio, marketData);
+            ChangeSet pendingChanges = new ChangeSet();
+            
+            // Recompute risk, cash and recommendation outputs in the background whenever state changes
+            dashboard = new TreasuryDashboardService(30, 1000, 250);
+            dashboard.markDirty(portfolio, marketData);
+            
+            // Day-to-day market moves come from one counter stream, so a session's market path is reproducible
+            long marketSeed = ThreadLocalRandom.current().nextLong();
+            marketData.setRandomSource(new CounterRandom(marketSeed, 0, 0));
+            System.out.println("Market simulation seed: " + marketSeed);
+            
             boolean exit = false;
-            LocalDate simulationDate = LocalDate.now();
             
             while (!exit) {
+                // Ticks the feed published while the menu waited are revalued like any other market move
+                if (feed != null && feed.drainChanges(pendingChanges)) {
+                    dashboard.markDirty(portfolio, marketData);
+                }
+                
                 System.out.println("\n===== TREASURY LIQUIDITY SIMULATOR - " + simulationDate + " =====");
                 System.out.println("1. View Portfolio");
                 System.out.println("2. View Market Data");
@@ -668,6 +1815,18 @@ public class TreasuryLiquiditySimulator {
                 System.out.println("7. Simulate Next Day");
                 System.out.println("8. View Investment Recommendations");
                 System.out.println("9. Exit");
+                System.out.println("10. Optimize Cash Ladder");
+                System.out.println("11. View Risk Snapshot (incremental)");
+                System.out.println("12. View Dashboard (background)");
+                System.out.println("13. Replay Journal to Date");
+                System.out.println("14. Run Market Scenario Risk (factor model)");
+                System.out.println("15. View Cash Fan Chart");
+                System.out.println("16. View Regulatory Ratios (LCR/NSFR)");
+                System.out.println("17. Run Reverse Stress Test");
+                System.out.println("18. Run Group Consolidation");
+                System.out.println("19. " + (feed == null ? "Follow Market Data File" : "Stop Market Data Feed"));
+                System.out.println("20. View Liquidity Sensitivities");
+                System.out.println("21. Run Stress Tests");
                 
                 System.out.print("\nSelect option: ");
                 int option = Integer.parseInt(scanner.nextLine());
@@ -682,20 +1841,38 @@ public class TreasuryLiquiditySimulator {
                     case 3:
                         System.out.print("Enter forecast period (days): ");
                         int days = Integer.parseInt(scanner.nextLine());
-                        riskAnalysis.displayRiskAnalysis(days);
+                        long riskSeed = ThreadLocalRandom.current().nextLong();
+                        riskAnalysis.displayRiskAnalysis(days, riskSeed);
+                        // The seed alone reproduces the run here; --explain also needs the state, written only on request
+                        System.out.print("Save this run's state to " + TreasuryState.LAST_RUN_FILE + " for --explain? (y/n): ");
+                        if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                            break;
+                        }
+                        try {
+                            new TreasuryState(portfolio, cashFlow, marketData).save(Paths.get(TreasuryState.LAST_RUN_FILE));
+                            System.out.println("Explain any path with --explain <path> " + days + " " + riskSeed + " " + 
+                                               TreasuryState.LAST_RUN_FILE);
+                        } catch (IOException e) {
+                            System.out.println("Could not save run state: " + e.getMessage());
+                        }
                         break;
                     case 4:
                         cashOptimization.optimizeCashHoldings();
                         break;
                     case 5:
-                        addNewAsset(scanner, portfolio);
+                        Asset newAsset = addNewAsset(scanner, portfolio);
+                        if (newAsset != null) {
+                            pendingChanges.assetAdded(newAsset);
+                            dashboard.markDirty(portfolio, marketData);
+                        }
                         break;
                     case 6:
                         addCashFlowEvent(scanner, cashFlow);
                         break;
                     case 7:
-                        simulateNextDay(marketData, portfolio, cashFlow, simulationDate);
+                        simulateNextDay(marketData, portfolio, cashFlow, simulationDate, System.out, pendingChanges);
                         simulationDate = simulationDate.plusDays(1);
+                        dashboard.markDirty(portfolio, marketData);
                         break;
                     case 8:
                         System.out.println("\n===== INVESTMENT RECOMMENDATIONS =====");
@@ -707,6 +1884,103 @@ public class TreasuryLiquiditySimulator {
                     case 9:
                         exit = true;
                         break;
+                    case 10:
+                        System.out.print("Enter ladder horizon (days): ");
+                        int horizonDays = Integer.parseInt(scanner.nextLine());
+                        if (horizonDays < 1) {
+                            System.out.println("Ladder horizon must be at least one day.");
+                            break;
+                        }
+                        cashOptimization.displayCashLadder(cashFlow, simulationDate, horizonDays);
+                        break;
+                    case 11:
+                        riskEngine.apply(pendingChanges);
+                        pendingChanges.clear();
+                        riskEngine.displaySnapshot();
+                        break;
+                    case 12:
+                        dashboard.displayLatest();
+                        break;
+                    case 13:
+                        if (journal == null) {
+                            System.out.println("Journaling is off; start with --journal <file> to record the session.");
+                            break;
+                        }
+                        System.out.print("Replay state as of (YYYY-MM-DD): ");
+                        String asOf = scanner.nextLine();
+                        try {
+                            journal.sync();
+                            StateJournal.replayFromCommandLine(new String[] { journal.getPath().toString(), asOf });
+                        } catch (IOException e) {
+                            System.out.println("Replay failed: " + e.getMessage());
+                        }
+                        break;
+                    case 14:
+                        System.out.print("Enter horizon (days): ");
+                        int horizon = Integer.parseInt(scanner.nextLine());
+                        if (horizon < 1) {
+                            System.out.println("Horizon must be at least one day.");
+                            break;
+                        }
+                        runMarketScenarioRisk(scanner, riskAnalysis, horizon, 1000000, ThreadLocalRandom.current().nextLong());
+                        break;
+                    case 15:
+                        System.out.print("Enter forecast period (days): ");
+                        int fanDays = Integer.parseInt(scanner.nextLine());
+                        long fanSeed = ThreadLocalRandom.current().nextLong();
+                        riskAnalysis.runLiquidityFanChart(fanDays, fanSeed).display(portfolio.getTotalValue() * 0.2);
+                        System.out.println("Seed: " + fanSeed);
+                        break;
+                    case 16:
+                        LiquidityRatioEngine.standard().compute(portfolio, cashFlow, simulationDate, marketData).display();
+                        break;
+                    case 17:
+                        long reverseSeed = ThreadLocalRandom.current().nextLong();
+                        ConsoleResultRenderer.print(new StressTester(portfolio, marketData, riskAnalysis, cashFlow)
+                            .runReverseStressTest(30, 1000, reverseSeed));
+                        System.out.println("Seed: " + reverseSeed);
+                        break;
+                    case 18:
+                        // This portfolio is the parent; three synthetic subsidiaries join it
+                        long groupSeed = ThreadLocalRandom.current().nextLong();
+                        TreasuryGroup group = TreasuryGroup.syntheticGroup(portfolio.getBaseCurrency(), marketData, 3, 1000, groupSeed);
+                        group.addMember(new TreasuryGroup.Member("Parent", portfolio, marketData, 1000));
+                        group.displayConsolidation(30, groupSeed);
+                        break;
+                    case 19:
+                        if (feed != null) {
+                            feed.stop();
+                            feed.drainChanges(pendingChanges);
+                            dashboard.markDirty(portfolio, marketData);
+                            System.out.println("Market data feed stopped: " + feed.getTicksReceived() + " ticks, " + 
+                                               feed.getTicksDropped() + " dropped, " + feed.getSnapshotsPublished() + " snapshots");
+                            feed = null;
+                            break;
+                        }
+                        System.out.print("Tick file to follow (TYPE,INSTRUMENT,VALUE per line): ");
+                        Path tickFile = Paths.get(scanner.nextLine().trim());
+                        if (!Files.isReadable(tickFile)) {
+                            System.out.println("Cannot read " + tickFile);
+                            break;
+                        }
+                        feed = new MarketDataFeed(marketData);
+                        feed.start(500);
+                        feed.tail(tickFile, 200);
+                        System.out.println("Following " + tickFile + "; choose 19 again to stop");
+                        break;
+                    case 20:
+                        System.out.print("Enter forecast period (days): ");
+                        int sensitivityDays = Integer.parseInt(scanner.nextLine());
+                        if (sensitivityDays <= 0) {
+                            System.out.println("Forecast period must be at least one day.");
+                            break;
+                        }
+                        riskAnalysis.displaySensitivities(sensitivityDays, ThreadLocalRandom.current().nextLong());
+                        break;
+                    case 21:
+                        new StressTester(portfolio, marketData, riskAnalysis, cashFlow)
+                            .displayStressTestResults(ThreadLocalRandom.current().nextLong());
+                        break;
                     default:
                         System.out.println("Invalid option. Please try again.");
                 }
@@ -714,12 +1988,97 @@ public class TreasuryLiquiditySimulator {
             
         } catch (NumberFormatException e) {
             System.out.println("Invalid input. Please enter numeric values.");
+        } catch (IOException e) {
+            System.out.println("Could not open journal: " + e.getMessage() + " (start with --reset-journal to discard it)");
         } finally {
+            if (feed != null) {
+                feed.stop();
+            }
+            if (dashboard != null) {
+                dashboard.shutdown();
+            }
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    System.out.println("Journal error: " + e.getMessage());
+                }
+            }
             scanner.close();
         }
     }
     
-    private static void addNewAsset(Scanner scanner, TreasuryPortfolio portfolio) {
+    // Run the factor-model job on a worker thread so the menu can report progress; Enter at the terminal cancels it
+    static void runMarketScenarioRisk(Scanner scanner, RiskAnalysis riskAnalysis, int horizonDays, int scenarios, long seed) {
+        AtomicLong progress = new AtomicLong();
+        ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "market-scenario-risk");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.currentTimeMillis();
+        try {
+            Future<Map<String, Double>> job = worker.submit(() -> 
+                riskAnalysis.runMarketScenarioSimulation(horizonDays, scenarios, seed, progress));
+            boolean interactive = System.console() != null;
+            System.out.println("Generating " + scenarios + " scenarios (seed " + seed + ")" + 
+                               (interactive ? "; press Enter to cancel" : ""));
+            long reported = 0;
+            while (!job.isDone()) {
+                if (interactive && System.in.available() > 0) {
+                    scanner.nextLine();
+                    job.cancel(true);
+                    break;
+                }
+                try {
+                    job.get(250, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    long percent = progress.get() * 100 / scenarios;
+                    if (percent >= reported + 10) {
+                        System.out.println("  " + percent + "% generated");
+                        reported = percent;
+                    }
+                }
+            }
+            if (job.isCancelled()) {
+                System.out.println("Market scenario run cancelled at " + (progress.get() * 100 / scenarios) + 
+                                   "% (seed " + seed + ")");
+                return;
+            }
+            riskAnalysis.displayMarketScenarioRisk(job.get(), horizonDays, scenarios, seed, System.currentTimeMillis() - start);
+        } catch (ExecutionException e) {
+            System.out.println("Market scenario run failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Could not read the console: " + e.getMessage());
+        } finally {
+            worker.shutdownNow();
+        }
+    }
+    
+    static void addDefaultAssets(TreasuryPortfolio portfolio) {
+        portfolio.addAsset(new Asset("Government Bonds", "BONDS", 500000000.0, "IDR", 5.25, 
+                                    LocalDate.now().plusDays(365), 0.7));
+        portfolio.addAsset(new Asset("Money Market Deposit", "MM_DEPOSIT", 250000000.0, "IDR", 4.30, 
+                                    LocalDate.now().plusDays(30), 0.9));
+        portfolio.addAsset(new Asset("USD Cash", "CASH", 50000.0, "USD", 0.0, null, 1.0));
+    }
+    
+    static CashFlow createDefaultCashFlow() {
+        CashFlow cashFlow = new CashFlow(5000000000.0, 4200000000.0, 500000000.0);
+        
+        // Add some scheduled cash flows
+        cashFlow.addCashFlowEvent(new CashFlowEvent("Quarterly Tax Payment", 
+                                LocalDate.now().plusDays(20), 120000000.0, false, false, 0));
+        cashFlow.addCashFlowEvent(new CashFlowEvent("Monthly Revenue Collection", 
+                                LocalDate.now().plusDays(30), 420000000.0, true, true, 30));
+        cashFlow.addCashFlowEvent(new CashFlowEvent("Bond Interest Payment", 
+                                LocalDate.now().plusDays(45), 26250000.0, true, false, 0));
+        return cashFlow;
+    }
+    
+    private static Asset addNewAsset(Scanner scanner, TreasuryPortfolio portfolio) {
         try {
             System.out.println("\n===== ADD NEW ASSET =====");
             System.out.print("Asset Name: ");
@@ -733,6 +2092,10 @@ public class TreasuryLiquiditySimulator {
             
             System.out.print("Currency (IDR, USD, etc.): ");
             String currency = scanner.nextLine().toUpperCase();
+            if (!portfolio.getMarketData().fx().canConvert(currency, portfolio.getBaseCurrency())) {
+                System.out.println("No FX rate links " + currency + " to " + portfolio.getBaseCurrency() + "; asset not added.");
+                return null;
+            }
             
             System.out.print("Interest Rate (%): ");
             double interestRate = Double.parseDouble(scanner.nextLine());
@@ -751,9 +2114,11 @@ public class TreasuryLiquiditySimulator {
             portfolio.addAsset(newAsset);
             
             System.out.println("Asset added successfully!");
+            return newAsset;
             
         } catch (NumberFormatException e) {
             System.out.println("Invalid input. Please enter numeric values correctly.");
+            return null;
         }
     }
     
@@ -782,59 +2147,128 @@ public class TreasuryLiquiditySimulator {
                 recurringInterval = Integer.parseInt(scanner.nextLine());
             }
             
-            CashFlowEvent event = new CashFlowEvent(description, date, amount, isInflow, isRecurring, recurringInterval);
+            System.out.print("Intraday time (HH:MM, blank for whole day): ");
+            String timeInput = scanner.nextLine().trim();
+            LocalTime time = timeInput.isEmpty() ? null : LocalTime.parse(timeInput);
+            
+            System.out.print("Payment priority (0 = urgent, 1 = normal, 2 = low, blank for normal): ");
+            String priorityInput = scanner.nextLine().trim();
+            int priority = priorityInput.isEmpty() ? CashFlowEvent.PRIORITY_NORMAL : Integer.parseInt(priorityInput);
+            if (priority < CashFlowEvent.PRIORITY_URGENT || priority > CashFlowEvent.PRIORITY_LOW) {
+                System.out.println("Priority must be 0, 1 or 2.");
+                return;
+            }
+            
+            CashFlowEvent event = new CashFlowEvent(description, date, amount, isInflow, isRecurring, recurringInterval, 
+                                                    time, priority);
             cashFlow.addCashFlowEvent(event);
             
             System.out.println("Cash flow event added successfully!");
             
         } catch (NumberFormatException e) {
             System.out.println("Invalid input. Please enter numeric values correctly.");
+        } catch (java.time.format.DateTimeParseException e) {
+            System.out.println("Invalid time. Please use HH:MM.");
         }
     }
     
-    private static void simulateNextDay(MarketData marketData, TreasuryPortfolio portfolio, CashFlow cashFlow, LocalDate currentDate) {
-        System.out.println("\n===== SIMULATING NEXT DAY =====");
+    // Intraday credit line available to the treasury, as a share of total value
+    static final double INTRADAY_CREDIT_SHARE = 0.05;
+    
+    static void simulateNextDay(MarketData marketData, TreasuryPortfolio portfolio, CashFlow cashFlow, 
+                                LocalDate currentDate, PrintStream out) {
+        simulateNextDay(marketData, portfolio, cashFlow, currentDate, out, null);
+    }
+    
+    // Advance one day, writing the day's log to the given stream (null for none) and recording touched state in changes (may be null)
+    static void simulateNextDay(MarketData marketData, TreasuryPortfolio portfolio, CashFlow cashFlow, 
+                                LocalDate currentDate, PrintStream out, ChangeSet changes) {
+        if (out != null) out.println("\n===== SIMULATING NEXT DAY =====");
+        LocalDate nextDay = currentDate.plusDays(1);
+        StateJournal journal = portfolio.getJournal();
+        if (journal != null) {
+            journal.beginDay(nextDay, portfolio, cashFlow);
+        }
         
         // Update market data
-        marketData.updateMarketData();
+        marketData.updateMarketData(portfolio.getBaseCurrency());
+        if (changes != null) {
+            changes.marketUpdated(marketData);
+        }
         
         // Apply interest to interest-bearing assets
-        for (Asset asset : portfolio.getAssets()) {
+        List<Asset> assets = portfolio.getAssets();
+        for (int i = 0; i < assets.size(); i++) {
+            Asset asset = assets.get(i);
             if (asset.getInterestRate() > 0) {
                 double dailyInterest = asset.getAmount() * (asset.getInterestRate() / 100 / 365);
-                asset.setAmount(asset.getAmount() + dailyInterest);
-                System.out.println("Interest accrued on " + asset.getName() + ": " + new DecimalFormat("#,##0.00").format(dailyInterest));
+                portfolio.setAssetAmount(i, asset.getAmount() + dailyInterest);
+                if (changes != null) changes.assetReplaced(asset, assets.get(i));
+                if (out != null) out.println("Interest accrued on " + asset.getName() + ": " + new DecimalFormat("#,##0.00").format(dailyInterest));
             }
             
             // Check for maturing assets
-            if (asset.getMaturityDate() != null && asset.getMaturityDate().equals(currentDate.plusDays(1))) {
-                System.out.println("ALERT: " + asset.getName() + " matures tomorrow!");
+            if (out != null && asset.getMaturityDate() != null && asset.getMaturityDate().equals(nextDay)) {
+                out.println("ALERT: " + asset.getName() + " matures tomorrow!");
+            }
+        }
+        
+        // On days with timed payments the day is settled through the intraday queue first. Payments still queued
+        // at the close are not booked but roll to the next day, so the end-of-day balance is what actually settled,
+        // which may leave the cash account drawn on the credit line
+        IntradaySettlementEngine intraday = IntradaySettlementEngine.forDay(cashFlow, nextDay, portfolio.getCashReserve(), 
+                                                                            portfolio.getTotalValue() * INTRADAY_CREDIT_SHARE);
+        if (intraday != null) {
+            IntradayResult result = intraday.run(300);
+            if (out != null) {
+                DecimalFormat df = new DecimalFormat("#,##0.00");
+                out.println("Intraday: peak liquidity usage " + df.format(result.getPeakNetOutflow()) + 
+                            ", peak credit usage " + df.format(result.getPeakCreditUsage()) + 
+                            ", average delay " + df.format(result.getAverageDelaySeconds()) + " s");
+                if (result.getUnsettled() > 0) {
+                    out.println("ALERT: " + result.getUnsettled() + " payments (" + df.format(result.getUnsettledValue()) + 
+                                ") did not settle within the credit line and roll to " + nextDay.plusDays(1));
+                }
             }
         }
         
         // Process scheduled cash flows
-        LocalDate nextDay = currentDate.plusDays(1);
         List<CashFlowEvent> events = cashFlow.getScheduledCashFlows();
         List<CashFlowEvent> newEvents = new ArrayList<>();
-        List<CashFlowEvent> processedEvents = new ArrayList<>();
+        List<Integer> processedEvents = new ArrayList<>();
+        int payment = 0;
         
-        for (CashFlowEvent event : events) {
+        for (int e = 0; e < events.size(); e++) {
+            CashFlowEvent event = events.get(e);
             if (event.getDate().equals(nextDay)) {
+                if (intraday != null && !intraday.isSettled(payment++)) {
+                    newEvents.add(new CashFlowEvent(event.getDescription(), nextDay.plusDays(1), event.getAmount(), 
+                                                    event.isInflow(), false, 0, event.getTime(), event.getPriority()));
+                    if (event.isRecurring()) {
+                        newEvents.add(event.getNextRecurrence());
+                    }
+                    processedEvents.add(e);
+                    continue;
+                }
+                
                 // Apply cash flow
-                for (Asset asset : portfolio.getAssets()) {
-                    if (asset.getType().equals("CASH") && asset.getCurrency().equals("IDR")) {
-                        double newAmount = asset.getAmount() + (event.isInflow() ? event.getAmount() : -event.getAmount());
-                        asset.setAmount(newAmount);
-                        System.out.println("Cash flow applied: " + event.getDescription() + 
-                                         " - " + (event.isInflow() ? "+" : "-") + 
-                                         new DecimalFormat("#,##0.00").format(event.getAmount()));
+                for (int i = 0; i < assets.size(); i++) {
+                    Asset asset = assets.get(i);
+                    if (asset.getType().equals("CASH") && asset.getCurrency().equals(portfolio.getBaseCurrency())) {
+                        portfolio.applyCashFlow(i, event);
+                        if (changes != null) changes.assetReplaced(asset, assets.get(i));
+                        if (out != null) {
+                            out.println("Cash flow applied: " + event.getDescription() + 
+                                             " - " + (event.isInflow() ? "+" : "-") + 
+                                             new DecimalFormat("#,##0.00").format(event.getAmount()));
+                        }
                         
                         // Create next recurrence if applicable
                         if (event.isRecurring()) {
                             newEvents.add(event.getNextRecurrence());
                         }
                         
-                        processedEvents.add(event);
+                        processedEvents.add(e);
                         break;
                     }
                 }
@@ -842,13 +2276,12 @@ public class TreasuryLiquiditySimulator {
         }
         
         // Remove processed events and add new recurrences
-        events.removeAll(processedEvents);
-        events.addAll(newEvents);
+        cashFlow.settleEvents(processedEvents, newEvents);
         
         // Update portfolio total value
         portfolio.updateTotalValue();
         
-        System.out.println("Day simulated successfully!");
+        if (out != null) out.println("Day simulated successfully!");
     }
 }
 
@@ -919,59 +2352,46 @@ class InvestmentStrategy {
         return allocation;
     }
     
-    public void displayStrategy() {
+    public AllocationReport analyzeAllocation() {
         Map<String, Double> allocation = generateOptimalAllocation();
-        DecimalFormat pctFormat = new DecimalFormat("0.0%");
         DecimalFormat moneyFormat = new DecimalFormat("#,##0.00");
-        
-        System.out.println("\n===== OPTIMAL PORTFOLIO ALLOCATION =====");
-        System.out.println("Risk Tolerance Level: " + (riskTolerance * 10) + "/10");
-        System.out.println("Current Market Liquidity: " + pctFormat.format(marketData.getLiquidityIndex()));
-        
-        System.out.println("\nRECOMMENDED ASSET ALLOCATION:");
-        System.out.println("Cash: " + pctFormat.format(allocation.get("CASH")) + 
-                         " (IDR " + moneyFormat.format(allocation.get("CASH_AMOUNT")) + ")");
-        System.out.println("Short-term Bonds (< 1 year): " + pctFormat.format(allocation.get("SHORT_TERM_BONDS")) + 
-                         " (IDR " + moneyFormat.format(allocation.get("SHORT_TERM_BONDS_AMOUNT")) + ")");
-        System.out.println("Medium-term Bonds (1-3 years): " + pctFormat.format(allocation.get("MEDIUM_TERM_BONDS")) + 
-                         " (IDR " + moneyFormat.format(allocation.get("MEDIUM_TERM_BONDS_AMOUNT")) + ")");
-        System.out.println("Long-term Bonds (> 3 years): " + pctFormat.format(allocation.get("LONG_TERM_BONDS")) + 
-                         " (IDR " + moneyFormat.format(allocation.get("LONG_TERM_BONDS_AMOUNT")) + ")");
-        System.out.println("Alternative Investments: " + pctFormat.format(allocation.get("ALTERNATIVES")) + 
-                         " (IDR " + moneyFormat.format(allocation.get("ALTERNATIVES_AMOUNT")) + ")");
+        String currency = portfolio.getBaseCurrency();
+        List<String> recommendations = new ArrayList<>();
         
         // Current vs recommended cash position
         double currentCash = portfolio.getCashReserve();
         double recommendedCash = allocation.get("CASH_AMOUNT");
-        System.out.println("\nCASH POSITION ADJUSTMENT:");
         if (Math.abs(currentCash - recommendedCash) > 100000) {
             if (currentCash < recommendedCash) {
-                System.out.println("RECOMMENDATION: Increase cash position by IDR " + 
-                                 moneyFormat.format(recommendedCash - currentCash));
-                System.out.println("Consider liquidating some short-term investments or arranging short-term financing.");
+                recommendations.add("Increase cash position by " + currency + " " + moneyFormat.format(recommendedCash - currentCash) + 
+                                    ". Consider liquidating some short-term investments or arranging short-term financing.");
             } else {
-                System.out.println("RECOMMENDATION: Decrease cash position by IDR " + 
-                                 moneyFormat.format(currentCash - recommendedCash));
-                System.out.println("Consider investing excess cash according to the recommended allocation above.");
+                recommendations.add("Decrease cash position by " + currency + " " + moneyFormat.format(currentCash - recommendedCash) + 
+                                    ". Consider investing excess cash according to the recommended allocation above.");
             }
         } else {
-            System.out.println("Current cash position is within optimal range.");
+            recommendations.add("Current cash position is within optimal range.");
         }
         
         // Additional strategic recommendations
-        System.out.println("\nSTRATEGIC RECOMMENDATIONS:");
         if (marketData.getLiquidityIndex() < 0.6) {
-            System.out.println("⚠️ Market liquidity is low. Prioritize defensive positions and maintain higher cash reserves.");
+            recommendations.add("⚠️ Market liquidity is low. Prioritize defensive positions and maintain higher cash reserves.");
         }
         
         // Interest rate trend analysis
         double overnightRate = marketData.getInterestRate("OVERNIGHT");
         double oneYearRate = marketData.getInterestRate("1YEAR");
         if (oneYearRate < overnightRate) {
-            System.out.println("⚠️ Inverted yield curve detected. Consider defensive positioning and prepare for potential economic slowdown.");
+            recommendations.add("⚠️ Inverted yield curve detected. Consider defensive positioning and prepare for potential economic slowdown.");
         } else if ((oneYearRate - overnightRate) > 1.5) {
-            System.out.println("📈 Steep yield curve detected. Consider extending duration to capture higher yields.");
+            recommendations.add("📈 Steep yield curve detected. Consider extending duration to capture higher yields.");
         }
+        
+        return new AllocationReport(currency, riskTolerance, marketData.getLiquidityIndex(), allocation, currentCash, recommendations);
+    }
+    
+    public void displayStrategy() {
+        ConsoleResultRenderer.print(analyzeAllocation());
     }
 }
 
@@ -979,29 +2399,34 @@ class InvestmentStrategy {
 class CurrencyRiskManager {
     private TreasuryPortfolio portfolio;
     private MarketData marketData;
+    private String reportingCurrency;
     
     public CurrencyRiskManager(TreasuryPortfolio portfolio, MarketData marketData) {
+        this(portfolio, marketData, portfolio.getBaseCurrency());
+    }
+    
+    public CurrencyRiskManager(TreasuryPortfolio portfolio, MarketData marketData, String reportingCurrency) {
         this.portfolio = portfolio;
         this.marketData = marketData;
+        this.reportingCurrency = reportingCurrency;
+    }
+    
+    public String getReportingCurrency() {
+        return reportingCurrency;
     }
     
     public Map<String, Double> calculateCurrencyExposure() {
         Map<String, Double> exposure = new HashMap<>();
-        double totalValue = portfolio.getTotalValue();
+        double totalValue = 0;
+        FxMatrix fx = marketData.fx();
+        int reporting = FxMatrix.currencyId(reportingCurrency);
         
-        // Calculate exposure by currency
+        // Calculate exposure by currency, valued in the reporting currency
         for (Asset asset : portfolio.getAssets()) {
             String currency = asset.getCurrency();
-            double amount = asset.getAmount();
-            
-            // Convert to base currency (IDR) if needed
-            if (!currency.equals("IDR")) {
-                String pair = currency + "/IDR";
-                double rate = marketData.getCurrencyRate(pair);
-                amount *= rate;
-            }
-            
+            double amount = fx.convert(asset.getAmount(), FxMatrix.currencyId(currency), reporting);
             exposure.put(currency, exposure.getOrDefault(currency, 0.0) + amount);
+            totalValue += amount;
         }
         
         // Calculate percentages
@@ -1013,40 +2438,25 @@ class CurrencyRiskManager {
         return exposurePercent;
     }
     
+    public CurrencyExposureReport analyzeExposure() {
+        return new CurrencyExposureReport(reportingCurrency, calculateCurrencyExposure());
+    }
+    
     public void displayCurrencyRisk() {
-        Map<String, Double> exposure = calculateCurrencyExposure();
-        DecimalFormat pctFormat = new DecimalFormat("0.0%");
-        
-        System.out.println("\n===== CURRENCY EXPOSURE ANALYSIS =====");
-        for (Map.Entry<String, Double> entry : exposure.entrySet()) {
-            System.out.println(entry.getKey() + ": " + pctFormat.format(entry.getValue()));
-        }
-        
-        // Recommendations based on exposure
-        System.out.println("\nRECOMMENDATIONS:");
-        for (Map.Entry<String, Double> entry : exposure.entrySet()) {
-            String currency = entry.getKey();
-            double exposurePercent = entry.getValue();
-            
-            if (!currency.equals("IDR") && exposurePercent > 0.2) {
-                System.out.println("⚠️ High exposure to " + currency + ". Consider hedging to reduce currency risk.");
-            }
-        }
+        ConsoleResultRenderer.print(analyzeExposure());
     }
     
     public Map<String, Double> simulateCurrencyShock(double shockPercent) {
         Map<String, Double> impact = new HashMap<>();
         double totalImpact = 0;
+        FxMatrix fx = marketData.fx();
+        int reporting = FxMatrix.currencyId(reportingCurrency);
         
         for (Asset asset : portfolio.getAssets()) {
-            if (!asset.getCurrency().equals("IDR")) {
-                double assetValue = asset.getAmount();
-                String pair = asset.getCurrency() + "/IDR";
-                double rate = marketData.getCurrencyRate(pair);
-                
-                // Calculate impact of currency shock
-                double valueInIDR = assetValue * rate;
-                double impactAmount = valueInIDR * (shockPercent / 100);
+            if (!asset.getCurrency().equals(reportingCurrency)) {
+                // Calculate impact of a shock to the reporting currency against this one
+                double value = fx.convert(asset.getAmount(), FxMatrix.currencyId(asset.getCurrency()), reporting);
+                double impactAmount = value * (shockPercent / 100);
                 
                 impact.put(asset.getName(), impactAmount);
                 totalImpact += impactAmount;
@@ -1063,14 +2473,22 @@ class StressTester {
     private TreasuryPortfolio portfolio;
     private MarketData marketData;
     private RiskAnalysis riskAnalysis;
+    private CashFlow cashFlow;
     
+    // Without a calendar, survival horizons fall back to the Monte Carlo expense run-rate
     public StressTester(TreasuryPortfolio portfolio, MarketData marketData, RiskAnalysis riskAnalysis) {
+        this(portfolio, marketData, riskAnalysis, null);
+    }
+    
+    public StressTester(TreasuryPortfolio portfolio, MarketData marketData, RiskAnalysis riskAnalysis, CashFlow cashFlow) {
         this.portfolio = portfolio;
         this.marketData = marketData;
         this.riskAnalysis = riskAnalysis;
+        this.cashFlow = cashFlow;
     }
     
-    public Map<String, Double> runLiquidityCrisisScenario() {
+    // The shortfall probability comes from a seeded Monte Carlo run, so the same seed gives the same crisis result
+    public Map<String, Double> runLiquidityCrisisScenario(long seed) {
         // Simulate severe market liquidity crisis
         Map<String, Double> results = new HashMap<>();
         
@@ -1083,31 +2501,44 @@ class StressTester {
         double liquidAssets = 0;
         
         for (Asset asset : portfolio.getAssets()) {
-            if (asset.getType().equals("CASH")) {
-                liquidAssets += asset.getAmount();
-            } else {
-                // Discount non-cash assets based on their liquidity rating
-                // In a crisis, even relatively liquid assets take a hit
-                double liquidityDiscount = 1.0 - (1.0 - asset.getLiquidityRating()) * (originalLiquidity / crisisLiquidity);
-                liquidAssets += asset.getAmount() * Math.max(0.5, liquidityDiscount);
-            }
+            liquidAssets += portfolio.baseValue(asset) * stressedLiquidShare(asset, originalLiquidity, crisisLiquidity);
         }
         
         // Calculate key metrics
         double liquidityRatio = liquidAssets / totalValue;
         
         // Get probability of cash shortfall from risk analysis
-        Map<String, Double> liquidityRisk = riskAnalysis.runLiquidityRiskSimulation(30);
+        Map<String, Double> liquidityRisk = riskAnalysis.runLiquidityRiskSimulation(30, seed);
         double worstCase = liquidityRisk.get("WORST_CASE");
         double cashReserveRequired = totalValue * 0.2;
         
+        // Days until cumulative stressed outflows exceed cash plus haircut sale proceeds
+        SurvivalHorizon survival = new SurvivalHorizonEngine(portfolio, cashFlow, marketData).horizon(crisisLiquidity, 1.0);
+        
         results.put("LIQUIDITY_RATIO", liquidityRatio);
-        results.put("SURVIVAL_DAYS", liquidityRatio * 100); // Rough estimate of days before cash exhaustion
+        results.put("SURVIVAL_DAYS", (double) survival.survivalDays());
         results.put("SHORTFALL_PROBABILITY", calculateProbabilityBelowTarget(worstCase, liquidityRisk.get("BEST_CASE"), cashReserveRequired));
         
         return results;
     }
     
+    // Value an asset can still raise when market liquidity falls from originalLiquidity to crisisLiquidity, in its own currency
+    static double stressedLiquidValue(Asset asset, double originalLiquidity, double crisisLiquidity) {
+        return asset.getAmount() * stressedLiquidShare(asset, originalLiquidity, crisisLiquidity);
+    }
+    
+    // Fraction of its value an asset can still raise in the crisis
+    static double stressedLiquidShare(Asset asset, double originalLiquidity, double crisisLiquidity) {
+        if (asset.getType().equals("CASH")) {
+            return 1.0;
+        }
+        
+        // Discount non-cash assets based on their liquidity rating
+        // In a crisis, even relatively liquid assets take a hit
+        double liquidityDiscount = 1.0 - (1.0 - asset.getLiquidityRating()) * (originalLiquidity / crisisLiquidity);
+        return Math.max(0.5, liquidityDiscount);
+    }
+    
     private double calculateProbabilityBelowTarget(double min, double max, double target) {
         if (target <= min) return 0.0;
         if (target >= max) return 1.0;
@@ -1116,89 +2547,184 @@ class StressTester {
         return (target - min) / (max - min);
     }
     
-    public void runInterestRateShockScenario(double rateIncrease) {
-        // Simulate sudden interest rate spike
-        System.out.println("\n===== INTEREST RATE SHOCK SCENARIO =====");
-        System.out.println("Scenario: Interest rates suddenly increase by " + rateIncrease + "%");
+    public StressTestReport runStressTests(long seed) {
+        Map<String, Double> liquidityCrisis = runLiquidityCrisisScenario(seed);
         
-        // Impact on bond portfolio
-        Map<String, Double> rateImpact = riskAnalysis.assessInterestRateRisk(rateIncrease);
-        double totalImpact = rateImpact.get("TOTAL_IMPACT");
-        
-        // Display results
-        DecimalFormat df = new DecimalFormat("#,##0.00");
+        double[] rateShocks = {1.0, 2.0, 3.0};
+        double[] rateImpactPercents = new double[rateShocks.length];
         double portfolioValue = portfolio.getTotalValue();
-        
-        System.out.println("Portfolio value before shock: IDR " + df.format(portfolioValue));
-        System.out.println("Estimated impact: IDR " + df.format(totalImpact));
-        System.out.println("Portfolio value after shock: IDR " + df.format(portfolioValue + totalImpact));
-        System.out.println("Percentage change: " + df.format((totalImpact / portfolioValue) * 100) + "%");
-        
-        // Resilience assessment
-        double impactPercent = (totalImpact / portfolioValue) * 100;
-        if (impactPercent < -10) {
-            System.out.println("\nRESILIENCE: LOW - Portfolio is highly vulnerable to interest rate shocks");
-            System.out.println("Recommended actions:");
-            System.out.println("1. Reduce duration of fixed income holdings");
-            System.out.println("2. Increase floating rate instruments");
-            System.out.println("3. Consider interest rate hedging instruments");
-        } else if (impactPercent < -5) {
-            System.out.println("\nRESILIENCE: MEDIUM - Portfolio has moderate sensitivity to interest rate changes");
-            System.out.println("Recommended actions:");
-            System.out.println("1. Review duration strategy");
-            System.out.println("2. Consider partial interest rate hedging");
-        } else {
-            System.out.println("\nRESILIENCE: HIGH - Portfolio is well-positioned for interest rate increases");
+        for (int s = 0; s < rateShocks.length; s++) {
+            rateImpactPercents[s] = (riskAnalysis.assessInterestRateRisk(rateShocks[s]).get("TOTAL_IMPACT") / portfolioValue) * 100;
         }
+        
+        // Currency shock scenario (10% depreciation)
+        CurrencyRiskManager crm = new CurrencyRiskManager(portfolio, marketData);
+        double totalCurrencyImpact = crm.simulateCurrencyShock(10).get("TOTAL_IMPACT");
+        double currencyImpactPercent = (totalCurrencyImpact / portfolioValue) * 100;
+        
+        return new StressTestReport(liquidityCrisis, rateShocks, rateImpactPercents, 10, currencyImpactPercent, 
+                                    calculateResilienceScore(liquidityCrisis, currencyImpactPercent));
+    }
+    
+    // The standard scenarios run through the pack, on the same seeded paths as the crisis summary
+    public void displayStressTestResults(long seed) {
+        ConsoleResultRenderer.print(runStressTests(seed));
+        displayScenarioPackResults(StressScenarioLibrary.standardScenarios(portfolio.getBaseCurrency(), 
+                                                                          marketData.getLiquidityIndex()), 30, 
+                                   riskAnalysis.getSimulationRuns(), seed);
     }
     
-    public void displayStressTestResults() {
-        System.out.println("\n===== COMPREHENSIVE STRESS TEST RESULTS =====");
+    // Evaluate many scenarios scenario-major over one shared set of paths and one pass over the assets
+    public List<ScenarioResult> runScenarioPack(List<StressScenario> scenarios, int days, int paths, long seed) {
+        double totalValue = portfolio.getTotalValue();
+        double cashReserveRequired = totalValue * 0.2;
+        double originalLiquidity = marketData.getLiquidityIndex();
         
-        // Run liquidity crisis scenario
-        Map<String, Double> liquidityCrisis = runLiquidityCrisisScenario();
-        DecimalFormat df = new DecimalFormat("#,##0.00");
-        DecimalFormat pct = new DecimalFormat("0.0%");
+        // Single pass over the assets: everything a scenario needs is linear in these aggregates,
+        // except the liquidity haircut, which is answered from rating-sorted prefix sums
+        double cashAssets = 0;
+        double rateSensitivity = 0;
+        double foreignValue = 0;
+        FxMatrix fx = marketData.fx();
+        int base = FxMatrix.currencyId(portfolio.getBaseCurrency());
+        List<Asset> nonCash = new ArrayList<>();
+        for (Asset asset : portfolio.getAssets()) {
+            if (asset.getType().equals("CASH")) {
+                cashAssets += portfolio.baseValue(asset);
+            } else {
+                nonCash.add(asset);
+            }
+            if (asset.getMaturityDate() != null) {
+                rateSensitivity += -portfolio.baseValue(asset) * RiskAnalysis.durationYears(asset) / 100;
+            }
+            if (!asset.getCurrency().equals(portfolio.getBaseCurrency())) {
+                foreignValue += fx.convert(asset.getAmount(), FxMatrix.currencyId(asset.getCurrency()), base);
+            }
+        }
+        nonCash.sort(Comparator.comparingDouble(Asset::getLiquidityRating));
+        double[] ratings = new double[nonCash.size()];
+        double[] amountPrefix = new double[nonCash.size() + 1];
+        double[] illiquidPrefix = new double[nonCash.size() + 1];
+        for (int i = 0; i < nonCash.size(); i++) {
+            Asset asset = nonCash.get(i);
+            ratings[i] = asset.getLiquidityRating();
+            double value = portfolio.baseValue(asset);
+            amountPrefix[i + 1] = amountPrefix[i] + value;
+            illiquidPrefix[i + 1] = illiquidPrefix[i] + value * (1.0 - asset.getLiquidityRating());
+        }
+        
+        // One set of generated paths: revenue and expense totals per path, liquidity shocks kept for replay
+        double startCash = portfolio.getCashReserve();
+        double[] revenue = new double[paths];
+        double[] expense = new double[paths];
+        double[] liquidityShocks = new double[paths * days];
+        for (int p = 0; p < paths; p++) {
+            for (int day = 0; day < days; day++) {
+                expense[p] += totalValue * RiskAnalysis.EXPENSE_RATE * (1 + CounterRandom.gaussian(seed, p, day, RiskAnalysis.EXPENSE_SHOCK) * RiskAnalysis.EXPENSE_VOLATILITY);
+                revenue[p] += totalValue * RiskAnalysis.REVENUE_RATE * (1 + CounterRandom.gaussian(seed, p, day, RiskAnalysis.REVENUE_SHOCK) * RiskAnalysis.REVENUE_VOLATILITY);
+                liquidityShocks[p * days + day] = CounterRandom.gaussian(seed, p, day, RiskAnalysis.LIQUIDITY_SHOCK);
+            }
+        }
         
-        System.out.println("LIQUIDITY CRISIS SCENARIO:");
-        System.out.println("Effective liquidity ratio: " + pct.format(liquidityCrisis.get("LIQUIDITY_RATIO")));
-        System.out.println("Estimated survival period: " + df.format(liquidityCrisis.get("SURVIVAL_DAYS")) + " days");
-        System.out.println("Probability of cash shortfall: " + pct.format(liquidityCrisis.get("SHORTFALL_PROBABILITY")));
+        // The market-liquidity effect depends only on the starting level, so it is replayed once per distinct level
+        Map<Double, double[]> marketEffects = new HashMap<>();
+        // Survival horizons depend only on the liquidity level and the outflow multiplier
+        SurvivalHorizonEngine survivalEngine = new SurvivalHorizonEngine(portfolio, cashFlow, marketData);
+        Map<Double, Map<Double, SurvivalHorizon>> survivalHorizons = new HashMap<>();
+        List<ScenarioResult> results = new ArrayList<>();
+        double[] cash = new double[paths];
         
-        // Run interest rate shock scenarios
-        System.out.println("\nINTEREST RATE SHOCK SCENARIOS:");
-        for (double shock : new double[]{1.0, 2.0, 3.0}) {
-            Map<String, Double> impact = riskAnalysis.assessInterestRateRisk(shock);
-            double portfolioValue = portfolio.getTotalValue();
-            double impactPercent = (impact.get("TOTAL_IMPACT") / portfolioValue) * 100;
+        for (StressScenario scenario : scenarios) {
+            double[] marketEffect = marketEffects.computeIfAbsent(scenario.getMarketLiquidity(), 
+                level -> replayMarketEffect(level, liquidityShocks, paths, days, totalValue));
+            
+            int shortfalls = 0;
+            double sum = 0;
+            for (int p = 0; p < paths; p++) {
+                cash[p] = startCash + revenue[p] - scenario.getOutflowMultiplier() * expense[p] + marketEffect[p];
+                if (cash[p] < cashReserveRequired) shortfalls++;
+                sum += cash[p];
+            }
+            Arrays.sort(cash);
             
-            System.out.println(shock + "% rate increase: " + df.format(impactPercent) + "% portfolio impact");
+            double k = originalLiquidity / scenario.getMarketLiquidity();
+            double stressedLiquid = cashAssets + stressedNonCashValue(k, ratings, amountPrefix, illiquidPrefix);
+            SurvivalHorizon survival = survivalHorizons
+                .computeIfAbsent(scenario.getMarketLiquidity(), level -> new HashMap<>())
+                .computeIfAbsent(scenario.getOutflowMultiplier(), 
+                    multiplier -> survivalEngine.horizon(scenario.getMarketLiquidity(), multiplier));
+            
+            results.add(new ScenarioResult(scenario, stressedLiquid / totalValue, 
+                                           rateSensitivity * scenario.getRateShiftPercent(), 
+                                           foreignValue * scenario.getFxMovePercent() / 100, 
+                                           (double) shortfalls / paths, cash[(int)(paths * 0.05)], sum / paths, 
+                                           survival.survivalDays()));
         }
         
-        // Run currency shock scenario
-        CurrencyRiskManager crm = new CurrencyRiskManager(portfolio, marketData);
-        Map<String, Double> currencyShock = crm.simulateCurrencyShock(10);
-        double totalCurrencyImpact = currencyShock.get("TOTAL_IMPACT");
-        double currencyImpactPercent = (totalCurrencyImpact / portfolio.getTotalValue()) * 100;
-        
-        System.out.println("\nCURRENCY SHOCK SCENARIO (10% depreciation):");
-        System.out.println("Impact: " + df.format(currencyImpactPercent) + "% of portfolio value");
-        
-        // Overall resilience assessment
-        System.out.println("\nOVERALL TREASURY RESILIENCE ASSESSMENT:");
-        double overallScore = calculateResilienceScore(liquidityCrisis, currencyImpactPercent);
-        
-        if (overallScore >= 7.5) {
-            System.out.println("STRONG (Score: " + df.format(overallScore) + "/10)");
-            System.out.println("The treasury portfolio demonstrates robust resilience to various market stresses.");
-        } else if (overallScore >= 5.0) {
-            System.out.println("MODERATE (Score: " + df.format(overallScore) + "/10)");
-            System.out.println("The treasury portfolio shows adequate resilience but has areas for improvement.");
-        } else {
-            System.out.println("VULNERABLE (Score: " + df.format(overallScore) + "/10)");
-            System.out.println("The treasury portfolio shows significant vulnerabilities to market stresses.");
-            System.out.println("Immediate action recommended to strengthen resilience.");
+        return results;
+    }
+    
+    // Sum of amount * max(0.5, 1 - (1 - rating) * k) over rating-sorted non-cash assets
+    private static double stressedNonCashValue(double k, double[] ratings, double[] amountPrefix, double[] illiquidPrefix) {
+        int n = ratings.length;
+        // Assets rated at or below this threshold hit the 50% floor
+        double floorRating = 1.0 - 0.5 / k;
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ratings[mid] <= floorRating) lo = mid + 1; else hi = mid;
+        }
+        double floored = 0.5 * amountPrefix[lo];
+        double discounted = (amountPrefix[n] - amountPrefix[lo]) - k * (illiquidPrefix[n] - illiquidPrefix[lo]);
+        return floored + discounted;
+    }
+    
+    static double[] replayMarketEffect(double startLiquidity, double[] liquidityShocks, int paths, int days, double totalValue) {
+        double[] effect = new double[paths];
+        for (int p = 0; p < paths; p++) {
+            double marketLiquidity = startLiquidity;
+            for (int day = 0; day < days; day++) {
+                effect[p] += (marketLiquidity - 0.5) * 2.0 * totalValue * RiskAnalysis.MARKET_EFFECT_RATE;
+                marketLiquidity = Math.min(1.0, Math.max(0.5, 
+                    marketLiquidity + liquidityShocks[p * days + day] * RiskAnalysis.LIQUIDITY_VOLATILITY));
+            }
+        }
+        return effect;
+    }
+    
+    // Smallest combined shock that pushes 5th-percentile cash below the reserve; see ReverseStressTester
+    public ReverseStressResult runReverseStressTest(int days, int paths, long seed) {
+        return new ReverseStressTester(this, portfolio, marketData, days, paths, seed).search();
+    }
+    
+    public void displayScenarioPackResults(List<StressScenario> scenarios, int days, int paths, long seed) {
+        long start = System.nanoTime();
+        List<ScenarioResult> results = runScenarioPack(scenarios, days, paths, seed);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        DecimalFormat pct = new DecimalFormat("0.0%");
+        
+        System.out.println("\n===== STRESS SCENARIO PACK (" + results.size() + " SCENARIOS, " + paths + " PATHS) =====");
+        System.out.println("Evaluated in " + elapsedMillis + " ms");
+        
+        List<ScenarioResult> ranked = new ArrayList<>(results);
+        ranked.sort(Comparator.comparingDouble(ScenarioResult::getShortfallProbability).reversed()
+                              .thenComparingDouble(ScenarioResult::getCashPercentile5));
+        long breaching = results.stream().filter(r -> r.getShortfallProbability() > 0.05).count();
+        System.out.println("Scenarios with shortfall probability above 5%: " + breaching);
+        
+        System.out.println("\nMOST SEVERE SCENARIOS:");
+        for (int i = 0; i < Math.min(10, ranked.size()); i++) {
+            ScenarioResult result = ranked.get(i);
+            System.out.println("  " + result.getScenario().getName());
+            System.out.println("    Shortfall probability: " + pct.format(result.getShortfallProbability()) + 
+                             ", 5th percentile cash: " + df.format(result.getCashPercentile5()));
+            System.out.println("    Stressed liquidity ratio: " + pct.format(result.getStressedLiquidityRatio()) + 
+                             ", rate impact: " + df.format(result.getRateImpact()) + 
+                             ", FX impact: " + df.format(result.getFxImpact()));
         }
+        System.out.println("Seed: " + seed);
     }
     
     private double calculateResilienceScore(Map<String, Double> liquidityCrisis, double currencyImpactPercent) {
@@ -1211,3 +2737,7705 @@ class StressTester {
         return (liquidityScore * 0.5) + (shortfallScore * 0.3) + (currencyScore * 0.2);
     }
 }
+
+// One analyst's isolated simulation state inside the server
+class TreasurySession {
+    private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+    
+    private String id;
+    private TreasuryPortfolio portfolio;
+    private MarketData marketData;
+    private CashFlow cashFlow;
+    private LocalDate simulationDate;
+    private RiskAnalysis riskAnalysis;
+    private CashOptimizationStrategy cashOptimization;
+    private long marketSeed;
+    
+    // Fast-forwarded market moves come from the counter stream of marketSeed
+    public TreasurySession(String id, TreasuryPortfolio portfolio, MarketData marketData, CashFlow cashFlow, long marketSeed) {
+        this.id = id;
+        this.portfolio = portfolio;
+        this.marketData = marketData;
+        this.cashFlow = cashFlow;
+        this.marketSeed = marketSeed;
+        portfolio.setMarketData(marketData);
+        marketData.setRandomSource(new CounterRandom(marketSeed, 0, 0));
+        this.simulationDate = LocalDate.now();
+        this.riskAnalysis = new RiskAnalysis(portfolio, marketData, 1000);
+        this.cashOptimization = new CashOptimizationStrategy(portfolio, marketData);
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public long getMarketSeed() {
+        return marketSeed;
+    }
+    
+    public TreasuryPortfolio getPortfolio() {
+        return portfolio;
+    }
+    
+    public LocalDate getSimulationDate() {
+        return simulationDate;
+    }
+    
+    public synchronized Map<String, Double> runRisk(int days, long seed) {
+        Map<String, Double> results = new TreeMap<>(riskAnalysis.runLiquidityRiskSimulation(days, seed));
+        results.put("RATE_IMPACT_UP_1PCT", riskAnalysis.assessInterestRateRisk(1).get("TOTAL_IMPACT"));
+        results.put("RATE_IMPACT_DOWN_1PCT", riskAnalysis.assessInterestRateRisk(-1).get("TOTAL_IMPACT"));
+        return results;
+    }
+    
+    public synchronized Map<String, Double> runStress(long seed) {
+        StressTester stressTester = new StressTester(portfolio, marketData, riskAnalysis, cashFlow);
+        Map<String, Double> results = new TreeMap<>(stressTester.runLiquidityCrisisScenario(seed));
+        for (double shock : new double[]{1.0, 2.0, 3.0}) {
+            results.put("RATE_SHOCK_" + (int) shock + "PCT", riskAnalysis.assessInterestRateRisk(shock).get("TOTAL_IMPACT"));
+        }
+        CurrencyRiskManager crm = new CurrencyRiskManager(portfolio, marketData);
+        results.put("FX_SHOCK_10PCT", crm.simulateCurrencyShock(10).get("TOTAL_IMPACT"));
+        return results;
+    }
+    
+    public synchronized Map<String, Double> fastForward(int days) {
+        for (int i = 0; i < days; i++) {
+            TreasuryLiquiditySimulator.simulateNextDay(marketData, portfolio, cashFlow, simulationDate, QUIET);
+            simulationDate = simulationDate.plusDays(1);
+        }
+        Map<String, Double> results = new TreeMap<>();
+        results.put("TOTAL_VALUE", portfolio.getTotalValue());
+        results.put("CASH_RESERVE", portfolio.getCashReserve());
+        results.put("LIQUIDITY_RATIO", portfolio.calculateLiquidityRatio());
+        return results;
+    }
+    
+    public synchronized Map<String, Double> optimize(int horizonDays) {
+        CashLadderPlan plan = cashOptimization.optimizeCashLadder(cashFlow, simulationDate, horizonDays);
+        Map<String, Double> results = new TreeMap<>();
+        results.put("MINIMUM_CASH", plan.getMinimumCash());
+        results.put("TOTAL_INTEREST", plan.getTotalInterest());
+        results.put("LOWEST_PROJECTED_CASH", plan.getLowestProjectedCash());
+        results.put("BREACH_DAYS", (double) plan.getBreachDays());
+        for (Map.Entry<String, Double> entry : plan.getAmountByTenor().entrySet()) {
+            results.put("PLACED_" + entry.getKey(), entry.getValue());
+        }
+        return results;
+    }
+}
+
+// Daemon mode: keeps template state resident and serves analysis requests over a local socket
+class SimulationServer {
+    static final int DEFAULT_PORT = 7070;
+    static final double DEFAULT_INITIAL_CASH = 1000000000.0;
+    static final int MAX_DAYS = 3650;  // ten years, the longest horizon a single command may request
+    
+    private int port;
+    private TreasuryPortfolio templatePortfolio;
+    private MarketData templateMarketData;
+    private CashFlow templateCashFlow;
+    private Map<String, TreasurySession> sessions;
+    private ServerSocket serverSocket;
+    
+    public SimulationServer(int port, double initialCash) {
+        this.port = port;
+        this.templateMarketData = new MarketData();
+        this.templatePortfolio = new TreasuryPortfolio("IDR", initialCash, templateMarketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(templatePortfolio);
+        this.templateCashFlow = TreasuryLiquiditySimulator.createDefaultCashFlow();
+        this.sessions = new ConcurrentHashMap<>();
+    }
+    
+    // Every session starts from its own fork of the resident template, under an id only the server chooses
+    public TreasurySession openSession() {
+        while (true) {
+            String id = UUID.randomUUID().toString();
+            TreasurySession session = new TreasurySession(id, templatePortfolio.fork(), templateMarketData.copy(), 
+                                                          templateCashFlow.fork(), ThreadLocalRandom.current().nextLong());
+            if (sessions.putIfAbsent(id, session) == null) {
+                return session;
+            }
+        }
+    }
+    
+    // Reconnect to a session this server issued earlier; null when it does not exist
+    public TreasurySession findSession(String id) {
+        return sessions.get(id);
+    }
+    
+    public void closeSession(String id) {
+        sessions.remove(id);
+    }
+    
+    public void run() {
+        warmUp();
+        ExecutorService executor = newSessionExecutor();
+        
+        try (ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            serverSocket = socket;
+            System.out.println("Treasury simulation server listening on localhost:" + port);
+            while (!socket.isClosed()) {
+                Socket client = socket.accept();
+                executor.submit(() -> handleClient(client));
+            }
+        } catch (IOException e) {
+            System.out.println("Server stopped: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    public void shutdown() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("Error closing server socket: " + e.getMessage());
+        }
+    }
+    
+    // Exercise the hot paths once so the first real request runs compiled code
+    private void warmUp() {
+        TreasurySession session = openSession();
+        for (int i = 0; i < 5; i++) {
+            session.runRisk(30, i);
+            session.runStress(i);
+            session.optimize(365);
+        }
+        session.fastForward(30);
+        closeSession(session.getId());
+    }
+    
+    // Virtual threads need Java 21; older runtimes fall back to a cached platform thread pool
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    
+    private void handleClient(Socket client) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())))) {
+            TreasurySession session = null;
+            String line;
+            
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                String command = parts[0].toUpperCase();
+                
+                try {
+                    if (command.equals("QUIT")) {
+                        out.println("OK");
+                        break;
+                    } else if (command.equals("OPEN")) {
+                        // OPEN starts a new session; OPEN <id> resumes one the server issued before
+                        TreasurySession opened = parts.length > 1 ? findSession(parts[1]) : openSession();
+                        if (opened == null) {
+                            out.println("ERROR Unknown session: " + parts[1]);
+                            out.flush();
+                            continue;
+                        }
+                        session = opened;
+                        out.println("SESSION=" + session.getId());
+                        out.println("MARKET_SEED=" + session.getMarketSeed());
+                    } else if (command.equals("SHUTDOWN")) {
+                        out.println("OK");
+                        out.flush();
+                        shutdown();
+                        break;
+                    } else if (session == null) {
+                        out.println("ERROR Open a session first (OPEN)");
+                        out.flush();
+                        continue;
+                    } else if (command.equals("RISK")) {
+                        int days = intArgument(parts, 30, 1);
+                        long seed = parts.length > 2 ? Long.parseLong(parts[2]) : ThreadLocalRandom.current().nextLong();
+                        out.println("SEED=" + seed);
+                        writeResults(out, session.runRisk(days, seed));
+                    } else if (command.equals("STRESS")) {
+                        long seed = parts.length > 1 ? Long.parseLong(parts[1]) : ThreadLocalRandom.current().nextLong();
+                        out.println("SEED=" + seed);
+                        writeResults(out, session.runStress(seed));
+                    } else if (command.equals("FASTFORWARD")) {
+                        writeResults(out, session.fastForward(intArgument(parts, 1, 0)));
+                    } else if (command.equals("OPTIMIZE")) {
+                        writeResults(out, session.optimize(intArgument(parts, 365, 1)));
+                    } else if (command.equals("CLOSE")) {
+                        closeSession(session.getId());
+                        session = null;
+                    } else {
+                        out.println("ERROR Unknown command: " + command);
+                        out.flush();
+                        continue;
+                    }
+                    out.println("OK");
+                } catch (NumberFormatException e) {
+                    out.println("ERROR Invalid numeric argument");
+                } catch (IllegalArgumentException e) {
+                    out.println("ERROR " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // One failing command must not take the connection, or the session, down with it
+                    System.out.println("Command failed: " + line + " (" + e + ")");
+                    out.println("ERROR " + command + " failed: " + e.getClass().getSimpleName());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Client disconnected: " + e.getMessage());
+        }
+    }
+    
+    private static int intArgument(String[] parts, int defaultValue, int minimum) {
+        int value = parts.length > 1 ? Integer.parseInt(parts[1]) : defaultValue;
+        if (value < minimum || value > MAX_DAYS) {
+            throw new IllegalArgumentException("Days must be between " + minimum + " and " + MAX_DAYS);
+        }
+        return value;
+    }
+    
+    private static void writeResults(PrintWriter out, Map<String, Double> results) {
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            out.println(entry.getKey() + "=" + entry.getValue());
+        }
+    }
+}
+
+// A combined market stress: liquidity haircut, parallel rate shift, FX move and outflow spike
+class StressScenario {
+    private String name;
+    private double marketLiquidity;  // stressed market liquidity index, drives asset haircuts
+    private double rateShiftPercent;
+    private double fxMovePercent;    // depreciation of the portfolio's base currency against every foreign currency
+    private double outflowMultiplier;
+    
+    public StressScenario(String name, double marketLiquidity, double rateShiftPercent, 
+                          double fxMovePercent, double outflowMultiplier) {
+        this.name = name;
+        this.marketLiquidity = marketLiquidity;
+        this.rateShiftPercent = rateShiftPercent;
+        this.fxMovePercent = fxMovePercent;
+        this.outflowMultiplier = outflowMultiplier;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public double getMarketLiquidity() {
+        return marketLiquidity;
+    }
+    
+    public double getRateShiftPercent() {
+        return rateShiftPercent;
+    }
+    
+    public double getFxMovePercent() {
+        return fxMovePercent;
+    }
+    
+    public double getOutflowMultiplier() {
+        return outflowMultiplier;
+    }
+}
+
+// Outcome of one stress scenario
+class ScenarioResult implements AnalyticsResult {
+    private StressScenario scenario;
+    private double stressedLiquidityRatio;
+    private double rateImpact;
+    private double fxImpact;
+    private double shortfallProbability;
+    private double cashPercentile5;
+    private double meanCash;
+    private int survivalDays;
+    
+    public ScenarioResult(StressScenario scenario, double stressedLiquidityRatio, double rateImpact, double fxImpact, 
+                          double shortfallProbability, double cashPercentile5, double meanCash, int survivalDays) {
+        this.scenario = scenario;
+        this.stressedLiquidityRatio = stressedLiquidityRatio;
+        this.rateImpact = rateImpact;
+        this.fxImpact = fxImpact;
+        this.shortfallProbability = shortfallProbability;
+        this.cashPercentile5 = cashPercentile5;
+        this.meanCash = meanCash;
+        this.survivalDays = survivalDays;
+    }
+    
+    public StressScenario getScenario() {
+        return scenario;
+    }
+    
+    public double getStressedLiquidityRatio() {
+        return stressedLiquidityRatio;
+    }
+    
+    public double getRateImpact() {
+        return rateImpact;
+    }
+    
+    public double getFxImpact() {
+        return fxImpact;
+    }
+    
+    public double getShortfallProbability() {
+        return shortfallProbability;
+    }
+    
+    public double getCashPercentile5() {
+        return cashPercentile5;
+    }
+    
+    public double getMeanCash() {
+        return meanCash;
+    }
+    
+    // Full days before stressed outflows exceed cash plus haircut sales, capped at the survival horizon
+    public int getSurvivalDays() {
+        return survivalDays;
+    }
+    
+    @Override
+    public String getKind() {
+        return "STRESS_SCENARIO";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "STRESS SCENARIO: " + scenario.getName();
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.text("SCENARIO", "Scenario", scenario.getName());
+        out.percent("MARKET_LIQUIDITY", "Market liquidity", scenario.getMarketLiquidity());
+        out.number("RATE_SHIFT_PERCENT", "Rate shift (%)", scenario.getRateShiftPercent());
+        out.number("FX_MOVE_PERCENT", "FX move (%)", scenario.getFxMovePercent());
+        out.number("OUTFLOW_MULTIPLIER", "Outflow multiplier", scenario.getOutflowMultiplier());
+        out.percent("STRESSED_LIQUIDITY_RATIO", "Stressed liquidity ratio", stressedLiquidityRatio);
+        out.amount("RATE_IMPACT", "Rate impact", rateImpact);
+        out.amount("FX_IMPACT", "FX impact", fxImpact);
+        out.percent("SHORTFALL_PROBABILITY", "Shortfall probability", shortfallProbability);
+        out.amount("CASH_PERCENTILE_5", "5th percentile cash", cashPercentile5);
+        out.amount("MEAN_CASH", "Mean cash", meanCash);
+        out.number("SURVIVAL_DAYS", "Survival horizon (days)", survivalDays);
+    }
+}
+
+// Predefined stress scenarios
+class StressScenarioLibrary {
+    private static final double[] LIQUIDITY_LEVELS = {0.2, 0.3, 0.4, 0.5, 0.6};
+    private static final double[] RATE_SHIFTS = {-2.0, -1.0, 0.0, 1.0, 2.0, 3.0, 4.0};
+    private static final double[] FX_MOVES = {-20.0, -10.0, 0.0, 10.0, 20.0, 30.0};
+    private static final double[] OUTFLOW_MULTIPLIERS = {1.0, 1.25, 1.5, 2.0, 3.0};
+    
+    // The scenarios behind displayStressTestResults
+    public static List<StressScenario> standardScenarios(String baseCurrency, double currentLiquidity) {
+        List<StressScenario> scenarios = new ArrayList<>();
+        scenarios.add(new StressScenario("Liquidity crisis", 0.2, 0.0, 0.0, 1.0));
+        scenarios.add(new StressScenario("Rates +1%", currentLiquidity, 1.0, 0.0, 1.0));
+        scenarios.add(new StressScenario("Rates +2%", currentLiquidity, 2.0, 0.0, 1.0));
+        scenarios.add(new StressScenario("Rates +3%", currentLiquidity, 3.0, 0.0, 1.0));
+        scenarios.add(new StressScenario(baseCurrency + " -10%", currentLiquidity, 0.0, 10.0, 1.0));
+        return scenarios;
+    }
+    
+    // Evenly spaced selection from the full liquidity x rate x FX x outflow grid
+    public static List<StressScenario> regulatoryPack(int count) {
+        int gridSize = LIQUIDITY_LEVELS.length * RATE_SHIFTS.length * FX_MOVES.length * OUTFLOW_MULTIPLIERS.length;
+        List<StressScenario> scenarios = new ArrayList<>();
+        
+        for (int i = 0; i < count; i++) {
+            int index = (int)((long) i * gridSize / count) % gridSize;
+            double outflow = OUTFLOW_MULTIPLIERS[index % OUTFLOW_MULTIPLIERS.length];
+            index /= OUTFLOW_MULTIPLIERS.length;
+            double fx = FX_MOVES[index % FX_MOVES.length];
+            index /= FX_MOVES.length;
+            double rate = RATE_SHIFTS[index % RATE_SHIFTS.length];
+            index /= RATE_SHIFTS.length;
+            double liquidity = LIQUIDITY_LEVELS[index];
+            
+            String name = "REG-" + (i + 1) + " liquidity " + liquidity + ", rates " + rate + "%, FX " + fx + 
+                          "%, outflows x" + outflow;
+            scenarios.add(new StressScenario(name, liquidity, rate, fx, outflow));
+        }
+        return scenarios;
+    }
+}
+
+// Mergeable quantile sketch with relative accuracy guarantees (logarithmic buckets, DDSketch style)
+class QuantileSketch {
+    // Magnitudes below this are counted in the zero bucket
+    private static final double MIN_INDEXABLE = 1e-9;
+    
+    private double relativeAccuracy;
+    private double gamma;
+    private double logGamma;
+    private long[] positive;
+    private int positiveOffset;
+    private long[] negative;
+    private int negativeOffset;
+    private long zeroCount;
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    
+    public QuantileSketch() {
+        this(0.005);
+    }
+    
+    public QuantileSketch(double relativeAccuracy) {
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.positive = new long[0];
+        this.negative = new long[0];
+    }
+    
+    public void add(double value) {
+        if (value > MIN_INDEXABLE) {
+            int index = bucketIndex(value);
+            positive = ensureCapacity(positive, positiveOffset, index, true);
+            positive[index - positiveOffset]++;
+        } else if (value < -MIN_INDEXABLE) {
+            int index = bucketIndex(-value);
+            negative = ensureCapacity(negative, negativeOffset, index, false);
+            negative[index - negativeOffset]++;
+        } else {
+            zeroCount++;
+        }
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+    
+    // Fold another sketch with the same accuracy into this one
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracy");
+        }
+        for (int i = 0; i < other.positive.length; i++) {
+            if (other.positive[i] == 0) continue;
+            int index = other.positiveOffset + i;
+            positive = ensureCapacity(positive, positiveOffset, index, true);
+            positive[index - positiveOffset] += other.positive[i];
+        }
+        for (int i = 0; i < other.negative.length; i++) {
+            if (other.negative[i] == 0) continue;
+            int index = other.negativeOffset + i;
+            negative = ensureCapacity(negative, negativeOffset, index, false);
+            negative[index - negativeOffset] += other.negative[i];
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+    
+    public double quantile(double q) {
+        if (count == 0) return Double.NaN;
+        if (q <= 0) return min;
+        if (q >= 1) return max;
+        
+        double rank = q * (count - 1);
+        long seen = 0;
+        
+        // Most negative values first: largest magnitude bucket down to smallest
+        for (int i = negative.length - 1; i >= 0; i--) {
+            seen += negative[i];
+            if (seen > rank) return clamp(-bucketValue(negativeOffset + i));
+        }
+        seen += zeroCount;
+        if (seen > rank) return clamp(0.0);
+        for (int i = 0; i < positive.length; i++) {
+            seen += positive[i];
+            if (seen > rank) return clamp(bucketValue(positiveOffset + i));
+        }
+        return max;
+    }
+    
+    // Fraction of recorded values at or below the threshold, within the sketch accuracy
+    public double fractionBelow(double threshold) {
+        if (count == 0) return 0.0;
+        if (threshold < min) return 0.0;
+        if (threshold >= max) return 1.0;
+        
+        long below = 0;
+        for (int i = negative.length - 1; i >= 0; i--) {
+            if (-bucketValue(negativeOffset + i) <= threshold) below += negative[i];
+        }
+        if (threshold >= 0) below += zeroCount;
+        for (int i = 0; i < positive.length; i++) {
+            if (bucketValue(positiveOffset + i) <= threshold) below += positive[i];
+        }
+        return (double) below / count;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+    
+    public double getMin() {
+        return min;
+    }
+    
+    public double getMax() {
+        return max;
+    }
+    
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+    
+    // Sparse binary form: only non-empty buckets are written
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeDouble(relativeAccuracy);
+        out.writeLong(zeroCount);
+        out.writeLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        writeBuckets(out, positive, positiveOffset);
+        writeBuckets(out, negative, negativeOffset);
+    }
+    
+    public static QuantileSketch readFrom(DataInputStream in) throws IOException {
+        QuantileSketch sketch = new QuantileSketch(in.readDouble());
+        sketch.zeroCount = in.readLong();
+        sketch.count = in.readLong();
+        sketch.sum = in.readDouble();
+        sketch.min = in.readDouble();
+        sketch.max = in.readDouble();
+        int positiveBuckets = in.readInt();
+        for (int i = 0; i < positiveBuckets; i++) {
+            int index = in.readInt();
+            sketch.positive = sketch.ensureCapacity(sketch.positive, sketch.positiveOffset, index, true);
+            sketch.positive[index - sketch.positiveOffset] = in.readLong();
+        }
+        int negativeBuckets = in.readInt();
+        for (int i = 0; i < negativeBuckets; i++) {
+            int index = in.readInt();
+            sketch.negative = sketch.ensureCapacity(sketch.negative, sketch.negativeOffset, index, false);
+            sketch.negative[index - sketch.negativeOffset] = in.readLong();
+        }
+        return sketch;
+    }
+    
+    private static void writeBuckets(DataOutputStream out, long[] buckets, int offset) throws IOException {
+        int nonEmpty = 0;
+        for (long bucket : buckets) {
+            if (bucket != 0) nonEmpty++;
+        }
+        out.writeInt(nonEmpty);
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] != 0) {
+                out.writeInt(offset + i);
+                out.writeLong(buckets[i]);
+            }
+        }
+    }
+    
+    private int bucketIndex(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+    
+    private double bucketValue(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+    
+    private double clamp(double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+    
+    // Grow the dense bucket array so it covers index, keeping slack on both sides
+    private long[] ensureCapacity(long[] buckets, int offset, int index, boolean isPositive) {
+        if (buckets.length > 0 && index >= offset && index < offset + buckets.length) {
+            return buckets;
+        }
+        
+        int low = buckets.length == 0 ? index : Math.min(offset, index);
+        int high = buckets.length == 0 ? index : Math.max(offset + buckets.length - 1, index);
+        int slack = Math.max(16, (high - low + 1) / 2);
+        int newOffset = low - slack;
+        long[] grown = new long[high - low + 1 + 2 * slack];
+        if (buckets.length > 0) {
+            System.arraycopy(buckets, 0, grown, offset - newOffset, buckets.length);
+        }
+        
+        if (isPositive) {
+            positiveOffset = newOffset;
+        } else {
+            negativeOffset = newOffset;
+        }
+        return grown;
+    }
+}
+
+// An intercompany payment between two members of a treasury group
+class IntercompanyFlow {
+    private String fromEntity;
+    private String toEntity;
+    private double amount;
+    private String currency;
+    
+    public IntercompanyFlow(String fromEntity, String toEntity, double amount, String currency) {
+        this.fromEntity = fromEntity;
+        this.toEntity = toEntity;
+        this.amount = amount;
+        this.currency = currency;
+    }
+    
+    public String getFromEntity() {
+        return fromEntity;
+    }
+    
+    public String getToEntity() {
+        return toEntity;
+    }
+    
+    public double getAmount() {
+        return amount;
+    }
+    
+    public String getCurrency() {
+        return currency;
+    }
+}
+
+// Per-entity analytics, already converted to the group reporting currency so they can be merged by summation
+class EntityResult {
+    private String entity;
+    private double totalValue;
+    private double cashReserve;
+    private double liquidAssets;
+    private double stressedLiquidAssets;
+    private double rateImpactPerPercent;
+    private Map<String, Double> currencyExposure;
+    private QuantileSketch cashOutcomes;
+    private double meanCashOutcome;
+    private double cashPercentile5;
+    private long elapsedNanos;
+    
+    public EntityResult(String entity, double totalValue, double cashReserve, double liquidAssets, 
+                        double stressedLiquidAssets, double rateImpactPerPercent, Map<String, Double> currencyExposure, 
+                        QuantileSketch cashOutcomes, long elapsedNanos) {
+        this.entity = entity;
+        this.totalValue = totalValue;
+        this.cashReserve = cashReserve;
+        this.liquidAssets = liquidAssets;
+        this.stressedLiquidAssets = stressedLiquidAssets;
+        this.rateImpactPerPercent = rateImpactPerPercent;
+        this.currencyExposure = currencyExposure;
+        this.cashOutcomes = cashOutcomes;
+        this.meanCashOutcome = cashOutcomes.getMean();
+        this.cashPercentile5 = cashOutcomes.quantile(0.05);
+        this.elapsedNanos = elapsedNanos;
+    }
+    
+    public String getEntity() {
+        return entity;
+    }
+    
+    public double getTotalValue() {
+        return totalValue;
+    }
+    
+    public double getCashReserve() {
+        return cashReserve;
+    }
+    
+    public double getLiquidAssets() {
+        return liquidAssets;
+    }
+    
+    public double getStressedLiquidAssets() {
+        return stressedLiquidAssets;
+    }
+    
+    public double getRateImpactPerPercent() {
+        return rateImpactPerPercent;
+    }
+    
+    public Map<String, Double> getCurrencyExposure() {
+        return currencyExposure;
+    }
+    
+    public QuantileSketch getCashOutcomes() {
+        return cashOutcomes;
+    }
+    
+    public double getMeanCashOutcome() {
+        return meanCashOutcome;
+    }
+    
+    public double getCashPercentile5() {
+        return cashPercentile5;
+    }
+    
+    public double getCashMedian() {
+        return cashOutcomes.quantile(0.5);
+    }
+    
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}
+
+// Consolidated group view built only from merged entity results
+class GroupResult {
+    private String reportingCurrency;
+    private List<EntityResult> entities;
+    private double totalValue;
+    private double cashReserve;
+    private double liquidAssets;
+    private double stressedLiquidAssets;
+    private double rateImpactPerPercent;
+    private Map<String, Double> currencyExposure;
+    private QuantileSketch entityCashOutcomes;
+    private double expectedCash;
+    private double comonotonicCashPercentile5;
+    private double grossIntercompany;
+    private double netIntercompany;
+    private Map<String, Double> intercompanyNetPositions;
+    private long wallNanos;
+    
+    public GroupResult(String reportingCurrency, List<EntityResult> entities, double grossIntercompany, 
+                       Map<String, Double> intercompanyNetPositions, long wallNanos) {
+        this.reportingCurrency = reportingCurrency;
+        this.entities = entities;
+        this.grossIntercompany = grossIntercompany;
+        this.intercompanyNetPositions = intercompanyNetPositions;
+        this.wallNanos = wallNanos;
+        this.currencyExposure = new TreeMap<>();
+        this.entityCashOutcomes = new QuantileSketch();
+        
+        for (EntityResult result : entities) {
+            totalValue += result.getTotalValue();
+            cashReserve += result.getCashReserve();
+            liquidAssets += result.getLiquidAssets();
+            stressedLiquidAssets += result.getStressedLiquidAssets();
+            rateImpactPerPercent += result.getRateImpactPerPercent();
+            expectedCash += result.getMeanCashOutcome();
+            comonotonicCashPercentile5 += result.getCashPercentile5();
+            entityCashOutcomes.merge(result.getCashOutcomes());
+            for (Map.Entry<String, Double> entry : result.getCurrencyExposure().entrySet()) {
+                currencyExposure.merge(entry.getKey(), entry.getValue(), Double::sum);
+            }
+        }
+        
+        // Only the positive net positions actually have to be paid after multilateral netting
+        for (double position : intercompanyNetPositions.values()) {
+            if (position > 0) netIntercompany += position;
+        }
+    }
+    
+    public String getReportingCurrency() {
+        return reportingCurrency;
+    }
+    
+    public List<EntityResult> getEntities() {
+        return entities;
+    }
+    
+    public double getTotalValue() {
+        return totalValue;
+    }
+    
+    public double getCashReserve() {
+        return cashReserve;
+    }
+    
+    public double getLiquidityRatio() {
+        return totalValue == 0 ? 0.0 : liquidAssets / totalValue;
+    }
+    
+    public double getStressedLiquidityRatio() {
+        return totalValue == 0 ? 0.0 : stressedLiquidAssets / totalValue;
+    }
+    
+    public double getRateImpactPerPercent() {
+        return rateImpactPerPercent;
+    }
+    
+    public Map<String, Double> getCurrencyExposure() {
+        return currencyExposure;
+    }
+    
+    // Every member's paths pooled into one distribution of entity-level cash outcomes, not a group distribution
+    public QuantileSketch getEntityCashOutcomes() {
+        return entityCashOutcomes;
+    }
+    
+    public double getExpectedCash() {
+        return expectedCash;
+    }
+    
+    // Sum of entity 5th percentiles: the group percentile if all entities were perfectly correlated
+    public double getComonotonicCashPercentile5() {
+        return comonotonicCashPercentile5;
+    }
+    
+    public double getGrossIntercompany() {
+        return grossIntercompany;
+    }
+    
+    public double getNetIntercompany() {
+        return netIntercompany;
+    }
+    
+    // Positive = entity pays into the netting centre, negative = entity receives
+    public Map<String, Double> getIntercompanyNetPositions() {
+        return intercompanyNetPositions;
+    }
+    
+    public long getWallNanos() {
+        return wallNanos;
+    }
+    
+    public long getSlowestEntityNanos() {
+        return entities.stream().mapToLong(EntityResult::getElapsedNanos).max().orElse(0);
+    }
+    
+    public long getSumEntityNanos() {
+        return entities.stream().mapToLong(EntityResult::getElapsedNanos).sum();
+    }
+}
+
+// Group treasury: evaluates subsidiary portfolios in parallel and consolidates the results
+class TreasuryGroup {
+    // A subsidiary with its own portfolio and local market view
+    static class Member {
+        private String name;
+        private TreasuryPortfolio portfolio;
+        private MarketData marketData;
+        private int simulationRuns;
+        
+        public Member(String name, TreasuryPortfolio portfolio, MarketData marketData, int simulationRuns) {
+            this.name = name;
+            this.portfolio = portfolio;
+            this.marketData = marketData;
+            this.simulationRuns = simulationRuns;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public TreasuryPortfolio getPortfolio() {
+            return portfolio;
+        }
+        
+        public MarketData getMarketData() {
+            return marketData;
+        }
+    }
+    
+    private String reportingCurrency;
+    private List<Member> members;
+    private List<IntercompanyFlow> intercompanyFlows;
+    private MarketData groupMarketData;
+    
+    public TreasuryGroup(String reportingCurrency, MarketData groupMarketData) {
+        this.reportingCurrency = reportingCurrency;
+        this.groupMarketData = groupMarketData;
+        this.members = new ArrayList<>();
+        this.intercompanyFlows = new ArrayList<>();
+    }
+    
+    public void addMember(Member member) {
+        members.add(member);
+    }
+    
+    public void addIntercompanyFlow(IntercompanyFlow flow) {
+        intercompanyFlows.add(flow);
+    }
+    
+    public List<Member> getMembers() {
+        return members;
+    }
+    
+    public GroupResult consolidate(int forecastDays) {
+        return consolidate(forecastDays, ThreadLocalRandom.current().nextLong());
+    }
+    
+    // Member i simulates with seed + i, so a run is reproduced from its seed
+    public GroupResult consolidate(int forecastDays, long seed) {
+        int threads = Math.min(members.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        long start = System.nanoTime();
+        
+        try {
+            List<Callable<EntityResult>> tasks = new ArrayList<>();
+            for (int m = 0; m < members.size(); m++) {
+                Member member = members.get(m);
+                long memberSeed = seed + m;
+                tasks.add(() -> evaluate(member, forecastDays, memberSeed));
+            }
+            
+            List<EntityResult> results = new ArrayList<>();
+            for (Future<EntityResult> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            
+            return new GroupResult(reportingCurrency, results, grossIntercompany(), netIntercompanyPositions(), 
+                                   System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Group consolidation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Entity evaluation failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // One pass over the entity's assets plus its own Monte Carlo run
+    private EntityResult evaluate(Member member, int forecastDays, long seed) {
+        long start = System.nanoTime();
+        TreasuryPortfolio portfolio = member.getPortfolio();
+        MarketData marketData = member.getMarketData();
+        String baseCurrency = portfolio.getBaseCurrency();
+        double marketLiquidity = marketData.getLiquidityIndex();
+        
+        double totalValue = 0;
+        double cashReserve = 0;
+        double liquidAssets = 0;
+        double stressedLiquidAssets = 0;
+        double rateImpact = 0;
+        Map<String, Double> exposure = new HashMap<>();
+        
+        for (Asset asset : portfolio.getAssets()) {
+            double amount = convert(asset.getAmount(), asset.getCurrency(), reportingCurrency, marketData);
+            totalValue += amount;
+            if (asset.getType().equals("CASH") && asset.getCurrency().equals(baseCurrency)) {
+                cashReserve += amount;
+            }
+            if (asset.getLiquidityRating() >= 0.8) {
+                liquidAssets += amount;
+            }
+            stressedLiquidAssets += amount * StressTester.stressedLiquidShare(asset, marketLiquidity, 0.2);
+            if (asset.getMaturityDate() != null) {
+                rateImpact += -amount * RiskAnalysis.durationYears(asset) / 100;
+            }
+            exposure.merge(asset.getCurrency(), amount, Double::sum);
+        }
+        
+        // Simulated outcomes are in the entity's base currency
+        RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio, marketData, member.simulationRuns);
+        double toReporting = convert(1.0, baseCurrency, reportingCurrency, marketData);
+        QuantileSketch sketch = new QuantileSketch();
+        for (double outcome : riskAnalysis.simulateOutcomes(forecastDays, seed)) {
+            sketch.add(outcome * toReporting);
+        }
+        
+        return new EntityResult(member.getName(), totalValue, cashReserve, liquidAssets, stressedLiquidAssets, 
+                                rateImpact, exposure, sketch, System.nanoTime() - start);
+    }
+    
+    private double grossIntercompany() {
+        double gross = 0;
+        for (IntercompanyFlow flow : intercompanyFlows) {
+            gross += convert(flow.getAmount(), flow.getCurrency(), reportingCurrency, groupMarketData);
+        }
+        return gross;
+    }
+    
+    // Multilateral netting: each entity settles only its net position with the group
+    private Map<String, Double> netIntercompanyPositions() {
+        Map<String, Double> positions = new TreeMap<>();
+        for (IntercompanyFlow flow : intercompanyFlows) {
+            double amount = convert(flow.getAmount(), flow.getCurrency(), reportingCurrency, groupMarketData);
+            positions.merge(flow.getFromEntity(), amount, Double::sum);
+            positions.merge(flow.getToEntity(), -amount, Double::sum);
+        }
+        return positions;
+    }
+    
+    // Convert through the cross rates derived from MarketData's quotes
+    static double convert(double amount, String from, String to, MarketData marketData) {
+        return marketData.fx().convert(amount, from, to);
+    }
+    
+    public void displayConsolidation(int forecastDays, long seed) {
+        GroupResult result = consolidate(forecastDays, seed);
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        DecimalFormat pct = new DecimalFormat("0.0%");
+        String ccy = result.getReportingCurrency();
+        
+        System.out.println("\n===== GROUP CONSOLIDATION (" + result.getEntities().size() + " ENTITIES) =====");
+        System.out.println("TOTAL VALUE: " + df.format(result.getTotalValue()) + " " + ccy);
+        System.out.println("CASH RESERVE: " + df.format(result.getCashReserve()) + " " + ccy);
+        System.out.println("LIQUIDITY RATIO: " + pct.format(result.getLiquidityRatio()));
+        System.out.println("STRESSED LIQUIDITY RATIO: " + pct.format(result.getStressedLiquidityRatio()));
+        System.out.println("IMPACT OF 1% RATE INCREASE: " + df.format(result.getRateImpactPerPercent()) + " " + ccy);
+        
+        System.out.println("\nCURRENCY EXPOSURE:");
+        for (Map.Entry<String, Double> entry : result.getCurrencyExposure().entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + pct.format(entry.getValue() / result.getTotalValue()));
+        }
+        
+        System.out.println("\nCASH AFTER " + forecastDays + " DAYS:");
+        System.out.println("  Expected group cash: " + df.format(result.getExpectedCash()) + " " + ccy);
+        System.out.println("  Group 5th percentile (perfect correlation): " + df.format(result.getComonotonicCashPercentile5()) + " " + ccy);
+        System.out.println("  Median over all entity paths (pooled): " + df.format(result.getEntityCashOutcomes().quantile(0.5)) + " " + ccy);
+        
+        System.out.println("\nENTITIES (cash after " + forecastDays + " days):");
+        for (EntityResult entity : result.getEntities()) {
+            System.out.println("  " + entity.getEntity() + ": value " + df.format(entity.getTotalValue()) + 
+                               ", median " + df.format(entity.getCashMedian()) + 
+                               ", 5th percentile " + df.format(entity.getCashPercentile5()) + " " + ccy);
+        }
+        
+        System.out.println("\nINTERCOMPANY FLOWS:");
+        System.out.println("  Gross: " + df.format(result.getGrossIntercompany()) + " " + ccy);
+        System.out.println("  After netting: " + df.format(result.getNetIntercompany()) + " " + ccy);
+        
+        System.out.println("\nRUN TIME: " + df.format(result.getWallNanos() / 1e6) + " ms (slowest entity " + 
+                         df.format(result.getSlowestEntityNanos() / 1e6) + " ms, sum " + 
+                         df.format(result.getSumEntityNanos() / 1e6) + " ms)");
+        System.out.println("Seed: " + seed);
+    }
+    
+    // Synthetic subsidiaries in rotating base currencies, each paying a share of its cash to the next one
+    static TreasuryGroup syntheticGroup(String reportingCurrency, MarketData marketData, int entities, int positions, long seed) {
+        String[] baseCurrencies = {"IDR", "USD", "EUR", "JPY"};
+        TreasuryGroup group = new TreasuryGroup(reportingCurrency, marketData);
+        LocalDate asOf = marketData.getDate();
+        for (int e = 0; e < entities; e++) {
+            String baseCurrency = baseCurrencies[e % baseCurrencies.length];
+            MarketData entityMarket = marketData.copy();
+            SyntheticPortfolioGenerator generator = new SyntheticPortfolioGenerator(seed + e, entityMarket);
+            generator.setBaseCurrency(baseCurrency);
+            generator.setMedianPositionValue(entityMarket.fx().convert(1000000000.0, "IDR", baseCurrency));
+            group.addMember(new Member("Entity " + (e + 1) + " (" + baseCurrency + ")", 
+                                       generator.generatePortfolio(positions, asOf), entityMarket, 1000));
+        }
+        for (int e = 0; e < entities && entities > 1; e++) {
+            Member from = group.getMembers().get(e);
+            TreasuryPortfolio portfolio = from.getPortfolio();
+            group.addIntercompanyFlow(new IntercompanyFlow(from.getName(), group.getMembers().get((e + 1) % entities).getName(), 
+                                                           portfolio.getCashReserve() * 0.1, portfolio.getBaseCurrency()));
+        }
+        return group;
+    }
+    
+    // --group [entities] [positions per entity] [days] [seed]
+    static void runFromCommandLine(String[] args) {
+        int entities = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int positions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        if (entities < 1 || positions < 1 || days < 1) {
+            System.out.println("Entities, positions and days must be positive.");
+            return;
+        }
+        syntheticGroup("IDR", new MarketData(), entities, positions, seed).displayConsolidation(days, seed);
+    }
+}
+
+// Records which assets, currencies and market inputs changed during a step
+class ChangeSet {
+    private Set<Asset> changedAssets = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Set<Asset> retiredAssets = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Set<String> changedCurrencies = new HashSet<>();
+    private boolean ratesChanged;
+    private boolean liquidityChanged;
+    
+    public void assetChanged(Asset asset) {
+        changedAssets.add(asset);
+    }
+    
+    // A write to an asset shared with a fork puts a copy in its slot; the previous object no longer belongs to the portfolio
+    public void assetReplaced(Asset previous, Asset current) {
+        if (previous != current) {
+            changedAssets.remove(previous);
+            retiredAssets.add(previous);
+        }
+        changedAssets.add(current);
+    }
+    
+    // New assets are indistinguishable from changed ones for the risk engine
+    public void assetAdded(Asset asset) {
+        changedAssets.add(asset);
+    }
+    
+    public void currencyChanged(String currency) {
+        changedCurrencies.add(currency);
+    }
+    
+    public void ratesChanged() {
+        ratesChanged = true;
+    }
+    
+    public void liquidityChanged() {
+        liquidityChanged = true;
+    }
+    
+    // updateMarketData moves every tenor, every quoted pair and the liquidity index
+    public void marketUpdated(MarketData marketData) {
+        ratesChanged = true;
+        liquidityChanged = true;
+        for (String pair : marketData.getCurrencyPairs()) {
+            changedCurrencies.add(pair.substring(0, pair.indexOf('/')));
+        }
+    }
+    
+    public Set<Asset> getChangedAssets() {
+        return changedAssets;
+    }
+    
+    public Set<Asset> getRetiredAssets() {
+        return retiredAssets;
+    }
+    
+    public Set<String> getChangedCurrencies() {
+        return changedCurrencies;
+    }
+    
+    public boolean isRatesChanged() {
+        return ratesChanged;
+    }
+    
+    public boolean isLiquidityChanged() {
+        return liquidityChanged;
+    }
+    
+    public boolean isEmpty() {
+        return changedAssets.isEmpty() && retiredAssets.isEmpty() && changedCurrencies.isEmpty() && !ratesChanged && !liquidityChanged;
+    }
+    
+    public void clear() {
+        changedAssets.clear();
+        retiredAssets.clear();
+        changedCurrencies.clear();
+        ratesChanged = false;
+        liquidityChanged = false;
+    }
+}
+
+// Keeps per-asset risk contributions and updates only those touched by a ChangeSet; market moves are
+// absorbed by per-currency totals and rating buckets without a pass over the portfolio
+class IncrementalRiskEngine {
+    // Cached contribution of one asset, in its own currency
+    private static class Contribution {
+        double amount;
+        String currency;
+        boolean liquid;
+        double rateSensitivity;  // impact of a +1% rate move
+        double liquidityRating;
+        boolean cash;
+    }
+    
+    // Native-currency sums of one currency's contributions; converted to the base currency only when read
+    private static class CurrencyTotals {
+        double amount;
+        double liquidAmount;
+        double rateSensitivity;
+        double cashAmount;
+        double flooredAmount;  // non-cash rated at or below the floor rating, worth half in the crisis
+        double discountedAmount;  // non-cash rated above it
+        double discountedIlliquid;  // sum of amount * (1 - rating) above it
+        double factor;  // base currency per unit, refreshed when the currency moves
+    }
+    
+    // Crisis liquidity level used by StressTester.runLiquidityCrisisScenario
+    private static final double CRISIS_LIQUIDITY = 0.2;
+    
+    private TreasuryPortfolio portfolio;
+    private MarketData marketData;
+    private Map<Asset, Contribution> contributions;
+    private Map<String, CurrencyTotals> totalsByCurrency;
+    // Non-cash amounts by rating and currency ({amount, count}), so a liquidity move only shifts the
+    // assets the floor rating passes over between the floored and discounted sums
+    private TreeMap<Double, Map<String, double[]>> ratingBuckets;
+    private double floorRating;
+    private double liquidityMultiple;
+    private Map<String, Double> curve;
+    private double lastCurveShift;
+    private LocalDate durationAsOf;
+    private int lastUpdatedAssets;
+    private int lastRevaluedCurrencies;
+    private boolean validating;
+    
+    public IncrementalRiskEngine(TreasuryPortfolio portfolio, MarketData marketData) {
+        this.portfolio = portfolio;
+        this.marketData = marketData;
+        rebuild();
+    }
+    
+    // Debug aid: compare every snapshot against a from-scratch recompute, which costs a pass over the portfolio
+    public void setValidating(boolean validating) {
+        this.validating = validating;
+    }
+    
+    // Full recompute of every contribution
+    public void rebuild() {
+        contributions = new IdentityHashMap<>();
+        totalsByCurrency = new HashMap<>();
+        ratingBuckets = new TreeMap<>();
+        liquidityMultiple = marketData.getLiquidityIndex() / CRISIS_LIQUIDITY;
+        floorRating = 1.0 - 0.5 / liquidityMultiple;
+        curve = new HashMap<>(marketData.snapshot().getInterestRates());
+        lastCurveShift = 0;
+        durationAsOf = LocalDate.now();
+        
+        for (Asset asset : portfolio.getAssets()) {
+            add(asset);
+        }
+        lastUpdatedAssets = contributions.size();
+        lastRevaluedCurrencies = totalsByCurrency.size();
+    }
+    
+    public void apply(ChangeSet changes) {
+        // Durations are measured from today; a new calendar day invalidates every rate contribution
+        if (!durationAsOf.equals(LocalDate.now())) {
+            rebuild();
+            return;
+        }
+        
+        lastUpdatedAssets = 0;
+        lastRevaluedCurrencies = 0;
+        for (Asset asset : changes.getRetiredAssets()) {
+            remove(asset);
+        }
+        for (Asset asset : changes.getChangedAssets()) {
+            remove(asset);
+            add(asset);
+            lastUpdatedAssets++;
+        }
+        
+        // Every currency is converted through the base currency's quote, so a base move revalues them all
+        Set<String> moved = changes.getChangedCurrencies();
+        if (!moved.isEmpty()) {
+            FxMatrix fx = marketData.fx();
+            boolean all = moved.contains(portfolio.getBaseCurrency());
+            for (Map.Entry<String, CurrencyTotals> entry : totalsByCurrency.entrySet()) {
+                if (all || moved.contains(entry.getKey())) {
+                    entry.getValue().factor = fx.convert(1.0, entry.getKey(), portfolio.getBaseCurrency());
+                    lastRevaluedCurrencies++;
+                }
+            }
+        }
+        
+        // Stressed shares are max(0.5, 1 - (1 - rating) * k); only assets the floor rating crosses change side
+        if (changes.isLiquidityChanged()) {
+            liquidityMultiple = marketData.getLiquidityIndex() / CRISIS_LIQUIDITY;
+            moveFloor(1.0 - 0.5 / liquidityMultiple);
+        }
+        
+        // The duration approximation does not depend on the curve; a curve move is priced through it as a parallel shift
+        if (changes.isRatesChanged()) {
+            Map<String, Double> rates = marketData.snapshot().getInterestRates();
+            double shift = 0;
+            for (Map.Entry<String, Double> entry : rates.entrySet()) {
+                shift += entry.getValue() - curve.getOrDefault(entry.getKey(), entry.getValue());
+            }
+            lastCurveShift = rates.isEmpty() ? 0 : shift / rates.size();
+            curve = new HashMap<>(rates);
+        }
+    }
+    
+    private void add(Asset asset) {
+        Contribution contribution = new Contribution();
+        contribution.amount = asset.getAmount();
+        contribution.currency = asset.getCurrency();
+        contribution.liquid = asset.getLiquidityRating() >= 0.8;
+        contribution.rateSensitivity = asset.getMaturityDate() != null 
+            ? -contribution.amount * RiskAnalysis.durationYears(asset) / 100 : 0.0;
+        contribution.liquidityRating = asset.getLiquidityRating();
+        contribution.cash = asset.getType().equals("CASH");
+        contributions.put(asset, contribution);
+        accumulate(contribution, 1);
+    }
+    
+    private void remove(Asset asset) {
+        Contribution contribution = contributions.remove(asset);
+        if (contribution != null) {
+            accumulate(contribution, -1);
+        }
+    }
+    
+    private void accumulate(Contribution contribution, int sign) {
+        CurrencyTotals totals = totalsByCurrency.get(contribution.currency);
+        if (totals == null) {
+            totals = new CurrencyTotals();
+            totals.factor = marketData.fx().convert(1.0, contribution.currency, portfolio.getBaseCurrency());
+            totalsByCurrency.put(contribution.currency, totals);
+        }
+        double amount = sign * contribution.amount;
+        totals.amount += amount;
+        if (contribution.liquid) totals.liquidAmount += amount;
+        totals.rateSensitivity += sign * contribution.rateSensitivity;
+        if (contribution.cash) {
+            totals.cashAmount += amount;
+            return;
+        }
+        
+        Map<String, double[]> bucket = ratingBuckets.computeIfAbsent(contribution.liquidityRating, rating -> new HashMap<>());
+        double[] entry = bucket.computeIfAbsent(contribution.currency, currency -> new double[2]);
+        entry[0] += amount;
+        entry[1] += sign;
+        if (entry[1] == 0) {
+            bucket.remove(contribution.currency);
+            if (bucket.isEmpty()) ratingBuckets.remove(contribution.liquidityRating);
+        }
+        shiftSide(totals, contribution.liquidityRating, amount, contribution.liquidityRating <= floorRating);
+    }
+    
+    private static void shiftSide(CurrencyTotals totals, double rating, double amount, boolean floored) {
+        if (floored) {
+            totals.flooredAmount += amount;
+        } else {
+            totals.discountedAmount += amount;
+            totals.discountedIlliquid += amount * (1.0 - rating);
+        }
+    }
+    
+    private void moveFloor(double newFloor) {
+        boolean rising = newFloor > floorRating;
+        NavigableMap<Double, Map<String, double[]>> crossed = rising 
+            ? ratingBuckets.subMap(floorRating, false, newFloor, true)
+            : ratingBuckets.subMap(newFloor, false, floorRating, true);
+        for (Map.Entry<Double, Map<String, double[]>> bucket : crossed.entrySet()) {
+            for (Map.Entry<String, double[]> entry : bucket.getValue().entrySet()) {
+                CurrencyTotals totals = totalsByCurrency.get(entry.getKey());
+                shiftSide(totals, bucket.getKey(), -entry.getValue()[0], !rising);
+                shiftSide(totals, bucket.getKey(), entry.getValue()[0], rising);
+                lastUpdatedAssets += (int) entry.getValue()[1];
+            }
+        }
+        floorRating = newFloor;
+    }
+    
+    private double totalValue() {
+        double total = 0;
+        for (CurrencyTotals totals : totalsByCurrency.values()) {
+            total += totals.factor * totals.amount;
+        }
+        return total;
+    }
+    
+    // Same definition as TreasuryPortfolio.calculateLiquidityRatio
+    public double getLiquidityRatio() {
+        double liquidAssets = 0;
+        for (CurrencyTotals totals : totalsByCurrency.values()) {
+            liquidAssets += totals.factor * totals.liquidAmount;
+        }
+        return liquidAssets / totalValue();
+    }
+    
+    // Same definition as CurrencyRiskManager.calculateCurrencyExposure, in the portfolio's base currency
+    public Map<String, Double> getCurrencyExposure() {
+        double total = totalValue();
+        Map<String, Double> exposurePercent = new HashMap<>();
+        for (Map.Entry<String, CurrencyTotals> entry : totalsByCurrency.entrySet()) {
+            exposurePercent.put(entry.getKey(), entry.getValue().factor * entry.getValue().amount / total);
+        }
+        return exposurePercent;
+    }
+    
+    // TOTAL_IMPACT of RiskAnalysis.assessInterestRateRisk, which is linear in the rate change
+    public double getInterestRateImpact(double rateChangePercent) {
+        double rateSensitivity = 0;
+        for (CurrencyTotals totals : totalsByCurrency.values()) {
+            rateSensitivity += totals.factor * totals.rateSensitivity;
+        }
+        return rateSensitivity * rateChangePercent;
+    }
+    
+    // Average tenor move of the last curve update, in percentage points
+    public double getLastCurveShift() {
+        return lastCurveShift;
+    }
+    
+    // LIQUIDITY_RATIO of StressTester.runLiquidityCrisisScenario
+    public double getStressedLiquidityRatio() {
+        double stressedLiquidAssets = 0;
+        for (CurrencyTotals totals : totalsByCurrency.values()) {
+            double stressed = totals.cashAmount + 0.5 * totals.flooredAmount 
+                + totals.discountedAmount - liquidityMultiple * totals.discountedIlliquid;
+            stressedLiquidAssets += totals.factor * stressed;
+        }
+        return stressedLiquidAssets / totalValue();
+    }
+    
+    // TOTAL_IMPACT of CurrencyRiskManager.simulateCurrencyShock
+    public double getCurrencyShockImpact(double shockPercent) {
+        double impact = 0;
+        for (Map.Entry<String, CurrencyTotals> entry : totalsByCurrency.entrySet()) {
+            if (!entry.getKey().equals(portfolio.getBaseCurrency())) {
+                impact += entry.getValue().factor * entry.getValue().amount * (shockPercent / 100);
+            }
+        }
+        return impact;
+    }
+    
+    public int getLastUpdatedAssets() {
+        return lastUpdatedAssets;
+    }
+    
+    public int getLastRevaluedCurrencies() {
+        return lastRevaluedCurrencies;
+    }
+    
+    // Largest absolute difference between each incremental metric and a from-scratch recompute
+    public Map<String, Double> validateAgainstFullRecompute() {
+        Map<String, Double> differences = new TreeMap<>();
+        RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio, marketData, 1);
+        CurrencyRiskManager crm = new CurrencyRiskManager(portfolio, marketData);
+        
+        portfolio.updateTotalValue();
+        differences.put("LIQUIDITY_RATIO", Math.abs(getLiquidityRatio() - portfolio.calculateLiquidityRatio()));
+        differences.put("RATE_IMPACT", Math.abs(getInterestRateImpact(1) - riskAnalysis.assessInterestRateRisk(1).get("TOTAL_IMPACT")));
+        differences.put("FX_SHOCK", Math.abs(getCurrencyShockImpact(10) - crm.simulateCurrencyShock(10).get("TOTAL_IMPACT")));
+        
+        double maxExposureDiff = 0;
+        Map<String, Double> fullExposure = crm.calculateCurrencyExposure();
+        Map<String, Double> incrementalExposure = getCurrencyExposure();
+        for (Map.Entry<String, Double> entry : fullExposure.entrySet()) {
+            double incremental = incrementalExposure.getOrDefault(entry.getKey(), 0.0);
+            maxExposureDiff = Math.max(maxExposureDiff, Math.abs(incremental - entry.getValue()));
+        }
+        differences.put("CURRENCY_EXPOSURE", maxExposureDiff);
+        
+        double stressedFull = 0;
+        double marketLiquidity = marketData.getLiquidityIndex();
+        for (Asset asset : portfolio.getAssets()) {
+            stressedFull += portfolio.baseValue(asset) * StressTester.stressedLiquidShare(asset, marketLiquidity, CRISIS_LIQUIDITY);
+        }
+        differences.put("STRESSED_LIQUIDITY_RATIO", Math.abs(getStressedLiquidityRatio() - stressedFull / portfolio.getTotalValue()));
+        
+        return differences;
+    }
+    
+    public void displaySnapshot() {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        DecimalFormat pct = new DecimalFormat("0.0%");
+        
+        System.out.println("\n===== RISK SNAPSHOT =====");
+        System.out.println("Liquidity ratio: " + pct.format(getLiquidityRatio()));
+        System.out.println("Stressed liquidity ratio: " + pct.format(getStressedLiquidityRatio()));
+        System.out.println("Impact of 1% rate increase: " + df.format(getInterestRateImpact(1)));
+        System.out.println("Impact of 10% currency shock: " + df.format(getCurrencyShockImpact(10)));
+        System.out.println("Currency exposure:");
+        for (Map.Entry<String, Double> entry : getCurrencyExposure().entrySet()) {
+            System.out.println("  " + entry.getKey() + ": " + pct.format(entry.getValue()));
+        }
+        System.out.println("Impact of last curve move (" + df.format(lastCurveShift) + "% parallel): " + 
+                           df.format(getInterestRateImpact(lastCurveShift)));
+        System.out.println("Asset contributions updated in last step: " + lastUpdatedAssets + " of " + contributions.size());
+        System.out.println("Currencies revalued in last step: " + lastRevaluedCurrencies + " of " + totalsByCurrency.size());
+        
+        if (validating) {
+            double worstDifference = 0;
+            for (double difference : validateAgainstFullRecompute().values()) {
+                worstDifference = Math.max(worstDifference, difference);
+            }
+            System.out.println("Max deviation from full recompute: " + worstDifference);
+        }
+    }
+}
+
+// Ingests rate, FX and liquidity ticks, coalesces them per instrument and publishes MarketData snapshots without locks
+class MarketDataFeed {
+    private static final String RATE = "RATE";
+    private static final String FX = "FX";
+    private static final String LIQUIDITY = "LIQ";
+    
+    private MarketData marketData;
+    private Map<String, Integer> instrumentIndex;
+    private String[] instrumentKeys;
+    private AtomicLongArray latestValues;  // Double bits of the newest tick per instrument
+    private AtomicIntegerArray dirty;
+    private AtomicLong ticksReceived = new AtomicLong();
+    private AtomicLong ticksDropped = new AtomicLong();
+    private AtomicLong snapshotsPublished = new AtomicLong();
+    // What published snapshots moved since the last drainChanges, for the menu's ChangeSet
+    private Set<String> movedCurrencies = ConcurrentHashMap.newKeySet();
+    private AtomicBoolean ratesMoved = new AtomicBoolean();
+    private AtomicBoolean liquidityMoved = new AtomicBoolean();
+    private ScheduledExecutorService publisher;
+    private List<Thread> sources = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+    
+    // The instrument universe is fixed to what the market already quotes; unknown instruments are dropped
+    public MarketDataFeed(MarketData marketData) {
+        this.marketData = marketData;
+        MarketSnapshot market = marketData.snapshot();
+        
+        List<String> keys = new ArrayList<>();
+        for (String tenor : market.getInterestRates().keySet()) keys.add(RATE + ":" + tenor);
+        for (String pair : market.getCurrencyRates().keySet()) keys.add(FX + ":" + pair);
+        for (String index : market.getLiquidityIndices().keySet()) keys.add(LIQUIDITY + ":" + index);
+        
+        this.instrumentKeys = keys.toArray(new String[0]);
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < instrumentKeys.length; i++) {
+            index.put(instrumentKeys[i], i);
+        }
+        this.instrumentIndex = Collections.unmodifiableMap(index);
+        this.latestValues = new AtomicLongArray(instrumentKeys.length);
+        this.dirty = new AtomicIntegerArray(instrumentKeys.length);
+    }
+    
+    // Safe to call from any number of threads; later ticks for the same instrument overwrite earlier ones
+    public void onTick(String type, String instrument, double value) {
+        Integer index = instrumentIndex.get(type + ":" + instrument);
+        if (index == null || Double.isNaN(value)) {
+            ticksDropped.incrementAndGet();
+            return;
+        }
+        // Value first, then the dirty flag, so the publisher never sees the flag without the value
+        latestValues.set(index, Double.doubleToRawLongBits(value));
+        dirty.set(index, 1);
+        ticksReceived.incrementAndGet();
+    }
+    
+    // Parse one "TYPE,INSTRUMENT,VALUE" line, e.g. "RATE,1MONTH,4.40" or "FX,USD/IDR,15800"
+    public void onLine(String line) {
+        String[] parts = line.trim().split(",");
+        if (parts.length != 3) {
+            ticksDropped.incrementAndGet();
+            return;
+        }
+        try {
+            onTick(parts[0].trim().toUpperCase(), parts[1].trim().toUpperCase(), Double.parseDouble(parts[2].trim()));
+        } catch (NumberFormatException e) {
+            ticksDropped.incrementAndGet();
+        }
+    }
+    
+    // Fold every coalesced tick into one new snapshot; returns false when nothing changed
+    public boolean publish() {
+        Map<Integer, Double> updates = new HashMap<>();
+        for (int i = 0; i < instrumentKeys.length; i++) {
+            if (dirty.getAndSet(i, 0) == 1) {
+                updates.put(i, Double.longBitsToDouble(latestValues.get(i)));
+            }
+        }
+        if (updates.isEmpty()) return false;
+        
+        // Retry against whatever is current, in case updateMarketData published concurrently
+        MarketSnapshot previous;
+        MarketSnapshot next;
+        do {
+            previous = marketData.snapshot();
+            Map<String, Double> interestRates = new HashMap<>(previous.getInterestRates());
+            Map<String, Double> currencyRates = new HashMap<>(previous.getCurrencyRates());
+            Map<String, Double> liquidityIndex = new HashMap<>(previous.getLiquidityIndices());
+            
+            for (Map.Entry<Integer, Double> update : updates.entrySet()) {
+                String key = instrumentKeys[update.getKey()];
+                int separator = key.indexOf(':');
+                String type = key.substring(0, separator);
+                String instrument = key.substring(separator + 1);
+                if (type.equals(RATE)) {
+                    interestRates.put(instrument, Math.max(0, update.getValue()));
+                } else if (type.equals(FX)) {
+                    currencyRates.put(instrument, update.getValue());
+                } else {
+                    liquidityIndex.put(instrument, Math.min(1.0, Math.max(0.0, update.getValue())));
+                }
+            }
+            next = new MarketSnapshot(interestRates, currencyRates, liquidityIndex, previous.getDate(), previous.getVersion() + 1);
+        } while (!marketData.publish(previous, next));
+        
+        for (Integer index : updates.keySet()) {
+            String key = instrumentKeys[index];
+            if (key.startsWith(RATE + ":")) {
+                ratesMoved.set(true);
+            } else if (key.startsWith(FX + ":")) {
+                movedCurrencies.add(key.substring(FX.length() + 1, key.indexOf('/')));
+            } else {
+                liquidityMoved.set(true);
+            }
+        }
+        snapshotsPublished.incrementAndGet();
+        return true;
+    }
+    
+    // Hand everything published since the last call to the caller's ChangeSet, so the risk engine revalues it
+    public boolean drainChanges(ChangeSet changes) {
+        boolean moved = false;
+        if (ratesMoved.getAndSet(false)) {
+            changes.ratesChanged();
+            moved = true;
+        }
+        if (liquidityMoved.getAndSet(false)) {
+            changes.liquidityChanged();
+            moved = true;
+        }
+        for (String currency : new ArrayList<>(movedCurrencies)) {
+            movedCurrencies.remove(currency);
+            changes.currencyChanged(currency);
+            moved = true;
+        }
+        return moved;
+    }
+    
+    // Publish coalesced ticks on a single background thread every intervalMillis
+    public void start(long intervalMillis) {
+        running = true;
+        publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "market-data-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stop() {
+        running = false;
+        for (Thread source : sources) {
+            source.interrupt();
+        }
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+        publish();
+    }
+    
+    // In-process replay stand-in for a live source
+    public void replay(List<String> lines) {
+        for (String line : lines) {
+            onLine(line);
+        }
+    }
+    
+    // Follow a file like tail -f; a line is only fed once its newline arrives, so a half-written tick at EOF waits
+    public void tail(Path file, long pollMillis) {
+        Thread source = new Thread(() -> {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                StringBuilder pending = new StringBuilder();
+                char[] buffer = new char[4096];
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    int read = reader.read(buffer);
+                    if (read < 0) {
+                        Thread.sleep(pollMillis);
+                        continue;
+                    }
+                    for (int i = 0; i < read; i++) {
+                        char c = buffer[i];
+                        if (c != '\n') {
+                            pending.append(c);
+                            continue;
+                        }
+                        int length = pending.length();
+                        if (length > 0 && pending.charAt(length - 1) == '\r') {
+                            pending.setLength(length - 1);
+                        }
+                        String line = pending.toString();
+                        pending.setLength(0);
+                        if (!line.isBlank()) {
+                            onLine(line);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Market data tail stopped: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "market-data-tail");
+        source.setDaemon(true);
+        sources.add(source);
+        source.start();
+    }
+    
+    public long getTicksReceived() {
+        return ticksReceived.get();
+    }
+    
+    public long getTicksDropped() {
+        return ticksDropped.get();
+    }
+    
+    public long getSnapshotsPublished() {
+        return snapshotsPublished.get();
+    }
+}
+
+// Latest completed set of dashboard outputs
+class DashboardSnapshot {
+    private long version;
+    private long computedAtMillis;
+    private long computeMillis;
+    private long seed;
+    private Map<String, Double> riskResults;
+    private CashRecommendation cashRecommendation;
+    private List<String> investmentRecommendations;
+    
+    public DashboardSnapshot(long version, long computedAtMillis, long computeMillis, long seed, Map<String, Double> riskResults, 
+                             CashRecommendation cashRecommendation, List<String> investmentRecommendations) {
+        this.version = version;
+        this.computedAtMillis = computedAtMillis;
+        this.computeMillis = computeMillis;
+        this.seed = seed;
+        this.riskResults = riskResults;
+        this.cashRecommendation = cashRecommendation;
+        this.investmentRecommendations = investmentRecommendations;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public long getComputedAtMillis() {
+        return computedAtMillis;
+    }
+    
+    public long getComputeMillis() {
+        return computeMillis;
+    }
+    
+    public long getSeed() {
+        return seed;
+    }
+    
+    public Map<String, Double> getRiskResults() {
+        return riskResults;
+    }
+    
+    public CashRecommendation getCashRecommendation() {
+        return cashRecommendation;
+    }
+    
+    public List<String> getInvestmentRecommendations() {
+        return investmentRecommendations;
+    }
+}
+
+// Debounced background recomputation of the risk, cash and recommendation outputs
+class TreasuryDashboardService {
+    private int forecastDays;
+    private int simulationRuns;
+    private long debounceMillis;
+    private ScheduledExecutorService executor;
+    private AtomicReference<DashboardSnapshot> latest = new AtomicReference<>();
+    private AtomicLong requestedVersion = new AtomicLong();
+    private Future<?> pending;
+    private AtomicLong cancelledRuns = new AtomicLong();
+    
+    public TreasuryDashboardService(int forecastDays, int simulationRuns, long debounceMillis) {
+        this.forecastDays = forecastDays;
+        this.simulationRuns = simulationRuns;
+        this.debounceMillis = debounceMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "treasury-dashboard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    // Call from the thread that mutates state; the copies taken here are what the background run sees
+    public synchronized void markDirty(TreasuryPortfolio portfolio, MarketData marketData) {
+        long version = requestedVersion.incrementAndGet();
+        TreasuryPortfolio portfolioCopy = portfolio.fork();
+        MarketData marketCopy = marketData.copy();
+        portfolioCopy.setMarketData(marketCopy);
+        
+        // Only the latest state matters: drop a queued run and interrupt one already computing
+        if (pending != null && !pending.isDone()) {
+            pending.cancel(true);
+            cancelledRuns.incrementAndGet();
+        }
+        pending = executor.schedule(() -> compute(version, portfolioCopy, marketCopy), debounceMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private void compute(long version, TreasuryPortfolio portfolio, MarketData marketData) {
+        long start = System.currentTimeMillis();
+        try {
+            RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio, marketData, simulationRuns);
+            long seed = ThreadLocalRandom.current().nextLong();
+            Map<String, Double> riskResults = new TreeMap<>(riskAnalysis.runLiquidityRiskSimulation(forecastDays, seed));
+            riskResults.put("RATE_IMPACT_UP_1PCT", riskAnalysis.assessInterestRateRisk(1).get("TOTAL_IMPACT"));
+            riskResults.put("RATE_IMPACT_DOWN_1PCT", riskAnalysis.assessInterestRateRisk(-1).get("TOTAL_IMPACT"));
+            
+            CashOptimizationStrategy cashOptimization = new CashOptimizationStrategy(portfolio, marketData);
+            CashRecommendation cashRecommendation = cashOptimization.recommendCashAction();
+            List<String> recommendations = cashOptimization.getInvestmentRecommendations();
+            
+            if (Thread.currentThread().isInterrupted() || version != requestedVersion.get()) return;
+            
+            long now = System.currentTimeMillis();
+            DashboardSnapshot snapshot = new DashboardSnapshot(version, now, now - start, seed, riskResults, 
+                                                               cashRecommendation, recommendations);
+            // Never let an older run overwrite a newer result
+            latest.accumulateAndGet(snapshot, (current, candidate) -> 
+                current == null || candidate.getVersion() > current.getVersion() ? candidate : current);
+        } catch (CancellationException e) {
+            // Superseded by a newer state
+        }
+    }
+    
+    // Most recent completed result, or null before the first run finishes; never blocks
+    public DashboardSnapshot getLatest() {
+        return latest.get();
+    }
+    
+    public boolean isStale() {
+        DashboardSnapshot snapshot = latest.get();
+        return snapshot == null || snapshot.getVersion() < requestedVersion.get();
+    }
+    
+    public long getCancelledRuns() {
+        return cancelledRuns.get();
+    }
+    
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    public void displayLatest() {
+        DashboardSnapshot snapshot = getLatest();
+        if (snapshot == null) {
+            System.out.println("\nDashboard is still computing. Please check again shortly.");
+            return;
+        }
+        
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        CashRecommendation cash = snapshot.getCashRecommendation();
+        Map<String, Double> risk = snapshot.getRiskResults();
+        long ageSeconds = (System.currentTimeMillis() - snapshot.getComputedAtMillis()) / 1000;
+        
+        System.out.println("\n===== TREASURY DASHBOARD =====");
+        System.out.println("Computed " + ageSeconds + "s ago in " + snapshot.getComputeMillis() + " ms, seed " + snapshot.getSeed() + 
+                         (isStale() ? " (newer state is being computed)" : ""));
+        System.out.println("\nCASH AFTER " + forecastDays + " DAYS:");
+        System.out.println("  5th Percentile: " + df.format(risk.get("PERCENTILE_5")));
+        System.out.println("  Average: " + df.format(risk.get("MEAN")));
+        System.out.println("  95th Percentile: " + df.format(risk.get("PERCENTILE_95")));
+        System.out.println("  Impact of 1% rate increase: " + df.format(risk.get("RATE_IMPACT_UP_1PCT")));
+        System.out.println("\nCASH POSITION: " + df.format(cash.getCurrentCash()) + " (range " + 
+                         df.format(cash.getMinimumCash()) + " - " + df.format(cash.getMaximumCash()) + ")");
+        System.out.println("RECOMMENDATION: " + cash.getAction() + 
+                         (cash.getAction().equals("MAINTAIN") ? "" : " " + df.format(cash.getAmount())));
+        System.out.println("\nINVESTMENT RECOMMENDATIONS:");
+        for (String recommendation : snapshot.getInvestmentRecommendations()) {
+            System.out.println("- " + recommendation);
+        }
+    }
+}
+
+// Everything a worker needs to simulate any range of paths of one liquidity run
+class SimulationJob {
+    private double startCash;
+    private double totalValue;
+    private double startLiquidity;
+    private int days;
+    private long seed;
+    private double shortfallThreshold;
+    
+    public SimulationJob(double startCash, double totalValue, double startLiquidity, int days, long seed, 
+                         double shortfallThreshold) {
+        this.startCash = startCash;
+        this.totalValue = totalValue;
+        this.startLiquidity = startLiquidity;
+        this.days = days;
+        this.seed = seed;
+        this.shortfallThreshold = shortfallThreshold;
+    }
+    
+    public int getDays() {
+        return days;
+    }
+    
+    public long getSeed() {
+        return seed;
+    }
+    
+    public double getShortfallThreshold() {
+        return shortfallThreshold;
+    }
+    
+    // Paths draw from counter-based streams keyed by (seed, path), so a range gives the same answer wherever it runs
+    public SimulationPartial run(long pathStart, long pathCount) {
+        SimulationPartial partial = new SimulationPartial(pathStart, pathCount);
+        for (long path = pathStart; path < pathStart + pathCount; path++) {
+            double cash = RiskAnalysis.simulatePath(startCash, totalValue, startLiquidity, days, seed, path);
+            partial.add(cash, cash < shortfallThreshold);
+        }
+        return partial;
+    }
+    
+    // SplitMix64 finalizer over (seed, path)
+    static long pathSeed(long seed, long path) {
+        long z = seed + (path + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeDouble(startCash);
+        out.writeDouble(totalValue);
+        out.writeDouble(startLiquidity);
+        out.writeInt(days);
+        out.writeLong(seed);
+        out.writeDouble(shortfallThreshold);
+    }
+    
+    public static SimulationJob readFrom(DataInputStream in) throws IOException {
+        return new SimulationJob(in.readDouble(), in.readDouble(), in.readDouble(), in.readInt(), in.readLong(), in.readDouble());
+    }
+}
+
+// Mergeable aggregate of a range of simulated paths
+class SimulationPartial {
+    private long pathStart;
+    private long pathCount;
+    private long count;
+    private double sum;
+    private double sumSquares;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long shortfalls;
+    private QuantileSketch sketch;
+    
+    public SimulationPartial(long pathStart, long pathCount) {
+        this.pathStart = pathStart;
+        this.pathCount = pathCount;
+        this.sketch = new QuantileSketch();
+    }
+    
+    public void add(double cash, boolean shortfall) {
+        count++;
+        sum += cash;
+        sumSquares += cash * cash;
+        min = Math.min(min, cash);
+        max = Math.max(max, cash);
+        if (shortfall) shortfalls++;
+        sketch.add(cash);
+    }
+    
+    public void merge(SimulationPartial other) {
+        pathCount += other.pathCount;
+        count += other.count;
+        sum += other.sum;
+        sumSquares += other.sumSquares;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        shortfalls += other.shortfalls;
+        sketch.merge(other.sketch);
+    }
+    
+    public long getPathStart() {
+        return pathStart;
+    }
+    
+    public long getPathCount() {
+        return pathCount;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public double getMean() {
+        return sum / count;
+    }
+    
+    public double getStandardDeviation() {
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+    }
+    
+    public double getMin() {
+        return min;
+    }
+    
+    public double getMax() {
+        return max;
+    }
+    
+    public double getShortfallProbability() {
+        return (double) shortfalls / count;
+    }
+    
+    public QuantileSketch getSketch() {
+        return sketch;
+    }
+    
+    public Map<String, Double> toResults() {
+        Map<String, Double> results = new HashMap<>();
+        results.put("WORST_CASE", min);
+        results.put("PERCENTILE_5", sketch.quantile(0.05));
+        results.put("MEAN", getMean());
+        results.put("PERCENTILE_95", sketch.quantile(0.95));
+        results.put("BEST_CASE", max);
+        results.put("STANDARD_DEVIATION", getStandardDeviation());
+        results.put("SHORTFALL_PROBABILITY", getShortfallProbability());
+        return results;
+    }
+    
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(pathStart);
+        out.writeLong(pathCount);
+        out.writeLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(sumSquares);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeLong(shortfalls);
+        sketch.writeTo(out);
+    }
+    
+    public static SimulationPartial readFrom(DataInputStream in) throws IOException {
+        SimulationPartial partial = new SimulationPartial(in.readLong(), in.readLong());
+        partial.count = in.readLong();
+        partial.sum = in.readDouble();
+        partial.sumSquares = in.readDouble();
+        partial.min = in.readDouble();
+        partial.max = in.readDouble();
+        partial.shortfalls = in.readLong();
+        partial.sketch = QuantileSketch.readFrom(in);
+        return partial;
+    }
+}
+
+// Worker process: simulates path ranges sent by a coordinator
+class MonteCarloWorker {
+    static final int DEFAULT_PORT = 7171;
+    
+    private int port;
+    
+    public MonteCarloWorker(int port) {
+        this.port = port;
+    }
+    
+    public void run() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Monte Carlo worker listening on localhost:" + port);
+            while (true) {
+                Socket client = serverSocket.accept();
+                executor.submit(() -> serve(client));
+            }
+        } catch (IOException e) {
+            System.out.println("Worker stopped: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // Request: job, pathStart, pathCount; reply: partial. Repeats until the coordinator hangs up.
+    private void serve(Socket client) {
+        try (Socket socket = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                SimulationJob job = SimulationJob.readFrom(in);
+                long pathStart = in.readLong();
+                long pathCount = in.readLong();
+                job.run(pathStart, pathCount).writeTo(out);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // Coordinator finished
+        } catch (IOException e) {
+            System.out.println("Worker connection failed: " + e.getMessage());
+        }
+    }
+}
+
+// Farms path ranges out to worker JVMs and merges their partial results
+class MonteCarloCoordinator {
+    private List<InetSocketAddress> workers;
+    private long chunkSize;
+    private int timeoutMillis;
+    private AtomicInteger failedWorkers = new AtomicInteger();
+    private AtomicLong reassignedChunks = new AtomicLong();
+    
+    public MonteCarloCoordinator(List<InetSocketAddress> workers, long chunkSize, int timeoutMillis) {
+        this.workers = workers;
+        this.chunkSize = chunkSize;
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    public SimulationPartial run(SimulationJob job, long totalPaths) {
+        Deque<long[]> chunks = new ConcurrentLinkedDeque<>();
+        for (long start = 0; start < totalPaths; start += chunkSize) {
+            chunks.add(new long[]{start, Math.min(chunkSize, totalPaths - start)});
+        }
+        
+        // Keyed by path start so the final merge order, and therefore the result, never depends on timing
+        ConcurrentSkipListMap<Long, SimulationPartial> partials = new ConcurrentSkipListMap<>();
+        List<Thread> threads = new ArrayList<>();
+        for (InetSocketAddress worker : workers) {
+            Thread thread = new Thread(() -> drive(worker, job, chunks, partials), "mc-coordinator-" + worker.getPort());
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Coordinator interrupted", e);
+            }
+        }
+        
+        // Every worker died: finish the remaining ranges in this process
+        long[] chunk;
+        while ((chunk = chunks.poll()) != null) {
+            partials.put(chunk[0], job.run(chunk[0], chunk[1]));
+        }
+        
+        SimulationPartial total = new SimulationPartial(0, 0);
+        for (SimulationPartial partial : partials.values()) {
+            total.merge(partial);
+        }
+        return total;
+    }
+    
+    // Pull chunks until none are left; on failure hand the in-flight chunk back and retire this worker
+    private void drive(InetSocketAddress worker, SimulationJob job, Deque<long[]> chunks, 
+                       Map<Long, SimulationPartial> partials) {
+        long[] chunk = null;
+        try (Socket socket = new Socket()) {
+            socket.connect(worker, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            
+            while ((chunk = chunks.poll()) != null) {
+                job.writeTo(out);
+                out.writeLong(chunk[0]);
+                out.writeLong(chunk[1]);
+                out.flush();
+                partials.put(chunk[0], SimulationPartial.readFrom(in));
+                chunk = null;
+            }
+        } catch (IOException e) {
+            failedWorkers.incrementAndGet();
+            if (chunk != null) {
+                chunks.addFirst(chunk);
+                reassignedChunks.incrementAndGet();
+            }
+            System.out.println("Worker " + worker + " failed: " + e.getMessage());
+        }
+    }
+    
+    public int getFailedWorkers() {
+        return failedWorkers.get();
+    }
+    
+    public long getReassignedChunks() {
+        return reassignedChunks.get();
+    }
+    
+    // --coordinate <paths> <host:port>[,<host:port>...] [days] [seed]
+    static void runFromCommandLine(String[] args) {
+        long paths = Long.parseLong(args[0]);
+        List<InetSocketAddress> workers = new ArrayList<>();
+        for (String address : args[1].split(",")) {
+            String[] parts = address.split(":");
+            workers.add(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+        }
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio, marketData, 1);
+        
+        MonteCarloCoordinator coordinator = new MonteCarloCoordinator(workers, Math.max(1000, paths / (workers.size() * 16)), 60000);
+        long start = System.nanoTime();
+        SimulationPartial result = coordinator.run(riskAnalysis.createJob(days, seed), paths);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        DecimalFormat pct = new DecimalFormat("0.00%");
+        Map<String, Double> results = result.toResults();
+        System.out.println("\n===== DISTRIBUTED LIQUIDITY SIMULATION =====");
+        System.out.println("Paths: " + result.getCount() + " over " + workers.size() + " workers in " + elapsedMillis + " ms");
+        System.out.println("Failed workers: " + coordinator.getFailedWorkers() + ", reassigned ranges: " + coordinator.getReassignedChunks());
+        System.out.println("  Worst Case: " + df.format(results.get("WORST_CASE")));
+        System.out.println("  5th Percentile: " + df.format(results.get("PERCENTILE_5")));
+        System.out.println("  Average: " + df.format(results.get("MEAN")));
+        System.out.println("  95th Percentile: " + df.format(results.get("PERCENTILE_95")));
+        System.out.println("  Best Case: " + df.format(results.get("BEST_CASE")));
+        System.out.println("  Probability of insufficient liquidity: " + pct.format(results.get("SHORTFALL_PROBABILITY")));
+        System.out.println("Seed: " + seed);
+    }
+}
+
+// Binary encoding of portfolio, calendar and market state, shared by checkpoints and the journal
+class StateCodec {
+    private static final long NO_DATE = Long.MIN_VALUE;
+    
+    static void writeAsset(DataOutputStream out, Asset asset) throws IOException {
+        out.writeUTF(asset.getName());
+        out.writeUTF(asset.getType());
+        out.writeDouble(asset.getAmount());
+        out.writeUTF(asset.getCurrency());
+        out.writeDouble(asset.getInterestRate());
+        writeDate(out, asset.getMaturityDate());
+        out.writeDouble(asset.getLiquidityRating());
+    }
+    
+    static Asset readAsset(DataInputStream in) throws IOException {
+        return new Asset(in.readUTF(), in.readUTF(), in.readDouble(), in.readUTF(), in.readDouble(), readDate(in), in.readDouble());
+    }
+    
+    static void writeEvent(DataOutputStream out, CashFlowEvent event) throws IOException {
+        out.writeUTF(event.getDescription());
+        writeDate(out, event.getDate());
+        out.writeDouble(event.getAmount());
+        out.writeBoolean(event.isInflow());
+        out.writeBoolean(event.isRecurring());
+        out.writeInt(event.getRecurringInterval());
+        out.writeInt(event.getTime() == null ? -1 : event.getTime().toSecondOfDay());
+        out.writeInt(event.getPriority());
+    }
+    
+    static CashFlowEvent readEvent(DataInputStream in) throws IOException {
+        String description = in.readUTF();
+        LocalDate date = readDate(in);
+        double amount = in.readDouble();
+        boolean inflow = in.readBoolean();
+        boolean recurring = in.readBoolean();
+        int interval = in.readInt();
+        int secondOfDay = in.readInt();
+        return new CashFlowEvent(description, date, amount, inflow, recurring, interval, 
+                                 secondOfDay < 0 ? null : LocalTime.ofSecondOfDay(secondOfDay), in.readInt());
+    }
+    
+    static void writePortfolio(DataOutputStream out, TreasuryPortfolio portfolio) throws IOException {
+        out.writeUTF(portfolio.getBaseCurrency());
+        out.writeInt(portfolio.getAssets().size());
+        for (Asset asset : portfolio.getAssets()) {
+            writeAsset(out, asset);
+        }
+    }
+    
+    // Foreign-currency assets are valued against marketData
+    static TreasuryPortfolio readPortfolio(DataInputStream in, MarketData marketData) throws IOException {
+        String baseCurrency = in.readUTF();
+        int count = in.readInt();
+        List<Asset> assets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            assets.add(readAsset(in));
+        }
+        return TreasuryPortfolio.restore(baseCurrency, assets, marketData);
+    }
+    
+    static void writeCashFlow(DataOutputStream out, CashFlow cashFlow) throws IOException {
+        out.writeDouble(cashFlow.getYearlyRevenue());
+        out.writeDouble(cashFlow.getYearlyOperatingExpenses());
+        out.writeDouble(cashFlow.getYearlyCapEx());
+        out.writeInt(cashFlow.getScheduledCashFlows().size());
+        for (CashFlowEvent event : cashFlow.getScheduledCashFlows()) {
+            writeEvent(out, event);
+        }
+    }
+    
+    static CashFlow readCashFlow(DataInputStream in) throws IOException {
+        CashFlow cashFlow = new CashFlow(in.readDouble(), in.readDouble(), in.readDouble());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            cashFlow.addCashFlowEvent(readEvent(in));
+        }
+        return cashFlow;
+    }
+    
+    static void writeMarket(DataOutputStream out, MarketSnapshot market) throws IOException {
+        writeMap(out, market.getInterestRates());
+        writeMap(out, market.getCurrencyRates());
+        writeMap(out, market.getLiquidityIndices());
+        writeDate(out, market.getDate());
+        out.writeLong(market.getVersion());
+    }
+    
+    static MarketSnapshot readMarket(DataInputStream in) throws IOException {
+        return new MarketSnapshot(readMap(in), readMap(in), readMap(in), readDate(in), in.readLong());
+    }
+    
+    // Sorted keys keep the encoding byte-for-byte stable
+    private static void writeMap(DataOutputStream out, Map<String, Double> values) throws IOException {
+        Map<String, Double> sorted = new TreeMap<>(values);
+        out.writeInt(sorted.size());
+        for (Map.Entry<String, Double> entry : sorted.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeDouble(entry.getValue());
+        }
+    }
+    
+    private static Map<String, Double> readMap(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Double> values = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            values.put(in.readUTF(), in.readDouble());
+        }
+        return values;
+    }
+    
+    static void writeDate(DataOutputStream out, LocalDate date) throws IOException {
+        out.writeLong(date == null ? NO_DATE : date.toEpochDay());
+    }
+    
+    static LocalDate readDate(DataInputStream in) throws IOException {
+        long epochDay = in.readLong();
+        return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+}
+
+// Crash-safe checkpoint file: written to a temp file, forced to disk, then atomically renamed over the old one
+class CheckpointStore {
+    private static final int MAGIC = 0x54524350;  // "TRCP"
+    
+    // Writes the checkpoint body
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    private Path path;
+    
+    public CheckpointStore(Path path) {
+        this.path = path;
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    public void save(String kind, Writer writer) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(kind);
+            writer.write(out);
+            out.flush();
+            file.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    // Stream positioned after the header, or null when there is no checkpoint of this kind
+    public DataInputStream open(String kind) throws IOException {
+        if (!Files.exists(path)) return null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        if (in.readInt() != MAGIC || !in.readUTF().equals(kind)) {
+            in.close();
+            throw new IOException("Not a " + kind + " checkpoint: " + path);
+        }
+        return in;
+    }
+    
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
+
+// Long simulations that checkpoint their progress and resume where a previous process stopped
+class CheckpointedRun {
+    private static final String MONTE_CARLO = "MONTE_CARLO";
+    private static final String PROJECTION = "PROJECTION";
+    
+    private CheckpointStore store;
+    private long checkpointIntervalMillis;
+    private long stopAfter = Long.MAX_VALUE;
+    
+    public CheckpointedRun(Path checkpointFile, long checkpointIntervalMillis) {
+        this.store = new CheckpointStore(checkpointFile);
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+    
+    // Stop (as if killed) after this many chunks or days in this process; used to exercise resume
+    void stopAfter(long units) {
+        this.stopAfter = units;
+    }
+    
+    // Paths run in fixed chunks merged in order; a resumed run therefore merges exactly what an uninterrupted one would
+    public SimulationPartial simulate(SimulationJob job, long totalPaths, long chunkSize) throws IOException {
+        byte[] fingerprint = fingerprint(job, totalPaths, chunkSize);
+        SimulationPartial total = new SimulationPartial(0, 0);
+        long nextPath = 0;
+        
+        try (DataInputStream in = store.open(MONTE_CARLO)) {
+            if (in != null) {
+                byte[] saved = new byte[in.readInt()];
+                in.readFully(saved);
+                if (!Arrays.equals(saved, fingerprint)) {
+                    throw new IOException("Checkpoint belongs to a different simulation: " + store.getPath());
+                }
+                nextPath = in.readLong();
+                total = SimulationPartial.readFrom(in);
+            }
+        }
+        
+        long lastCheckpoint = System.currentTimeMillis();
+        long chunksThisRun = 0;
+        while (nextPath < totalPaths) {
+            long count = Math.min(chunkSize, totalPaths - nextPath);
+            total.merge(job.run(nextPath, count));
+            nextPath += count;
+            chunksThisRun++;
+            
+            boolean stopping = chunksThisRun >= stopAfter;
+            if (stopping || System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMillis) {
+                long position = nextPath;
+                SimulationPartial progress = total;
+                store.save(MONTE_CARLO, out -> {
+                    out.writeInt(fingerprint.length);
+                    out.write(fingerprint);
+                    out.writeLong(position);
+                    progress.writeTo(out);
+                });
+                lastCheckpoint = System.currentTimeMillis();
+            }
+            if (stopping && nextPath < totalPaths) return null;
+        }
+        
+        store.delete();
+        return total;
+    }
+    
+    private static byte[] fingerprint(SimulationJob job, long totalPaths, long chunkSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        job.writeTo(out);
+        out.writeLong(totalPaths);
+        out.writeLong(chunkSize);
+        return bytes.toByteArray();
+    }
+    
+    // Day-by-day projection; market moves for day d come from the (seed, 0, d) stream so no generator state needs saving
+    public TreasuryPortfolio project(TreasuryPortfolio portfolio, CashFlow cashFlow, MarketData marketData, 
+                                     LocalDate startDate, int totalDays, long seed) throws IOException {
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        LocalDate date = startDate;
+        int day = 0;
+        
+        try (DataInputStream in = store.open(PROJECTION)) {
+            if (in != null) {
+                if (in.readLong() != seed || in.readInt() != totalDays) {
+                    throw new IOException("Checkpoint belongs to a different projection: " + store.getPath());
+                }
+                day = in.readInt();
+                date = StateCodec.readDate(in);
+                portfolio = StateCodec.readPortfolio(in, marketData);
+                cashFlow = StateCodec.readCashFlow(in);
+                marketData.restore(StateCodec.readMarket(in));
+                portfolio.updateTotalValue();
+            }
+        }
+        
+        long lastCheckpoint = System.currentTimeMillis();
+        long daysThisRun = 0;
+        try {
+            while (day < totalDays) {
+                marketData.setRandomSource(new CounterRandom(seed, 0, day));
+                TreasuryLiquiditySimulator.simulateNextDay(marketData, portfolio, cashFlow, date, quiet);
+                date = date.plusDays(1);
+                day++;
+                daysThisRun++;
+                
+                boolean stopping = daysThisRun >= stopAfter;
+                if (stopping || System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMillis) {
+                    saveProjection(seed, totalDays, day, date, portfolio, cashFlow, marketData.snapshot());
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+                if (stopping && day < totalDays) return null;
+            }
+        } finally {
+            marketData.setRandomSource(null);
+        }
+        
+        store.delete();
+        return portfolio;
+    }
+    
+    private void saveProjection(long seed, int totalDays, int day, LocalDate date, TreasuryPortfolio portfolio, 
+                                CashFlow cashFlow, MarketSnapshot market) throws IOException {
+        store.save(PROJECTION, out -> {
+            out.writeLong(seed);
+            out.writeInt(totalDays);
+            out.writeInt(day);
+            StateCodec.writeDate(out, date);
+            StateCodec.writePortfolio(out, portfolio);
+            StateCodec.writeCashFlow(out, cashFlow);
+            StateCodec.writeMarket(out, market);
+        });
+    }
+    
+    // --simulate <paths> <checkpointFile> [days] [seed]
+    static void simulateFromCommandLine(String[] args) {
+        long paths = Long.parseLong(args[0]);
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        SimulationJob job = new RiskAnalysis(portfolio, marketData, 1).createJob(days, seed);
+        
+        try {
+            SimulationPartial result = new CheckpointedRun(Paths.get(args[1]), 10000).simulate(job, paths, 10000);
+            Map<String, Double> results = result.toResults();
+            DecimalFormat df = new DecimalFormat("#,##0.00");
+            System.out.println("\n===== LIQUIDITY SIMULATION (" + result.getCount() + " PATHS) =====");
+            System.out.println("  5th Percentile: " + df.format(results.get("PERCENTILE_5")));
+            System.out.println("  Average: " + df.format(results.get("MEAN")));
+            System.out.println("  95th Percentile: " + df.format(results.get("PERCENTILE_95")));
+            System.out.println("Seed: " + seed);
+        } catch (IOException e) {
+            System.out.println("Simulation failed: " + e.getMessage());
+        }
+    }
+    
+    // --project <days> <checkpointFile> [seed]
+    static void projectFromCommandLine(String[] args) {
+        int days = Integer.parseInt(args[0]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        
+        try {
+            TreasuryPortfolio result = new CheckpointedRun(Paths.get(args[1]), 10000)
+                .project(portfolio, TreasuryLiquiditySimulator.createDefaultCashFlow(), marketData, LocalDate.now(), days, seed);
+            result.displayPortfolio();
+            System.out.println("Seed: " + seed);
+        } catch (IOException e) {
+            System.out.println("Projection failed: " + e.getMessage());
+        }
+    }
+}
+
+// Portfolio and calendar rebuilt from the journal as of a given day
+class JournalState {
+    private TreasuryPortfolio portfolio;
+    private CashFlow cashFlow;
+    private LocalDate asOf;
+    private LocalDate lastDay;
+    private long entriesReplayed;
+    private long journalBytes;
+    
+    public JournalState(TreasuryPortfolio portfolio, CashFlow cashFlow, LocalDate asOf, LocalDate lastDay, 
+                        long entriesReplayed, long journalBytes) {
+        this.portfolio = portfolio;
+        this.cashFlow = cashFlow;
+        this.asOf = asOf;
+        this.lastDay = lastDay;
+        this.entriesReplayed = entriesReplayed;
+        this.journalBytes = journalBytes;
+    }
+    
+    public TreasuryPortfolio getPortfolio() {
+        return portfolio;
+    }
+    
+    public CashFlow getCashFlow() {
+        return cashFlow;
+    }
+    
+    public LocalDate getAsOf() {
+        return asOf;
+    }
+    
+    // The last simulated day the replayed records reach
+    public LocalDate getLastDay() {
+        return lastDay;
+    }
+    
+    public long getEntriesReplayed() {
+        return entriesReplayed;
+    }
+    
+    // Length of the journal up to the last complete record read
+    public long getJournalBytes() {
+        return journalBytes;
+    }
+}
+
+// Append-only binary journal of portfolio and calendar mutations.
+// Records are framed as [int length][byte type][payload]; appends only touch an in-memory buffer and a
+// background committer writes and forces whole batches, so many mutations share one fsync.
+class StateJournal implements Closeable {
+    static final byte BEGIN = 1;
+    static final byte ADD_ASSET = 2;
+    static final byte SET_AMOUNT = 3;
+    static final byte CASH_FLOW = 4;
+    static final byte ADD_EVENT = 5;
+    static final byte SETTLE_EVENTS = 6;
+    static final byte DAY = 7;
+    
+    private static final String SNAPSHOT_KIND = "JOURNAL_SNAPSHOT";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    
+    private Path path;
+    private FileChannel channel;
+    private int snapshotIntervalDays;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long appendedBytes;
+    private volatile long durableBytes;
+    private Object commitLock = new Object();
+    private ScheduledExecutorService committer;
+    private volatile IOException failure;
+    private LocalDate lastSnapshot;
+    
+    // Explicit reset: starts a fresh journal at path, discarding any previous one and its snapshots
+    public StateJournal(Path path, int snapshotIntervalDays, long commitIntervalMillis) throws IOException {
+        this(path, snapshotIntervalDays, commitIntervalMillis, reset(path), 0);
+    }
+    
+    private StateJournal(Path path, int snapshotIntervalDays, long commitIntervalMillis, 
+                         FileChannel channel, long startBytes) {
+        this.path = path;
+        this.snapshotIntervalDays = snapshotIntervalDays;
+        this.channel = channel;
+        this.appendedBytes = startBytes;
+        this.durableBytes = startBytes;
+        this.committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "treasury-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private static FileChannel reset(Path path) throws IOException {
+        for (Path snapshot : listSnapshots(path).values()) {
+            Files.deleteIfExists(snapshot);
+        }
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    
+    // Continue an existing journal after replaying it: a torn record at the tail is cut off and new records are appended
+    public static StateJournal resume(Path path, JournalState state, int snapshotIntervalDays, 
+                                      long commitIntervalMillis) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(state.getJournalBytes());
+            channel.position(state.getJournalBytes());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        StateJournal journal = new StateJournal(path, snapshotIntervalDays, commitIntervalMillis, channel, state.getJournalBytes());
+        TreeMap<LocalDate, Path> snapshots = listSnapshots(path);
+        journal.lastSnapshot = snapshots.isEmpty() ? state.getLastDay() : snapshots.lastKey();
+        state.getPortfolio().setJournal(journal);
+        state.getCashFlow().setJournal(journal);
+        return journal;
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    // Record the current state so the journal replays on its own, then capture every later mutation
+    public void attach(TreasuryPortfolio portfolio, CashFlow cashFlow, LocalDate date) {
+        synchronized (this) {
+            int start = startRecord(BEGIN, 40 + encodedLength(portfolio.getBaseCurrency()));
+            putString(portfolio.getBaseCurrency());
+            pending.putDouble(cashFlow.getYearlyRevenue());
+            pending.putDouble(cashFlow.getYearlyOperatingExpenses());
+            pending.putDouble(cashFlow.getYearlyCapEx());
+            pending.putLong(date.toEpochDay());
+            finishRecord(start);
+        }
+        for (Asset asset : portfolio.getAssets()) {
+            assetAdded(asset);
+        }
+        for (CashFlowEvent event : cashFlow.getScheduledCashFlows()) {
+            eventAdded(event);
+        }
+        lastSnapshot = date;
+        portfolio.setJournal(this);
+        cashFlow.setJournal(this);
+    }
+    
+    public synchronized void assetAdded(Asset asset) {
+        int start = startRecord(ADD_ASSET, 40 + encodedLength(asset.getName()) + encodedLength(asset.getType()) 
+                                           + encodedLength(asset.getCurrency()));
+        putString(asset.getName());
+        putString(asset.getType());
+        pending.putDouble(asset.getAmount());
+        putString(asset.getCurrency());
+        pending.putDouble(asset.getInterestRate());
+        pending.putLong(asset.getMaturityDate() == null ? Long.MIN_VALUE : asset.getMaturityDate().toEpochDay());
+        pending.putDouble(asset.getLiquidityRating());
+        finishRecord(start);
+    }
+    
+    public synchronized void amountSet(int index, double amount) {
+        int start = startRecord(SET_AMOUNT, 12);
+        pending.putInt(index);
+        pending.putDouble(amount);
+        finishRecord(start);
+    }
+    
+    // The description travels with the balance so the journal explains why cash moved
+    public synchronized void cashFlowApplied(int index, double newAmount, CashFlowEvent event) {
+        int start = startRecord(CASH_FLOW, 20 + encodedLength(event.getDescription()));
+        pending.putInt(index);
+        pending.putDouble(newAmount);
+        pending.putDouble(event.isInflow() ? event.getAmount() : -event.getAmount());
+        putString(event.getDescription());
+        finishRecord(start);
+    }
+    
+    public synchronized void eventAdded(CashFlowEvent event) {
+        int start = startRecord(ADD_EVENT, 38 + encodedLength(event.getDescription()));
+        putString(event.getDescription());
+        pending.putLong(event.getDate().toEpochDay());
+        pending.putDouble(event.getAmount());
+        pending.put((byte) (event.isInflow() ? 1 : 0));
+        pending.put((byte) (event.isRecurring() ? 1 : 0));
+        pending.putInt(event.getRecurringInterval());
+        pending.putInt(event.getTime() == null ? -1 : event.getTime().toSecondOfDay());
+        pending.putInt(event.getPriority());
+        finishRecord(start);
+    }
+    
+    public synchronized void eventsSettled(List<Integer> processedIndices) {
+        int start = startRecord(SETTLE_EVENTS, 4 + 4 * processedIndices.size());
+        pending.putInt(processedIndices.size());
+        for (int index : processedIndices) {
+            pending.putInt(index);
+        }
+        finishRecord(start);
+    }
+    
+    // Marks that the following records happen on date; snapshots are cut here so they hold a whole day
+    public void beginDay(LocalDate date, TreasuryPortfolio portfolio, CashFlow cashFlow) {
+        LocalDate previousDay = date.minusDays(1);
+        if (ChronoUnit.DAYS.between(lastSnapshot, previousDay) >= snapshotIntervalDays) {
+            try {
+                writeSnapshot(previousDay, portfolio, cashFlow);
+                lastSnapshot = previousDay;
+            } catch (IOException e) {
+                // A missing snapshot only makes replay longer; the journal itself is intact
+                failure = e;
+            }
+        }
+        synchronized (this) {
+            int start = startRecord(DAY, 8);
+            pending.putLong(date.toEpochDay());
+            finishRecord(start);
+        }
+    }
+    
+    private void writeSnapshot(LocalDate asOf, TreasuryPortfolio portfolio, CashFlow cashFlow) throws IOException {
+        sync();
+        long offset = durableBytes;
+        new CheckpointStore(snapshotPath(path, asOf)).save(SNAPSHOT_KIND, out -> {
+            out.writeLong(offset);
+            StateCodec.writeDate(out, asOf);
+            StateCodec.writePortfolio(out, portfolio);
+            StateCodec.writeCashFlow(out, cashFlow);
+        });
+    }
+    
+    private int startRecord(byte type, int payloadLength) {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+        int needed = 5 + payloadLength;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.putInt(0);
+        pending.put(type);
+        return start;
+    }
+    
+    private void finishRecord(int start) {
+        int length = pending.position() - start - 4;
+        pending.putInt(start, length);
+        appendedBytes += length + 4;
+    }
+    
+    private static int encodedLength(String value) {
+        return 2 + 3 * value.length();
+    }
+    
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        pending.putShort((short) bytes.length);
+        pending.put(bytes);
+    }
+    
+    // Group commit: a caller whose records were covered by a concurrent commit returns without its own fsync
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appendedBytes;
+        }
+        synchronized (commitLock) {
+            if (durableBytes >= target) return;
+            long end;
+            synchronized (this) {
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                end = appendedBytes;
+            }
+            writing.flip();
+            while (writing.hasRemaining()) {
+                channel.write(writing);
+            }
+            writing.clear();
+            channel.force(false);
+            durableBytes = end;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        committer.shutdown();
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+    
+    private static Path snapshotPath(Path journal, LocalDate asOf) {
+        return journal.resolveSibling(journal.getFileName() + "." + asOf.toEpochDay() + SNAPSHOT_SUFFIX);
+    }
+    
+    private static TreeMap<LocalDate, Path> listSnapshots(Path journal) throws IOException {
+        TreeMap<LocalDate, Path> snapshots = new TreeMap<>();
+        Path directory = journal.toAbsolutePath().getParent();
+        String prefix = journal.getFileName() + ".";
+        if (!Files.isDirectory(directory)) return snapshots;
+        
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String epochDay = name.substring(prefix.length(), name.length() - SNAPSHOT_SUFFIX.length());
+                try {
+                    snapshots.put(LocalDate.ofEpochDay(Long.parseLong(epochDay)), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return snapshots;
+    }
+    
+    // Rebuild the state at the end of asOf, starting from the newest snapshot at or before it; foreign assets are valued against marketData
+    public static JournalState replay(Path journal, LocalDate asOf, MarketData marketData) throws IOException {
+        String baseCurrency = null;
+        List<Asset> assets = new ArrayList<>();
+        CashFlow cashFlow = null;
+        LocalDate day = null;
+        long offset = 0;
+        
+        Map.Entry<LocalDate, Path> snapshot = listSnapshots(journal).floorEntry(asOf);
+        if (snapshot != null) {
+            try (DataInputStream in = new CheckpointStore(snapshot.getValue()).open(SNAPSHOT_KIND)) {
+                offset = in.readLong();
+                day = StateCodec.readDate(in);
+                TreasuryPortfolio portfolio = StateCodec.readPortfolio(in, marketData);
+                baseCurrency = portfolio.getBaseCurrency();
+                assets.addAll(portfolio.getAssets());
+                cashFlow = StateCodec.readCashFlow(in);
+            }
+        }
+        
+        long entries = 0;
+        long end = offset;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ)) {
+            in.position(offset);
+            boolean done = false;
+            while (!done && in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt(buffer.position());
+                    if (buffer.remaining() < 4 + length) {
+                        if (length + 4 > buffer.capacity()) {
+                            throw new IOException("Corrupt journal record at " + (in.position() - buffer.remaining()));
+                        }
+                        break;
+                    }
+                    buffer.getInt();
+                    byte type = buffer.get();
+                    end += 4 + length;
+                    
+                    if (type == BEGIN) {
+                        baseCurrency = getString(buffer);
+                        cashFlow = new CashFlow(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                        day = LocalDate.ofEpochDay(buffer.getLong());
+                        assets.clear();
+                        if (day.isAfter(asOf)) {
+                            throw new IllegalArgumentException("Journal starts at " + day + ", after " + asOf);
+                        }
+                    } else if (type == ADD_ASSET) {
+                        String name = getString(buffer);
+                        String assetType = getString(buffer);
+                        double amount = buffer.getDouble();
+                        String currency = getString(buffer);
+                        double interestRate = buffer.getDouble();
+                        long maturity = buffer.getLong();
+                        assets.add(new Asset(name, assetType, amount, currency, interestRate, 
+                                             maturity == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(maturity), 
+                                             buffer.getDouble()));
+                    } else if (type == SET_AMOUNT) {
+                        assets.get(buffer.getInt()).setAmount(buffer.getDouble());
+                    } else if (type == CASH_FLOW) {
+                        assets.get(buffer.getInt()).setAmount(buffer.getDouble());
+                        buffer.position(buffer.position() + 8);
+                        buffer.position(buffer.position() + 2 + (buffer.getShort(buffer.position()) & 0xFFFF));
+                    } else if (type == ADD_EVENT) {
+                        String description = getString(buffer);
+                        LocalDate date = LocalDate.ofEpochDay(buffer.getLong());
+                        double amount = buffer.getDouble();
+                        boolean inflow = buffer.get() != 0;
+                        boolean recurring = buffer.get() != 0;
+                        int interval = buffer.getInt();
+                        int secondOfDay = buffer.getInt();
+                        cashFlow.addCashFlowEvent(new CashFlowEvent(description, date, amount, inflow, recurring, interval, 
+                            secondOfDay < 0 ? null : LocalTime.ofSecondOfDay(secondOfDay), buffer.getInt()));
+                    } else if (type == SETTLE_EVENTS) {
+                        int count = buffer.getInt();
+                        List<Integer> processed = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            processed.add(buffer.getInt());
+                        }
+                        cashFlow.settleEvents(processed, Collections.emptyList());
+                    } else if (type == DAY) {
+                        LocalDate next = LocalDate.ofEpochDay(buffer.getLong());
+                        if (next.isAfter(asOf)) {
+                            done = true;
+                            break;
+                        }
+                        day = next;
+                    } else {
+                        throw new IOException("Unknown journal record type " + type);
+                    }
+                    entries++;
+                }
+                buffer.compact();
+            }
+        }
+        
+        // A torn record at the tail (crash mid-write) is simply not replayed
+        if (baseCurrency == null) {
+            throw new IOException("Journal has no starting state: " + journal);
+        }
+        return new JournalState(TreasuryPortfolio.restore(baseCurrency, assets, marketData), cashFlow, asOf, day, entries, end);
+    }
+    
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // --replay <journalFile> <yyyy-mm-dd>
+    static void replayFromCommandLine(String[] args) {
+        try {
+            long start = System.nanoTime();
+            JournalState state = replay(Paths.get(args[0]), LocalDate.parse(args[1]), new MarketData());
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            
+            System.out.println("\n===== JOURNAL REPLAY AS OF " + state.getAsOf() + " =====");
+            System.out.println("Entries replayed: " + state.getEntriesReplayed() + " in " + elapsedMicros + " us");
+            state.getPortfolio().displayPortfolio();
+            System.out.println("Scheduled cash flows: " + state.getCashFlow().getScheduledCashFlows().size());
+        } catch (IOException | IllegalArgumentException | java.time.format.DateTimeParseException e) {
+            System.out.println("Replay failed: " + e.getMessage());
+        }
+    }
+}
+
+// One point in the backtest parameter grid
+class BacktestConfig {
+    private double riskTolerance;
+    private double minCashMultiplier;
+    private double maxCashMultiplier;
+    
+    public BacktestConfig(double riskTolerance, double minCashMultiplier, double maxCashMultiplier) {
+        this.riskTolerance = riskTolerance;
+        this.minCashMultiplier = minCashMultiplier;
+        this.maxCashMultiplier = maxCashMultiplier;
+    }
+    
+    public double getRiskTolerance() {
+        return riskTolerance;
+    }
+    
+    public double getMinCashMultiplier() {
+        return minCashMultiplier;
+    }
+    
+    public double getMaxCashMultiplier() {
+        return maxCashMultiplier;
+    }
+    
+    @Override
+    public String toString() {
+        return "risk=" + riskTolerance + " band=" + minCashMultiplier + "-" + maxCashMultiplier;
+    }
+}
+
+// Aggregate performance of one configuration over all rolling windows
+class BacktestResult {
+    private BacktestConfig config;
+    private int windows;
+    private double averageYieldPickup;
+    private double worstYieldPickup;
+    private double averageYieldPickupBps;
+    private double averageShortfallDays;
+    private int windowsWithShortfall;
+    private double averageTurnover;
+    
+    public BacktestResult(BacktestConfig config, int windows, double averageYieldPickup, double worstYieldPickup, 
+                          double averageYieldPickupBps, double averageShortfallDays, int windowsWithShortfall, 
+                          double averageTurnover) {
+        this.config = config;
+        this.windows = windows;
+        this.averageYieldPickup = averageYieldPickup;
+        this.worstYieldPickup = worstYieldPickup;
+        this.averageYieldPickupBps = averageYieldPickupBps;
+        this.averageShortfallDays = averageShortfallDays;
+        this.windowsWithShortfall = windowsWithShortfall;
+        this.averageTurnover = averageTurnover;
+    }
+    
+    public BacktestConfig getConfig() {
+        return config;
+    }
+    
+    public int getWindows() {
+        return windows;
+    }
+    
+    // Interest earned over the window beyond leaving the portfolio untouched
+    public double getAverageYieldPickup() {
+        return averageYieldPickup;
+    }
+    
+    public double getWorstYieldPickup() {
+        return worstYieldPickup;
+    }
+    
+    // Yield pickup annualized against average portfolio value
+    public double getAverageYieldPickupBps() {
+        return averageYieldPickupBps;
+    }
+    
+    // Days per window ending with cash below the strategy's minimum cash level
+    public double getAverageShortfallDays() {
+        return averageShortfallDays;
+    }
+    
+    public int getWindowsWithShortfall() {
+        return windowsWithShortfall;
+    }
+    
+    // Cash moved between cash and investments, as a multiple of average portfolio value
+    public double getAverageTurnover() {
+        return averageTurnover;
+    }
+}
+
+// Replays market and cash-flow history through the cash band rules and investment allocations
+// over rolling start dates, one portfolio copy per window
+class StrategyBacktester {
+    // Investment buckets from InvestmentStrategy and the curve tenor each one earns
+    static final String[] BUCKETS = {"SHORT_TERM_BONDS", "MEDIUM_TERM_BONDS", "LONG_TERM_BONDS", "ALTERNATIVES"};
+    static final String[] BUCKET_TENORS = {"3MONTH", "6MONTH", "1YEAR", "1YEAR"};
+    
+    private TreasuryPortfolio basePortfolio;
+    private List<MarketSnapshot> history;
+    private double[] dailyNetFlows;
+    
+    public StrategyBacktester(TreasuryPortfolio basePortfolio, List<MarketSnapshot> history, double[] dailyNetFlows) {
+        if (history.size() != dailyNetFlows.length) {
+            throw new IllegalArgumentException("Market history and cash-flow history cover different periods");
+        }
+        if (baseCashIndex(basePortfolio) < 0) {
+            throw new IllegalArgumentException("Portfolio holds no " + basePortfolio.getBaseCurrency() + 
+                                               " cash for the strategies to move");
+        }
+        this.basePortfolio = basePortfolio;
+        this.history = history;
+        this.dailyNetFlows = dailyNetFlows;
+    }
+    
+    public List<BacktestResult> run(List<BacktestConfig> configs, int windowDays, int stepDays) {
+        if (windowDays < 1 || stepDays < 1) {
+            throw new IllegalArgumentException("Window and step must be at least one day");
+        }
+        if (configs.isEmpty()) {
+            throw new IllegalArgumentException("No configurations to backtest");
+        }
+        List<Integer> starts = new ArrayList<>();
+        for (int start = 0; start + windowDays <= history.size(); start += stepDays) {
+            starts.add(start);
+        }
+        if (starts.isEmpty()) {
+            throw new IllegalArgumentException("History is shorter than one " + windowDays + "-day window");
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            // The do-nothing baseline depends only on the window, so it is shared by every configuration
+            List<Callable<double[]>> baselineTasks = new ArrayList<>();
+            for (int start : starts) {
+                baselineTasks.add(() -> runWindow(null, start, windowDays));
+            }
+            List<double[]> baselines = new ArrayList<>();
+            for (Future<double[]> future : executor.invokeAll(baselineTasks)) {
+                baselines.add(future.get());
+            }
+            
+            List<Callable<double[]>> tasks = new ArrayList<>();
+            for (BacktestConfig config : configs) {
+                for (int start : starts) {
+                    tasks.add(() -> runWindow(config, start, windowDays));
+                }
+            }
+            List<Future<double[]>> futures = executor.invokeAll(tasks);
+            
+            List<BacktestResult> results = new ArrayList<>();
+            for (int c = 0; c < configs.size(); c++) {
+                double pickupSum = 0;
+                double worstPickup = Double.MAX_VALUE;
+                double bpsSum = 0;
+                double shortfallSum = 0;
+                int windowsWithShortfall = 0;
+                double turnoverSum = 0;
+                
+                for (int w = 0; w < starts.size(); w++) {
+                    double[] window = futures.get(c * starts.size() + w).get();
+                    double pickup = window[0] - baselines.get(w)[0];
+                    pickupSum += pickup;
+                    worstPickup = Math.min(worstPickup, pickup);
+                    bpsSum += pickup / window[3] * (365.0 / windowDays) * 10000;
+                    shortfallSum += window[1];
+                    if (window[1] > 0) windowsWithShortfall++;
+                    turnoverSum += window[2] / window[3];
+                }
+                
+                int n = starts.size();
+                results.add(new BacktestResult(configs.get(c), n, pickupSum / n, worstPickup, bpsSum / n, 
+                                               shortfallSum / n, windowsWithShortfall, turnoverSum / n));
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Backtest interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Backtest window failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // Returns {interest earned, shortfall days, turnover, average total value}; a null config leaves the portfolio untouched
+    private double[] runWindow(BacktestConfig config, int start, int windowDays) {
+        TreasuryPortfolio portfolio = basePortfolio.fork();
+        MarketData marketData = new MarketData();
+        portfolio.setMarketData(marketData);
+        List<Asset> assets = portfolio.getAssets();
+        Asset cash = portfolio.mutableAsset(baseCashIndex(portfolio));
+        
+        CashOptimizationStrategy cashStrategy = null;
+        InvestmentStrategy investmentStrategy = null;
+        Asset[] buckets = new Asset[BUCKETS.length];
+        if (config != null) {
+            cashStrategy = new CashOptimizationStrategy(portfolio, marketData, 
+                                                        config.getMinCashMultiplier(), config.getMaxCashMultiplier());
+            investmentStrategy = new InvestmentStrategy(portfolio, marketData, config.getRiskTolerance());
+            for (int b = 0; b < BUCKETS.length; b++) {
+                buckets[b] = new Asset("Backtest " + BUCKETS[b], "BONDS", 0.0, portfolio.getBaseCurrency(), 
+                                       0.0, null, 0.7);
+                portfolio.addAsset(buckets[b]);
+            }
+        }
+        
+        double interest = 0;
+        double shortfallDays = 0;
+        double turnover = 0;
+        double valueSum = 0;
+        
+        for (int day = start; day < start + windowDays; day++) {
+            marketData.restore(history.get(day));
+            
+            if (config != null) {
+                // Investment buckets float at today's tenor rates
+                for (int b = 0; b < buckets.length; b++) {
+                    buckets[b].setInterestRate(marketData.getInterestRate(BUCKET_TENORS[b]));
+                }
+                turnover += rebalance(cashStrategy, investmentStrategy, cash, buckets);
+            }
+            
+            cash.setAmount(cash.getAmount() + dailyNetFlows[day]);
+            for (int i = 0; i < assets.size(); i++) {
+                if (assets.get(i).getInterestRate() > 0) {
+                    Asset asset = portfolio.mutableAsset(i);
+                    double dailyInterest = asset.getAmount() * (asset.getInterestRate() / 100 / 365);
+                    asset.setAmount(asset.getAmount() + dailyInterest);
+                    interest += dailyInterest;
+                }
+            }
+            portfolio.updateTotalValue();
+            valueSum += portfolio.getTotalValue();
+            
+            if (config != null && cash.getAmount() < cashStrategy.calculateMinimumCash()) {
+                shortfallDays++;
+            }
+        }
+        
+        return new double[] { interest, shortfallDays, turnover, valueSum / windowDays };
+    }
+    
+    // Position of the first base-currency cash asset, or -1 when there is none
+    private static int baseCashIndex(TreasuryPortfolio portfolio) {
+        List<Asset> assets = portfolio.getAssets();
+        for (int i = 0; i < assets.size(); i++) {
+            Asset asset = assets.get(i);
+            if (asset.getType().equals("CASH") && asset.getCurrency().equals(portfolio.getBaseCurrency())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    // Bring cash back inside the band; surplus is split across buckets by the investment allocation
+    private static double rebalance(CashOptimizationStrategy cashStrategy, InvestmentStrategy investmentStrategy, 
+                                    Asset cash, Asset[] buckets) {
+        CashRecommendation recommendation = cashStrategy.recommendCashAction();
+        
+        if (recommendation.getAction().equals("DECREASE_CASH")) {
+            Map<String, Double> allocation = investmentStrategy.generateOptimalAllocation();
+            double investedShare = 1 - allocation.get("CASH");
+            // An all-cash allocation has nowhere to put the surplus, so it stays in cash
+            if (investedShare <= 1e-9) return 0;
+            double amount = recommendation.getAmount();
+            for (int b = 0; b < buckets.length; b++) {
+                Asset bucket = buckets[b];
+                bucket.setAmount(bucket.getAmount() + amount * allocation.get(BUCKETS[b]) / investedShare);
+            }
+            cash.setAmount(cash.getAmount() - amount);
+            return amount;
+        }
+        
+        if (recommendation.getAction().equals("INCREASE_CASH")) {
+            double invested = 0;
+            for (Asset bucket : buckets) {
+                invested += bucket.getAmount();
+            }
+            if (invested <= 0) return 0;
+            
+            // Sell buckets pro rata; only what the buckets hold can be raised
+            double raised = Math.min(recommendation.getAmount(), invested);
+            for (Asset bucket : buckets) {
+                bucket.setAmount(bucket.getAmount() * (1 - raised / invested));
+            }
+            cash.setAmount(cash.getAmount() + raised);
+            return raised;
+        }
+        return 0;
+    }
+    
+    // Risk tolerance x minimum band x maximum band, centred on the production settings
+    static List<BacktestConfig> defaultGrid() {
+        List<BacktestConfig> configs = new ArrayList<>();
+        for (double riskTolerance : new double[] {0.2, 0.5, 0.8}) {
+            for (double minMultiplier : new double[] {0.10, 0.15, 0.20}) {
+                for (double maxMultiplier : new double[] {0.25, 0.30, 0.40}) {
+                    configs.add(new BacktestConfig(riskTolerance, minMultiplier, maxMultiplier));
+                }
+            }
+        }
+        return configs;
+    }
+    
+    // Daily snapshots from the existing market model; day d draws from the counter stream (seed, 0, d)
+    static List<MarketSnapshot> syntheticMarketHistory(int days, long seed, String homeCurrency) {
+        MarketData marketData = new MarketData();
+        CounterRandom rand = new CounterRandom(seed, 0, 0);
+        marketData.setRandomSource(rand);
+        List<MarketSnapshot> history = new ArrayList<>(days);
+        for (int day = 0; day < days; day++) {
+            rand.seek(0, day);
+            marketData.updateMarketData(homeCurrency);
+            history.add(marketData.snapshot());
+        }
+        return history;
+    }
+    
+    // Scheduled flows plus the RiskAnalysis daily revenue/expense model, drawn as path 0 of the Monte Carlo streams
+    static double[] syntheticNetFlows(CashFlow cashFlow, double totalValue, LocalDate startDate, int days, long seed) {
+        double[] netFlows = cashFlow.projectDailyNetFlows(startDate, days);
+        for (int day = 0; day < days; day++) {
+            double dailyExpense = totalValue * RiskAnalysis.EXPENSE_RATE 
+                * (1 + CounterRandom.gaussian(seed, 0, day, RiskAnalysis.EXPENSE_SHOCK) * RiskAnalysis.EXPENSE_VOLATILITY);
+            double dailyRevenue = totalValue * RiskAnalysis.REVENUE_RATE 
+                * (1 + CounterRandom.gaussian(seed, 0, day, RiskAnalysis.REVENUE_SHOCK) * RiskAnalysis.REVENUE_VOLATILITY);
+            netFlows[day] += dailyRevenue - dailyExpense;
+        }
+        return netFlows;
+    }
+    
+    public static void displayResults(List<BacktestResult> results, int windowDays) {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        System.out.println("\n===== STRATEGY BACKTEST (" + results.get(0).getWindows() + " WINDOWS x " + windowDays + " DAYS) =====");
+        System.out.println(String.format("%-28s %18s %10s %14s %10s", "CONFIGURATION", "YIELD PICKUP", "BPS P.A.", "SHORTFALL DAYS", "TURNOVER"));
+        for (BacktestResult result : results) {
+            System.out.println(String.format("%-28s %18s %10.1f %14.2f %10.2f", result.getConfig(), 
+                                             df.format(result.getAverageYieldPickup()), result.getAverageYieldPickupBps(), 
+                                             result.getAverageShortfallDays(), result.getAverageTurnover()));
+        }
+    }
+    
+    // --backtest [historyDays] [windowDays] [stepDays] [seed]
+    static void runFromCommandLine(String[] args) {
+        int historyDays = args.length > 0 ? Integer.parseInt(args[0]) : 3650;
+        int windowDays = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        int stepDays = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, new MarketData());
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        if (historyDays < 1) {
+            System.out.println("Backtest failed: history must cover at least one day");
+            return;
+        }
+        LocalDate startDate = LocalDate.now().minusDays(historyDays);
+        
+        long start = System.currentTimeMillis();
+        List<BacktestResult> results;
+        try {
+            StrategyBacktester backtester = new StrategyBacktester(portfolio, syntheticMarketHistory(historyDays, seed, portfolio.getBaseCurrency()), 
+                syntheticNetFlows(TreasuryLiquiditySimulator.createDefaultCashFlow(), portfolio.getTotalValue(), startDate, historyDays, seed));
+            results = backtester.run(defaultGrid(), windowDays, stepDays);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.out.println("Backtest failed: " + e.getMessage());
+            return;
+        }
+        displayResults(results, windowDays);
+        System.out.println("Completed in " + (System.currentTimeMillis() - start) + " ms (seed " + seed + ")");
+    }
+}
+
+// Scenario-major primitive buffers of market states produced by MarketFactorModel.generate
+class MarketScenarioSet {
+    private String[] tenors;
+    private String[] pairs;
+    private int count;
+    private double[] rates;
+    private double[] fxRates;
+    private double[] liquidity;
+    
+    public MarketScenarioSet(String[] tenors, String[] pairs, int count) {
+        this.tenors = tenors;
+        this.pairs = pairs;
+        this.count = count;
+        this.rates = new double[count * tenors.length];
+        this.fxRates = new double[count * pairs.length];
+        this.liquidity = new double[count];
+    }
+    
+    public String[] getTenors() {
+        return tenors;
+    }
+    
+    public String[] getPairs() {
+        return pairs;
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    // Row s holds scenario s's rate for each tenor, in getTenors() order
+    public double[] getRates() {
+        return rates;
+    }
+    
+    // Row s holds scenario s's rate for each pair, in getPairs() order
+    public double[] getFxRates() {
+        return fxRates;
+    }
+    
+    public double[] getLiquidity() {
+        return liquidity;
+    }
+    
+    public double getRate(int scenario, int tenor) {
+        return rates[scenario * tenors.length + tenor];
+    }
+    
+    public double getFxRate(int scenario, int pair) {
+        return fxRates[scenario * pairs.length + pair];
+    }
+    
+    public double getLiquidity(int scenario) {
+        return liquidity[scenario];
+    }
+}
+
+// Correlated factor model for market moves: level, slope and curvature of the curve (Nelson-Siegel loadings),
+// a common FX factor for the home currency and the market liquidity factor. The covariance is decomposed once (Cholesky) and
+// every draw is L * z for independent normals z.
+class MarketFactorModel {
+    static final int LEVEL = 0;
+    static final int SLOPE = 1;
+    static final int CURVATURE = 2;
+    static final int FX = 3;
+    static final int LIQUIDITY = 4;
+    static final int FACTORS = 5;
+    
+    static final String[] TENORS = {"OVERNIGHT", "1MONTH", "3MONTH", "6MONTH", "1YEAR"};
+    static final double[] TENOR_YEARS = {1 / 365.0, 1 / 12.0, 0.25, 0.5, 1.0};
+    
+    // Nelson-Siegel decay: slope and curvature loadings peak around this maturity
+    private static final double DECAY_YEARS = 0.5;
+    private static final int CHUNK = 1 << 16;
+    
+    private double[] choleskyFactor;  // lower triangle of the daily covariance, row-major FACTORS x FACTORS
+    private double idiosyncraticFxVolatility;
+    
+    // Daily volatilities: rate factors in percentage points, FX as log return, liquidity in index points
+    public MarketFactorModel(double[] dailyVolatilities, double[][] correlation, double idiosyncraticFxVolatility) {
+        double[][] covariance = new double[FACTORS][FACTORS];
+        for (int i = 0; i < FACTORS; i++) {
+            for (int j = 0; j < FACTORS; j++) {
+                covariance[i][j] = correlation[i][j] * dailyVolatilities[i] * dailyVolatilities[j];
+            }
+        }
+        this.choleskyFactor = cholesky(covariance);
+        this.idiosyncraticFxVolatility = idiosyncraticFxVolatility;
+    }
+    
+    // Rates up with a flattening curve, the home currency weakening alongside higher rates, liquidity drying up as it weakens
+    static MarketFactorModel standard() {
+        double[] volatilities = {0.05, 0.04, 0.03, 0.006, 0.02};
+        double[][] correlation = {
+            //  LEVEL  SLOPE  CURV    FX    LIQ
+            {  1.0,  -0.3,   0.1,   0.3,  -0.3 },
+            { -0.3,   1.0,   0.1,  -0.1,   0.1 },
+            {  0.1,   0.1,   1.0,   0.0,   0.0 },
+            {  0.3,  -0.1,   0.0,   1.0,  -0.5 },
+            { -0.3,   0.1,   0.0,  -0.5,   1.0 }
+        };
+        return new MarketFactorModel(volatilities, correlation, 0.002);
+    }
+    
+    static double[] cholesky(double[][] matrix) {
+        int n = matrix.length;
+        double[] lower = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = matrix[i][j];
+                for (int k = 0; k < j; k++) {
+                    sum -= lower[i * n + k] * lower[j * n + k];
+                }
+                if (i == j) {
+                    if (sum <= 0) {
+                        throw new IllegalArgumentException("Factor covariance is not positive definite");
+                    }
+                    lower[i * n + i] = Math.sqrt(sum);
+                } else {
+                    lower[i * n + j] = sum / lower[j * n + j];
+                }
+            }
+        }
+        return lower;
+    }
+    
+    // Loading of a rate factor on a maturity: level moves everything, slope the short end, curvature the belly
+    static double rateLoading(int factor, double years) {
+        if (factor == LEVEL) return 1.0;
+        double x = Math.max(years, 1e-6) / DECAY_YEARS;
+        double slope = (1 - Math.exp(-x)) / x;
+        return factor == SLOPE ? slope : slope - Math.exp(-x);
+    }
+    
+    static double tenorYears(String tenor) {
+        for (int t = 0; t < TENORS.length; t++) {
+            if (TENORS[t].equals(tenor)) return TENOR_YEARS[t];
+        }
+        return TENOR_YEARS[TENOR_YEARS.length - 1];
+    }
+    
+    // Index into tenors of the quoted maturity closest to years
+    static int nearestTenor(String[] tenors, double years) {
+        int best = 0;
+        for (int t = 1; t < tenors.length; t++) {
+            if (Math.abs(tenorYears(tenors[t]) - years) < Math.abs(tenorYears(tenors[best]) - years)) {
+                best = t;
+            }
+        }
+        return best;
+    }
+    
+    // Pairs quoted in the home currency share the FX factor; quotes with it as the base move the other way
+    static double fxLoading(String pair, String homeCurrency) {
+        if (pair.endsWith("/" + homeCurrency)) return 1.0;
+        if (pair.startsWith(homeCurrency + "/")) return -1.0;
+        return 0.0;
+    }
+    
+    // Correlated factor shocks for one period of the given length, written into factors
+    private void drawFactors(RandomGenerator rand, double scale, double[] factors) {
+        double z0 = rand.nextGaussian(), z1 = rand.nextGaussian(), z2 = rand.nextGaussian();
+        double z3 = rand.nextGaussian(), z4 = rand.nextGaussian();
+        double[] l = choleskyFactor;
+        factors[0] = scale * l[0] * z0;
+        factors[1] = scale * (l[5] * z0 + l[6] * z1);
+        factors[2] = scale * (l[10] * z0 + l[11] * z1 + l[12] * z2);
+        factors[3] = scale * (l[15] * z0 + l[16] * z1 + l[17] * z2 + l[18] * z3);
+        factors[4] = scale * (l[20] * z0 + l[21] * z1 + l[22] * z2 + l[23] * z3 + l[24] * z4);
+    }
+    
+    // Next day's market from previous, with the FX factor on homeCurrency
+    public MarketSnapshot evolve(MarketSnapshot previous, RandomGenerator rand, String homeCurrency) {
+        double[] factors = new double[FACTORS];
+        drawFactors(rand, 1.0, factors);
+        
+        Map<String, Double> interestRates = new HashMap<>();
+        for (Map.Entry<String, Double> entry : previous.getInterestRates().entrySet()) {
+            double years = tenorYears(entry.getKey());
+            double change = factors[LEVEL] + rateLoading(SLOPE, years) * factors[SLOPE] 
+                          + rateLoading(CURVATURE, years) * factors[CURVATURE];
+            interestRates.put(entry.getKey(), Math.max(0, entry.getValue() + change));
+        }
+        
+        // Pairs take their idiosyncratic draws in sorted order, as in generate; hash order depends on how the
+        // snapshot's map was filled, so a market restored from a checkpoint would otherwise move differently
+        Map<String, Double> currencyRates = new HashMap<>();
+        for (Map.Entry<String, Double> entry : new TreeMap<>(previous.getCurrencyRates()).entrySet()) {
+            double logReturn = fxLoading(entry.getKey(), homeCurrency) * factors[FX] + rand.nextGaussian() * idiosyncraticFxVolatility;
+            currencyRates.put(entry.getKey(), entry.getValue() * Math.exp(logReturn));
+        }
+        
+        Map<String, Double> liquidityIndex = new HashMap<>(previous.getLiquidityIndices());
+        double liquidity = previous.getLiquidityIndex() + factors[LIQUIDITY];
+        liquidityIndex.put("MARKET_LIQUIDITY", Math.min(1.0, Math.max(0.5, liquidity)));
+        
+        return new MarketSnapshot(interestRates, currencyRates, liquidityIndex, 
+                                  previous.getDate().plusDays(1), previous.getVersion() + 1);
+    }
+    
+    // Market states horizonDays after start, one independent scenario per row. Scenario s draws from the
+    // counter stream (seed, s), so the buffers depend only on seed, not on how chunks are spread over threads.
+    public MarketScenarioSet generate(MarketSnapshot start, int scenarios, int horizonDays, long seed, String homeCurrency) {
+        return generate(start, scenarios, horizonDays, seed, homeCurrency, new AtomicLong());
+    }
+    
+    // As above, adding each finished chunk to progress; interrupting the caller cancels the remaining chunks
+    public MarketScenarioSet generate(MarketSnapshot start, int scenarios, int horizonDays, long seed, String homeCurrency, 
+                                      AtomicLong progress) {
+        if (horizonDays < 1 || scenarios < 1) {
+            throw new IllegalArgumentException("Horizon and scenario count must be positive");
+        }
+        String[] tenors = new TreeSet<>(start.getInterestRates().keySet()).toArray(new String[0]);
+        String[] pairs = new TreeSet<>(start.getCurrencyRates().keySet()).toArray(new String[0]);
+        MarketScenarioSet scenarioSet = new MarketScenarioSet(tenors, pairs, scenarios);
+        
+        double[] baseRates = new double[tenors.length];
+        double[][] loadings = new double[tenors.length][3];
+        for (int t = 0; t < tenors.length; t++) {
+            baseRates[t] = start.getInterestRate(tenors[t]);
+            for (int f = LEVEL; f <= CURVATURE; f++) {
+                loadings[t][f] = rateLoading(f, tenorYears(tenors[t]));
+            }
+        }
+        double[] baseFx = new double[pairs.length];
+        double[] fxLoadings = new double[pairs.length];
+        for (int p = 0; p < pairs.length; p++) {
+            baseFx[p] = start.getCurrencyRate(pairs[p]);
+            fxLoadings[p] = fxLoading(pairs[p], homeCurrency);
+        }
+        double baseLiquidity = start.getLiquidityIndex();
+        double scale = Math.sqrt(horizonDays);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int chunkStart = 0; chunkStart < scenarios; chunkStart += CHUNK) {
+                int from = chunkStart;
+                int to = Math.min(scenarios, chunkStart + CHUNK);
+                tasks.add(() -> {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("Scenario generation cancelled");
+                    }
+                    CounterRandom rand = new CounterRandom(seed, from, 0);
+                    fill(scenarioSet, from, to, rand, scale, baseRates, loadings, baseFx, fxLoadings, baseLiquidity);
+                    progress.addAndGet(to - from);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Scenario generation cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new IllegalStateException("Scenario generation failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return scenarioSet;
+    }
+    
+    private void fill(MarketScenarioSet scenarioSet, int from, int to, CounterRandom rand, double scale, double[] baseRates, 
+                      double[][] loadings, double[] baseFx, double[] fxLoadings, double baseLiquidity) {
+        double[] rates = scenarioSet.getRates();
+        double[] fxRates = scenarioSet.getFxRates();
+        double[] liquidity = scenarioSet.getLiquidity();
+        double fxScale = scale * idiosyncraticFxVolatility;
+        double[] factors = new double[FACTORS];
+        int tenorCount = baseRates.length;
+        int pairCount = baseFx.length;
+        
+        for (int s = from; s < to; s++) {
+            rand.seek(s, 0);
+            drawFactors(rand, scale, factors);
+            for (int t = 0; t < tenorCount; t++) {
+                double[] loading = loadings[t];
+                double change = loading[LEVEL] * factors[LEVEL] + loading[SLOPE] * factors[SLOPE] 
+                              + loading[CURVATURE] * factors[CURVATURE];
+                rates[s * tenorCount + t] = Math.max(0, baseRates[t] + change);
+            }
+            for (int p = 0; p < pairCount; p++) {
+                double logReturn = fxLoadings[p] * factors[FX] + rand.nextGaussian() * fxScale;
+                fxRates[s * pairCount + p] = baseFx[p] * Math.exp(logReturn);
+            }
+            liquidity[s] = Math.min(1.0, Math.max(0.5, baseLiquidity + factors[LIQUIDITY]));
+        }
+    }
+}
+
+// Counter-based generator in the Philox4x32-10 family: the output for (key, path, day, variable) is computed
+// directly from those numbers, so any path or range of paths can be generated on any thread in any order
+class CounterRandom implements RandomGenerator {
+    private static final long M0 = 0xD2511F53L;
+    private static final long M1 = 0xCD9E8D57L;
+    private static final int W0 = 0x9E3779B9;
+    private static final int W1 = 0xBB67AE85;
+    private static final double TWO_PI = 2 * Math.PI;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+    
+    private long key;
+    private long path;
+    private int day;
+    private int variable;
+    
+    // Sequential view of the (key, path, day) stream, for consumers that just want "the next number"
+    public CounterRandom(long key, long path, int day) {
+        this.key = key;
+        this.path = path;
+        this.day = day;
+    }
+    
+    @Override
+    public long nextLong() {
+        return bits(key, path, day, variable++);
+    }
+    
+    @Override
+    public double nextGaussian() {
+        return gaussian(key, path, day, variable++);
+    }
+    
+    // Reposition the sequential view at the start of another (path, day) stream
+    void seek(long path, int day) {
+        this.path = path;
+        this.day = day;
+        this.variable = 0;
+    }
+    
+    // The 128 output bits of one Philox block
+    private static final class Block {
+        final long high;
+        final long low;
+        
+        Block(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+    }
+    
+    // Philox4x32-10 for the counter (path, day, variable) under key; small enough to inline, so the Block never reaches the heap
+    private static Block block(long key, long path, int day, int variable) {
+        int c0 = (int) path, c1 = (int) (path >>> 32), c2 = day, c3 = variable;
+        int k0 = (int) key, k1 = (int) (key >>> 32);
+        for (int round = 0; round < 10; round++) {
+            long p0 = M0 * (c0 & 0xFFFFFFFFL);
+            long p1 = M1 * (c2 & 0xFFFFFFFFL);
+            int n0 = (int) (p1 >>> 32) ^ c1 ^ k0;
+            int n2 = (int) (p0 >>> 32) ^ c3 ^ k1;
+            c1 = (int) p1;
+            c3 = (int) p0;
+            c0 = n0;
+            c2 = n2;
+            k0 += W0;
+            k1 += W1;
+        }
+        return new Block(((long) c0 << 32) | (c1 & 0xFFFFFFFFL), ((long) c2 << 32) | (c3 & 0xFFFFFFFFL));
+    }
+    
+    // First 64 bits of the Philox block for this counter
+    static long bits(long key, long path, int day, int variable) {
+        return block(key, path, day, variable).high;
+    }
+    
+    public static double uniform(long key, long path, int day, int variable) {
+        return (bits(key, path, day, variable) >>> 11) * DOUBLE_UNIT;
+    }
+    
+    // Standard normal via Box-Muller on the two 64-bit halves of one Philox block
+    public static double gaussian(long key, long path, int day, int variable) {
+        Block block = block(key, path, day, variable);
+        long high = block.high;
+        long low = block.low;
+        
+        // u1 in (0, 1] keeps the logarithm finite
+        double u1 = ((high >>> 11) + 1) * DOUBLE_UNIT;
+        double u2 = (low >>> 11) * DOUBLE_UNIT;
+        return Math.sqrt(-2 * Math.log(u1)) * Math.cos(TWO_PI * u2);
+    }
+}
+
+// Day-by-day account of one regenerated Monte Carlo path
+class PathExplanation {
+    private long seed;
+    private long path;
+    private double startCash;
+    private double reserveRequirement;
+    private double[] cash;
+    private double[] revenue;
+    private double[] expense;
+    private double[] marketEffect;
+    private double[] liquidity;
+    
+    public PathExplanation(long seed, long path, double startCash, double reserveRequirement, double[] cash, 
+                           double[] revenue, double[] expense, double[] marketEffect, double[] liquidity) {
+        this.seed = seed;
+        this.path = path;
+        this.startCash = startCash;
+        this.reserveRequirement = reserveRequirement;
+        this.cash = cash;
+        this.revenue = revenue;
+        this.expense = expense;
+        this.marketEffect = marketEffect;
+        this.liquidity = liquidity;
+    }
+    
+    public long getPath() {
+        return path;
+    }
+    
+    public double getEndCash() {
+        return cash.length == 0 ? startCash : cash[cash.length - 1];
+    }
+    
+    public double[] getCash() {
+        return cash;
+    }
+    
+    // First day (0-based) ending below the reserve requirement, or -1
+    public int getFirstBreachDay() {
+        for (int day = 0; day < cash.length; day++) {
+            if (cash[day] < reserveRequirement) return day;
+        }
+        return -1;
+    }
+    
+    public void display() {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        System.out.println("\n===== PATH " + path + " (SEED " + seed + ") =====");
+        System.out.println("Start cash: " + df.format(startCash) + "   Reserve requirement: " + df.format(reserveRequirement));
+        System.out.println(String.format("%5s %18s %18s %16s %10s %20s", "DAY", "REVENUE", "EXPENSE", "MARKET EFFECT", "LIQUIDITY", "CASH"));
+        for (int day = 0; day < cash.length; day++) {
+            System.out.println(String.format("%5d %18s %18s %16s %9.1f%% %20s", day + 1, df.format(revenue[day]), 
+                                             df.format(expense[day]), df.format(marketEffect[day]), liquidity[day] * 100, 
+                                             df.format(cash[day])));
+        }
+        
+        int breachDay = getFirstBreachDay();
+        if (breachDay >= 0) {
+            System.out.println("BREACH: cash fell below the reserve requirement on day " + (breachDay + 1));
+        } else {
+            System.out.println("No breach of the reserve requirement on this path.");
+        }
+    }
+    
+    // --explain <path> [days] [seed]
+    static void explainFromCommandLine(String[] args) {
+        long path = Long.parseLong(args[0]);
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio;
+        if (args.length > 3) {
+            // The state a menu run saved, so the path is regenerated against the portfolio and market it saw
+            try {
+                TreasuryState state = TreasuryState.load(Paths.get(args[3]));
+                portfolio = state.getPortfolio();
+                marketData = state.getMarketData();
+            } catch (IOException e) {
+                System.out.println("Could not read state: " + e.getMessage());
+                return;
+            }
+        } else {
+            portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+            TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        }
+        new RiskAnalysis(portfolio, marketData, 1).explainPath(days, seed, path).display();
+    }
+}
+
+// Outcome of one intraday settlement run, seen from the observed participant (index 0)
+class IntradayResult {
+    private String participant;
+    private int payments;
+    private int settled;
+    private double settledValue;
+    private int offsetSettled;
+    private double offsetSettledValue;
+    private int unsettled;
+    private double unsettledValue;
+    private int gridlockResolutions;
+    private double peakNetOutflow;
+    private int peakNetOutflowSecond;
+    private double peakCreditUsage;
+    private double averageDelaySeconds;
+    private long elapsedNanos;
+    
+    public IntradayResult(String participant, int payments, int settled, double settledValue, int offsetSettled, 
+                          double offsetSettledValue, int unsettled, double unsettledValue, int gridlockResolutions, 
+                          double peakNetOutflow, int peakNetOutflowSecond, double peakCreditUsage, 
+                          double averageDelaySeconds, long elapsedNanos) {
+        this.participant = participant;
+        this.payments = payments;
+        this.settled = settled;
+        this.settledValue = settledValue;
+        this.offsetSettled = offsetSettled;
+        this.offsetSettledValue = offsetSettledValue;
+        this.unsettled = unsettled;
+        this.unsettledValue = unsettledValue;
+        this.gridlockResolutions = gridlockResolutions;
+        this.peakNetOutflow = peakNetOutflow;
+        this.peakNetOutflowSecond = peakNetOutflowSecond;
+        this.peakCreditUsage = peakCreditUsage;
+        this.averageDelaySeconds = averageDelaySeconds;
+        this.elapsedNanos = elapsedNanos;
+    }
+    
+    public int getSettled() {
+        return settled;
+    }
+    
+    public double getSettledValue() {
+        return settledValue;
+    }
+    
+    public int getOffsetSettled() {
+        return offsetSettled;
+    }
+    
+    public int getUnsettled() {
+        return unsettled;
+    }
+    
+    public double getUnsettledValue() {
+        return unsettledValue;
+    }
+    
+    public int getGridlockResolutions() {
+        return gridlockResolutions;
+    }
+    
+    // Largest net cumulative outflow (settled payments out minus in) reached during the day
+    public double getPeakNetOutflow() {
+        return peakNetOutflow;
+    }
+    
+    public double getPeakCreditUsage() {
+        return peakCreditUsage;
+    }
+    
+    public double getAverageDelaySeconds() {
+        return averageDelaySeconds;
+    }
+    
+    public void display() {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        System.out.println("\n===== INTRADAY LIQUIDITY (" + payments + " PAYMENTS) =====");
+        System.out.println("Settled: " + settled + " (" + df.format(settledValue) + ")");
+        System.out.println("  via gridlock offsetting: " + offsetSettled + " (" + df.format(offsetSettledValue) + ")");
+        System.out.println("Unsettled at close: " + unsettled + " (" + df.format(unsettledValue) + ")");
+        System.out.println("Gridlock resolutions: " + gridlockResolutions);
+        System.out.println("Average queueing delay: " + df.format(averageDelaySeconds) + " s");
+        System.out.println("\n" + participant.toUpperCase() + ":");
+        System.out.println("  Peak intraday liquidity usage: " + df.format(peakNetOutflow) + 
+                         " at " + LocalTime.ofSecondOfDay(peakNetOutflowSecond));
+        System.out.println("  Peak credit line usage: " + df.format(peakCreditUsage));
+        System.out.println("Completed in " + (elapsedNanos / 1_000_000) + " ms");
+    }
+}
+
+// RTGS-style intraday settlement: payments arrive at their time of day into the payer's queue (FIFO within
+// priority, no overtaking) and settle when balance plus credit line covers them. Queues that block each other
+// are cleared periodically by multilateral offsetting.
+class IntradaySettlementEngine {
+    static final int PRIORITY_LEVELS = 3;
+    
+    private String[] participants;
+    private double[] balances;
+    private double[] creditLines;
+    private double[] openingBalances;
+    
+    private int count;
+    private int[] seconds = new int[1024];
+    private int[] payers = new int[1024];
+    private int[] payees = new int[1024];
+    private double[] amounts = new double[1024];
+    private byte[] priorities = new byte[1024];
+    
+    // Per participant and priority: a ring buffer of queued payment ids
+    private int[][] queues;
+    private int[] queueHeads;
+    private int[] queueSizes;
+    private double[] queuedOut;
+    private double[] queuedIn;
+    private int[] queuedOutCount;
+    private int[] queuedInCount;
+    private int queuedCount;
+    private int offsetSettled;
+    private double offsetSettledValue;
+    private int[] settledAt;  // second each payment settled in the last run, -1 if it did not
+    
+    public IntradaySettlementEngine(String[] participants, double[] openingBalances, double[] creditLines) {
+        this.participants = participants;
+        this.openingBalances = openingBalances.clone();
+        this.creditLines = creditLines.clone();
+    }
+    
+    public int getPaymentCount() {
+        return count;
+    }
+    
+    // Every participant's balance at the end of the last run
+    double[] getClosingBalances() {
+        return balances.clone();
+    }
+    
+    // Whether the payment with this id (in addPayment order) settled in the last run
+    boolean isSettled(int payment) {
+        return settledAt[payment] >= 0;
+    }
+    
+    public int addPayment(int payer, int payee, int secondOfDay, double amount, int priority) {
+        if (count == seconds.length) {
+            int capacity = count * 2;
+            seconds = Arrays.copyOf(seconds, capacity);
+            payers = Arrays.copyOf(payers, capacity);
+            payees = Arrays.copyOf(payees, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+        }
+        seconds[count] = secondOfDay;
+        payers[count] = payer;
+        payees[count] = payee;
+        amounts[count] = amount;
+        priorities[count] = (byte) Math.min(PRIORITY_LEVELS - 1, Math.max(0, priority));
+        return count++;
+    }
+    
+    // Settle the whole day, trying gridlock resolution every offsetIntervalSeconds of queueing and at close
+    public IntradayResult run(int offsetIntervalSeconds) {
+        long start = System.nanoTime();
+        int n = participants.length;
+        balances = openingBalances.clone();
+        queues = new int[n * PRIORITY_LEVELS][];
+        queueHeads = new int[n * PRIORITY_LEVELS];
+        queueSizes = new int[n * PRIORITY_LEVELS];
+        for (int q = 0; q < queues.length; q++) {
+            queues[q] = new int[16];
+        }
+        queuedOut = new double[n];
+        queuedIn = new double[n];
+        queuedOutCount = new int[n];
+        queuedInCount = new int[n];
+        queuedCount = 0;
+        offsetSettled = 0;
+        offsetSettledValue = 0;
+        settledAt = new int[count];
+        Arrays.fill(settledAt, -1);
+        
+        // Arrival order: by time, then by submission order
+        long[] arrivals = new long[count];
+        for (int i = 0; i < count; i++) {
+            arrivals[i] = ((long) seconds[i] << 32) | i;
+        }
+        Arrays.sort(arrivals);
+        
+        Tracker tracker = new Tracker(openingBalances[0]);
+        int[] everyone = new int[n];
+        for (int p = 0; p < n; p++) {
+            everyone[p] = p;
+        }
+        int[] arrived = new int[n];
+        boolean[] onWorklist = new boolean[n];
+        int gridlockResolutions = 0;
+        int nextOffsetCheck = -1;
+        boolean queuesChanged = false;
+        
+        int a = 0;
+        while (a < count) {
+            int now = seconds[(int) arrivals[a]];
+            
+            // Gridlock checks due before this arrival batch run at their own scheduled time
+            while (nextOffsetCheck >= 0 && nextOffsetCheck < now) {
+                // Nothing has moved since the last attempt, so offsetting would fail the same way again
+                if (queuesChanged && resolveGridlock(nextOffsetCheck, settledAt, tracker) > 0) {
+                    gridlockResolutions++;
+                    settleQueues(everyone, n, onWorklist, nextOffsetCheck, settledAt, tracker);
+                }
+                queuesChanged = false;
+                nextOffsetCheck = queuedCount > 0 ? nextOffsetCheck + offsetIntervalSeconds : -1;
+            }
+            
+            int size = 0;
+            for (; a < count && seconds[(int) arrivals[a]] == now; a++) {
+                int id = (int) arrivals[a];
+                enqueue(id);
+                if (!onWorklist[payers[id]]) {
+                    onWorklist[payers[id]] = true;
+                    arrived[size++] = payers[id];
+                }
+            }
+            settleQueues(arrived, size, onWorklist, now, settledAt, tracker);
+            queuesChanged = true;
+            if (nextOffsetCheck < 0 && queuedCount > 0) {
+                nextOffsetCheck = now + offsetIntervalSeconds;
+            }
+        }
+        
+        // End-of-day offsetting for whatever is still queued
+        if (queuedCount > 0) {
+            int close = Math.max(nextOffsetCheck, seconds[(int) arrivals[count - 1]]);
+            if (resolveGridlock(close, settledAt, tracker) > 0) {
+                gridlockResolutions++;
+                settleQueues(everyone, n, onWorklist, close, settledAt, tracker);
+            }
+        }
+        
+        int settled = 0;
+        double settledValue = 0;
+        double unsettledValue = 0;
+        double delaySum = 0;
+        for (int i = 0; i < count; i++) {
+            if (settledAt[i] >= 0) {
+                settled++;
+                settledValue += amounts[i];
+                delaySum += settledAt[i] - seconds[i];
+            } else {
+                unsettledValue += amounts[i];
+            }
+        }
+        
+        return new IntradayResult(participants[0], count, settled, settledValue, offsetSettled, offsetSettledValue, 
+                                  count - settled, unsettledValue, gridlockResolutions, tracker.peakNetOutflow, 
+                                  tracker.peakSecond, tracker.peakCreditUsage, settled == 0 ? 0 : delaySum / settled, 
+                                  System.nanoTime() - start);
+    }
+    
+    // Running usage measures for the observed participant
+    private static class Tracker {
+        private double openingBalance;
+        private double peakNetOutflow;
+        private int peakSecond;
+        private double peakCreditUsage;
+        
+        Tracker(double openingBalance) {
+            this.openingBalance = openingBalance;
+        }
+        
+        void observe(double balance, int second) {
+            if (openingBalance - balance > peakNetOutflow) {
+                peakNetOutflow = openingBalance - balance;
+                peakSecond = second;
+            }
+            peakCreditUsage = Math.max(peakCreditUsage, -balance);
+        }
+    }
+    
+    private void enqueue(int id) {
+        int q = payers[id] * PRIORITY_LEVELS + priorities[id];
+        if (queueSizes[q] == queues[q].length) {
+            int[] grown = new int[queues[q].length * 2];
+            for (int k = 0; k < queueSizes[q]; k++) {
+                grown[k] = queues[q][(queueHeads[q] + k) % queues[q].length];
+            }
+            queues[q] = grown;
+            queueHeads[q] = 0;
+        }
+        queues[q][(queueHeads[q] + queueSizes[q]) % queues[q].length] = id;
+        queueSizes[q]++;
+        queuedCount++;
+        queuedOut[payers[id]] += amounts[id];
+        queuedIn[payees[id]] += amounts[id];
+        queuedOutCount[payers[id]]++;
+        queuedInCount[payees[id]]++;
+    }
+    
+    // Running sums drift by rounding as payments come and go; an emptied side is reset to exactly zero
+    private void dequeued(int id) {
+        queuedCount--;
+        if (--queuedOutCount[payers[id]] == 0) {
+            queuedOut[payers[id]] = 0;
+        } else {
+            queuedOut[payers[id]] -= amounts[id];
+        }
+        if (--queuedInCount[payees[id]] == 0) {
+            queuedIn[payees[id]] = 0;
+        } else {
+            queuedIn[payees[id]] -= amounts[id];
+        }
+    }
+    
+    // Net position after settling everything queued falls below what balance and credit cover, beyond rounding
+    private boolean cannotCover(int p) {
+        double tolerance = 1e-9 * (queuedOut[p] + queuedIn[p]);
+        return queuedOutCount[p] > 0 && balances[p] + creditLines[p] + queuedIn[p] - queuedOut[p] < -tolerance;
+    }
+    
+    // Highest-priority queue of the participant that holds anything, or -1
+    private int headQueue(int participant) {
+        for (int level = 0; level < PRIORITY_LEVELS; level++) {
+            int q = participant * PRIORITY_LEVELS + level;
+            if (queueSizes[q] > 0) return q;
+        }
+        return -1;
+    }
+    
+    private int pollHead(int q) {
+        int id = queues[q][queueHeads[q]];
+        queueHeads[q] = (queueHeads[q] + 1) % queues[q].length;
+        queueSizes[q]--;
+        dequeued(id);
+        return id;
+    }
+    
+    private int pollTail(int q) {
+        queueSizes[q]--;
+        int id = queues[q][(queueHeads[q] + queueSizes[q]) % queues[q].length];
+        dequeued(id);
+        return id;
+    }
+    
+    private void transfer(int id, int second, int[] settledAt, Tracker tracker) {
+        balances[payers[id]] -= amounts[id];
+        balances[payees[id]] += amounts[id];
+        settledAt[id] = second;
+        if (tracker != null && (payers[id] == 0 || payees[id] == 0)) {
+            tracker.observe(balances[0], second);
+        }
+    }
+    
+    // Release queue heads while funds allow; every receiver gets another try, so settlement cascades
+    private int settleQueues(int[] initial, int size, boolean[] onWorklist, int second, int[] settledAt, Tracker tracker) {
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        for (int k = 0; k < size; k++) {
+            pending.add(initial[k]);
+            onWorklist[initial[k]] = true;
+        }
+        
+        int released = 0;
+        while (!pending.isEmpty()) {
+            int participant = pending.poll();
+            onWorklist[participant] = false;
+            int q;
+            while ((q = headQueue(participant)) >= 0) {
+                int id = queues[q][queueHeads[q]];
+                if (balances[participant] + creditLines[participant] < amounts[id]) break;
+                pollHead(q);
+                transfer(id, second, settledAt, tracker);
+                released++;
+                if (!onWorklist[payees[id]]) {
+                    onWorklist[payees[id]] = true;
+                    pending.add(payees[id]);
+                }
+            }
+        }
+        return released;
+    }
+    
+    // Multilateral offsetting: settle all queued payments at once if every participant's balance covers its
+    // net position; otherwise drop the least urgent, latest payments of participants that cannot cover
+    // theirs until everyone can, settle the rest simultaneously and requeue what was dropped.
+    // Returns the number of payments settled.
+    private int resolveGridlock(int second, int[] settledAt, Tracker tracker) {
+        int n = participants.length;
+        ArrayDeque<Integer> violators = new ArrayDeque<>();
+        boolean[] flagged = new boolean[n];
+        for (int p = 0; p < n; p++) {
+            if (cannotCover(p)) {
+                violators.add(p);
+                flagged[p] = true;
+            }
+        }
+        
+        // Removal only lowers the payee's inflows, so a payee can become a violator but a payer never does
+        int[] removed = new int[16];
+        int removedCount = 0;
+        while (!violators.isEmpty()) {
+            int p = violators.peek();
+            if (!cannotCover(p)) {
+                violators.poll();
+                flagged[p] = false;
+                continue;
+            }
+            int q = -1;
+            for (int level = PRIORITY_LEVELS - 1; level >= 0 && q < 0; level--) {
+                if (queueSizes[p * PRIORITY_LEVELS + level] > 0) q = p * PRIORITY_LEVELS + level;
+            }
+            int id = pollTail(q);
+            if (removedCount == removed.length) removed = Arrays.copyOf(removed, removedCount * 2);
+            removed[removedCount++] = id;
+            int payee = payees[id];
+            if (!flagged[payee] && cannotCover(payee)) {
+                violators.add(payee);
+                flagged[payee] = true;
+            }
+        }
+        
+        // Everything still queued settles together, so only the net result is observed
+        int settled = 0;
+        double value = 0;
+        for (int q = 0; q < queues.length; q++) {
+            while (queueSizes[q] > 0) {
+                int id = pollHead(q);
+                transfer(id, second, settledAt, null);
+                settled++;
+                value += amounts[id];
+            }
+        }
+        tracker.observe(balances[0], second);
+        
+        // Requeue dropped payments in their original order (they were taken from the tails, newest first)
+        for (int k = removedCount - 1; k >= 0; k--) {
+            enqueue(removed[k]);
+        }
+        
+        offsetSettled += settled;
+        offsetSettledValue += value;
+        return settled;
+    }
+    
+    // Our events for the day against one counterparty per description, each with its own liquidity.
+    // Payment i is the day's i-th event in calendar order
+    static IntradaySettlementEngine fromCashFlow(CashFlow cashFlow, LocalDate date, double openingCash, double creditLine, 
+                                                 double counterpartyLiquidity) {
+        Map<String, Integer> counterparties = new LinkedHashMap<>();
+        counterparties.put("Treasury", 0);
+        List<CashFlowEvent> events = new ArrayList<>();
+        for (CashFlowEvent event : cashFlow.getScheduledCashFlows()) {
+            if (event.getDate().equals(date)) {
+                events.add(event);
+                counterparties.putIfAbsent(event.getDescription(), counterparties.size());
+            }
+        }
+        
+        int n = counterparties.size();
+        double[] balances = new double[n];
+        double[] credit = new double[n];
+        Arrays.fill(balances, counterpartyLiquidity);
+        balances[0] = openingCash;
+        credit[0] = creditLine;
+        IntradaySettlementEngine engine = new IntradaySettlementEngine(counterparties.keySet().toArray(new String[0]), 
+                                                                       balances, credit);
+        
+        // Whole-day flows without a time are queued at the opening of the day
+        for (CashFlowEvent event : events) {
+            int counterparty = counterparties.get(event.getDescription());
+            int second = event.getTime() == null ? 0 : event.getTime().toSecondOfDay();
+            if (event.isInflow()) {
+                engine.addPayment(counterparty, 0, second, event.getAmount(), event.getPriority());
+            } else {
+                engine.addPayment(0, counterparty, second, event.getAmount(), event.getPriority());
+            }
+        }
+        return engine;
+    }
+    
+    // Engine for one calendar day when any of its payments has a time of day, ready to run; null otherwise.
+    // Counterparties are funded to pay us everything they owe, so only our own liquidity constrains the day.
+    static IntradaySettlementEngine forDay(CashFlow cashFlow, LocalDate date, double openingCash, double creditLine) {
+        boolean timed = false;
+        double owedToUs = 0;
+        for (CashFlowEvent event : cashFlow.getScheduledCashFlows()) {
+            if (event.getDate().equals(date)) {
+                timed |= event.getTime() != null;
+                if (event.isInflow()) owedToUs += event.getAmount();
+            }
+        }
+        if (!timed) return null;
+        return fromCashFlow(cashFlow, date, openingCash, creditLine, owedToUs);
+    }
+    
+    // A reproducible day of payments among participants between 08:00 and 17:00, lognormal amounts
+    static IntradaySettlementEngine synthetic(int participantCount, int payments, double medianAmount, 
+                                              double openingBalance, double creditLine, long seed) {
+        String[] names = new String[participantCount];
+        names[0] = "Treasury";
+        for (int p = 1; p < participantCount; p++) {
+            names[p] = "Bank " + p;
+        }
+        double[] balances = new double[participantCount];
+        double[] credit = new double[participantCount];
+        Arrays.fill(balances, openingBalance);
+        credit[0] = creditLine;
+        IntradaySettlementEngine engine = new IntradaySettlementEngine(names, balances, credit);
+        
+        int open = 8 * 3600;
+        int close = 17 * 3600;
+        for (int i = 0; i < payments; i++) {
+            int payer = (int) (CounterRandom.uniform(seed, i, 0, 0) * participantCount);
+            int payee = (payer + 1 + (int) (CounterRandom.uniform(seed, i, 0, 1) * (participantCount - 1))) % participantCount;
+            int second = open + (int) (CounterRandom.uniform(seed, i, 0, 2) * (close - open));
+            double amount = medianAmount * Math.exp(CounterRandom.gaussian(seed, i, 0, 3));
+            double draw = CounterRandom.uniform(seed, i, 0, 4);
+            int priority = draw < 0.1 ? CashFlowEvent.PRIORITY_URGENT 
+                         : draw < 0.8 ? CashFlowEvent.PRIORITY_NORMAL : CashFlowEvent.PRIORITY_LOW;
+            engine.addPayment(payer, payee, second, amount, priority);
+        }
+        return engine;
+    }
+    
+    // --intraday [payments] [participants] [openingBalance] [creditLine] [seed]
+    static void runFromCommandLine(String[] args) {
+        int payments = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int participantCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double openingBalance = args.length > 2 ? Double.parseDouble(args[2]) : 50000000.0;
+        double creditLine = args.length > 3 ? Double.parseDouble(args[3]) : 100000000.0;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+        
+        IntradaySettlementEngine engine = synthetic(participantCount, payments, 1000000.0, openingBalance, creditLine, seed);
+        engine.run(300).display();
+        System.out.println("Seed: " + seed);
+    }
+}
+
+// Per-day cash distribution of a Monte Carlo run, one mergeable quantile sketch per day
+class CashFanChart {
+    static final double[] BAND_QUANTILES = {0.01, 0.05, 0.50, 0.95};
+    static final String[] BAND_NAMES = {"P1", "P5", "P50", "P95"};
+    
+    // Daily moves are small against the cash level, so the bands need finer buckets than the sketch default
+    static final double DEFAULT_RELATIVE_ACCURACY = 0.0001;
+    
+    private QuantileSketch[] days;
+    
+    public CashFanChart(int horizonDays) {
+        this(horizonDays, DEFAULT_RELATIVE_ACCURACY);
+    }
+    
+    public CashFanChart(int horizonDays, double relativeAccuracy) {
+        this.days = new QuantileSketch[horizonDays];
+        for (int day = 0; day < horizonDays; day++) {
+            days[day] = new QuantileSketch(relativeAccuracy);
+        }
+    }
+    
+    public void add(int day, double cash) {
+        days[day].add(cash);
+    }
+    
+    // Combine charts built from disjoint path ranges, e.g. by different threads or workers
+    public void merge(CashFanChart other) {
+        if (other.days.length != days.length) {
+            throw new IllegalArgumentException("Cannot merge fan charts with different horizons");
+        }
+        for (int day = 0; day < days.length; day++) {
+            days[day].merge(other.days[day]);
+        }
+    }
+    
+    public int getHorizonDays() {
+        return days.length;
+    }
+    
+    public long getPathCount() {
+        return days.length == 0 ? 0 : days[0].getCount();
+    }
+    
+    public QuantileSketch getDay(int day) {
+        return days[day];
+    }
+    
+    // Day-major band series: row d holds P1, P5, P50, P95 for day d + 1
+    public double[] toBandSeries() {
+        double[] series = new double[days.length * BAND_QUANTILES.length];
+        for (int day = 0; day < days.length; day++) {
+            for (int b = 0; b < BAND_QUANTILES.length; b++) {
+                series[day * BAND_QUANTILES.length + b] = days[day].quantile(BAND_QUANTILES[b]);
+            }
+        }
+        return series;
+    }
+    
+    public void writeCsv(Writer out) throws IOException {
+        double[] series = toBandSeries();
+        out.write("DAY," + String.join(",", BAND_NAMES) + "\n");
+        for (int day = 0; day < days.length; day++) {
+            StringBuilder row = new StringBuilder().append(day + 1);
+            for (int b = 0; b < BAND_QUANTILES.length; b++) {
+                row.append(',').append(series[day * BAND_QUANTILES.length + b]);
+            }
+            out.write(row.append('\n').toString());
+        }
+    }
+    
+    public void display(double reserveRequirement) {
+        double[] series = toBandSeries();
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        System.out.println("\n===== CASH FAN CHART (" + days.length + " DAYS, " + getPathCount() + " PATHS) =====");
+        System.out.println(String.format("%5s %20s %20s %20s %20s", "DAY", "P1", "P5", "P50", "P95"));
+        
+        // Long horizons are thinned to about 30 rows; the last day is always shown
+        int step = Math.max(1, days.length / 30);
+        for (int day = 0; day < days.length; day++) {
+            if (day % step != step - 1 && day != days.length - 1) continue;
+            int row = day * BAND_QUANTILES.length;
+            String flag = series[row] < reserveRequirement ? "  < reserve" : "";
+            System.out.println(String.format("%5d %20s %20s %20s %20s%s", day + 1, df.format(series[row]), 
+                                             df.format(series[row + 1]), df.format(series[row + 2]), 
+                                             df.format(series[row + 3]), flag));
+        }
+    }
+    
+    // --fanchart [days] [paths] [seed] [csvFile]
+    static void runFromCommandLine(String[] args) {
+        int horizonDays = args.length > 0 ? Integer.parseInt(args[0]) : 90;
+        int paths = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        
+        CashFanChart fanChart = new RiskAnalysis(portfolio, marketData, paths).runLiquidityFanChart(horizonDays, seed);
+        fanChart.display(portfolio.getTotalValue() * 0.2);
+        System.out.println("Seed: " + seed);
+        
+        if (args.length > 3) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(args[3]), StandardCharsets.UTF_8)) {
+                fanChart.writeCsv(out);
+                System.out.println("Band series written to " + args[3]);
+            } catch (IOException e) {
+                System.out.println("Could not write band series: " + e.getMessage());
+            }
+        }
+    }
+}
+
+// Regulatory treatment of assets matching a type, a minimum liquidity rating and a maturity bucket
+class LiquidityRule {
+    static final String ANY_TYPE = "*";
+    static final int ANY_MATURITY = -1;
+    
+    private String assetType;
+    private double minLiquidityRating;
+    private int maturityBucket;
+    private int hqlaLevel;
+    private double haircut;
+    private double inflowFactor;
+    private double rsfFactor;
+    
+    // minLiquidityRating is matched in steps of 0.1; inflowFactor applies to non-HQLA assets maturing in the LCR horizon
+    public LiquidityRule(String assetType, double minLiquidityRating, int maturityBucket, int hqlaLevel, 
+                         double haircut, double inflowFactor, double rsfFactor) {
+        this.assetType = assetType;
+        this.minLiquidityRating = minLiquidityRating;
+        this.maturityBucket = maturityBucket;
+        this.hqlaLevel = hqlaLevel;
+        this.haircut = haircut;
+        this.inflowFactor = inflowFactor;
+        this.rsfFactor = rsfFactor;
+    }
+    
+    public boolean matches(String type, double liquidityRating, int bucket) {
+        return (assetType.equals(ANY_TYPE) || assetType.equals(type)) 
+            && liquidityRating >= minLiquidityRating - 1e-9
+            && (maturityBucket == ANY_MATURITY || maturityBucket == bucket);
+    }
+    
+    public String getAssetType() {
+        return assetType;
+    }
+    
+    public int getHqlaLevel() {
+        return hqlaLevel;
+    }
+    
+    public double getHaircut() {
+        return haircut;
+    }
+    
+    public double getInflowFactor() {
+        return inflowFactor;
+    }
+    
+    public double getRsfFactor() {
+        return rsfFactor;
+    }
+}
+
+// Run-off or inflow factor for scheduled cash flows whose description contains a keyword
+class FlowRule {
+    private String keyword;
+    private boolean inflow;
+    private double factor;
+    
+    public FlowRule(String keyword, boolean inflow, double factor) {
+        this.keyword = keyword;
+        this.inflow = inflow;
+        this.factor = factor;
+    }
+    
+    public boolean matches(CashFlowEvent event) {
+        return event.isInflow() == inflow && (keyword.equals(LiquidityRule.ANY_TYPE) || event.getDescription().contains(keyword));
+    }
+    
+    public double getFactor() {
+        return factor;
+    }
+}
+
+// Positions in columns, classified once: a type/rating class id, a currency id, maturity and amount
+class LiquidityPositionSet {
+    static final long NO_MATURITY = Long.MAX_VALUE;
+    
+    private int count;
+    private int[] classIds = new int[16];
+    private int[] currencyIds = new int[16];
+    private long[] maturityDays = new long[16];
+    private double[] amounts = new double[16];
+    private List<String> currencies = new ArrayList<>();
+    private Map<String, Integer> currencyIndex = new HashMap<>();
+    
+    public void add(int classId, String currency, LocalDate maturity, double amount) {
+        if (count == amounts.length) {
+            int capacity = count * 2;
+            classIds = Arrays.copyOf(classIds, capacity);
+            currencyIds = Arrays.copyOf(currencyIds, capacity);
+            maturityDays = Arrays.copyOf(maturityDays, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+        }
+        classIds[count] = classId;
+        currencyIds[count] = currencyIndex.computeIfAbsent(currency, c -> {
+            currencies.add(c);
+            return currencies.size() - 1;
+        });
+        maturityDays[count] = maturity == null ? NO_MATURITY : maturity.toEpochDay();
+        amounts[count] = amount;
+        count++;
+    }
+    
+    // Amounts move every simulated day; classification and layout stay put
+    public void setAmount(int position, double amount) {
+        amounts[position] = amount;
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    int[] getClassIds() {
+        return classIds;
+    }
+    
+    int[] getCurrencyIds() {
+        return currencyIds;
+    }
+    
+    long[] getMaturityDays() {
+        return maturityDays;
+    }
+    
+    double[] getAmounts() {
+        return amounts;
+    }
+    
+    List<String> getCurrencies() {
+        return currencies;
+    }
+}
+
+// LCR and NSFR with their components
+class RegulatoryRatios {
+    private LocalDate asOf;
+    private int positions;
+    private double level1;
+    private double level2A;
+    private double level2B;
+    private double hqla;
+    private double outflows;
+    private double inflows;
+    private double netOutflows;
+    private double availableStableFunding;
+    private double requiredStableFunding;
+    private long elapsedNanos;
+    
+    public RegulatoryRatios(LocalDate asOf, int positions, double level1, double level2A, double level2B, double hqla, 
+                            double outflows, double inflows, double netOutflows, double availableStableFunding, 
+                            double requiredStableFunding, long elapsedNanos) {
+        this.asOf = asOf;
+        this.positions = positions;
+        this.level1 = level1;
+        this.level2A = level2A;
+        this.level2B = level2B;
+        this.hqla = hqla;
+        this.outflows = outflows;
+        this.inflows = inflows;
+        this.netOutflows = netOutflows;
+        this.availableStableFunding = availableStableFunding;
+        this.requiredStableFunding = requiredStableFunding;
+        this.elapsedNanos = elapsedNanos;
+    }
+    
+    // HQLA over 30-day net stressed outflows; infinite when nothing flows out
+    public double getLcr() {
+        return netOutflows > 0 ? hqla / netOutflows : Double.POSITIVE_INFINITY;
+    }
+    
+    public double getNsfr() {
+        return requiredStableFunding > 0 ? availableStableFunding / requiredStableFunding : Double.POSITIVE_INFINITY;
+    }
+    
+    public double getHqla() {
+        return hqla;
+    }
+    
+    public double getLevel1() {
+        return level1;
+    }
+    
+    public double getLevel2A() {
+        return level2A;
+    }
+    
+    public double getLevel2B() {
+        return level2B;
+    }
+    
+    public double getOutflows() {
+        return outflows;
+    }
+    
+    // Counted inflows, after the 75% cap
+    public double getInflows() {
+        return inflows;
+    }
+    
+    public double getNetOutflows() {
+        return netOutflows;
+    }
+    
+    public double getAvailableStableFunding() {
+        return availableStableFunding;
+    }
+    
+    public double getRequiredStableFunding() {
+        return requiredStableFunding;
+    }
+    
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+    
+    public void display() {
+        DecimalFormat df = new DecimalFormat("#,##0.00");
+        DecimalFormat pct = new DecimalFormat("0.0%");
+        System.out.println("\n===== REGULATORY LIQUIDITY RATIOS: " + asOf + " =====");
+        System.out.println("LIQUIDITY COVERAGE RATIO: " + (Double.isInfinite(getLcr()) ? "n/a (no net outflows)" : pct.format(getLcr())));
+        System.out.println("  HQLA after haircuts and caps: " + df.format(hqla));
+        System.out.println("    Level 1: " + df.format(level1));
+        System.out.println("    Level 2A: " + df.format(level2A));
+        System.out.println("    Level 2B: " + df.format(level2B));
+        System.out.println("  30-day outflows: " + df.format(outflows));
+        System.out.println("  30-day inflows (capped): " + df.format(inflows));
+        System.out.println("  Net outflows: " + df.format(netOutflows));
+        System.out.println("NET STABLE FUNDING RATIO: " + (Double.isInfinite(getNsfr()) ? "n/a" : pct.format(getNsfr())));
+        System.out.println("  Available stable funding: " + df.format(availableStableFunding));
+        System.out.println("  Required stable funding: " + df.format(requiredStableFunding));
+        
+        if (getLcr() < 1.0) {
+            System.out.println("⚠️ LCR below the 100% minimum.");
+        }
+        if (getNsfr() < 1.0) {
+            System.out.println("⚠️ NSFR below the 100% minimum.");
+        }
+        System.out.println("Computed over " + positions + " positions in " + (elapsedNanos / 1000) + " us");
+    }
+}
+
+// LCR / NSFR engine. Asset rules are compiled once into lookup tables indexed by
+// (type, rating step, maturity bucket), so each computation is one pass of table lookups over position columns.
+class LiquidityRatioEngine {
+    static final int HQLA_NONE = 0;
+    static final int HQLA_LEVEL_1 = 1;
+    static final int HQLA_LEVEL_2A = 2;
+    static final int HQLA_LEVEL_2B = 3;
+    
+    static final int MATURITY_NONE = 0;
+    static final int MATURITY_30_DAYS = 1;
+    static final int MATURITY_1_YEAR = 2;
+    static final int MATURITY_LONGER = 3;
+    static final int MATURITY_BUCKETS = 4;
+    
+    static final int LCR_HORIZON_DAYS = 30;
+    static final double INFLOW_CAP = 0.75;
+    static final int RATING_STEPS = 11;
+    
+    private Map<String, Integer> typeIds = new HashMap<>();
+    private List<FlowRule> flowRules;
+    
+    // Indexed by (classId * MATURITY_BUCKETS + maturity bucket); classId = typeId * RATING_STEPS + rating step
+    private int[] hqlaLevels;
+    private double[] hqlaWeights;
+    private double[] inflowWeights;
+    private double[] rsfWeights;
+    
+    // Rules are evaluated in order, first match wins; type 0 stands for every type no rule names
+    public LiquidityRatioEngine(List<LiquidityRule> assetRules, List<FlowRule> flowRules) {
+        this.flowRules = flowRules;
+        List<String> types = new ArrayList<>();
+        types.add(LiquidityRule.ANY_TYPE);
+        for (LiquidityRule rule : assetRules) {
+            if (!types.contains(rule.getAssetType())) types.add(rule.getAssetType());
+        }
+        for (int t = 0; t < types.size(); t++) {
+            typeIds.put(types.get(t), t);
+        }
+        
+        int cells = types.size() * RATING_STEPS * MATURITY_BUCKETS;
+        hqlaLevels = new int[cells];
+        hqlaWeights = new double[cells];
+        inflowWeights = new double[cells];
+        rsfWeights = new double[cells];
+        for (int t = 0; t < types.size(); t++) {
+            for (int step = 0; step < RATING_STEPS; step++) {
+                for (int bucket = 0; bucket < MATURITY_BUCKETS; bucket++) {
+                    int cell = (t * RATING_STEPS + step) * MATURITY_BUCKETS + bucket;
+                    rsfWeights[cell] = 1.0;
+                    for (LiquidityRule rule : assetRules) {
+                        if (rule.matches(types.get(t), step / 10.0, bucket)) {
+                            hqlaLevels[cell] = rule.getHqlaLevel();
+                            hqlaWeights[cell] = rule.getHqlaLevel() == HQLA_NONE ? 0 : 1 - rule.getHaircut();
+                            inflowWeights[cell] = rule.getHqlaLevel() == HQLA_NONE ? rule.getInflowFactor() : 0;
+                            rsfWeights[cell] = rule.getRsfFactor();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    // Basel III style calibration for the asset types this simulator uses
+    static LiquidityRatioEngine standard() {
+        int any = LiquidityRule.ANY_MATURITY;
+        List<LiquidityRule> assetRules = new ArrayList<>();
+        assetRules.add(new LiquidityRule("CASH", 0.0, any, HQLA_LEVEL_1, 0.0, 0.0, 0.0));
+        assetRules.add(new LiquidityRule("BONDS", 0.8, any, HQLA_LEVEL_1, 0.0, 0.0, 0.05));
+        assetRules.add(new LiquidityRule("BONDS", 0.6, any, HQLA_LEVEL_2A, 0.15, 0.0, 0.15));
+        assetRules.add(new LiquidityRule("BONDS", 0.4, any, HQLA_LEVEL_2B, 0.50, 0.0, 0.50));
+        assetRules.add(new LiquidityRule("EQUITIES", 0.6, any, HQLA_LEVEL_2B, 0.50, 0.0, 0.50));
+        assetRules.add(new LiquidityRule("MM_DEPOSIT", 0.0, MATURITY_30_DAYS, HQLA_NONE, 0.0, 1.0, 0.10));
+        assetRules.add(new LiquidityRule("MM_DEPOSIT", 0.0, any, HQLA_NONE, 0.0, 0.0, 0.50));
+        assetRules.add(new LiquidityRule(LiquidityRule.ANY_TYPE, 0.0, MATURITY_30_DAYS, HQLA_NONE, 0.0, 0.5, 0.50));
+        assetRules.add(new LiquidityRule(LiquidityRule.ANY_TYPE, 0.0, MATURITY_1_YEAR, HQLA_NONE, 0.0, 0.0, 0.50));
+        assetRules.add(new LiquidityRule(LiquidityRule.ANY_TYPE, 0.0, any, HQLA_NONE, 0.0, 0.0, 0.85));
+        
+        List<FlowRule> flowRules = new ArrayList<>();
+        flowRules.add(new FlowRule("Tax", false, 1.0));
+        flowRules.add(new FlowRule(LiquidityRule.ANY_TYPE, false, 1.0));
+        flowRules.add(new FlowRule("Interest", true, 1.0));
+        flowRules.add(new FlowRule(LiquidityRule.ANY_TYPE, true, 0.5));
+        return new LiquidityRatioEngine(assetRules, flowRules);
+    }
+    
+    public int classId(String assetType, double liquidityRating) {
+        int type = typeIds.getOrDefault(assetType, 0);
+        int step = (int) Math.floor(Math.min(1.0, Math.max(0.0, liquidityRating)) * 10 + 1e-9);
+        return type * RATING_STEPS + step;
+    }
+    
+    public LiquidityPositionSet positions(TreasuryPortfolio portfolio) {
+        LiquidityPositionSet positions = new LiquidityPositionSet();
+        for (Asset asset : portfolio.getAssets()) {
+            positions.add(classId(asset.getType(), asset.getLiquidityRating()), asset.getCurrency(), 
+                          asset.getMaturityDate(), asset.getAmount());
+        }
+        return positions;
+    }
+    
+    public RegulatoryRatios compute(TreasuryPortfolio portfolio, CashFlow cashFlow, LocalDate asOf, MarketData marketData) {
+        return compute(positions(portfolio), cashFlow, asOf, marketData.snapshot(), portfolio.getBaseCurrency());
+    }
+    
+    // Own funds are the only stable funding the portfolio records, so ASF is the total position value at 100%
+    public RegulatoryRatios compute(LiquidityPositionSet positions, CashFlow cashFlow, LocalDate asOf, 
+                                    MarketSnapshot market, String baseCurrency) {
+        long start = System.nanoTime();
+        
+        // One conversion factor per currency, resolved before the pass
+        List<String> currencies = positions.getCurrencies();
+        FxMatrix fx = market.fx();
+        int base = FxMatrix.currencyId(baseCurrency);
+        double[] toBase = new double[currencies.size()];
+        for (int c = 0; c < toBase.length; c++) {
+            toBase[c] = fx.rate(FxMatrix.currencyId(currencies.get(c)), base);
+        }
+        
+        int[] classIds = positions.getClassIds();
+        int[] currencyIds = positions.getCurrencyIds();
+        long[] maturityDays = positions.getMaturityDays();
+        double[] amounts = positions.getAmounts();
+        long today = asOf.toEpochDay();
+        double[] hqlaByLevel = new double[4];
+        double assetInflows = 0;
+        double totalValue = 0;
+        double rsf = 0;
+        
+        for (int i = 0; i < positions.size(); i++) {
+            long remaining = maturityDays[i] - today;
+            int bucket = maturityDays[i] == LiquidityPositionSet.NO_MATURITY ? MATURITY_NONE 
+                       : remaining <= LCR_HORIZON_DAYS ? MATURITY_30_DAYS 
+                       : remaining <= 365 ? MATURITY_1_YEAR : MATURITY_LONGER;
+            int cell = classIds[i] * MATURITY_BUCKETS + bucket;
+            double amount = amounts[i] * toBase[currencyIds[i]];
+            hqlaByLevel[hqlaLevels[cell]] += amount * hqlaWeights[cell];
+            assetInflows += amount * inflowWeights[cell];
+            rsf += amount * rsfWeights[cell];
+            totalValue += amount;
+        }
+        
+        // Level 2 assets are capped at 40% of HQLA and Level 2B at 15%
+        double level1 = hqlaByLevel[HQLA_LEVEL_1];
+        double level2A = hqlaByLevel[HQLA_LEVEL_2A];
+        double level2B = hqlaByLevel[HQLA_LEVEL_2B];
+        double adjustment = Math.max(0, Math.max(level2A + level2B - 2.0 / 3.0 * level1, 
+                                                 level2B - 15.0 / 85.0 * (level1 + level2A)));
+        double hqla = level1 + level2A + level2B - adjustment;
+        
+        double[] flows = weightedFlows(cashFlow, asOf);
+        double outflows = flows[0];
+        double inflows = Math.min(flows[1] + assetInflows, INFLOW_CAP * outflows);
+        
+        return new RegulatoryRatios(asOf, positions.size(), level1, level2A, level2B, hqla, outflows, inflows, 
+                                    outflows - inflows, totalValue, rsf, System.nanoTime() - start);
+    }
+    
+    // Scheduled flows (with recurrences) due within the LCR horizon, weighted by their rule: {outflows, inflows}
+    private double[] weightedFlows(CashFlow cashFlow, LocalDate asOf) {
+        double outflows = 0;
+        double inflows = 0;
+        Map<String, Double> factors = new HashMap<>();
+        
+        for (CashFlowEvent event : cashFlow.getScheduledCashFlows()) {
+            long offset = ChronoUnit.DAYS.between(asOf, event.getDate());
+            int interval = event.isRecurring() ? event.getRecurringInterval() : 0;
+            if (offset < 1 && interval > 0) {
+                offset += ((1 - offset + interval - 1) / interval) * interval;
+            }
+            int occurrences = 0;
+            while (offset >= 1 && offset <= LCR_HORIZON_DAYS) {
+                occurrences++;
+                if (interval <= 0) break;
+                offset += interval;
+            }
+            if (occurrences == 0) continue;
+            
+            double factor = factors.computeIfAbsent((event.isInflow() ? "+" : "-") + event.getDescription(), key -> {
+                for (FlowRule rule : flowRules) {
+                    if (rule.matches(event)) return rule.getFactor();
+                }
+                return event.isInflow() ? 0.0 : 1.0;
+            });
+            if (event.isInflow()) {
+                inflows += occurrences * event.getAmount() * factor;
+            } else {
+                outflows += occurrences * event.getAmount() * factor;
+            }
+        }
+        return new double[] { outflows, inflows };
+    }
+    
+    // --ratios [positions] [days]: a synthetic book recomputed once per simulated day
+    static void runFromCommandLine(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        LiquidityRatioEngine engine = standard();
+        MarketData marketData = new MarketData();
+        LocalDate asOf = LocalDate.now();
+        
+        String[] types = {"CASH", "BONDS", "MM_DEPOSIT", "EQUITIES", "LOANS"};
+        String[] currencies = {"IDR", "IDR", "IDR", "USD", "EUR"};
+        LiquidityPositionSet positions = new LiquidityPositionSet();
+        for (int i = 0; i < count; i++) {
+            String type = types[(int) (CounterRandom.uniform(42, i, 0, 0) * types.length)];
+            double rating = Math.floor(CounterRandom.uniform(42, i, 0, 1) * 10) / 10 + 0.05;
+            LocalDate maturity = type.equals("CASH") ? null : asOf.plusDays(1 + (long) (CounterRandom.uniform(42, i, 0, 2) * 1800));
+            String currency = currencies[(int) (CounterRandom.uniform(42, i, 0, 3) * currencies.length)];
+            double amount = 1000000.0 * Math.exp(CounterRandom.gaussian(42, i, 0, 4));
+            positions.add(engine.classId(type, rating), currency, maturity, currency.equals("IDR") ? amount : amount / 15000);
+        }
+        CashFlow cashFlow = TreasuryLiquiditySimulator.createDefaultCashFlow();
+        
+        long totalNanos = 0;
+        RegulatoryRatios first = null;
+        for (int day = 0; day < days; day++) {
+            RegulatoryRatios ratios = engine.compute(positions, cashFlow, asOf.plusDays(day), marketData.snapshot(), "IDR");
+            if (first == null) first = ratios;
+            totalNanos += ratios.getElapsedNanos();
+        }
+        first.display();
+        System.out.println("Average per daily recomputation: " + (totalNanos / days / 1000) + " us");
+    }
+}
+
+// Dense cross-rate matrix derived from one set of quotes. Currencies are addressed by a process-wide id,
+// so a conversion is one array lookup; rates missing from the quotes are triangulated through the quoted ones.
+class FxMatrix {
+    private static final Map<String, Integer> CURRENCY_IDS = new ConcurrentHashMap<>();
+    private static final List<String> CURRENCY_NAMES = new ArrayList<>();
+    
+    private final int size;
+    private final double[] rates;  // rates[from * size + to]: units of "to" per unit of "from"; NaN when unreachable
+    
+    static int currencyId(String currency) {
+        Integer id = CURRENCY_IDS.get(currency);
+        return id != null ? id : register(currency);
+    }
+    
+    // Id of a currency some quote has already named, or -1; unlike currencyId it never grows the registry,
+    // so lookups on user input stay side-effect free
+    static int existingId(String currency) {
+        Integer id = CURRENCY_IDS.get(currency);
+        return id != null ? id : -1;
+    }
+    
+    private static synchronized int register(String currency) {
+        Integer id = CURRENCY_IDS.get(currency);
+        if (id != null) return id;
+        CURRENCY_NAMES.add(currency);
+        CURRENCY_IDS.put(currency, CURRENCY_NAMES.size() - 1);
+        return CURRENCY_NAMES.size() - 1;
+    }
+    
+    static synchronized String currencyName(int id) {
+        return CURRENCY_NAMES.get(id);
+    }
+    
+    // Quotes are keyed "BASE/QUOTE" and give units of QUOTE per unit of BASE
+    public FxMatrix(Map<String, Double> quotes) {
+        List<int[]> pairs = new ArrayList<>();
+        List<Double> pairRates = new ArrayList<>();
+        for (Map.Entry<String, Double> quote : quotes.entrySet()) {
+            String[] currencies = quote.getKey().split("/");
+            if (currencies.length != 2 || !(quote.getValue() > 0)) {
+                throw new IllegalArgumentException("Invalid FX quote " + quote.getKey() + " = " + quote.getValue());
+            }
+            pairs.add(new int[] { currencyId(currencies[0]), currencyId(currencies[1]) });
+            pairRates.add(quote.getValue());
+        }
+        synchronized (FxMatrix.class) {
+            size = CURRENCY_NAMES.size();
+        }
+        
+        List<List<Integer>> edges = new ArrayList<>();
+        for (int c = 0; c < size; c++) {
+            edges.add(new ArrayList<>());
+        }
+        for (int q = 0; q < pairs.size(); q++) {
+            edges.get(pairs.get(q)[0]).add(q);
+            edges.get(pairs.get(q)[1]).add(q);
+        }
+        
+        // Value of each currency in units of the first currency of its connected component
+        double[] value = new double[size];
+        int[] component = new int[size];
+        Arrays.fill(value, Double.NaN);
+        Arrays.fill(component, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int root = 0; root < size; root++) {
+            if (component[root] >= 0) continue;
+            component[root] = root;
+            value[root] = 1.0;
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                int c = queue.poll();
+                for (int q : edges.get(c)) {
+                    int[] pair = pairs.get(q);
+                    int other = pair[0] == c ? pair[1] : pair[0];
+                    if (component[other] >= 0) continue;
+                    // 1 BASE = rate QUOTE
+                    value[other] = pair[0] == c ? value[c] / pairRates.get(q) : value[c] * pairRates.get(q);
+                    component[other] = root;
+                    queue.add(other);
+                }
+            }
+        }
+        
+        rates = new double[size * size];
+        for (int from = 0; from < size; from++) {
+            for (int to = 0; to < size; to++) {
+                rates[from * size + to] = from == to ? 1.0 
+                    : component[from] == component[to] ? value[from] / value[to] : Double.NaN;
+            }
+        }
+        // Quoted pairs keep their exact quote rather than a triangulated one
+        for (int q = 0; q < pairs.size(); q++) {
+            int[] pair = pairs.get(q);
+            rates[pair[0] * size + pair[1]] = pairRates.get(q);
+            rates[pair[1] * size + pair[0]] = 1.0 / pairRates.get(q);
+        }
+    }
+    
+    public double rate(int from, int to) {
+        if (from == to) return 1.0;
+        double rate = from < size && to < size ? rates[from * size + to] : Double.NaN;
+        if (Double.isNaN(rate)) {
+            throw new IllegalArgumentException("No FX quote to convert " + currencyName(from) + " to " + currencyName(to));
+        }
+        return rate;
+    }
+    
+    public double convert(double amount, int from, int to) {
+        return amount * rate(from, to);
+    }
+    
+    public double rate(String from, String to) {
+        if (from.equals(to)) return 1.0;
+        int f = existingId(from);
+        int t = existingId(to);
+        if (f < 0 || t < 0) {
+            throw new IllegalArgumentException("No FX quote to convert " + from + " to " + to);
+        }
+        return rate(f, t);
+    }
+    
+    public double convert(double amount, String from, String to) {
+        return amount * rate(from, to);
+    }
+    
+    public boolean canConvert(String from, String to) {
+        if (from.equals(to)) return true;
+        int f = existingId(from);
+        int t = existingId(to);
+        return f >= 0 && t >= 0 && f < size && t < size && !Double.isNaN(rates[f * size + t]);
+    }
+}
+
+// Deterministic generator of large, realistic portfolios and cash-flow schedules. Every attribute of
+// position i is drawn from CounterRandom(seed, i, ...), so the same seed always yields the same book.
+class SyntheticPortfolioGenerator {
+    static final String[] DEFAULT_TYPES = {"BONDS", "MM_DEPOSIT", "EQUITIES", "LOANS", "CASH"};
+    static final double[] DEFAULT_TYPE_WEIGHTS = {0.40, 0.25, 0.15, 0.15, 0.05};
+    static final String[] OUTFLOW_NAMES = {"Payroll", "Supplier Payment", "Quarterly Tax Payment", "Loan Repayment", "Rent"};
+    static final String[] INFLOW_NAMES = {"Customer Receipts", "Bond Interest Payment", "Dividend Received", "Deposit Maturity"};
+    static final int[] RECURRING_INTERVALS = {7, 14, 30, 90};
+    
+    // Variable slots within one position's random stream
+    private static final int TYPE = 0;
+    private static final int CURRENCY = 1;
+    private static final int AMOUNT = 2;
+    private static final int RATE = 3;
+    private static final int MATURITY = 4;
+    private static final int RATING = 5;
+    private static final int EVENT_KIND = 6;
+    
+    private long seed;
+    private MarketData marketData;
+    private String baseCurrency = "IDR";
+    private String[] types = DEFAULT_TYPES;
+    private double[] typeWeights = DEFAULT_TYPE_WEIGHTS;
+    private String[] currencies = {"IDR", "USD", "EUR", "JPY"};
+    private double[] currencyWeights = {0.70, 0.20, 0.07, 0.03};
+    private double medianPositionValue = 1000000000.0;
+    private Map<String, int[]> maturitySpreads = new HashMap<>();
+    private int recurringEvents = -1;
+    private int oneOffEvents = -1;
+    
+    public SyntheticPortfolioGenerator(long seed, MarketData marketData) {
+        this.seed = seed;
+        this.marketData = marketData;
+        maturitySpreads.put("BONDS", new int[] {90, 3650});
+        maturitySpreads.put("MM_DEPOSIT", new int[] {7, 180});
+        maturitySpreads.put("LOANS", new int[] {180, 1825});
+    }
+    
+    public void setBaseCurrency(String baseCurrency) {
+        this.baseCurrency = baseCurrency;
+    }
+    
+    public void setTypeMix(String[] types, double[] weights) {
+        this.types = types;
+        this.typeWeights = weights;
+    }
+    
+    public void setCurrencyMix(String[] currencies, double[] weights) {
+        this.currencies = currencies;
+        this.currencyWeights = weights;
+    }
+    
+    public void setMedianPositionValue(double medianPositionValue) {
+        this.medianPositionValue = medianPositionValue;
+    }
+    
+    // Maturities of the given type are spread uniformly over [minDays, maxDays]; types without a spread never mature
+    public void setMaturitySpread(String type, int minDays, int maxDays) {
+        maturitySpreads.put(type, new int[] {minDays, maxDays});
+    }
+    
+    // Negative counts scale with the portfolio: one recurring event per 1,000 positions and one one-off per 100
+    public void setEventCounts(int recurringEvents, int oneOffEvents) {
+        this.recurringEvents = recurringEvents;
+        this.oneOffEvents = oneOffEvents;
+    }
+    
+    // Position 0 is always the base-currency operating cash account that scheduled flows settle against
+    public TreasuryPortfolio generatePortfolio(int positions, LocalDate asOf) {
+        FxMatrix fx = marketData.fx();
+        int base = FxMatrix.currencyId(baseCurrency);
+        int[] currencyIds = new int[currencies.length];
+        for (int c = 0; c < currencies.length; c++) {
+            currencyIds[c] = FxMatrix.currencyId(currencies[c]);
+        }
+        
+        List<Asset> assets = new ArrayList<>(positions);
+        assets.add(new Asset("Operating Account", "CASH", medianPositionValue * Math.max(1, positions / 20), 
+                             baseCurrency, 0.0, null, 1.0));
+        Map<Long, LocalDate> dates = new HashMap<>();
+        for (int i = 1; i < positions; i++) {
+            String type = types[pick(typeWeights, CounterRandom.uniform(seed, i, 0, TYPE))];
+            int currency = pick(currencyWeights, CounterRandom.uniform(seed, i, 0, CURRENCY));
+            double value = medianPositionValue * Math.exp(0.8 * CounterRandom.gaussian(seed, i, 0, AMOUNT));
+            double amount = fx.convert(value, base, currencyIds[currency]);
+            
+            int[] spread = maturitySpreads.get(type);
+            LocalDate maturity = null;
+            if (spread != null) {
+                long days = spread[0] + (long) (CounterRandom.uniform(seed, i, 0, MATURITY) * (spread[1] - spread[0] + 1));
+                maturity = dates.computeIfAbsent(days, asOf::plusDays);
+            }
+            double u = CounterRandom.uniform(seed, i, 0, RATE);
+            double v = CounterRandom.uniform(seed, i, 0, RATING);
+            double interestRate;
+            double liquidityRating;
+            switch (type) {
+                case "CASH":
+                    interestRate = 0.0;
+                    liquidityRating = 1.0;
+                    break;
+                case "BONDS":
+                    interestRate = 4.0 + 3.0 * u;
+                    liquidityRating = 0.5 + 0.45 * v;
+                    break;
+                case "MM_DEPOSIT":
+                    interestRate = 3.5 + 1.5 * u;
+                    liquidityRating = 0.6 + 0.3 * v;
+                    break;
+                case "LOANS":
+                    interestRate = 7.0 + 3.0 * u;
+                    liquidityRating = 0.1 + 0.3 * v;
+                    break;
+                default:
+                    interestRate = 0.0;
+                    liquidityRating = 0.4 + 0.4 * v;
+            }
+            assets.add(new Asset(type + "-" + i, type, amount, currencies[currency], interestRate, maturity, liquidityRating));
+        }
+        return TreasuryPortfolio.restore(baseCurrency, assets, marketData);
+    }
+    
+    // Recurring and one-off events over the next year, sized against the portfolio's operating cash
+    public CashFlow generateCashFlow(int positions, LocalDate asOf) {
+        int recurring = recurringEvents >= 0 ? recurringEvents : Math.max(3, positions / 1000);
+        int oneOff = oneOffEvents >= 0 ? oneOffEvents : Math.max(3, positions / 100);
+        double scale = medianPositionValue * Math.max(1, positions / 20);
+        CashFlow cashFlow = new CashFlow(scale * 2.0, scale * 1.7, scale * 0.2);
+        
+        // Events use their own stream, keyed past the positions' streams
+        long stream = seed ^ 0x5DEECE66DL;
+        for (int e = 0; e < recurring + oneOff; e++) {
+            boolean isRecurring = e < recurring;
+            boolean inflow = CounterRandom.uniform(stream, e, 0, EVENT_KIND) < 0.5;
+            String[] names = inflow ? INFLOW_NAMES : OUTFLOW_NAMES;
+            String description = names[(int) (CounterRandom.uniform(stream, e, 0, TYPE) * names.length)];
+            int interval = isRecurring 
+                ? RECURRING_INTERVALS[(int) (CounterRandom.uniform(stream, e, 0, RATE) * RECURRING_INTERVALS.length)] : 0;
+            int firstDay = 1 + (int) (CounterRandom.uniform(stream, e, 0, MATURITY) * (isRecurring ? interval : 365));
+            // Recurring amounts are per occurrence, so each event moves a similar yearly total
+            double amount = scale / Math.max(1, recurring + oneOff) * (isRecurring ? interval / 365.0 : 1.0) 
+                          * Math.exp(0.5 * CounterRandom.gaussian(stream, e, 0, AMOUNT));
+            LocalTime time = LocalTime.ofSecondOfDay(8 * 3600 + (int) (CounterRandom.uniform(stream, e, 0, RATING) * 9 * 3600));
+            cashFlow.addCashFlowEvent(new CashFlowEvent(description, asOf.plusDays(firstDay), amount, inflow, isRecurring, 
+                                                        interval, time, CashFlowEvent.PRIORITY_NORMAL));
+        }
+        return cashFlow;
+    }
+    
+    private static int pick(double[] weights, double u) {
+        double total = 0;
+        for (double weight : weights) total += weight;
+        double cumulative = 0;
+        for (int i = 0; i < weights.length - 1; i++) {
+            cumulative += weights[i] / total;
+            if (u < cumulative) return i;
+        }
+        return weights.length - 1;
+    }
+}
+
+// Wall time, peak heap and garbage collection of one benchmark stage at one portfolio size
+class BenchmarkStage {
+    private String stage;
+    private int positions;
+    private long wallMillis;
+    private long peakHeapBytes;
+    private long gcCount;
+    private long gcMillis;
+    
+    public BenchmarkStage(String stage, int positions, long wallMillis, long peakHeapBytes, long gcCount, long gcMillis) {
+        this.stage = stage;
+        this.positions = positions;
+        this.wallMillis = wallMillis;
+        this.peakHeapBytes = peakHeapBytes;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+    
+    public String getStage() {
+        return stage;
+    }
+    
+    public int getPositions() {
+        return positions;
+    }
+    
+    public long getWallMillis() {
+        return wallMillis;
+    }
+    
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+    
+    public long getGcCount() {
+        return gcCount;
+    }
+    
+    public long getGcMillis() {
+        return gcMillis;
+    }
+}
+
+// End-to-end macro-benchmark: init, a one-year projection, risk, stress and optimization over synthetic
+// portfolios of increasing size, one row per (size, stage) so regressions show up as curves
+class ScalingBenchmark {
+    static final String[] STAGES = {"INIT", "PROJECTION_365D", "RISK", "STRESS", "OPTIMIZE"};
+    static final int PROJECTION_DAYS = 365;
+    
+    private long seed;
+    private int simulationRuns;
+    private List<BenchmarkStage> results = new ArrayList<>();
+    
+    public ScalingBenchmark(long seed, int simulationRuns) {
+        this.seed = seed;
+        this.simulationRuns = simulationRuns;
+    }
+    
+    public List<BenchmarkStage> getResults() {
+        return results;
+    }
+    
+    public void run(int positions) {
+        LocalDate asOf = LocalDate.now();
+        MarketData marketData = new MarketData();
+        marketData.setRandomSource(new CounterRandom(seed, 0, 0));
+        
+        // Holders let each stage hand its state to the next one
+        TreasuryPortfolio[] portfolio = new TreasuryPortfolio[1];
+        CashFlow[] cashFlow = new CashFlow[1];
+        
+        measure("INIT", positions, () -> {
+            SyntheticPortfolioGenerator generator = new SyntheticPortfolioGenerator(seed, marketData);
+            portfolio[0] = generator.generatePortfolio(positions, asOf);
+            cashFlow[0] = generator.generateCashFlow(positions, asOf);
+        });
+        measure("PROJECTION_365D", positions, () -> {
+            for (int day = 0; day < PROJECTION_DAYS; day++) {
+                TreasuryLiquiditySimulator.simulateNextDay(marketData, portfolio[0], cashFlow[0], asOf.plusDays(day), null);
+            }
+        });
+        LocalDate projected = asOf.plusDays(PROJECTION_DAYS);
+        RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio[0], marketData, simulationRuns);
+        measure("RISK", positions, () -> {
+            riskAnalysis.runLiquidityRiskSimulation(30, seed);
+            riskAnalysis.assessInterestRateRisk(1.0);
+            new CurrencyRiskManager(portfolio[0], marketData).calculateCurrencyExposure();
+            LiquidityRatioEngine.standard().compute(portfolio[0], cashFlow[0], projected, marketData);
+        });
+        measure("STRESS", positions, () -> {
+            StressTester stressTester = new StressTester(portfolio[0], marketData, riskAnalysis, cashFlow[0]);
+            stressTester.runLiquidityCrisisScenario(seed);
+            stressTester.runScenarioPack(StressScenarioLibrary.standardScenarios(portfolio[0].getBaseCurrency(), 
+                                                                                 marketData.getLiquidityIndex()), 
+                                         30, simulationRuns, seed);
+        });
+        measure("OPTIMIZE", positions, () -> {
+            CashOptimizationStrategy optimizer = new CashOptimizationStrategy(portfolio[0], marketData);
+            optimizer.recommendCashAction();
+            optimizer.optimizeCashLadder(cashFlow[0], projected, 90);
+            new InvestmentStrategy(portfolio[0], marketData, 0.5).generateOptimalAllocation();
+        });
+    }
+    
+    // Peak heap is the sum of the heap pools' peaks since the stage started; GC figures are collector deltas
+    private void measure(String stage, int positions, Runnable work) {
+        List<java.lang.management.MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long[] gcBefore = gcTotals();
+        long start = System.nanoTime();
+        
+        work.run();
+        
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        long[] gcAfter = gcTotals();
+        long peakHeap = 0;
+        for (java.lang.management.MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        BenchmarkStage result = new BenchmarkStage(stage, positions, wallMillis, peakHeap, 
+                                                   gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+        results.add(result);
+        System.out.println(format(result));
+    }
+    
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+    
+    static String header() {
+        return String.format("%12s %-16s %12s %14s %10s %10s", "POSITIONS", "STAGE", "WALL_MS", "PEAK_HEAP_MB", "GC_COUNT", "GC_MS");
+    }
+    
+    static String format(BenchmarkStage result) {
+        return String.format("%12d %-16s %12d %14.1f %10d %10d", result.getPositions(), result.getStage(), 
+                             result.getWallMillis(), result.getPeakHeapBytes() / 1048576.0, 
+                             result.getGcCount(), result.getGcMillis());
+    }
+    
+    public void writeCsv(Writer out) throws IOException {
+        out.write("POSITIONS,STAGE,WALL_MS,PEAK_HEAP_BYTES,GC_COUNT,GC_MS\n");
+        for (BenchmarkStage result : results) {
+            out.write(result.getPositions() + "," + result.getStage() + "," + result.getWallMillis() + "," 
+                      + result.getPeakHeapBytes() + "," + result.getGcCount() + "," + result.getGcMillis() + "\n");
+        }
+    }
+    
+    // --benchmark [maxPositions] [csvFile] [seed]: sizes 10^3, 10^4, ... up to maxPositions (10^7 needs about -Xmx4g)
+    static void runFromCommandLine(String[] args) {
+        int maxPositions = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        ScalingBenchmark benchmark = new ScalingBenchmark(seed, 1000);
+        
+        System.out.println("\n===== SCALING BENCHMARK (" + PROJECTION_DAYS + "-DAY PROJECTION, SEED " + seed + ") =====");
+        System.out.println(header());
+        for (long positions = 1000; positions <= maxPositions; positions *= 10) {
+            benchmark.run((int) positions);
+        }
+        
+        if (args.length > 1) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+                benchmark.writeCsv(out);
+                System.out.println("Benchmark results written to " + args[1]);
+            } catch (IOException e) {
+                System.out.println("Could not write benchmark results: " + e.getMessage());
+            }
+        }
+    }
+}
+
+// Receives the named values of a result in order; labels and sections are only for human-readable renderers
+interface ResultFieldWriter {
+    void section(String label);
+    
+    void amount(String name, String label, double value);
+    
+    // Fractions, e.g. 0.25 for 25%
+    void percent(String name, String label, double value);
+    
+    void number(String name, String label, double value);
+    
+    void text(String name, String label, String value);
+}
+
+// A typed analytic result that any exporter or renderer can consume
+interface AnalyticsResult {
+    // Record type for exporters, e.g. RISK_ANALYSIS
+    String getKind();
+    
+    // Heading for human-readable renderers
+    String getTitle();
+    
+    void writeFields(ResultFieldWriter out);
+    
+    default List<String> getRecommendations() {
+        return Collections.emptyList();
+    }
+}
+
+// Destination for analytic results: the console or a CSV, JSON Lines or columnar binary file
+interface ResultExporter extends Closeable {
+    void export(AnalyticsResult result) throws IOException;
+    
+    static ResultExporter open(String format, Path path) throws IOException {
+        switch (format.toLowerCase()) {
+            case "csv":
+                return new CsvResultExporter(path);
+            case "jsonl":
+                return new JsonLinesResultExporter(path);
+            case "columnar":
+                return new ColumnarResultExporter(path);
+            default:
+                throw new IllegalArgumentException("Unknown export format " + format + " (csv, jsonl or columnar)");
+        }
+    }
+}
+
+// Human-readable view of any result; formats are built once per renderer and each result is printed in one write
+class ConsoleResultRenderer implements ResultExporter, ResultFieldWriter {
+    private PrintStream out;
+    private DecimalFormat amountFormat = new DecimalFormat("#,##0.00");
+    private DecimalFormat percentFormat = new DecimalFormat("0.00%");
+    private DecimalFormat numberFormat = new DecimalFormat("#,##0.##");
+    private StringBuilder text = new StringBuilder();
+    
+    public ConsoleResultRenderer(PrintStream out) {
+        this.out = out;
+    }
+    
+    static void print(AnalyticsResult result) {
+        new ConsoleResultRenderer(System.out).export(result);
+    }
+    
+    @Override
+    public void export(AnalyticsResult result) {
+        text.setLength(0);
+        text.append("\n===== ").append(result.getTitle()).append(" =====\n");
+        result.writeFields(this);
+        if (!result.getRecommendations().isEmpty()) {
+            text.append("\nRECOMMENDATIONS:\n");
+            for (String recommendation : result.getRecommendations()) {
+                text.append("- ").append(recommendation).append('\n');
+            }
+        }
+        out.print(text);
+        out.flush();
+    }
+    
+    @Override
+    public void section(String label) {
+        text.append('\n').append(label.toUpperCase()).append(":\n");
+    }
+    
+    @Override
+    public void amount(String name, String label, double value) {
+        text.append("  ").append(label).append(": ").append(amountFormat.format(value + 0.0)).append('\n');
+    }
+    
+    @Override
+    public void percent(String name, String label, double value) {
+        text.append("  ").append(label).append(": ")
+            .append(Double.isFinite(value) ? percentFormat.format(value) : "n/a").append('\n');
+    }
+    
+    @Override
+    public void number(String name, String label, double value) {
+        // Adding 0.0 turns -0.0 into 0.0, which would otherwise print as "-0"
+        text.append("  ").append(label).append(": ").append(numberFormat.format(value + 0.0)).append('\n');
+    }
+    
+    @Override
+    public void text(String name, String label, String value) {
+        text.append("  ").append(label).append(": ").append(value).append('\n');
+    }
+    
+    @Override
+    public void close() {
+        out.flush();
+    }
+}
+
+// Flattens one result into parallel name/value lists for the file exporters
+class ResultRecord implements ResultFieldWriter {
+    static final String RECOMMENDATIONS = "RECOMMENDATIONS";
+    
+    final List<String> names = new ArrayList<>();
+    final List<Boolean> textual = new ArrayList<>();
+    final List<Object> values = new ArrayList<>();
+    
+    static ResultRecord of(AnalyticsResult result) {
+        ResultRecord record = new ResultRecord();
+        result.writeFields(record);
+        record.text(RECOMMENDATIONS, RECOMMENDATIONS, String.join("\n", result.getRecommendations()));
+        return record;
+    }
+    
+    @Override
+    public void section(String label) {
+    }
+    
+    @Override
+    public void amount(String name, String label, double value) {
+        add(name, false, value);
+    }
+    
+    @Override
+    public void percent(String name, String label, double value) {
+        add(name, false, value);
+    }
+    
+    @Override
+    public void number(String name, String label, double value) {
+        add(name, false, value);
+    }
+    
+    @Override
+    public void text(String name, String label, String value) {
+        add(name, true, value);
+    }
+    
+    private void add(String name, boolean isText, Object value) {
+        names.add(name);
+        textual.add(isText);
+        values.add(value);
+    }
+}
+
+// Append-only file written through one large ByteBuffer and a FileChannel
+class ResultChannel implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    
+    public ResultChannel(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    
+    public void write(String text) throws IOException {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public void write(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) flush();
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+    
+    public void writeByte(int value) throws IOException {
+        if (buffer.remaining() < 1) flush();
+        buffer.put((byte) value);
+    }
+    
+    public void writeInt(int value) throws IOException {
+        if (buffer.remaining() < 4) flush();
+        buffer.putInt(value);
+    }
+    
+    public void writeDouble(double value) throws IOException {
+        if (buffer.remaining() < 8) flush();
+        buffer.putDouble(value);
+    }
+    
+    // Length-prefixed UTF-8
+    public void writeText(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        write(bytes);
+    }
+    
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+// One row per result; a header row is written whenever the kind or its columns change
+class CsvResultExporter implements ResultExporter {
+    private ResultChannel channel;
+    private String currentKind;
+    private List<String> currentColumns;
+    private StringBuilder line = new StringBuilder();
+    
+    public CsvResultExporter(Path path) throws IOException {
+        channel = new ResultChannel(path);
+    }
+    
+    @Override
+    public void export(AnalyticsResult result) throws IOException {
+        ResultRecord record = ResultRecord.of(result);
+        line.setLength(0);
+        if (!result.getKind().equals(currentKind) || !record.names.equals(currentColumns)) {
+            currentKind = result.getKind();
+            currentColumns = record.names;
+            line.append("KIND");
+            for (String name : record.names) {
+                line.append(',').append(name);
+            }
+            line.append('\n');
+        }
+        line.append(currentKind);
+        for (int i = 0; i < record.values.size(); i++) {
+            line.append(',');
+            if (record.textual.get(i)) {
+                appendQuoted((String) record.values.get(i));
+            } else {
+                line.append((double) (Double) record.values.get(i));
+            }
+        }
+        channel.write(line.append('\n').toString());
+    }
+    
+    private void appendQuoted(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// One JSON object per line; non-finite numbers are written as null
+class JsonLinesResultExporter implements ResultExporter {
+    private ResultChannel channel;
+    private StringBuilder line = new StringBuilder();
+    
+    public JsonLinesResultExporter(Path path) throws IOException {
+        channel = new ResultChannel(path);
+    }
+    
+    @Override
+    public void export(AnalyticsResult result) throws IOException {
+        ResultRecord record = ResultRecord.of(result);
+        line.setLength(0);
+        line.append("{\"KIND\":");
+        appendString(result.getKind());
+        for (int i = 0; i < record.values.size(); i++) {
+            line.append(',');
+            appendString(record.names.get(i));
+            line.append(':');
+            if (record.names.get(i).equals(ResultRecord.RECOMMENDATIONS)) {
+                line.append('[');
+                List<String> recommendations = result.getRecommendations();
+                for (int r = 0; r < recommendations.size(); r++) {
+                    if (r > 0) line.append(',');
+                    appendString(recommendations.get(r));
+                }
+                line.append(']');
+            } else if (record.textual.get(i)) {
+                appendString((String) record.values.get(i));
+            } else {
+                double value = (Double) record.values.get(i);
+                if (Double.isFinite(value)) {
+                    line.append(value);
+                } else {
+                    line.append("null");
+                }
+            }
+        }
+        channel.write(line.append("}\n").toString());
+    }
+    
+    private void appendString(String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Columnar binary: results are buffered per schema and written as blocks of contiguous columns.
+// File: [MAGIC] then blocks of [kind][rows][columns] and per column [name][type][values...];
+// numeric columns are big-endian doubles, text columns and names are length-prefixed UTF-8.
+class ColumnarResultExporter implements ResultExporter {
+    static final int MAGIC = 0x54524331;  // "TRC1"
+    static final byte NUMERIC = 0;
+    static final byte TEXT = 1;
+    static final int BLOCK_ROWS = 8192;
+    
+    private ResultChannel channel;
+    private String kind;
+    private List<String> columns;
+    private List<Boolean> textual;
+    private double[][] numericValues;
+    private String[][] textValues;
+    private int rows;
+    
+    public ColumnarResultExporter(Path path) throws IOException {
+        channel = new ResultChannel(path);
+        channel.writeInt(MAGIC);
+    }
+    
+    @Override
+    public void export(AnalyticsResult result) throws IOException {
+        ResultRecord record = ResultRecord.of(result);
+        if (!result.getKind().equals(kind) || !record.names.equals(columns)) {
+            flushBlock();
+            kind = result.getKind();
+            columns = record.names;
+            textual = record.textual;
+            numericValues = new double[columns.size()][];
+            textValues = new String[columns.size()][];
+            for (int c = 0; c < columns.size(); c++) {
+                if (textual.get(c)) {
+                    textValues[c] = new String[BLOCK_ROWS];
+                } else {
+                    numericValues[c] = new double[BLOCK_ROWS];
+                }
+            }
+        }
+        for (int c = 0; c < columns.size(); c++) {
+            if (textual.get(c)) {
+                textValues[c][rows] = (String) record.values.get(c);
+            } else {
+                numericValues[c][rows] = (Double) record.values.get(c);
+            }
+        }
+        if (++rows == BLOCK_ROWS) flushBlock();
+    }
+    
+    private void flushBlock() throws IOException {
+        if (rows == 0) return;
+        channel.writeText(kind);
+        channel.writeInt(rows);
+        channel.writeInt(columns.size());
+        for (int c = 0; c < columns.size(); c++) {
+            channel.writeText(columns.get(c));
+            channel.writeByte(textual.get(c) ? TEXT : NUMERIC);
+            for (int r = 0; r < rows; r++) {
+                if (textual.get(c)) {
+                    channel.writeText(textValues[c][r]);
+                } else {
+                    channel.writeDouble(numericValues[c][r]);
+                }
+            }
+        }
+        rows = 0;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+// Results of RiskAnalysis.analyzeRisk
+class RiskReport implements AnalyticsResult {
+    private int forecastDays;
+    private int simulationRuns;
+    private Map<String, Double> cashOutcomes;
+    private double reserveRequirement;
+    private double shortfallProbability;
+    private double rateUpImpact;
+    private double rateDownImpact;
+    private long seed;
+    
+    public RiskReport(int forecastDays, int simulationRuns, Map<String, Double> cashOutcomes, double reserveRequirement, 
+                      double shortfallProbability, double rateUpImpact, double rateDownImpact, long seed) {
+        this.forecastDays = forecastDays;
+        this.simulationRuns = simulationRuns;
+        this.cashOutcomes = cashOutcomes;
+        this.reserveRequirement = reserveRequirement;
+        this.shortfallProbability = shortfallProbability;
+        this.rateUpImpact = rateUpImpact;
+        this.rateDownImpact = rateDownImpact;
+        this.seed = seed;
+    }
+    
+    // WORST_CASE, PERCENTILE_5, MEAN, PERCENTILE_95 and BEST_CASE of RiskAnalysis.runLiquidityRiskSimulation
+    public Map<String, Double> getCashOutcomes() {
+        return cashOutcomes;
+    }
+    
+    public double getReserveRequirement() {
+        return reserveRequirement;
+    }
+    
+    public double getShortfallProbability() {
+        return shortfallProbability;
+    }
+    
+    public double getRateUpImpact() {
+        return rateUpImpact;
+    }
+    
+    public double getRateDownImpact() {
+        return rateDownImpact;
+    }
+    
+    // Path i of the run is regenerated with RiskAnalysis.explainPath(forecastDays, seed, i)
+    public long getSeed() {
+        return seed;
+    }
+    
+    @Override
+    public String getKind() {
+        return "RISK_ANALYSIS";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "RISK ANALYSIS";
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.number("FORECAST_DAYS", "Forecast days", forecastDays);
+        out.number("SIMULATION_RUNS", "Simulation runs", simulationRuns);
+        out.text("SEED", "Seed", Long.toString(seed));
+        out.section("Cash position after " + forecastDays + " days (Monte Carlo)");
+        out.amount("WORST_CASE", "Worst Case", cashOutcomes.get("WORST_CASE"));
+        out.amount("PERCENTILE_5", "5th Percentile", cashOutcomes.get("PERCENTILE_5"));
+        out.amount("MEAN", "Average", cashOutcomes.get("MEAN"));
+        out.amount("PERCENTILE_95", "95th Percentile", cashOutcomes.get("PERCENTILE_95"));
+        out.amount("BEST_CASE", "Best Case", cashOutcomes.get("BEST_CASE"));
+        out.section("Cash reserve requirement");
+        out.amount("RESERVE_REQUIREMENT", "Required reserve", reserveRequirement);
+        out.percent("SHORTFALL_PROBABILITY", "Probability of insufficient liquidity", shortfallProbability);
+        out.section("Interest rate risk");
+        out.amount("RATE_UP_1PCT_IMPACT", "Impact of 1% rate increase", rateUpImpact);
+        out.amount("RATE_DOWN_1PCT_IMPACT", "Impact of 1% rate decrease", rateDownImpact);
+    }
+}
+
+// Results of StressTester.runStressTests
+class StressTestReport implements AnalyticsResult {
+    private Map<String, Double> liquidityCrisis;
+    private double[] rateShocks;
+    private double[] rateShockImpactPercents;
+    private double currencyShockPercent;
+    private double currencyImpactPercent;
+    private double resilienceScore;
+    
+    public StressTestReport(Map<String, Double> liquidityCrisis, double[] rateShocks, double[] rateShockImpactPercents, 
+                            double currencyShockPercent, double currencyImpactPercent, double resilienceScore) {
+        this.liquidityCrisis = liquidityCrisis;
+        this.rateShocks = rateShocks;
+        this.rateShockImpactPercents = rateShockImpactPercents;
+        this.currencyShockPercent = currencyShockPercent;
+        this.currencyImpactPercent = currencyImpactPercent;
+        this.resilienceScore = resilienceScore;
+    }
+    
+    // LIQUIDITY_RATIO, SURVIVAL_DAYS and SHORTFALL_PROBABILITY of StressTester.runLiquidityCrisisScenario
+    public Map<String, Double> getLiquidityCrisis() {
+        return liquidityCrisis;
+    }
+    
+    public double[] getRateShocks() {
+        return rateShocks;
+    }
+    
+    // Portfolio impact in percent for each rate shock
+    public double[] getRateShockImpactPercents() {
+        return rateShockImpactPercents;
+    }
+    
+    public double getCurrencyImpactPercent() {
+        return currencyImpactPercent;
+    }
+    
+    public double getResilienceScore() {
+        return resilienceScore;
+    }
+    
+    public String getResilienceRating() {
+        return resilienceScore >= 7.5 ? "STRONG" : resilienceScore >= 5.0 ? "MODERATE" : "VULNERABLE";
+    }
+    
+    @Override
+    public String getKind() {
+        return "STRESS_TEST";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "COMPREHENSIVE STRESS TEST RESULTS";
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.section("Liquidity crisis scenario");
+        out.percent("LIQUIDITY_RATIO", "Effective liquidity ratio", liquidityCrisis.get("LIQUIDITY_RATIO"));
+        out.number("SURVIVAL_DAYS", "Estimated survival period (days)", liquidityCrisis.get("SURVIVAL_DAYS"));
+        out.percent("SHORTFALL_PROBABILITY", "Probability of cash shortfall", liquidityCrisis.get("SHORTFALL_PROBABILITY"));
+        out.section("Interest rate shock scenarios");
+        for (int s = 0; s < rateShocks.length; s++) {
+            out.percent("RATE_SHOCK_" + (int) rateShocks[s] + "PCT_IMPACT", rateShocks[s] + "% rate increase, portfolio impact", 
+                        rateShockImpactPercents[s] / 100);
+        }
+        out.section("Currency shock scenario (" + currencyShockPercent + "% depreciation)");
+        out.percent("CURRENCY_SHOCK_IMPACT", "Impact on portfolio value", currencyImpactPercent / 100);
+        out.section("Overall treasury resilience assessment");
+        out.number("RESILIENCE_SCORE", "Score (out of 10)", resilienceScore);
+        out.text("RESILIENCE_RATING", "Rating", getResilienceRating());
+    }
+    
+    @Override
+    public List<String> getRecommendations() {
+        switch (getResilienceRating()) {
+            case "STRONG":
+                return Collections.singletonList("The treasury portfolio demonstrates robust resilience to various market stresses.");
+            case "MODERATE":
+                return Collections.singletonList("The treasury portfolio shows adequate resilience but has areas for improvement.");
+            default:
+                return Arrays.asList("The treasury portfolio shows significant vulnerabilities to market stresses.", 
+                                     "Immediate action recommended to strengthen resilience.");
+        }
+    }
+}
+
+// Results of CurrencyRiskManager.analyzeExposure
+class CurrencyExposureReport implements AnalyticsResult {
+    static final double HIGH_EXPOSURE = 0.2;
+    
+    private String reportingCurrency;
+    private Map<String, Double> exposure;
+    
+    public CurrencyExposureReport(String reportingCurrency, Map<String, Double> exposure) {
+        this.reportingCurrency = reportingCurrency;
+        this.exposure = new TreeMap<>(exposure);
+    }
+    
+    public String getReportingCurrency() {
+        return reportingCurrency;
+    }
+    
+    // Share of the portfolio's value held in each currency
+    public Map<String, Double> getExposure() {
+        return exposure;
+    }
+    
+    @Override
+    public String getKind() {
+        return "CURRENCY_EXPOSURE";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "CURRENCY EXPOSURE ANALYSIS (" + reportingCurrency + ")";
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.text("REPORTING_CURRENCY", "Reporting currency", reportingCurrency);
+        for (Map.Entry<String, Double> entry : exposure.entrySet()) {
+            out.percent("EXPOSURE_" + entry.getKey(), entry.getKey(), entry.getValue());
+        }
+    }
+    
+    @Override
+    public List<String> getRecommendations() {
+        List<String> recommendations = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : exposure.entrySet()) {
+            if (!entry.getKey().equals(reportingCurrency) && entry.getValue() > HIGH_EXPOSURE) {
+                recommendations.add("⚠️ High exposure to " + entry.getKey() + ". Consider hedging to reduce currency risk.");
+            }
+        }
+        return recommendations;
+    }
+}
+
+// Results of InvestmentStrategy.analyzeAllocation
+class AllocationReport implements AnalyticsResult {
+    static final String[] BUCKETS = {"CASH", "SHORT_TERM_BONDS", "MEDIUM_TERM_BONDS", "LONG_TERM_BONDS", "ALTERNATIVES"};
+    static final String[] BUCKET_LABELS = {"Cash", "Short-term Bonds (< 1 year)", "Medium-term Bonds (1-3 years)", 
+                                           "Long-term Bonds (> 3 years)", "Alternative Investments"};
+    
+    private String currency;
+    private double riskTolerance;
+    private double marketLiquidity;
+    private Map<String, Double> allocation;
+    private double currentCash;
+    private List<String> recommendations;
+    
+    public AllocationReport(String currency, double riskTolerance, double marketLiquidity, Map<String, Double> allocation, 
+                            double currentCash, List<String> recommendations) {
+        this.currency = currency;
+        this.riskTolerance = riskTolerance;
+        this.marketLiquidity = marketLiquidity;
+        this.allocation = allocation;
+        this.currentCash = currentCash;
+        this.recommendations = recommendations;
+    }
+    
+    // Shares and <bucket>_AMOUNT values of InvestmentStrategy.generateOptimalAllocation
+    public Map<String, Double> getAllocation() {
+        return allocation;
+    }
+    
+    // Positive when cash should be raised to reach the recommended allocation
+    public double getCashAdjustment() {
+        return allocation.get("CASH_AMOUNT") - currentCash;
+    }
+    
+    @Override
+    public String getKind() {
+        return "ALLOCATION";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "OPTIMAL PORTFOLIO ALLOCATION";
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.number("RISK_TOLERANCE", "Risk Tolerance Level (out of 10)", riskTolerance * 10);
+        out.percent("MARKET_LIQUIDITY", "Current Market Liquidity", marketLiquidity);
+        out.section("Recommended asset allocation");
+        for (int b = 0; b < BUCKETS.length; b++) {
+            out.percent(BUCKETS[b], BUCKET_LABELS[b], allocation.get(BUCKETS[b]));
+            out.amount(BUCKETS[b] + "_AMOUNT", BUCKET_LABELS[b] + " (" + currency + ")", allocation.get(BUCKETS[b] + "_AMOUNT"));
+        }
+        out.section("Cash position adjustment");
+        out.amount("CURRENT_CASH", "Current cash", currentCash);
+        out.amount("CASH_ADJUSTMENT", "Adjustment to recommended cash", getCashAdjustment());
+    }
+    
+    @Override
+    public List<String> getRecommendations() {
+        return recommendations;
+    }
+}
+
+// Batch run of the portfolio analytics straight into a result file
+class ResultExportRun {
+    // --export <csv|jsonl|columnar> <file> [scenarios] [seed]
+    static void runFromCommandLine(String[] args) {
+        String format = args[0];
+        Path path = Paths.get(args[1]);
+        int scenarioCount = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        RiskAnalysis riskAnalysis = new RiskAnalysis(portfolio, marketData, 1000);
+        StressTester stressTester = new StressTester(portfolio, marketData, riskAnalysis, 
+                                                     TreasuryLiquiditySimulator.createDefaultCashFlow());
+        
+        long start = System.currentTimeMillis();
+        int exported = 0;
+        try (ResultExporter exporter = ResultExporter.open(format, path)) {
+            exporter.export(riskAnalysis.analyzeRisk(30, seed));
+            exporter.export(stressTester.runStressTests(seed));
+            exporter.export(new CurrencyRiskManager(portfolio, marketData).analyzeExposure());
+            exporter.export(new InvestmentStrategy(portfolio, marketData, 0.5).analyzeAllocation());
+            exporter.export(new CashOptimizationStrategy(portfolio, marketData).recommendCashAction());
+            exported += 5;
+            for (ScenarioResult result : stressTester.runScenarioPack(StressScenarioLibrary.regulatoryPack(scenarioCount), 30, 1000, seed)) {
+                exporter.export(result);
+                exported++;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // An unknown format is reported with the ones ResultExporter.open accepts
+            System.out.println("Could not export results: " + e.getMessage());
+            return;
+        }
+        System.out.println("Exported " + exported + " results to " + path + " (" + format + ") in " 
+                         + (System.currentTimeMillis() - start) + " ms (seed " + seed + ")");
+    }
+}
+
+// Minimal-norm breach point found by ReverseStressTester
+class ReverseStressResult implements AnalyticsResult {
+    private double[] shock;
+    private double norm;
+    private boolean breachFound;
+    private double reserveRequirement;
+    private double cashAtBreach;
+    private double[] singleFactorThresholds;
+    private int fullEvaluations;
+    private int surrogateEvaluations;
+    
+    public ReverseStressResult(double[] shock, double norm, boolean breachFound, double reserveRequirement, 
+                               double cashAtBreach, double[] singleFactorThresholds, int fullEvaluations, 
+                               int surrogateEvaluations) {
+        this.shock = shock;
+        this.norm = norm;
+        this.breachFound = breachFound;
+        this.reserveRequirement = reserveRequirement;
+        this.cashAtBreach = cashAtBreach;
+        this.singleFactorThresholds = singleFactorThresholds;
+        this.fullEvaluations = fullEvaluations;
+        this.surrogateEvaluations = surrogateEvaluations;
+    }
+    
+    // Scenario values indexed by ReverseStressTester.RATE, FX, LIQUIDITY and OUTFLOW
+    public double[] getShock() {
+        return shock;
+    }
+    
+    // Length of the shock in scale units (ReverseStressTester.DEFAULT_SCALES)
+    public double getNorm() {
+        return norm;
+    }
+    
+    public boolean isBreachFound() {
+        return breachFound;
+    }
+    
+    public double getCashAtBreach() {
+        return cashAtBreach;
+    }
+    
+    // Scenario value at which each factor alone breaches the reserve, NaN when it cannot within the search bound
+    public double[] getSingleFactorThresholds() {
+        return singleFactorThresholds;
+    }
+    
+    public int getFullEvaluations() {
+        return fullEvaluations;
+    }
+    
+    public int getSurrogateEvaluations() {
+        return surrogateEvaluations;
+    }
+    
+    @Override
+    public String getKind() {
+        return "REVERSE_STRESS";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "REVERSE STRESS TEST";
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.amount("RESERVE_REQUIREMENT", "Cash reserve requirement", reserveRequirement);
+        out.text("BREACH_FOUND", "Breach found within search bound", breachFound ? "YES" : "NO");
+        out.section("Smallest combined shock that breaches the reserve");
+        out.number("RATE_SHIFT_PERCENT", "Rate shift (%)", shock[ReverseStressTester.RATE]);
+        out.number("FX_MOVE_PERCENT", "FX move (%)", shock[ReverseStressTester.FX]);
+        out.number("MARKET_LIQUIDITY", "Market liquidity", shock[ReverseStressTester.LIQUIDITY]);
+        out.number("OUTFLOW_MULTIPLIER", "Outflow multiplier", shock[ReverseStressTester.OUTFLOW]);
+        out.number("SHOCK_NORM", "Shock size (scale units)", norm);
+        out.amount("CASH_AT_BREACH", "Stressed cash at that shock (after rate and FX impacts)", cashAtBreach);
+        out.section("Each factor alone");
+        for (int f = 0; f < ReverseStressTester.FACTORS.length; f++) {
+            String name = ReverseStressTester.FACTORS[f];
+            if (Double.isNaN(singleFactorThresholds[f])) {
+                out.text(name + "_ALONE", ReverseStressTester.FACTOR_LABELS[f], "no breach within search bound");
+            } else {
+                out.number(name + "_ALONE", ReverseStressTester.FACTOR_LABELS[f], singleFactorThresholds[f]);
+            }
+        }
+        out.section("Search cost");
+        out.number("FULL_EVALUATIONS", "Full portfolio evaluations", fullEvaluations);
+        out.number("SURROGATE_EVALUATIONS", "Surrogate evaluations", surrogateEvaluations);
+    }
+}
+
+// Reverse stress test: the smallest move in (rates, FX, market liquidity, outflows) that pushes the
+// 5th-percentile cash position, after mark-to-market rate and FX impacts, below totalValue * 0.2.
+// Shocks are measured in scale units, so the norm compares e.g. 1% on rates with 10% on FX.
+// The search runs on a surrogate: one cached set of paths, with the market-liquidity effect interpolated
+// from a grid of starting levels. The surrogate's minimal-norm breach point is found by repeatedly
+// projecting onto its linearized breach boundary; full StressTester evaluations then only confirm it,
+// bisecting along the ray to that point a few probes at a time in parallel.
+class ReverseStressTester {
+    static final int RATE = 0;
+    static final int FX = 1;
+    static final int LIQUIDITY = 2;
+    static final int OUTFLOW = 3;
+    static final String[] FACTORS = {"RATE_SHIFT_PERCENT", "FX_MOVE_PERCENT", "MARKET_LIQUIDITY", "OUTFLOW_MULTIPLIER"};
+    static final String[] FACTOR_LABELS = {"Rate shift (%)", "FX move (%)", "Market liquidity", "Outflow multiplier"};
+    
+    // One scale unit per factor: 1% on rates, 10% on FX, -0.1 market liquidity, +0.25x outflows
+    static final double[] DEFAULT_SCALES = {1.0, 10.0, 0.1, 0.25};
+    static final double MIN_LIQUIDITY = 0.05;
+    static final double MAX_NORM = 200.0;
+    static final double PERCENTILE = 0.05;
+    static final double LIQUIDITY_GRID_STEP = 0.05;
+    static final int PROBES_PER_ROUND = 4;
+    static final int BISECTION_ROUNDS = 3;
+    static final double TOLERANCE = 0.01;
+    static final int MAX_ITERATIONS = 40;
+    
+    private StressTester stressTester;
+    private int days;
+    private int paths;
+    private long seed;
+    private double[] scales = DEFAULT_SCALES;
+    
+    private double reserveRequirement;
+    private double startCash;
+    private double startLiquidity;
+    private double rateSensitivity;
+    private double foreignValue;
+    private double[] revenue;
+    private double[] expense;
+    private double[][] marketEffectGrid;  // [grid level][path]
+    private double[] cash;
+    private AtomicInteger fullEvaluations = new AtomicInteger();
+    private int surrogateEvaluations;
+    
+    public ReverseStressTester(StressTester stressTester, TreasuryPortfolio portfolio, MarketData marketData, 
+                               int days, int paths, long seed) {
+        this.stressTester = stressTester;
+        this.days = days;
+        this.paths = paths;
+        this.seed = seed;
+        
+        double totalValue = portfolio.getTotalValue();
+        reserveRequirement = totalValue * 0.2;
+        startCash = portfolio.getCashReserve();
+        startLiquidity = marketData.getLiquidityIndex();
+        FxMatrix fx = marketData.fx();
+        int base = FxMatrix.currencyId(portfolio.getBaseCurrency());
+        for (Asset asset : portfolio.getAssets()) {
+            if (asset.getMaturityDate() != null) {
+                rateSensitivity += -portfolio.baseValue(asset) * RiskAnalysis.durationYears(asset) / 100;
+            }
+            if (!asset.getCurrency().equals(portfolio.getBaseCurrency())) {
+                foreignValue += fx.convert(asset.getAmount(), FxMatrix.currencyId(asset.getCurrency()), base);
+            }
+        }
+        
+        // The same path streams StressTester.runScenarioPack draws, generated once
+        revenue = new double[paths];
+        expense = new double[paths];
+        double[] liquidityShocks = new double[paths * days];
+        for (int p = 0; p < paths; p++) {
+            for (int day = 0; day < days; day++) {
+                expense[p] += totalValue * RiskAnalysis.EXPENSE_RATE * (1 + CounterRandom.gaussian(seed, p, day, RiskAnalysis.EXPENSE_SHOCK) * RiskAnalysis.EXPENSE_VOLATILITY);
+                revenue[p] += totalValue * RiskAnalysis.REVENUE_RATE * (1 + CounterRandom.gaussian(seed, p, day, RiskAnalysis.REVENUE_SHOCK) * RiskAnalysis.REVENUE_VOLATILITY);
+                liquidityShocks[p * days + day] = CounterRandom.gaussian(seed, p, day, RiskAnalysis.LIQUIDITY_SHOCK);
+            }
+        }
+        int levels = (int) Math.ceil(1.0 / LIQUIDITY_GRID_STEP) + 1;
+        marketEffectGrid = new double[levels][];
+        for (int g = 0; g < levels; g++) {
+            marketEffectGrid[g] = StressTester.replayMarketEffect(g * LIQUIDITY_GRID_STEP, liquidityShocks, paths, days, totalValue);
+        }
+        cash = new double[paths];
+    }
+    
+    public void setScales(double[] scales) {
+        this.scales = scales;
+    }
+    
+    public ReverseStressResult search() {
+        double[] x = new double[FACTORS.length];
+        double baseHeadroom = fullHeadroom(toScenario(x, "BASE"));
+        if (baseHeadroom <= 0) {
+            return new ReverseStressResult(toShock(x), 0.0, true, reserveRequirement, baseHeadroom + reserveRequirement, 
+                                           singleFactorThresholds(), fullEvaluations.get(), surrogateEvaluations);
+        }
+        
+        // Minimal-norm point of the surrogate's breach boundary
+        // Kinks in the surrogate (percentile, liquidity grid, bounds) can make the plain iteration cycle,
+        // so each step is halved whenever it crosses the boundary and the smallest breaching iterate is kept
+        double relaxation = 1.0;
+        double previous = Double.NaN;
+        double[] best = null;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            double h = surrogateHeadroom(x);
+            if (h <= 0 && (best == null || norm(x) < norm(best))) best = x;
+            if (h * previous < 0) relaxation = Math.max(relaxation / 2, 1.0 / 64);
+            previous = h;
+            double[] gradient = surrogateGradient(x);
+            double gradientNorm2 = dot(gradient, gradient);
+            if (gradientNorm2 == 0) break;
+            double step = (dot(gradient, x) - h) / gradientNorm2;
+            double[] next = new double[x.length];
+            for (int f = 0; f < x.length; f++) {
+                next[f] = x[f] + relaxation * (step * gradient[f] - x[f]);
+            }
+            project(next);
+            double moved = 0;
+            for (int f = 0; f < x.length; f++) {
+                moved = Math.max(moved, Math.abs(next[f] - x[f]));
+            }
+            x = next;
+            if (norm(x) > MAX_NORM || moved < 1e-4 * Math.max(1, norm(x))) break;
+        }
+        if (best != null && norm(best) <= norm(x)) x = best;
+        if (!(norm(x) > 0) || norm(x) > MAX_NORM) {
+            return noBreach();
+        }
+        
+        // Confirm along the ray to the surrogate point: [lo, hi] brackets the breach in multiples of that point.
+        // The first probes sit tightly around the surrogate's answer, so an accurate surrogate needs one round.
+        double lo = 0.0;
+        double hi = Double.NaN;
+        double hiHeadroom = Double.NaN;
+        double[] round = {0.99, 1.0, 1.01, 1.05};
+        while (Double.isNaN(hi)) {
+            double[] headrooms = fullHeadrooms(x, round);
+            for (int i = 0; i < round.length; i++) {
+                if (headrooms[i] <= 0) {
+                    hi = round[i];
+                    hiHeadroom = headrooms[i];
+                    break;
+                }
+                lo = round[i];
+            }
+            if (norm(x) * lo > MAX_NORM) {
+                return noBreach();
+            }
+            round = new double[] { lo * 1.25, lo * 1.5, lo * 2, lo * 3 };
+        }
+        for (int r = 0; r < BISECTION_ROUNDS && hi - lo > TOLERANCE * hi; r++) {
+            double[] probes = new double[PROBES_PER_ROUND];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = lo + (hi - lo) * (i + 1) / (probes.length + 1);
+            }
+            double[] headrooms = fullHeadrooms(x, probes);
+            for (int i = 0; i < probes.length; i++) {
+                if (headrooms[i] <= 0) {
+                    hi = probes[i];
+                    hiHeadroom = headrooms[i];
+                    break;
+                }
+                lo = probes[i];
+            }
+        }
+        
+        double[] breach = new double[x.length];
+        for (int f = 0; f < x.length; f++) {
+            breach[f] = x[f] * hi;
+        }
+        return new ReverseStressResult(toShock(breach), norm(breach), true, reserveRequirement, 
+                                       hiHeadroom + reserveRequirement, singleFactorThresholds(), 
+                                       fullEvaluations.get(), surrogateEvaluations);
+    }
+    
+    private ReverseStressResult noBreach() {
+        double[] none = new double[FACTORS.length];
+        return new ReverseStressResult(toShock(none), Double.NaN, false, reserveRequirement, Double.NaN, 
+                                       singleFactorThresholds(), fullEvaluations.get(), surrogateEvaluations);
+    }
+    
+    // Cash headroom over the reserve on the surrogate; x is in scale units
+    double surrogateHeadroom(double[] x) {
+        surrogateEvaluations++;
+        double liquidity = liquidityAt(x);
+        double position = liquidity / LIQUIDITY_GRID_STEP;
+        int g = Math.min((int) position, marketEffectGrid.length - 2);
+        double w = position - g;
+        double[] lower = marketEffectGrid[g];
+        double[] upper = marketEffectGrid[g + 1];
+        double outflowMultiplier = 1 + x[OUTFLOW] * scales[OUTFLOW];
+        for (int p = 0; p < paths; p++) {
+            cash[p] = startCash + revenue[p] - outflowMultiplier * expense[p] + (1 - w) * lower[p] + w * upper[p];
+        }
+        Arrays.sort(cash);
+        return cash[(int) (paths * PERCENTILE)] + rateSensitivity * x[RATE] * scales[RATE] 
+             + foreignValue * x[FX] * scales[FX] / 100 - reserveRequirement;
+    }
+    
+    private double[] surrogateGradient(double[] x) {
+        double[] gradient = new double[x.length];
+        double h = 1e-3;
+        for (int f = 0; f < x.length; f++) {
+            double[] up = x.clone();
+            double[] down = x.clone();
+            up[f] += h;
+            down[f] -= h;
+            // Bounded factors at their bound use a one-sided difference
+            boolean atBound = (f == LIQUIDITY || f == OUTFLOW) && down[f] < 0;
+            if (atBound) down[f] = x[f];
+            gradient[f] = (surrogateHeadroom(up) - surrogateHeadroom(down)) / (up[f] - down[f]);
+        }
+        return gradient;
+    }
+    
+    // Liquidity can only fall (to MIN_LIQUIDITY) and outflows only rise in a stress
+    private void project(double[] x) {
+        x[LIQUIDITY] = Math.max(0, Math.min(x[LIQUIDITY], (startLiquidity - MIN_LIQUIDITY) / scales[LIQUIDITY]));
+        x[OUTFLOW] = Math.max(0, x[OUTFLOW]);
+    }
+    
+    private double liquidityAt(double[] x) {
+        return Math.max(MIN_LIQUIDITY, startLiquidity - x[LIQUIDITY] * scales[LIQUIDITY]);
+    }
+    
+    private double[] toShock(double[] x) {
+        return new double[] { x[RATE] * scales[RATE], x[FX] * scales[FX], liquidityAt(x), 1 + x[OUTFLOW] * scales[OUTFLOW] };
+    }
+    
+    private StressScenario toScenario(double[] x, String name) {
+        double[] shock = toShock(x);
+        return new StressScenario(name, shock[LIQUIDITY], shock[RATE], shock[FX], shock[OUTFLOW]);
+    }
+    
+    // Full StressTester evaluation of one scenario: asset pass and freshly generated paths
+    private double fullHeadroom(StressScenario scenario) {
+        fullEvaluations.incrementAndGet();
+        ScenarioResult result = stressTester.runScenarioPack(Collections.singletonList(scenario), days, paths, seed).get(0);
+        return result.getCashPercentile5() + result.getRateImpact() + result.getFxImpact() - reserveRequirement;
+    }
+    
+    // Full evaluations of the points multiples[i] * x, run in parallel
+    private double[] fullHeadrooms(double[] x, double[] multiples) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(multiples.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for (double multiple : multiples) {
+                double[] point = new double[x.length];
+                for (int f = 0; f < x.length; f++) {
+                    point[f] = x[f] * multiple;
+                }
+                tasks.add(() -> fullHeadroom(toScenario(point, "PROBE")));
+            }
+            double[] headrooms = new double[multiples.length];
+            List<Future<Double>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < headrooms.length; i++) {
+                headrooms[i] = futures.get(i).get();
+            }
+            return headrooms;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reverse stress search interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Reverse stress evaluation failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // Per-factor breach levels by bisection on the surrogate, in the factor's adverse direction
+    private double[] singleFactorThresholds() {
+        double[] thresholds = new double[FACTORS.length];
+        double[] zero = new double[FACTORS.length];
+        for (int f = 0; f < FACTORS.length; f++) {
+            double direction = 1.0;
+            if (f == RATE || f == FX) {
+                double[] up = zero.clone();
+                up[f] = 1.0;
+                direction = surrogateHeadroom(up) <= surrogateHeadroom(zero) ? 1.0 : -1.0;
+            }
+            double bound = f == LIQUIDITY ? (startLiquidity - MIN_LIQUIDITY) / scales[LIQUIDITY] : MAX_NORM;
+            double[] point = zero.clone();
+            point[f] = direction * bound;
+            if (surrogateHeadroom(point) > 0) {
+                thresholds[f] = Double.NaN;
+                continue;
+            }
+            double lo = 0;
+            double hi = bound;
+            for (int i = 0; i < 50; i++) {
+                double mid = (lo + hi) / 2;
+                point[f] = direction * mid;
+                if (surrogateHeadroom(point) <= 0) hi = mid; else lo = mid;
+            }
+            point[f] = direction * hi;
+            thresholds[f] = toShock(point)[f];
+        }
+        return thresholds;
+    }
+    
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+    
+    private static double norm(double[] x) {
+        return Math.sqrt(dot(x, x));
+    }
+    
+    // --reverse-stress [days] [paths] [seed]
+    static void runFromCommandLine(String[] args) {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int paths = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        StressTester stressTester = new StressTester(portfolio, marketData, new RiskAnalysis(portfolio, marketData, paths), 
+                                                     TreasuryLiquiditySimulator.createDefaultCashFlow());
+        
+        long start = System.currentTimeMillis();
+        ReverseStressResult result = stressTester.runReverseStressTest(days, paths, seed);
+        ConsoleResultRenderer.print(result);
+        System.out.println("Searched in " + (System.currentTimeMillis() - start) + " ms (seed " + seed + ")");
+    }
+}
+
+// Copy-on-write list: fork() is O(1) and afterwards each side copies only the 32-slot nodes on the paths it writes
+class PersistentVector<E> extends AbstractList<E> implements RandomAccess {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    
+    // A vector writes in place only to nodes stamped with its own owner token
+    private static final class Node {
+        final Object owner;
+        final Object[] slots;
+        
+        Node(Object owner, Object[] slots) {
+            this.owner = owner;
+            this.slots = slots;
+        }
+    }
+    
+    private Object owner = new Object();
+    private Node root = new Node(owner, new Object[WIDTH]);
+    private int shift;
+    private int size;
+    // Set by fork(), which writes nothing else here, so any number of threads may fork a vector nobody is writing
+    private volatile boolean forked;
+    
+    public PersistentVector() {
+    }
+    
+    private PersistentVector(Node root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+    
+    // The fork gets a fresh owner token; this vector takes one on its next write, so neither side edits shared nodes
+    public PersistentVector<E> fork() {
+        forked = true;
+        return new PersistentVector<>(root, shift, size);
+    }
+    
+    private void beginWrite() {
+        if (forked) {
+            forked = false;
+            owner = new Object();
+        }
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) leafFor(index)[index & MASK];
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        Objects.checkIndex(index, size);
+        beginWrite();
+        Object[] leaf = editableLeaf(index);
+        E previous = (E) leaf[index & MASK];
+        leaf[index & MASK] = element;
+        return previous;
+    }
+    
+    @Override
+    public boolean add(E element) {
+        beginWrite();
+        // Full trie: the old root becomes the first child of a new one
+        if (size == 1L << (shift + BITS)) {
+            Node grown = new Node(owner, new Object[WIDTH]);
+            grown.slots[0] = root;
+            root = grown;
+            shift += BITS;
+        }
+        editableLeaf(size)[size & MASK] = element;
+        size++;
+        return true;
+    }
+    
+    @Override
+    public void clear() {
+        beginWrite();
+        root = new Node(owner, new Object[WIDTH]);
+        shift = 0;
+        size = 0;
+    }
+    
+    // Only a tail can be removed, which is what subList(from, size()).clear() asks for
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (toIndex != size) {
+            throw new UnsupportedOperationException("PersistentVector can only remove a tail");
+        }
+        beginWrite();
+        for (int i = fromIndex; i < toIndex; i++) {
+            editableLeaf(i)[i & MASK] = null;
+        }
+        size = fromIndex;
+    }
+    
+    // Walks a leaf at a time; a write through this vector while iterating may not be seen until the next leaf
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int index;
+            private Object[] leaf;
+            
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+            
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (index >= size) throw new NoSuchElementException();
+                if (leaf == null || (index & MASK) == 0) {
+                    leaf = leafFor(index);
+                }
+                return (E) leaf[index++ & MASK];
+            }
+        };
+    }
+    
+    @Override
+    public Spliterator<E> spliterator() {
+        return Spliterators.spliterator(iterator(), size, Spliterator.ORDERED);
+    }
+    
+    private Object[] leafFor(int index) {
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Node) node.slots[(index >>> level) & MASK];
+        }
+        return node.slots;
+    }
+    
+    // Leaf holding index, copying each node on the path that this vector does not own
+    private Object[] editableLeaf(int index) {
+        root = editable(root);
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            int slot = (index >>> level) & MASK;
+            Node child = (Node) node.slots[slot];
+            child = child == null ? new Node(owner, new Object[WIDTH]) : editable(child);
+            node.slots[slot] = child;
+            node = child;
+        }
+        return node.slots;
+    }
+    
+    private Node editable(Node node) {
+        return node.owner == owner ? node : new Node(owner, node.slots.clone());
+    }
+}
+
+// Portfolio, calendar and market state that can be forked together for what-if analysis
+class TreasuryState {
+    // State a menu risk run was computed against, for --explain
+    static final String LAST_RUN_FILE = "treasury-last-run.state";
+    private static final String KIND = "TREASURY_STATE";
+    
+    private final TreasuryPortfolio portfolio;
+    private final CashFlow cashFlow;
+    private final MarketData marketData;
+    
+    public TreasuryState(TreasuryPortfolio portfolio, CashFlow cashFlow, MarketData marketData) {
+        this.portfolio = portfolio;
+        this.cashFlow = cashFlow;
+        this.marketData = marketData;
+    }
+    
+    // O(1) in the number of positions and events; the fork is independent of this state and is not journaled
+    public TreasuryState fork() {
+        MarketData market = marketData.copy();
+        TreasuryPortfolio fork = portfolio.fork();
+        fork.setMarketData(market);
+        return new TreasuryState(fork, cashFlow.fork(), market);
+    }
+    
+    public TreasuryPortfolio getPortfolio() {
+        return portfolio;
+    }
+    
+    public CashFlow getCashFlow() {
+        return cashFlow;
+    }
+    
+    public MarketData getMarketData() {
+        return marketData;
+    }
+    
+    public void save(Path path) throws IOException {
+        new CheckpointStore(path).save(KIND, out -> {
+            StateCodec.writeMarket(out, marketData.snapshot());
+            StateCodec.writePortfolio(out, portfolio);
+            StateCodec.writeCashFlow(out, cashFlow);
+        });
+    }
+    
+    public static TreasuryState load(Path path) throws IOException {
+        try (DataInputStream in = new CheckpointStore(path).open(KIND)) {
+            if (in == null) {
+                throw new FileNotFoundException(path.toString());
+            }
+            MarketData marketData = new MarketData();
+            marketData.restore(StateCodec.readMarket(in));
+            TreasuryPortfolio portfolio = StateCodec.readPortfolio(in, marketData);
+            portfolio.updateTotalValue();
+            return new TreasuryState(portfolio, StateCodec.readCashFlow(in), marketData);
+        }
+    }
+}
+
+// Buy (positive amount) or sell (negative) one position against the base cash account, in the position's currency
+class CandidateTrade {
+    private final int assetIndex;
+    private final double amount;
+    
+    public CandidateTrade(int assetIndex, double amount) {
+        this.assetIndex = assetIndex;
+        this.amount = amount;
+    }
+    
+    public int getAssetIndex() {
+        return assetIndex;
+    }
+    
+    public double getAmount() {
+        return amount;
+    }
+}
+
+class WhatIfResult implements AnalyticsResult {
+    private final CandidateTrade trade;
+    private final String assetName;
+    private final double liquidityRatio;
+    private final double liquidityRatioChange;
+    private final double cashReserve;
+    private final double totalValue;
+    
+    public WhatIfResult(CandidateTrade trade, String assetName, double liquidityRatio, double liquidityRatioChange, 
+                        double cashReserve, double totalValue) {
+        this.trade = trade;
+        this.assetName = assetName;
+        this.liquidityRatio = liquidityRatio;
+        this.liquidityRatioChange = liquidityRatioChange;
+        this.cashReserve = cashReserve;
+        this.totalValue = totalValue;
+    }
+    
+    public CandidateTrade getTrade() {
+        return trade;
+    }
+    
+    public double getLiquidityRatio() {
+        return liquidityRatio;
+    }
+    
+    public double getLiquidityRatioChange() {
+        return liquidityRatioChange;
+    }
+    
+    public double getCashReserve() {
+        return cashReserve;
+    }
+    
+    public double getTotalValue() {
+        return totalValue;
+    }
+    
+    @Override
+    public String getKind() {
+        return "WHAT_IF";
+    }
+    
+    @Override
+    public String getTitle() {
+        return "WHAT-IF: " + (trade.getAmount() < 0 ? "SELL " : "BUY ") + assetName;
+    }
+    
+    @Override
+    public void writeFields(ResultFieldWriter out) {
+        out.text("ASSET", "Asset", assetName);
+        out.amount("TRADE_AMOUNT", "Trade amount", trade.getAmount());
+        out.percent("LIQUIDITY_RATIO", "Liquidity ratio after trade", liquidityRatio);
+        out.percent("LIQUIDITY_RATIO_CHANGE", "Change in liquidity ratio", liquidityRatioChange);
+        out.amount("CASH_RESERVE", "Cash reserve after trade", cashReserve);
+        out.amount("TOTAL_VALUE", "Total value after trade", totalValue);
+    }
+}
+
+// Evaluates candidate trades in parallel, each on its own fork of a frozen copy of the live state
+class WhatIfEvaluator {
+    private final TreasuryState base;
+    private final int cashIndex;
+    private final double baseLiquidityRatio;
+    private final int threads;
+    
+    // The live state may keep changing after this returns; candidates see it as it was here
+    public WhatIfEvaluator(TreasuryState live, int threads) {
+        this.base = live.fork();
+        this.threads = threads;
+        
+        TreasuryPortfolio portfolio = base.getPortfolio();
+        List<Asset> assets = portfolio.getAssets();
+        int cash = -1;
+        for (int i = 0; i < assets.size() && cash < 0; i++) {
+            Asset asset = assets.get(i);
+            if (asset.getType().equals("CASH") && asset.getCurrency().equals(portfolio.getBaseCurrency())) {
+                cash = i;
+            }
+        }
+        if (cash < 0) {
+            throw new IllegalArgumentException("Portfolio has no " + portfolio.getBaseCurrency() + " cash account to trade against");
+        }
+        this.cashIndex = cash;
+        this.baseLiquidityRatio = portfolio.calculateLiquidityRatio();
+    }
+    
+    public WhatIfResult evaluate(CandidateTrade trade) {
+        TreasuryState fork = base.fork();
+        TreasuryPortfolio portfolio = fork.getPortfolio();
+        Asset asset = portfolio.getAssets().get(trade.getAssetIndex());
+        double cashAmount = fork.getMarketData().fx().convert(trade.getAmount(), asset.getCurrency(), portfolio.getBaseCurrency());
+        
+        portfolio.setAssetAmount(trade.getAssetIndex(), asset.getAmount() + trade.getAmount());
+        portfolio.setAssetAmount(cashIndex, portfolio.getAssets().get(cashIndex).getAmount() - cashAmount);
+        portfolio.updateTotalValue();
+        
+        double liquidityRatio = portfolio.calculateLiquidityRatio();
+        return new WhatIfResult(trade, asset.getName(), liquidityRatio, liquidityRatio - baseLiquidityRatio, 
+                                portfolio.getCashReserve(), portfolio.getTotalValue());
+    }
+    
+    // Results in the order of the trades
+    public List<WhatIfResult> evaluateAll(List<CandidateTrade> trades) {
+        int chunks = Math.min(threads, trades.size());
+        if (chunks <= 1) {
+            List<WhatIfResult> results = new ArrayList<>(trades.size());
+            for (CandidateTrade trade : trades) {
+                results.add(evaluate(trade));
+            }
+            return results;
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            List<Callable<List<WhatIfResult>>> tasks = new ArrayList<>();
+            for (int c = 0; c < chunks; c++) {
+                List<CandidateTrade> chunk = trades.subList(trades.size() * c / chunks, trades.size() * (c + 1) / chunks);
+                tasks.add(() -> {
+                    List<WhatIfResult> results = new ArrayList<>(chunk.size());
+                    for (CandidateTrade trade : chunk) {
+                        results.add(evaluate(trade));
+                    }
+                    return results;
+                });
+            }
+            List<WhatIfResult> results = new ArrayList<>(trades.size());
+            for (Future<List<WhatIfResult>> future : executor.invokeAll(tasks)) {
+                results.addAll(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("What-if evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("What-if evaluation failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    // Sell down a random share of random non-cash positions; draw k uses the counter stream (seed, k)
+    static List<CandidateTrade> randomSales(TreasuryPortfolio portfolio, int count, long seed) {
+        List<Asset> assets = portfolio.getAssets();
+        boolean sellable = false;
+        for (int i = 0; i < assets.size() && !sellable; i++) {
+            sellable = !assets.get(i).getType().equals("CASH") && assets.get(i).getAmount() > 0;
+        }
+        if (!sellable) {
+            throw new IllegalArgumentException("Portfolio has no non-cash position to sell");
+        }
+        List<CandidateTrade> trades = new ArrayList<>(count);
+        for (long draw = 0; trades.size() < count; draw++) {
+            int index = (int) (CounterRandom.uniform(seed, draw, 0, 0) * assets.size());
+            Asset asset = assets.get(index);
+            if (asset.getType().equals("CASH") || asset.getAmount() <= 0) continue;
+            trades.add(new CandidateTrade(index, -asset.getAmount() * (0.1 + 0.9 * CounterRandom.uniform(seed, draw, 0, 1))));
+        }
+        return trades;
+    }
+    
+    // --whatif [positions] [trades] [seed]
+    static void runFromCommandLine(String[] args) {
+        int positions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int tradeCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        MarketData marketData = new MarketData();
+        SyntheticPortfolioGenerator generator = new SyntheticPortfolioGenerator(seed, marketData);
+        LocalDate asOf = LocalDate.now();
+        TreasuryState live = new TreasuryState(generator.generatePortfolio(positions, asOf), 
+                                               generator.generateCashFlow(positions, asOf), marketData);
+        
+        long start = System.nanoTime();
+        live.getPortfolio().copy();
+        long copyNanos = System.nanoTime() - start;
+        
+        WhatIfEvaluator evaluator = new WhatIfEvaluator(live, Runtime.getRuntime().availableProcessors());
+        List<CandidateTrade> trades = randomSales(live.getPortfolio(), tradeCount, seed);
+        start = System.nanoTime();
+        List<WhatIfResult> results = evaluator.evaluateAll(trades);
+        long evaluateNanos = System.nanoTime() - start;
+        
+        results.sort(Comparator.comparingDouble(WhatIfResult::getLiquidityRatioChange).reversed());
+        for (WhatIfResult result : results.subList(0, Math.min(3, results.size()))) {
+            ConsoleResultRenderer.print(result);
+        }
+        System.out.println("\nEvaluated " + tradeCount + " candidate trades on forks of " + positions + " positions in " 
+                           + evaluateNanos / 1000000 + " ms (" + (long) (tradeCount * 1e9 / evaluateNanos) + " per second)");
+        System.out.println("One deep copy of the portfolio takes " + copyNanos / 1000 + " us");
+        System.out.println("Seed: " + seed);
+    }
+}
+
+// Running peak of cumulative stressed need, answering "on which day does need first exceed liquidity" in O(log days)
+class SurvivalHorizon {
+    private final double[] peakNeed;
+    private final double startingLiquidity;
+    
+    // peakNeed[d] is the largest cumulative net need over days 0..d, so it never decreases
+    public SurvivalHorizon(double[] peakNeed, double startingLiquidity) {
+        this.peakNeed = peakNeed;
+        this.startingLiquidity = startingLiquidity;
+    }
+    
+    public int getHorizonDays() {
+        return peakNeed.length;
+    }
+    
+    public double getPeakNeed(int day) {
+        return peakNeed[day];
+    }
+    
+    public double getStartingLiquidity() {
+        return startingLiquidity;
+    }
+    
+    public int survivalDays() {
+        return survivalDays(startingLiquidity);
+    }
+    
+    // Full days survived before need first exceeds the given liquidity; the horizon length when it never does
+    public int survivalDays(double liquidity) {
+        int lo = 0;
+        int hi = peakNeed.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (peakNeed[mid] > liquidity) hi = mid; else lo = mid + 1;
+        }
+        return lo;
+    }
+    
+    public boolean survivesHorizon() {
+        return survivalDays() == peakNeed.length;
+    }
+}
+
+// Day-by-day stressed need against cash on hand plus haircut asset sales, for the liquidity crisis and scenario runs
+class SurvivalHorizonEngine {
+    static final int DEFAULT_HORIZON_DAYS = 365;
+    // Days to sell an asset rated 0 for liquidity; better rated assets settle proportionally sooner
+    static final int MAX_SALE_DAYS = 30;
+    // Share of scheduled inflows still received in a crisis, the LCR rate for wholesale inflows
+    static final double STRESSED_INFLOW_RATE = 0.5;
+    
+    private final TreasuryPortfolio portfolio;
+    private final MarketData marketData;
+    private final LocalDate asOf;
+    private final int horizonDays;
+    private final double startingLiquidity;
+    private final double[] scheduledOutflows;
+    private final double[] scheduledInflows;
+    private final double dailyOperatingExpenses;
+    private final Map<Double, double[]> saleSchedules = new HashMap<>();
+    
+    // Without a calendar the daily need is the expense run-rate of the Monte Carlo cash-flow model
+    public SurvivalHorizonEngine(TreasuryPortfolio portfolio, CashFlow cashFlow, MarketData marketData, 
+                                 LocalDate asOf, int horizonDays) {
+        this.portfolio = portfolio;
+        this.marketData = marketData;
+        this.asOf = asOf;
+        this.horizonDays = horizonDays;
+        
+        if (cashFlow != null) {
+            scheduledOutflows = cashFlow.projectDailyFlows(asOf, horizonDays, 0.0, 1.0);
+            scheduledInflows = cashFlow.projectDailyFlows(asOf, horizonDays, 1.0, 0.0);
+            dailyOperatingExpenses = cashFlow.getYearlyOperatingExpenses() / 365;
+        } else {
+            scheduledOutflows = new double[horizonDays];
+            scheduledInflows = new double[horizonDays];
+            dailyOperatingExpenses = portfolio.getTotalValue() * RiskAnalysis.EXPENSE_RATE;
+        }
+        
+        FxMatrix fx = marketData.fx();
+        int base = FxMatrix.currencyId(portfolio.getBaseCurrency());
+        double cash = 0;
+        for (Asset asset : portfolio.getAssets()) {
+            if (asset.getType().equals("CASH")) {
+                cash += fx.convert(asset.getAmount(), FxMatrix.currencyId(asset.getCurrency()), base);
+            }
+        }
+        this.startingLiquidity = cash;
+    }
+    
+    public SurvivalHorizonEngine(TreasuryPortfolio portfolio, CashFlow cashFlow, MarketData marketData) {
+        this(portfolio, cashFlow, marketData, marketData.getDate(), DEFAULT_HORIZON_DAYS);
+    }
+    
+    // Base-currency proceeds per day from selling every non-cash asset at its crisis haircut; assets that
+    // mature before their sale would settle are redeemed at par on the maturity date instead
+    public double[] saleSchedule(double crisisLiquidity) {
+        return saleSchedules.computeIfAbsent(crisisLiquidity, level -> {
+            double[] proceeds = new double[horizonDays];
+            double originalLiquidity = marketData.getLiquidityIndex();
+            FxMatrix fx = marketData.fx();
+            int base = FxMatrix.currencyId(portfolio.getBaseCurrency());
+            for (Asset asset : portfolio.getAssets()) {
+                if (asset.getType().equals("CASH")) continue;
+                
+                int saleDay = (int) Math.ceil((1.0 - Math.min(1.0, Math.max(0.0, asset.getLiquidityRating()))) * MAX_SALE_DAYS);
+                double amount = StressTester.stressedLiquidValue(asset, originalLiquidity, level);
+                if (asset.getMaturityDate() != null) {
+                    long maturityDay = ChronoUnit.DAYS.between(asOf, asset.getMaturityDate());
+                    if (maturityDay < saleDay) {
+                        saleDay = (int) Math.max(0, maturityDay);
+                        amount = asset.getAmount();
+                    }
+                }
+                if (saleDay < horizonDays) {
+                    proceeds[saleDay] += fx.convert(amount, FxMatrix.currencyId(asset.getCurrency()), base);
+                }
+            }
+            return proceeds;
+        });
+    }
+    
+    // Prefix sums of the day's stressed outflows less stressed inflows and sale proceeds, then their running maximum
+    public SurvivalHorizon horizon(double crisisLiquidity, double outflowMultiplier) {
+        double[] proceeds = saleSchedule(crisisLiquidity);
+        double[] peakNeed = new double[horizonDays];
+        double need = 0;
+        double peak = Double.NEGATIVE_INFINITY;
+        for (int day = 0; day < horizonDays; day++) {
+            need += outflowMultiplier * (scheduledOutflows[day] + dailyOperatingExpenses)
+                    - STRESSED_INFLOW_RATE * scheduledInflows[day] - proceeds[day];
+            peak = Math.max(peak, need);
+            peakNeed[day] = peak;
+        }
+        return new SurvivalHorizon(peakNeed, startingLiquidity);
+    }
+    
+    public double getStartingLiquidity() {
+        return startingLiquidity;
+    }
+}
+
+// Known-answer and reference-implementation checks for the fast paths, runnable on any installation
+class SelfTest {
+    private long seed;
+    private int failures;
+    
+    public SelfTest(long seed) {
+        this.seed = seed;
+    }
+    
+    public int getFailures() {
+        return failures;
+    }
+    
+    public void runAll() {
+        checkCashLadder();
+        checkCashLadderGreedyGap();
+        checkSegmentTree();
+        checkQuantileSketch();
+        checkIncrementalRisk();
+        checkCheckpointResume();
+        checkJournalReplay();
+        checkCounterRandom();
+        checkIntradayOffsetting();
+        checkIntradayRollover();
+        checkFxTriangulation();
+        checkConcurrentForks();
+        checkSurvivalHorizon();
+    }
+    
+    private void check(String name, boolean passed, String detail) {
+        System.out.println((passed ? "PASS  " : "FAIL  ") + name + ": " + detail);
+        if (!passed) failures++;
+    }
+    
+    // The segment-tree ladder against the same greedy run over a plain array with linear range scans
+    void checkCashLadder() {
+        MarketData marketData = new MarketData();
+        int horizon = 400;
+        double openingCash = 500000000.0;
+        double minimumCash = 400000000.0;
+        double[] netFlows = new double[horizon];
+        for (int day = 0; day < horizon; day++) {
+            netFlows[day] = 10000000.0 * CounterRandom.gaussian(seed, 0, day, 0);
+        }
+        CashLadderPlan plan = new CashLadderOptimizer(marketData).optimize(openingCash, minimumCash, netFlows);
+        
+        double[] free = new double[horizon];
+        double balance = openingCash;
+        for (int day = 0; day < horizon; day++) {
+            balance += netFlows[day];
+            free[day] = balance - minimumCash;
+        }
+        String[] tenors = CashLadderOptimizer.TENORS;
+        int[] tenorDays = CashLadderOptimizer.TENOR_DAYS;
+        Integer[] order = new Integer[tenors.length];
+        double[] rates = new double[tenors.length];
+        for (int i = 0; i < tenors.length; i++) {
+            order[i] = i;
+            rates[i] = marketData.getInterestRate(tenors[i]);
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(rates[b], rates[a]));
+        
+        List<double[]> expected = new ArrayList<>();
+        for (int day = 0; day < horizon; day++) {
+            for (int i : order) {
+                int term = tenorDays[i];
+                if (day + term > horizon || rates[i] <= 0) continue;
+                double amount = Double.POSITIVE_INFINITY;
+                for (int d = day; d < day + term; d++) {
+                    amount = Math.min(amount, free[d]);
+                }
+                if (amount < CashLadderOptimizer.MIN_PLACEMENT) continue;
+                double interest = amount * (rates[i] / 100) * term / 365.0;
+                expected.add(new double[] { day, i, amount });
+                for (int d = day; d < day + term; d++) {
+                    free[d] -= amount;
+                }
+                for (int d = day + term; d < horizon; d++) {
+                    free[d] += interest;
+                }
+            }
+        }
+        double lowest = Double.POSITIVE_INFINITY;
+        for (double value : free) {
+            lowest = Math.min(lowest, value);
+        }
+        
+        double tolerance = openingCash * 1e-12;
+        boolean matches = plan.getPlacements().size() == expected.size() 
+                          && Math.abs(plan.getLowestProjectedCash() - (lowest + minimumCash)) <= tolerance;
+        for (int k = 0; matches && k < expected.size(); k++) {
+            CashLadderPlan.Placement placement = plan.getPlacements().get(k);
+            double[] reference = expected.get(k);
+            matches = placement.getStartDay() == (int) reference[0] 
+                      && placement.getTenor().equals(tenors[(int) reference[1]]) 
+                      && Math.abs(placement.getAmount() - reference[2]) <= tolerance;
+        }
+        check("Cash ladder segment tree vs brute force", matches, 
+              plan.getPlacements().size() + " placements, " + expected.size() + " expected");
+    }
+    
+    // Pins the documented greedy shortfall: after a day-5 outflow the 1YEAR starts on day 6 and leaves 29 days
+    // for overnight, while rolling 1MONTH from day 6 would earn more on a flat curve
+    void checkCashLadderGreedyGap() {
+        MarketData marketData = new MarketData();
+        MarketSnapshot base = marketData.snapshot();
+        Map<String, Double> rates = new HashMap<>();
+        rates.put("OVERNIGHT", 3.0);
+        rates.put("1MONTH", 4.35);
+        rates.put("3MONTH", 4.355);
+        rates.put("6MONTH", 4.358);
+        rates.put("1YEAR", 4.36);
+        marketData.restore(new MarketSnapshot(rates, base.getCurrencyRates(), base.getLiquidityIndices(), base.getDate(), 0));
+        
+        int horizon = 400;
+        double surplus = 100000000.0;
+        double[] netFlows = new double[horizon];
+        netFlows[5] = -surplus;
+        netFlows[6] = surplus;
+        CashLadderPlan plan = new CashLadderOptimizer(marketData).optimize(surplus, 0, netFlows);
+        
+        double greedy = 0;
+        boolean oneYearOnDaySix = false;
+        for (CashLadderPlan.Placement placement : plan.getPlacements()) {
+            greedy += placement.getInterest();
+            if (placement.getTenor().equals("1YEAR")) oneYearOnDaySix = placement.getStartDay() == 6;
+        }
+        double rolled = surplus * (5 * 3.0 + 13 * 30 * 4.35 + 4 * 3.0) / 100 / 365.0;
+        check("Cash ladder greedy gap on a flat curve", oneYearOnDaySix && greedy < rolled, 
+              String.format("greedy %.0f vs rolled 1MONTH %.0f", greedy, rolled));
+    }
+    
+    // Random range adds and range minima on the ladder's segment tree against a plain array
+    void checkSegmentTree() {
+        int length = 257;
+        double[] reference = new double[length];
+        for (int i = 0; i < length; i++) {
+            reference[i] = CounterRandom.gaussian(seed, 1, i, 0);
+        }
+        CashLadderOptimizer.MinSegmentTree tree = new CashLadderOptimizer.MinSegmentTree(reference.clone());
+        int mismatches = 0;
+        for (int op = 0; op < 2000; op++) {
+            int from = (int) (CounterRandom.uniform(seed, 2, op, 0) * length);
+            int to = from + 1 + (int) (CounterRandom.uniform(seed, 2, op, 1) * (length - from));
+            if (op % 2 == 0) {
+                double delta = CounterRandom.gaussian(seed, 2, op, 2);
+                tree.add(from, to, delta);
+                for (int i = from; i < to; i++) {
+                    reference[i] += delta;
+                }
+            } else {
+                double expected = Double.POSITIVE_INFINITY;
+                for (int i = from; i < to; i++) {
+                    expected = Math.min(expected, reference[i]);
+                }
+                if (Math.abs(tree.min(from, to) - expected) > 1e-9) mismatches++;
+            }
+        }
+        check("Segment tree range add/min vs array", mismatches == 0, mismatches + " mismatching queries");
+    }
+    
+    // Every quantile of a mixed-sign sample stays within the sketch's relative accuracy of the exact order statistic
+    void checkQuantileSketch() {
+        int n = 200000;
+        double[] values = new double[n];
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        QuantileSketch firstHalf = new QuantileSketch(0.01);
+        QuantileSketch secondHalf = new QuantileSketch(0.01);
+        for (int i = 0; i < n; i++) {
+            double magnitude = Math.exp(3 * CounterRandom.gaussian(seed, i, 0, 1));
+            values[i] = CounterRandom.uniform(seed, i, 0, 2) < 0.3 ? -magnitude : magnitude;
+            sketch.add(values[i]);
+            (i < n / 2 ? firstHalf : secondHalf).add(values[i]);
+        }
+        firstHalf.merge(secondHalf);
+        Arrays.sort(values);
+        
+        double worst = 0;
+        boolean mergedMatches = true;
+        for (double q = 0.001; q < 1; q += 0.001) {
+            double exact = values[(int) Math.floor(q * (n - 1))];
+            worst = Math.max(worst, Math.abs(sketch.quantile(q) - exact) / Math.abs(exact));
+            mergedMatches &= sketch.quantile(q) == firstHalf.quantile(q);
+        }
+        check("Quantile sketch relative error", worst <= 0.01 + 1e-12 && mergedMatches, 
+              "worst " + worst + " against 0.01" + (mergedMatches ? "" : ", merged sketch differs"));
+    }
+    
+    // A year of simulated days absorbed incrementally, then compared with a from-scratch recompute
+    void checkIncrementalRisk() {
+        MarketData marketData = new MarketData();
+        marketData.setRandomSource(new CounterRandom(seed, 0, 0));
+        LocalDate date = LocalDate.now();
+        SyntheticPortfolioGenerator generator = new SyntheticPortfolioGenerator(seed, marketData);
+        TreasuryPortfolio portfolio = generator.generatePortfolio(2000, date);
+        CashFlow cashFlow = generator.generateCashFlow(2000, date);
+        IncrementalRiskEngine engine = new IncrementalRiskEngine(portfolio, marketData);
+        ChangeSet changes = new ChangeSet();
+        
+        double worstRatio = 0;
+        double worstAmount = 0;
+        for (int day = 0; day < 365; day++) {
+            TreasuryLiquiditySimulator.simulateNextDay(marketData, portfolio, cashFlow, date, null, changes);
+            date = date.plusDays(1);
+            engine.apply(changes);
+            changes.clear();
+            if (day % 30 != 29) continue;
+            for (Map.Entry<String, Double> difference : engine.validateAgainstFullRecompute().entrySet()) {
+                if (difference.getKey().endsWith("_IMPACT") || difference.getKey().endsWith("_SHOCK")) {
+                    worstAmount = Math.max(worstAmount, difference.getValue() / portfolio.getTotalValue());
+                } else {
+                    worstRatio = Math.max(worstRatio, difference.getValue());
+                }
+            }
+        }
+        check("Incremental risk vs full recompute", worstRatio <= 1e-9 && worstAmount <= 1e-9, 
+              "worst ratio deviation " + worstRatio + ", worst amount deviation " + worstAmount + " of total value");
+    }
+    
+    // A run stopped part-way (CheckpointedRun.stopAfter) and resumed by a fresh instance equals an uninterrupted one
+    void checkCheckpointResume() {
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("treasury-selftest");
+            MarketData marketData = new MarketData();
+            TreasuryPortfolio portfolio = defaultBook(marketData);
+            SimulationJob job = new RiskAnalysis(portfolio, marketData, 1).createJob(30, seed);
+            
+            Path checkpoint = directory.resolve("simulate.ckpt");
+            CheckpointedRun stopped = new CheckpointedRun(checkpoint, Long.MAX_VALUE);
+            stopped.stopAfter(3);
+            boolean stoppedEarly = stopped.simulate(job, 50000, 5000) == null && Files.exists(checkpoint);
+            Map<String, Double> resumed = new CheckpointedRun(checkpoint, Long.MAX_VALUE).simulate(job, 50000, 5000).toResults();
+            Map<String, Double> straight = new CheckpointedRun(directory.resolve("straight.ckpt"), Long.MAX_VALUE)
+                .simulate(job, 50000, 5000).toResults();
+            check("Checkpointed simulation resume", stoppedEarly && resumed.equals(straight), 
+                  "stopped after 3 of 10 chunks, resumed 5th percentile " + resumed.get("PERCENTILE_5"));
+            
+            LocalDate start = LocalDate.now();
+            Path projection = directory.resolve("project.ckpt");
+            CheckpointedRun interrupted = new CheckpointedRun(projection, Long.MAX_VALUE);
+            interrupted.stopAfter(15);
+            boolean projectionStopped = projectBook(interrupted, start) == null;
+            TreasuryPortfolio resumedBook = projectBook(new CheckpointedRun(projection, Long.MAX_VALUE), start);
+            TreasuryPortfolio straightBook = projectBook(new CheckpointedRun(directory.resolve("straight-project.ckpt"), 
+                                                                             Long.MAX_VALUE), start);
+            boolean matches = projectionStopped && resumedBook.getTotalValue() == straightBook.getTotalValue() 
+                              && resumedBook.getAssets().size() == straightBook.getAssets().size();
+            for (int i = 0; matches && i < straightBook.getAssets().size(); i++) {
+                matches = resumedBook.getAssets().get(i).getAmount() == straightBook.getAssets().get(i).getAmount();
+            }
+            check("Checkpointed projection resume", matches, "stopped after 15 of 40 days, total value " + 
+                  resumedBook.getTotalValue() + " against " + straightBook.getTotalValue());
+        } catch (IOException e) {
+            check("Checkpointed run resume", false, e.getMessage());
+        } finally {
+            deleteQuietly(directory);
+        }
+    }
+    
+    // Forty projected days of the default book, each run on its own market
+    private TreasuryPortfolio projectBook(CheckpointedRun run, LocalDate start) throws IOException {
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = defaultBook(marketData);
+        return run.project(portfolio, TreasuryLiquiditySimulator.createDefaultCashFlow(), marketData, start, 40, seed);
+    }
+    
+    // A journalled projection replayed from disk, across snapshots, ends in the live state
+    void checkJournalReplay() {
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("treasury-selftest");
+            Path path = directory.resolve("journal.bin");
+            MarketData marketData = new MarketData();
+            marketData.setRandomSource(new CounterRandom(seed, 0, 0));
+            TreasuryPortfolio portfolio = defaultBook(marketData);
+            CashFlow cashFlow = TreasuryLiquiditySimulator.createDefaultCashFlow();
+            LocalDate date = LocalDate.now();
+            
+            try (StateJournal journal = new StateJournal(path, 30, 10)) {
+                journal.attach(portfolio, cashFlow, date);
+                for (int day = 0; day < 100; day++) {
+                    TreasuryLiquiditySimulator.simulateNextDay(marketData, portfolio, cashFlow, date, null);
+                    date = date.plusDays(1);
+                }
+            }
+            
+            JournalState state = StateJournal.replay(path, LocalDate.MAX, marketData);
+            List<Asset> live = portfolio.getAssets();
+            List<Asset> replayed = state.getPortfolio().getAssets();
+            boolean matches = live.size() == replayed.size() && date.equals(state.getLastDay()) 
+                              && cashFlow.getScheduledCashFlows().size() == state.getCashFlow().getScheduledCashFlows().size();
+            for (int i = 0; matches && i < live.size(); i++) {
+                matches = live.get(i).getName().equals(replayed.get(i).getName()) 
+                          && live.get(i).getAmount() == replayed.get(i).getAmount();
+            }
+            check("Journal replay", matches, state.getEntriesReplayed() + " entries replayed to " + state.getLastDay());
+        } catch (IOException e) {
+            check("Journal replay", false, e.getMessage());
+        } finally {
+            deleteQuietly(directory);
+        }
+    }
+    
+    // Philox4x32-10 known-answer vectors: all-zero and all-ones counters and keys, and the pi-digit vector
+    void checkCounterRandom() {
+        long[][] vectors = {
+            { 0L, 0L, 0, 0, 0x6627e8d5e169c58dL },
+            { -1L, -1L, -1, -1, 0x408f276d41c83b0eL },
+            { (0x299f31d0L << 32) | 0xa4093822L, (0x85a308d3L << 32) | 0x243f6a88L, 0x13198a2e, 0x03707344, 0xd16cfe0994fdccebL }
+        };
+        int matched = 0;
+        for (long[] vector : vectors) {
+            if (CounterRandom.bits(vector[0], vector[1], (int) vector[2], (int) vector[3]) == vector[4]) matched++;
+        }
+        check("Philox known-answer vectors", matched == vectors.length, matched + " of " + vectors.length + " match");
+    }
+    
+    // A gridlocked payment day conserves money and never takes anyone past their credit line
+    void checkIntradayOffsetting() {
+        int participants = 20;
+        double openingBalance = 2000000.0;
+        double creditLine = 1000000.0;
+        IntradaySettlementEngine engine = IntradaySettlementEngine.synthetic(participants, 20000, 1000000.0, 
+                                                                             openingBalance, creditLine, seed);
+        IntradayResult result = engine.run(300);
+        double[] closing = engine.getClosingBalances();
+        
+        double total = 0;
+        boolean withinCredit = true;
+        for (int p = 0; p < participants; p++) {
+            total += closing[p];
+            withinCredit &= closing[p] >= -(p == 0 ? creditLine : 0) - 1e-6;
+        }
+        double drift = Math.abs(total - participants * openingBalance);
+        boolean counted = result.getSettled() + result.getUnsettled() == engine.getPaymentCount();
+        check("RTGS offsetting conservation", drift <= 1e-6 * participants * openingBalance && withinCredit && counted 
+                                              && result.getOffsetSettled() > 0, 
+              result.getOffsetSettled() + " settled by offsetting, balance drift " + drift);
+    }
+    
+    // A payment the day's cash and credit line cannot cover is not booked but rolls to the next day, while the
+    // payments that did settle are
+    void checkIntradayRollover() {
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = defaultBook(marketData);
+        CashFlow cashFlow = new CashFlow(0, 0, 0);
+        LocalDate today = LocalDate.of(2024, 1, 2);
+        LocalDate nextDay = today.plusDays(1);
+        double cash = portfolio.getCashReserve();
+        double creditLine = portfolio.getTotalValue() * TreasuryLiquiditySimulator.INTRADAY_CREDIT_SHARE;
+        cashFlow.addCashFlowEvent(new CashFlowEvent("Supplier", nextDay, cash * 0.1, false, false, 0, 
+                                                    LocalTime.of(9, 0), 1));
+        cashFlow.addCashFlowEvent(new CashFlowEvent("Acquisition", nextDay, cash + creditLine * 2, false, false, 0, 
+                                                    LocalTime.of(10, 0), 1));
+        TreasuryLiquiditySimulator.simulateNextDay(marketData, portfolio, cashFlow, today, null);
+        
+        List<CashFlowEvent> left = cashFlow.getScheduledCashFlows();
+        boolean rolled = left.size() == 1 && left.get(0).getDescription().equals("Acquisition") 
+                         && left.get(0).getDate().equals(nextDay.plusDays(1)) && !left.get(0).isRecurring();
+        double endCash = portfolio.getCashReserve();
+        boolean booked = endCash < cash * 0.95 && endCash > 0;
+        check("Intraday rollover of unsettled payments", rolled && booked, 
+              left.size() + " events left, cash " + cash + " -> " + endCash);
+    }
+    
+    // Unquoted crosses equal the product of the quoted legs and survive a round trip; other components stay apart,
+    // and asking about an unknown code does not register it
+    void checkFxTriangulation() {
+        Map<String, Double> quotes = new HashMap<>();
+        quotes.put("USD/IDR", 15750.0);
+        quotes.put("EUR/USD", 1.08);
+        quotes.put("JPY/IDR", 105.0);
+        quotes.put("XAU/XAG", 80.0);
+        FxMatrix fx = new FxMatrix(quotes);
+        
+        double eurIdr = fx.convert(1.0, "EUR", "IDR");
+        double eurJpy = fx.convert(1.0, "EUR", "JPY");
+        double roundTrip = fx.convert(fx.convert(1000000.0, "EUR", "JPY"), "JPY", "EUR");
+        boolean matches = Math.abs(eurIdr / (1.08 * 15750.0) - 1) <= 1e-12 
+                          && Math.abs(eurJpy / (1.08 * 15750.0 / 105.0) - 1) <= 1e-12 
+                          && Math.abs(roundTrip / 1000000.0 - 1) <= 1e-12 
+                          && fx.convert(1.0, "USD", "IDR") == 15750.0 
+                          && !fx.canConvert("XAU", "IDR") 
+                          && !fx.canConvert("ZZZ", "IDR") && FxMatrix.existingId("ZZZ") < 0;
+        check("FX matrix triangulation", matches, "EUR/IDR " + eurIdr + ", EUR/JPY " + eurJpy);
+    }
+    
+    // Forks taken concurrently from one base never see each other's writes or change the base, and the base's
+    // own next write stays out of forks taken before it
+    void checkConcurrentForks() {
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio base = new SyntheticPortfolioGenerator(seed, marketData).generatePortfolio(2000, LocalDate.now());
+        int positions = base.getAssets().size();
+        double[] before = new double[positions];
+        for (int i = 0; i < positions; i++) {
+            before[i] = base.getAssets().get(i).getAmount();
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        boolean isolated = true;
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                tasks.add(() -> {
+                    boolean clean = true;
+                    for (int round = 0; round < 50; round++) {
+                        TreasuryPortfolio fork = base.fork();
+                        double mark = thread * 1000 + round;
+                        for (int i = 0; i < positions; i++) {
+                            fork.setAssetAmount(i, mark);
+                        }
+                        fork.addAsset(new Asset("Fork " + thread, "CASH", mark, base.getBaseCurrency(), 0.0, null, 1.0));
+                        for (Asset asset : fork.getAssets()) {
+                            clean &= asset.getAmount() == mark;
+                        }
+                    }
+                    return clean;
+                });
+            }
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                isolated &= result.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            check("Concurrent forks of one base", false, e.toString());
+            return;
+        } finally {
+            executor.shutdown();
+        }
+        
+        boolean baseUnchanged = base.getAssets().size() == positions;
+        for (int i = 0; baseUnchanged && i < positions; i++) {
+            baseUnchanged = base.getAssets().get(i).getAmount() == before[i];
+        }
+        TreasuryPortfolio earlier = base.fork();
+        base.setAssetAmount(0, -1.0);
+        boolean parentWriteIsolated = earlier.getAssets().get(0).getAmount() == before[0];
+        check("Concurrent forks of one base", isolated && baseUnchanged && parentWriteIsolated, 
+              "8 threads x 50 forks of " + positions + " positions" + (baseUnchanged ? "" : ", base changed") 
+              + (parentWriteIsolated ? "" : ", base write leaked into a fork"));
+    }
+    
+    // Binary search over the running peak need agrees with a linear scan at every liquidity level, plateaus included
+    void checkSurvivalHorizon() {
+        MarketData marketData = new MarketData();
+        TreasuryPortfolio portfolio = defaultBook(marketData);
+        SurvivalHorizonEngine engine = new SurvivalHorizonEngine(portfolio, TreasuryLiquiditySimulator.createDefaultCashFlow(), 
+                                                                 marketData);
+        int mismatches = 0;
+        int probes = 0;
+        for (double outflowMultiplier : new double[] {1.0, 3.0, 10.0}) {
+            SurvivalHorizon horizon = engine.horizon(0.2, outflowMultiplier);
+            int days = horizon.getHorizonDays();
+            List<Double> levels = new ArrayList<>();
+            for (int day = 0; day < days; day++) {
+                levels.add(horizon.getPeakNeed(day));
+                levels.add(Math.nextDown(horizon.getPeakNeed(day)));
+            }
+            levels.add(Double.NEGATIVE_INFINITY);
+            levels.add(Double.POSITIVE_INFINITY);
+            for (double liquidity : levels) {
+                int linear = 0;
+                while (linear < days && horizon.getPeakNeed(linear) <= liquidity) linear++;
+                if (horizon.survivalDays(liquidity) != linear) mismatches++;
+                probes++;
+            }
+        }
+        check("Survival horizon binary search vs linear scan", mismatches == 0, 
+              probes + " liquidity levels, " + mismatches + " mismatches");
+    }
+    
+    
+    // The default IDR book the interactive session starts from
+    private static TreasuryPortfolio defaultBook(MarketData marketData) {
+        TreasuryPortfolio portfolio = new TreasuryPortfolio("IDR", SimulationServer.DEFAULT_INITIAL_CASH, marketData);
+        TreasuryLiquiditySimulator.addDefaultAssets(portfolio);
+        return portfolio;
+    }
+    
+    private static void deleteQuietly(Path directory) {
+        if (directory == null) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            System.out.println("Could not remove " + directory + ": " + e.getMessage());
+        }
+    }
+    
+    // --selftest [seed]
+    static void runFromCommandLine(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42L;
+        SelfTest selfTest = new SelfTest(seed);
+        selfTest.runAll();
+        System.out.println(selfTest.getFailures() == 0 ? "All checks passed (seed " + seed + ")" 
+                                                       : selfTest.getFailures() + " check(s) failed (seed " + seed + ")");
+        if (selfTest.getFailures() > 0) {
+            System.exit(1);
+        }
+    }
+}